@@ -0,0 +1,107 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.soap;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.common.soap.Element.JSONElement;
+import com.zimbra.common.soap.Element.XMLElement;
+
+/**
+ * Building and serializing a SearchResponse-sized {@link Element} tree, in both SOAP formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ElementBenchmark {
+
+    @Param({"json", "xml"})
+    public String format;
+
+    /** number of <m> elements in the response */
+    @Param({"100"})
+    public int hits;
+
+    private Element.ElementFactory factory;
+    private Element response;
+
+    @Setup
+    public void setup() {
+        factory = "json".equals(format) ? JSONElement.mFactory : XMLElement.mFactory;
+        response = build(factory, hits);
+    }
+
+    private static Element build(Element.ElementFactory factory, int hits) {
+        Element resp = factory.createElement(MailConstants.SEARCH_RESPONSE);
+        resp.addAttribute(MailConstants.A_SORTBY, "dateDesc");
+        resp.addAttribute(MailConstants.A_QUERY_OFFSET, 0);
+        resp.addAttribute(MailConstants.A_QUERY_MORE, true);
+        for (int i = 0; i < hits; i++) {
+            Element m = resp.addNonUniqueElement(MailConstants.E_MSG);
+            m.addAttribute(MailConstants.A_ID, 1000 + i);
+            m.addAttribute(MailConstants.A_CONV_ID, -(1000 + i));
+            m.addAttribute(MailConstants.A_FOLDER, "2");
+            m.addAttribute(MailConstants.A_FLAGS, "u");
+            m.addAttribute(MailConstants.A_SIZE, 4096 + i);
+            m.addAttribute(MailConstants.A_DATE, 1476202360000L + i);
+            m.addAttribute(MailConstants.A_REVISION, 2000 + i);
+            Element e = m.addNonUniqueElement(MailConstants.E_EMAIL);
+            e.addAttribute(MailConstants.A_ADDRESS, "alice@example.com");
+            e.addAttribute(MailConstants.A_DISPLAY, "Alice");
+            e.addAttribute(MailConstants.A_PERSONAL, "Alice Example");
+            e.addAttribute(MailConstants.A_ADDRESS_TYPE, "f");
+            m.addNonUniqueElement(MailConstants.E_SUBJECT).setText("Re: quarterly numbers #" + i + " & <more>");
+            m.addNonUniqueElement(MailConstants.E_FRAG).setText(
+                    "The numbers look fine to me. A couple of notes on the résumé section and the forecast");
+        }
+        return resp;
+    }
+
+    @Benchmark
+    public Element buildTree() {
+        return build(factory, hits);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return response.toString();
+    }
+
+    @Benchmark
+    public StringWriter output() throws IOException {
+        StringWriter out = new StringWriter(64 * 1024);
+        response.output(out);
+        return out;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link BEncoding} on its own.  Run with {@code -Dbench.args="-prof gc"} to see the allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BEncodingBenchmark {
+
+    /** number of entries in the nested list, which is what makes it grow */
+    @Param({"1", "50"})
+    public int entries;
+
+    private Map<String, Object> map;
+    private String encoded;
+
+    @Setup
+    public void setup() {
+        map = new TreeMap<String, Object>();
+        map.put("f", "u");
+        map.put("s", 20480L);
+        map.put("t", -1L);
+        map.put("mdver", 10L);
+        map.put("fr", "The numbers look fine to me. A couple of notes on the resume section and the");
+        List<Object> list = new ArrayList<Object>(entries);
+        for (int i = 0; i < entries; i++) {
+            Map<String, Object> entry = new TreeMap<String, Object>();
+            entry.put("a", "user" + i + "@zimbra.com");
+            entry.put("i", (long) i);
+            list.add(entry);
+        }
+        map.put("l", list);
+        encoded = BEncoding.encode(map);
+    }
+
+    @Benchmark
+    public String encode() {
+        return BEncoding.encode(map);
+    }
+
+    @Benchmark
+    public Map<String, Object> decode() throws BEncoding.BEncodingException {
+        return BEncoding.decode(encoded);
+    }
+
+    /**
+     * Reads the top-level numbers and skips everything else, without building any maps.
+     */
+    @Benchmark
+    public long stream() throws BEncoding.BEncodingException {
+        BEncoding.Reader reader = new BEncoding.Reader(encoded);
+        long sum = 0;
+        reader.beginDictionary();
+        while (reader.hasNext()) {
+            reader.readString();
+            if (reader.peek() == BEncoding.Reader.Token.INTEGER) {
+                sum += reader.readLong();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.end();
+        return sum;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.zmime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Parsing RFC 822 messages with {@link ZMimeParser}, as done on delivery and whenever a message is served.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZMimeParserBenchmark {
+
+    @Param({"plain.eml", "alternative.eml", "attachment.eml"})
+    public String fixture;
+
+    private Session session;
+    private byte[] content;
+
+    @Setup
+    public void setup() throws IOException {
+        session = Session.getInstance(new Properties());
+        content = loadFixture(fixture);
+    }
+
+    static byte[] loadFixture(String name) throws IOException {
+        try (InputStream is = ZMimeParserBenchmark.class.getResourceAsStream("/fixtures/" + name)) {
+            if (is == null) {
+                throw new IOException("fixture not found: " + name);
+            }
+            return ByteStreams.toByteArray(is);
+        }
+    }
+
+    @Benchmark
+    public ZMimeMessage parse() throws IOException {
+        return ZMimeParser.parse(session, new SharedByteArrayInputStream(content));
+    }
+
+    /**
+     * Parses and then reads the headers and content type of every part, as the indexer and GetMsg do.
+     */
+    @Benchmark
+    public void parseAndWalk(Blackhole bh) throws IOException, MessagingException {
+        ZMimeMessage mm = ZMimeParser.parse(session, new SharedByteArrayInputStream(content));
+        bh.consume(mm.getSubject());
+        bh.consume(mm.getFrom());
+        walk(mm, bh);
+    }
+
+    private static void walk(Part part, Blackhole bh) throws IOException, MessagingException {
+        bh.consume(part.getContentType());
+        if (part.isMimeType("multipart/*")) {
+            Multipart multi = (Multipart) part.getContent();
+            for (int i = 0; i < multi.getCount(); i++) {
+                walk(multi.getBodyPart(i), bh);
+            }
+        }
+    }
+}
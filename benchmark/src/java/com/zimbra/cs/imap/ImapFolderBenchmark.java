@@ -0,0 +1,124 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Sequence number and UID lookups in a selected {@link ImapFolder}, as done for every FETCH, STORE and SEARCH.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImapFolderBenchmark {
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    private ImapFolder folder;
+    private int[] sequences;
+    private int[] uids;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        MailboxTestUtil.initServer();
+        MailboxTestUtil.clearData();
+        HashMap<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, "7d4ea20b-1b25-4c1f-8f5b-0a3c0e4f9b11");
+        Account acct = Provisioning.getInstance().createAccount("imapbench@zimbra.com", "secret", attrs);
+
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        folder = new ImapFolder(new ImapPath("INBOX", creds), (byte) 0, null);
+        // UIDs have gaps, as they do once messages have been moved or expunged
+        for (int i = 1; i <= size; i++) {
+            int flags = i % 7 == 0 ? Flag.BITMASK_FLAGGED : 0;
+            folder.cache(new ImapMessage(i * 3, MailItem.Type.MESSAGE, i * 3 + 1, flags, null), i > size - 10);
+        }
+
+        Random random = new Random(42);
+        sequences = new int[1024];
+        uids = new int[sequences.length];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = random.nextInt(size) + 1;
+            uids[i] = sequences[i] * 3 + 1;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (sequences.length - 1);
+        return next;
+    }
+
+    @Benchmark
+    public ImapMessage getBySequence() {
+        return folder.getBySequence(sequences[nextIndex()]);
+    }
+
+    @Benchmark
+    public ImapMessage getByImapId() {
+        return folder.getByImapId(uids[nextIndex()]);
+    }
+
+    @Benchmark
+    public ImapMessage getById() {
+        return folder.getById(uids[nextIndex()] - 1);
+    }
+
+    /** a typical client "UID FETCH n:*" after a resync */
+    @Benchmark
+    public Set<ImapMessage> uidRange() throws ImapParseException {
+        return folder.getSubsequence(null, uids[nextIndex()] + ":*", true);
+    }
+
+    @Benchmark
+    public Set<ImapMessage> sequenceSet() throws ImapParseException {
+        int i = nextIndex();
+        return folder.getSubsequence(null, sequences[i] + "," + (sequences[i] / 2 + 1) + ":" + sequences[i], false);
+    }
+}
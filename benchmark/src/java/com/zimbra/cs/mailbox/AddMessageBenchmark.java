@@ -0,0 +1,98 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.store.file.FileBlobStore;
+
+/**
+ * {@link Mailbox#addMessage} end to end, against the in-memory HSQLDB database used by the unit tests and a
+ * {@link FileBlobStore} volume under build/test/store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AddMessageBenchmark {
+
+    @Param({"plain.eml", "attachment.eml"})
+    public String fixture;
+
+    private Mailbox mbox;
+    private String content;
+    private DeliveryOptions dopt;
+    private int sequence;
+
+    @Setup
+    public void setup() throws Exception {
+        MailboxTestUtil.initServer(FileBlobStore.class);
+        MailboxTestUtil.clearData();
+        HashMap<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, "5a1f0c9e-6d2b-4f3a-b4e7-3c8d2e1f0a77");
+        Account acct = Provisioning.getInstance().createAccount("addmsgbench@zimbra.com", "secret", attrs);
+        mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        content = new String(loadFixture(fixture), Charsets.UTF_8);
+        dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX).setFlags(Flag.BITMASK_UNREAD);
+    }
+
+    private static byte[] loadFixture(String name) throws IOException {
+        try (InputStream is = AddMessageBenchmark.class.getResourceAsStream("/fixtures/" + name)) {
+            if (is == null) {
+                throw new IOException("fixture not found: " + name);
+            }
+            return ByteStreams.toByteArray(is);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Benchmark
+    public Message addMessage() throws ServiceException, IOException {
+        // a distinct Message-ID per delivery, so that nothing is deduped
+        byte[] raw = content.replace("<fixture-", "<" + (++sequence) + "-").getBytes(Charsets.UTF_8);
+        return mbox.addMessage(null, new ParsedMessage(raw, false), dopt, null);
+    }
+}
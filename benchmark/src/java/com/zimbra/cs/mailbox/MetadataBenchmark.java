@@ -0,0 +1,99 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+
+/**
+ * Encoding and decoding of {@link Metadata}, which is done for every item loaded from or written to the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetadataBenchmark {
+
+    /** number of recipients in the message metadata, which is what makes it grow */
+    @Param({"1", "50"})
+    public int recipients;
+
+    /** compact encoding, or BEncoding */
+    @Param({"true", "false"})
+    public boolean compact;
+
+    private Metadata metadata;
+    private String encoded;
+
+    @Setup
+    public void setup() {
+        LC.zimbra_metadata_compact_encoding.setDefault(compact);
+        metadata = newMessageMetadata(recipients);
+        encoded = metadata.toString();
+    }
+
+    /**
+     * The metadata of a received message, as stored in the MAIL_ITEM table.
+     */
+    static Metadata newMessageMetadata(int recipients) {
+        StringBuilder rcpts = new StringBuilder();
+        for (int i = 0; i < recipients; i++) {
+            rcpts.append(i == 0 ? "" : ", ").append("\"User ").append(i).append("\" <user").append(i)
+                    .append("@zimbra.com>");
+        }
+        return Message.encodeMetadata(new Metadata(), null, 10, 2, null, "Alice Example <alice@example.com>",
+                rcpts.toString(), "The numbers look fine to me. A couple of notes on the resume section and the",
+                "quarterly numbers", "Re: quarterly numbers", null, null, null);
+    }
+
+    @Benchmark
+    public String encode() {
+        return metadata.toString();
+    }
+
+    @Benchmark
+    public Metadata decode() throws ServiceException {
+        return new Metadata(encoded);
+    }
+
+    /**
+     * Decodes and reads only the fields that a conversation list needs.
+     */
+    @Benchmark
+    public String decodeFields() throws ServiceException {
+        Metadata meta = new Metadata(encoded);
+        meta.getLong(Metadata.FN_COLOR, -1);
+        meta.getInt(Metadata.FN_METADATA_VERSION, 1);
+        return meta.get(Metadata.FN_FRAGMENT, null);
+    }
+}
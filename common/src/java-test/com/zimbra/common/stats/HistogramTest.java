@@ -0,0 +1,96 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void buckets() {
+        long previous = -1;
+        for (int bucket = 0; bucket <= Histogram.getBucket(Histogram.MAX_VALUE); bucket++) {
+            long highest = Histogram.getHighestValue(bucket);
+            Assert.assertEquals(bucket, Histogram.getBucket(previous + 1));
+            Assert.assertEquals(bucket, Histogram.getBucket(highest));
+            // at most 1/32 wider than the values it holds
+            Assert.assertTrue(highest - previous - 1 <= (previous + 1) / 32);
+            previous = highest;
+        }
+        Assert.assertEquals(Histogram.MAX_VALUE, previous);
+        Assert.assertEquals(Histogram.getBucket(Histogram.MAX_VALUE), Histogram.getBucket(Long.MAX_VALUE));
+        Assert.assertEquals(0, Histogram.getBucket(-5));
+    }
+
+    @Test
+    public void percentiles() {
+        Histogram histogram = new Histogram();
+        Assert.assertEquals(0, histogram.snapshot().getValueAtPercentile(99.0));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(1, snapshot.getValueAtPercentile(0.0));
+        assertNear(500, snapshot.getValueAtPercentile(50.0));
+        assertNear(990, snapshot.getValueAtPercentile(99.0));
+        assertNear(1000, snapshot.getValueAtPercentile(100.0));
+
+        // only the slow tail recorded after the snapshot
+        histogram.record(60000);
+        histogram.record(60000);
+        Histogram.Snapshot delta = histogram.snapshot().minus(snapshot);
+        Assert.assertEquals(2, delta.getCount());
+        assertNear(60000, delta.getValueAtPercentile(50.0));
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void deltaCalculator() {
+        StopWatch watch = new StopWatch(true);
+        DeltaCalculator calc = new DeltaCalculator(watch).setCountName("count")
+                .setPercentileName(50.0, "p50").setPercentileName(99.0, "p99");
+        Assert.assertEquals(Arrays.asList("count", "p50", "p99"), calc.getNames());
+        for (int i = 0; i < 99; i++) {
+            watch.increment(10);
+        }
+        watch.increment(5000);
+        Assert.assertEquals(Arrays.<Object>asList(100L, 10L, 10L), calc.getData());
+        calc.reset();
+
+        watch.increment(5000);
+        Assert.assertEquals(1, calc.getCount());
+        assertNear(5000, calc.getPercentile(99.0));
+        // realtime values also cover the previous interval
+        Assert.assertEquals(10, calc.getRealtimePercentile(50.0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noHistogram() {
+        new DeltaCalculator(new StopWatch()).setPercentileName(99.0, "p99");
+    }
+
+    private static void assertNear(long expected, long actual) {
+        Assert.assertTrue("expected " + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / 32);
+    }
+}
@@ -17,6 +17,7 @@
 package com.zimbra.common.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -59,4 +60,72 @@ public class BEncodingTest {
         Assert.assertEquals(new TreeMap<Object, Object>(), decoded.get("yy"));
     }
 
+
+    @Test
+    public void longs() throws Exception {
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("max", Long.MAX_VALUE);
+        map.put("min", Long.MIN_VALUE);
+        map.put("neg", -42);
+        map.put("zero", (short) 0);
+        String encoded = BEncoding.encode(map);
+        Assert.assertEquals("d3:maxi9223372036854775807e3:mini-9223372036854775808e3:negi-42e4:zeroi0ee", encoded);
+
+        Map<String, Object> decoded = BEncoding.decode(encoded);
+        Assert.assertEquals(Long.MAX_VALUE, decoded.get("max"));
+        Assert.assertEquals(Long.MIN_VALUE, decoded.get("min"));
+        Assert.assertEquals(-42L, decoded.get("neg"));
+        Assert.assertEquals(0L, decoded.get("zero"));
+        Assert.assertEquals(7L, ((Map<?, ?>) BEncoding.decode("d1:ai+7ee")).get("a"));
+    }
+
+    @Test
+    public void malformed() throws Exception {
+        String[] numberErrors = { "d1:ai12x3ee", "d1:ai99999999999999999999ee", "d1:aiee", "d1:ai-ee", "d2x:aee" };
+        for (String encoded : numberErrors) {
+            try {
+                BEncoding.decode(encoded);
+                Assert.fail(encoded);
+            } catch (BEncoding.BEncodingException e) {
+                Assert.assertTrue(encoded, e.getCause() instanceof NumberFormatException);
+            }
+        }
+        String[] otherErrors = { "", "d1:a", "d1:ae", "d5:abce", "l1:ae1:b", "d1:ai5e" };
+        for (String encoded : otherErrors) {
+            try {
+                BEncoding.decode(encoded);
+                Assert.fail(encoded);
+            } catch (BEncoding.BEncodingException e) {
+                Assert.assertFalse(encoded, e.getCause() instanceof NumberFormatException);
+            }
+        }
+    }
+
+    @Test
+    public void reader() throws Exception {
+        BEncoding.Reader reader = new BEncoding.Reader("d1:fi40e4:listl1:xi1ee1:s5:helloe");
+        Assert.assertEquals(BEncoding.Reader.Token.DICTIONARY, reader.peek());
+        reader.beginDictionary();
+        Assert.assertEquals("f", reader.readString());
+        Assert.assertEquals(BEncoding.Reader.Token.INTEGER, reader.peek());
+        Assert.assertEquals(40L, reader.readLong());
+        Assert.assertEquals("list", reader.readString());
+        Assert.assertEquals(BEncoding.Reader.Token.LIST, reader.peek());
+        reader.skipValue();
+        Assert.assertEquals("s", reader.readString());
+        Assert.assertEquals(BEncoding.Reader.Token.STRING, reader.peek());
+        Assert.assertEquals("hello", reader.readString());
+        Assert.assertFalse(reader.hasNext());
+        Assert.assertEquals(BEncoding.Reader.Token.END, reader.peek());
+        reader.end();
+        Assert.assertTrue(reader.isDone());
+
+        reader = new BEncoding.Reader("l1:ai3ee");
+        Assert.assertEquals(Arrays.asList("a", 3L), reader.readValue());
+        try {
+            new BEncoding.Reader("i3e").readString();
+            Assert.fail();
+        } catch (BEncoding.BEncodingException expected) {
+        }
+    }
 }
@@ -0,0 +1,60 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.util;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class ZimbraServletOutputStreamTest {
+
+    @Test
+    public void largeAppends() throws Exception {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            // mix of 1, 2, 3 and 4 byte UTF-8 sequences so surrogate pairs straddle buffer boundaries
+            expected.append("aé日😀").append(i);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZimbraServletOutputStream out = new ZimbraServletOutputStream(bytes);
+        String str = expected.toString();
+        out.append(str, 0, 7);
+        out.append(new StringBuilder(str.substring(7, 20001)));
+        for (int i = 20001; i < 20100; i++) {
+            out.append(str.charAt(i));
+        }
+        out.append(str.substring(20100));
+        out.flush();
+        assertEquals(str, new String(bytes.toByteArray(), Charsets.UTF_8));
+    }
+
+    @Test
+    public void unpairedSurrogate() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZimbraServletOutputStream out = new ZimbraServletOutputStream(bytes);
+        out.append("x\ud83d");
+        out.flush();
+        assertArrayEquals("x\ud83d".getBytes("utf-8"), bytes.toByteArray());
+        out.append("y");
+        out.flush();
+        assertEquals("x?y", new String(bytes.toByteArray(), Charsets.UTF_8));
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.util.memcached;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+
+/**
+ * Unit test for {@link MemcachedMap} and {@link BigByteArrayMemcachedMap} against {@link MemcachedTestServer}.
+ */
+public final class MemcachedMapTest {
+
+    private static MemcachedTestServer server;
+    private ZimbraMemcachedClient client;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        server = new MemcachedTestServer();
+    }
+
+    @AfterClass
+    public static void destroy() {
+        server.shutdown();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server.clear();
+        client = new ZimbraMemcachedClient();
+        client.connect(new String[] { server.getServer() }, false, null, 3600, 5000);
+    }
+
+    @After
+    public void tearDown() {
+        client.disconnect(1000);
+    }
+
+    private static final class TestKey implements MemcachedKey {
+        private final String key;
+
+        TestKey(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public String getKeyPrefix() {
+            return "test:";
+        }
+
+        @Override
+        public String getKeyValue() {
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof TestKey && key.equals(((TestKey) other).key);
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+    }
+
+    private static final class StringSerializer implements MemcachedSerializer<String> {
+        @Override
+        public Object serialize(String value) {
+            return value;
+        }
+
+        @Override
+        public String deserialize(Object obj) {
+            return (String) obj;
+        }
+    }
+
+    private static final class BytesSerializer implements ByteArraySerializer<byte[]> {
+        @Override
+        public byte[] serialize(byte[] value) {
+            return value;
+        }
+
+        @Override
+        public byte[] deserialize(byte[] bytes) {
+            return bytes;
+        }
+    }
+
+    @Test
+    public void multi() throws Exception {
+        MemcachedMap<TestKey, String> map = new MemcachedMap<TestKey, String>(client, new StringSerializer());
+        Map<TestKey, String> values = new HashMap<TestKey, String>();
+        List<TestKey> keys = new ArrayList<TestKey>();
+        for (int i = 0; i < 40; i++) {
+            values.put(new TestKey("k" + i), "value " + i);
+            keys.add(new TestKey("k" + i));
+        }
+        map.putMulti(values);
+        Assert.assertEquals(40, server.getStoreCommands());
+        Assert.assertTrue(server.contains("test:k39"));
+
+        keys.add(new TestKey("missing"));
+        Map<TestKey, String> found = map.getMulti(keys);
+        Assert.assertEquals(1, server.getGetCommands());
+        Assert.assertEquals(41, found.size());
+        Assert.assertEquals("value 7", found.get(new TestKey("k7")));
+        Assert.assertTrue(found.containsKey(new TestKey("missing")));
+        Assert.assertNull(found.get(new TestKey("missing")));
+
+        found = map.getMultiAsync(keys).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(2, server.getGetCommands());
+        Assert.assertEquals(values, found);
+
+        map.removeMulti(keys.subList(0, 20));
+        Assert.assertFalse(server.contains("test:k0"));
+        Assert.assertTrue(server.contains("test:k20"));
+        Assert.assertEquals(20, map.getMultiAsync(keys).get(5, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    public void bigByteArrayMulti() throws Exception {
+        BigByteArrayMemcachedMap<TestKey, byte[]> map =
+                new BigByteArrayMemcachedMap<TestKey, byte[]>(client, new BytesSerializer());
+        byte[] small = "small".getBytes();
+        byte[] big = new byte[2500 * 1024];
+        for (int i = 0; i < big.length; i++) {
+            big[i] = (byte) i;
+        }
+        Map<TestKey, byte[]> values = new HashMap<TestKey, byte[]>();
+        values.put(new TestKey("small"), small);
+        values.put(new TestKey("big"), big);
+        map.putMulti(values);
+        // the big value is split into 3 chunks and a table of contents
+        Assert.assertEquals(5, server.getStoreCommands());
+
+        Map<TestKey, byte[]> found = map.getMulti(
+                Arrays.asList(new TestKey("small"), new TestKey("big"), new TestKey("missing")));
+        // main values, then chunks
+        Assert.assertEquals(2, server.getGetCommands());
+        Assert.assertArrayEquals(small, found.get(new TestKey("small")));
+        Assert.assertArrayEquals(big, found.get(new TestKey("big")));
+        Assert.assertNull(found.get(new TestKey("missing")));
+        Assert.assertArrayEquals(big, map.get(new TestKey("big")));
+    }
+
+    @Test
+    public void disconnected() throws ServiceException {
+        client.disconnect(1000);
+        MemcachedMap<TestKey, String> map = new MemcachedMap<TestKey, String>(client, new StringSerializer());
+        Map<TestKey, String> found = map.getMulti(Arrays.asList(new TestKey("k")));
+        Assert.assertEquals(1, found.size());
+        Assert.assertNull(found.get(new TestKey("k")));
+        Assert.assertTrue(map.getMultiAsync(Arrays.asList(new TestKey("k"))).isDone());
+    }
+}
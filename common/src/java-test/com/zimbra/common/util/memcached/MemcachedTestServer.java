@@ -0,0 +1,208 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.util.memcached;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for a memcached server, speaking enough of the text protocol for
+ * {@link ZimbraMemcachedClient}: get/gets, set/add/replace, delete, version and flush_all.  Expiry is ignored.
+ * The number of commands of each kind is counted, so tests can check how many round trips a batch took.
+ */
+public final class MemcachedTestServer {
+
+    private final ServerSocket serverSocket;
+    private final Map<String, byte[]> data = new ConcurrentHashMap<String, byte[]>();
+    private final Map<String, Integer> flags = new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger getCommands = new AtomicInteger();
+    private final AtomicInteger storeCommands = new AtomicInteger();
+    private final AtomicInteger deleteCommands = new AtomicInteger();
+    private volatile boolean running = true;
+
+    public MemcachedTestServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread("MemcachedTestServer") {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        Thread handler = new Thread("MemcachedTestServer-" + socket.getPort()) {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        };
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** Returns the server address as expected by {@link ZimbraMemcachedClient#connect}. */
+    public String getServer() {
+        return "127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    public int getGetCommands() {
+        return getCommands.get();
+    }
+
+    public int getStoreCommands() {
+        return storeCommands.get();
+    }
+
+    public int getDeleteCommands() {
+        return deleteCommands.get();
+    }
+
+    public boolean contains(String key) {
+        return data.containsKey(key);
+    }
+
+    public void clear() {
+        data.clear();
+        flags.clear();
+        getCommands.set(0);
+        storeCommands.set(0);
+        deleteCommands.set(0);
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = readLine(in)) != null) {
+                String[] tokens = line.trim().split(" +");
+                String command = tokens[0];
+                if (command.equals("get") || command.equals("gets")) {
+                    getCommands.incrementAndGet();
+                    ByteArrayOutputStream response = new ByteArrayOutputStream();
+                    for (int i = 1; i < tokens.length; i++) {
+                        byte[] value = data.get(tokens[i]);
+                        if (value != null) {
+                            String header = "VALUE " + tokens[i] + " " + flags.get(tokens[i]) + " " + value.length +
+                                    (command.equals("gets") ? " 0" : "") + "\r\n";
+                            response.write(header.getBytes(StandardCharsets.US_ASCII));
+                            response.write(value);
+                            response.write(CRLF);
+                        }
+                    }
+                    response.write("END\r\n".getBytes(StandardCharsets.US_ASCII));
+                    out.write(response.toByteArray());
+                } else if (command.equals("set") || command.equals("add") || command.equals("replace")) {
+                    storeCommands.incrementAndGet();
+                    String key = tokens[1];
+                    byte[] value = readBytes(in, Integer.parseInt(tokens[4]));
+                    boolean exists = data.containsKey(key);
+                    String result;
+                    if ((command.equals("add") && exists) || (command.equals("replace") && !exists)) {
+                        result = "NOT_STORED";
+                    } else {
+                        flags.put(key, Integer.parseInt(tokens[2]));
+                        data.put(key, value);
+                        result = "STORED";
+                    }
+                    reply(out, tokens, 5, result);
+                } else if (command.equals("delete")) {
+                    deleteCommands.incrementAndGet();
+                    flags.remove(tokens[1]);
+                    reply(out, tokens, 2, data.remove(tokens[1]) != null ? "DELETED" : "NOT_FOUND");
+                } else if (command.equals("version")) {
+                    reply(out, tokens, 1, "VERSION 1.4.0");
+                } else if (command.equals("flush_all")) {
+                    data.clear();
+                    flags.clear();
+                    reply(out, tokens, 1, "OK");
+                } else if (command.equals("quit")) {
+                    break;
+                } else {
+                    reply(out, tokens, tokens.length, "ERROR");
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static void reply(OutputStream out, String[] tokens, int noreplyIndex, String result) throws IOException {
+        if (tokens.length <= noreplyIndex || !tokens[noreplyIndex].equals("noreply")) {
+            out.write((result + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int len = sb.length();
+                return len > 0 && sb.charAt(len - 1) == '\r' ? sb.substring(0, len - 1) : sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return null;
+    }
+
+    private static byte[] readBytes(InputStream in, int length) throws IOException {
+        byte[] value = new byte[length + 2];
+        int read = 0;
+        while (read < value.length) {
+            int n = in.read(value, read, value.length - read);
+            if (n < 0) {
+                throw new IOException("connection closed in the middle of a value");
+            }
+            read += n;
+        }
+        return Arrays.copyOf(value, length);
+    }
+}
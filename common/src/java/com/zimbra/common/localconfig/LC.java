@@ -164,6 +164,18 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_mailbox_galsync_cache = KnownKey.newKey(10000);
 
+    // estimated memory that the item cache of a mailbox may hold, and that the item caches of all loaded mailboxes
+    // may hold together as a percentage of the maximum heap (0 for no limit)
+    @Reloadable
+    public static final KnownKey zimbra_mailbox_item_cache_max_bytes = KnownKey.newKey(4 * 1024 * 1024);
+    @Reloadable
+    public static final KnownKey zimbra_mailbox_item_cache_heap_percent = KnownKey.newKey(10);
+
+    // folders and tags that may change after the memcached snapshot of a mailbox's folders and tags was written before
+    // a new snapshot is written; until then only their ids are recorded, and they're read again when the mailbox loads
+    @Reloadable
+    public static final KnownKey zimbra_folders_tags_cache_max_changes = KnownKey.newKey(100);
+
     @Supported
     public static final KnownKey zimbra_mailbox_change_checkpoint_frequency = KnownKey.newKey(100);
 
@@ -175,12 +187,64 @@ public final class LC {
 
     public static final KnownKey zimbra_mailbox_lock_readwrite = KnownKey.newKey(true);
 
+    // threads shared by all mailboxes for delivering change notifications to sessions after the mailbox lock is
+    // released (0 to deliver them on the committing thread while it holds the lock).  A thread that committed
+    // a change waits for its notifications to be delivered if notify_wait is set, and whenever more than
+    // notify_max_pending notifications are queued for the mailbox, but for no longer than notify_wait_timeout_ms.
+    public static final KnownKey zimbra_mailbox_notify_threads = KnownKey.newKey(8);
+    @Reloadable
+    public static final KnownKey zimbra_mailbox_notify_wait = KnownKey.newKey(true);
+    @Reloadable
+    public static final KnownKey zimbra_mailbox_notify_max_pending = KnownKey.newKey(1000);
+    @Reloadable
+    public static final KnownKey zimbra_mailbox_notify_wait_timeout_ms = KnownKey.newKey(10000);
+
+    // always-on only; every node in the cluster must use the same value, so only turn on once all nodes are upgraded
+    public static final KnownKey zimbra_mailbox_distributed_lock_readwrite = KnownKey.newKey(false);
+
+    // upper bound on the number of nodes that can hold a mailbox's distributed read lock at the same time
+    public static final KnownKey zimbra_mailbox_distributed_lock_max_readers = KnownKey.newKey(32);
+
+    @Reloadable
+    public static final KnownKey zimbra_mailbox_distributed_read_lease_linger_ms = KnownKey.newKey(250);
+
+    // redo log group commit: a single writer thread appends and fsyncs queued records in batches
+    public static final KnownKey zimbra_redolog_group_commit = KnownKey.newKey(false);
+    public static final KnownKey zimbra_redolog_group_commit_max_batch = KnownKey.newKey(512);
+
+    // threads that redo uncommitted operations during startup crash recovery; operations on the same mailbox are
+    // still redone in log order (1 to redo everything on the starting thread)
+    public static final KnownKey zimbra_redolog_crash_recovery_threads = KnownKey.newKey(4);
+
+    // write item metadata in the compact format; BEncoded metadata is still read, and is converted when the item
+    // is next written.  Only turn on once every server sharing the same data understands the compact format.
+    @Reloadable
+    public static final KnownKey zimbra_metadata_compact_encoding = KnownKey.newKey(false);
+
     @Supported
     public static final KnownKey zimbra_index_threads = KnownKey.newKey(10);
 
     @Supported
     public static final KnownKey zimbra_reindex_threads = KnownKey.newKey(10);
 
+    // threads shared by all re-indexes for fetching content and extracting text; this is the CPU budget
+    public static final KnownKey zimbra_reindex_extract_threads = KnownKey.newKey(4);
+    // bulk re-index (ReIndexScheduler): mailboxes re-indexed at once, IO budget in bytes of item content read per
+    // second (0 for unlimited), and the LMTP delivery rate in messages per second above which it pauses (0 to never)
+    @Reloadable
+    public static final KnownKey zimbra_reindex_scheduler_mailboxes = KnownKey.newKey(2);
+    @Reloadable
+    public static final KnownKey zimbra_reindex_max_bytes_per_second = KnownKey.newKey(0);
+    @Reloadable
+    public static final KnownKey zimbra_reindex_pause_delivery_rate = KnownKey.newKey(50);
+
+    // threads shared by all message analysis for extracting the text of MIME parts in parallel (0 to extract on the
+    // analyzing thread), and the time in milliseconds a part may take before it is left out of the index instead of
+    // holding up delivery (0 for no limit)
+    public static final KnownKey zimbra_mime_extract_threads = KnownKey.newKey(8);
+    @Reloadable
+    public static final KnownKey zimbra_mime_extract_part_timeout = KnownKey.newKey(30000);
+
     @Supported
     public static final KnownKey zimbra_index_max_readers = KnownKey.newKey(35);
 
@@ -300,6 +364,8 @@ public final class LC {
     @Reloadable
     public static final KnownKey soap_response_chunked_transfer_encoding_enabled = KnownKey.newKey(true);
     public static final KnownKey zimbra_servlet_output_stream_buffer_size = KnownKey.newKey(5120);
+    // SOAP responses sent with a Content-Length are spooled to disk beyond this many bytes
+    public static final KnownKey soap_response_spool_threshold = KnownKey.newKey(4 * 1024 * 1024);
 
     public static final KnownKey rest_response_cache_control_value = KnownKey.newKey("no-store, no-cache");
 
@@ -696,6 +762,15 @@ public final class LC {
     public static final KnownKey imap_throttle_acct_limit = KnownKey.newKey(5000);
     public static final KnownKey imap_throttle_command_limit = KnownKey.newKey(25);
     public static final KnownKey imap_throttle_fetch = KnownKey.newKey(true);
+    // send uncompressed local blobs for BODY[] and RFC822 fetches as file regions (sendfile) on NIO connections
+    @Reloadable
+    public static final KnownKey imap_fetch_zero_copy = KnownKey.newKey(true);
+    // store each message's ENVELOPE and BODYSTRUCTURE in its metadata so FETCH can answer them without the blob;
+    // messages whose combined structures are longer than the max size (in chars) are always parsed instead
+    @Reloadable
+    public static final KnownKey imap_persist_structure = KnownKey.newKey(true);
+    @Reloadable
+    public static final KnownKey imap_persist_structure_max_size = KnownKey.newKey(16384);
     public static final KnownKey data_source_imap_reuse_connections = KnownKey.newKey(false);
 
     @Supported
@@ -805,6 +880,15 @@ public final class LC {
     public static final KnownKey data_source_xsync_factory_class = KnownKey.newKey("");
     public static final KnownKey data_source_config = KnownKey.newKey("${zimbra_home}/conf/datasource.xml");
     public static final KnownKey data_source_ioexception_handler_class = KnownKey.newKey("com.zimbra.cs.datasource.IOExceptionHandler");
+    // Maximum number of data source imports running at the same time, shared fairly between accounts
+    public static final KnownKey data_source_import_threads = KnownKey.newKey(20);
+    // Maximum number of IMAP connections an import-only data source uses to sync its folders in parallel
+    @Reloadable
+    public static final KnownKey data_source_imap_folder_connections = KnownKey.newKey(4);
+    // Maximum number of fetched IMAP messages waiting to be added to the mailbox, per folder
+    public static final KnownKey data_source_imap_fetch_queue_size = KnownKey.newKey(50);
+    // Maximum number of fetched IMAP messages added to the mailbox before their trackers are written
+    public static final KnownKey data_source_imap_add_batch_size = KnownKey.newKey(20);
 
     @Supported
     public static final KnownKey timezone_file = KnownKey.newKey("${zimbra_home}/conf/timezones.ics");
@@ -854,6 +938,10 @@ public final class LC {
     public static final KnownKey zimbra_waitset_initial_sleep_time = KnownKey.newKey(1000);
     public static final KnownKey zimbra_waitset_nodata_sleep_time = KnownKey.newKey(3000);
 
+    // How long an all-accounts waitset collects committed changes before handing them to a waiting request, in ms
+    @Reloadable
+    public static final KnownKey zimbra_waitset_all_accounts_batch_delay_ms = KnownKey.newKey(100);
+
     public static final KnownKey zimbra_csv_mapping_file = KnownKey.newKey("${zimbra_home}/conf/zimbra-contact-fields.xml");
 
     public static final KnownKey zimbra_auth_provider = KnownKey.newKey("");
@@ -910,6 +998,14 @@ public final class LC {
     public static final KnownKey yauth_baseuri = KnownKey.newKey("https://login.yahoo.com/WSLogin/V1");
 
     public static final KnownKey purge_initial_sleep_ms = KnownKey.newKey(30 * Constants.MILLIS_PER_MINUTE);
+    // mailboxes purged at once, and the recent average latency in milliseconds of getting a database connection or
+    // of delivering to an LMTP recipient above which purging pauses (0 to never pause)
+    @Reloadable
+    public static final KnownKey purge_threads = KnownKey.newKey(2);
+    @Reloadable
+    public static final KnownKey purge_pause_db_conn_ms = KnownKey.newKey(100);
+    @Reloadable
+    public static final KnownKey purge_pause_lmtp_rcpt_ms = KnownKey.newKey(2000);
 
     public static final KnownKey conversation_max_age_ms = KnownKey.newKey(31 * Constants.MILLIS_PER_DAY);
     public static final KnownKey tombstone_max_age_ms = KnownKey.newKey(3 * Constants.MILLIS_PER_MONTH);
@@ -1068,6 +1164,12 @@ public final class LC {
 
     public static final KnownKey zimbra_lmtp_validate_messages = KnownKey.newKey(true);
     public static final KnownKey zimbra_lmtp_max_line_length = KnownKey.newKey(10240);
+    // threads shared by all LMTP sessions for delivering a message to its local recipients in parallel; 0 disables
+    public static final KnownKey zimbra_lmtp_delivery_threads = KnownKey.newKey(16);
+    // most threads, including the LMTP session's own, that work on one message
+    public static final KnownKey zimbra_lmtp_delivery_max_fanout = KnownKey.newKey(4);
+    // recipients each thread should have before another thread is brought in
+    public static final KnownKey zimbra_lmtp_delivery_recipients_per_thread = KnownKey.newKey(20);
 
     public static final KnownKey data_source_scheduling_enabled = KnownKey.newKey(true);
     public static final KnownKey data_source_eas_sync_email = KnownKey.newKey(true);
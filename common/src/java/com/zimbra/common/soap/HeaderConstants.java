@@ -86,6 +86,8 @@ public final class HeaderConstants {
 
     // http request headers
     public static final String HTTP_HEADER_ORIG_USER_AGENT = "Original-User-Agent";
+    // "true" or "false"; overrides soap_response_chunked_transfer_encoding_enabled for one request
+    public static final String HTTP_HEADER_RESPONSE_CHUNKED = "X-Zimbra-Response-Chunked";
 
     private HeaderConstants() {
     }
@@ -23,6 +23,8 @@ import java.util.List;
 /**
  * Calculates changes to the total, count, and average
  * for the wrapped <tt>Counter</tt> between subsequent calls to {@link #reset}.
+ * If the <tt>Counter</tt> is a <tt>StopWatch</tt> that tracks percentiles,
+ * also calculates percentiles of the times recorded in between.
  */
 public class DeltaCalculator
 implements Accumulator {
@@ -37,11 +39,20 @@ implements Accumulator {
     private String mTotalName;
     private String mAverageName;
     private String mRealtimeAverageName;
+    private List<Double> mPercentiles = new ArrayList<Double>();
+    private List<String> mPercentileNames = new ArrayList<String>();
+
+    private Histogram mHistogram;
+    private Histogram.Snapshot mLastSnapshot;
+    private Histogram.Snapshot mSecondToLastSnapshot;
     
     private List<String> mNames;
     
     public DeltaCalculator(Counter counter) {
         mCounter = counter;
+        if (counter instanceof StopWatch) {
+            mHistogram = ((StopWatch) counter).getHistogram();
+        }
     }
 
     /**
@@ -84,6 +95,24 @@ implements Accumulator {
         return this;
     }
     
+    /**
+     * The given name will be returned by {@link #getNames()} and the
+     * given percentile will be returned by {@link #getData()}.
+     *
+     * @param percentile between 0 and 100, for example 99.9
+     * @throws IllegalArgumentException if the wrapped <tt>Counter</tt> is
+     * not a <tt>StopWatch</tt> that tracks percentiles
+     */
+    public DeltaCalculator setPercentileName(double percentile, String name) {
+        if (mHistogram == null) {
+            throw new IllegalArgumentException("percentiles are not tracked for " + name);
+        }
+        mPercentiles.add(percentile);
+        mPercentileNames.add(name);
+        updateNames();
+        return this;
+    }
+    
     private void updateNames() {
         ArrayList<String> names = new ArrayList<String>();
         if (mCountName != null) {
@@ -95,6 +124,7 @@ implements Accumulator {
         if (mAverageName != null) {
             names.add(mAverageName);
         }
+        names.addAll(mPercentileNames);
         if (mRealtimeAverageName != null) {
             names.add(mRealtimeAverageName);
         }
@@ -107,6 +137,10 @@ implements Accumulator {
             mSecondToLastTotal = mLastTotal;
             mLastCount = mCounter.getCount();
             mLastTotal = mCounter.getTotal();
+            if (mHistogram != null) {
+                mSecondToLastSnapshot = mLastSnapshot;
+                mLastSnapshot = mHistogram.snapshot();
+            }
         }
     }
 
@@ -166,6 +200,35 @@ implements Accumulator {
         return (double) total / (double) count; 
     }
 
+    /**
+     * Returns the given percentile of the times recorded since the last
+     * call to {@link #reset}, or 0 if percentiles are not tracked.
+     */
+    public long getPercentile(double percentile) {
+        return getPercentile(percentile, mLastSnapshot);
+    }
+
+    /**
+     * Returns the given percentile of the times recorded since the
+     * second-to-last call to {@link #reset}.
+     *
+     * @see #getRealtimeAverage()
+     */
+    public long getRealtimePercentile(double percentile) {
+        return getPercentile(percentile, mSecondToLastSnapshot);
+    }
+
+    private long getPercentile(double percentile, Histogram.Snapshot since) {
+        if (mHistogram == null) {
+            return 0;
+        }
+        Histogram.Snapshot snapshot = mHistogram.snapshot();
+        if (since != null) {
+            snapshot = snapshot.minus(since);
+        }
+        return snapshot.getValueAtPercentile(percentile);
+    }
+
     ////////////// Accumulator implementation ///////////////////
     
     public List<Object> getData() {
@@ -184,6 +247,15 @@ implements Accumulator {
             if (mAverageName != null) {
                 data.add(getAverage());
             }
+            if (!mPercentiles.isEmpty()) {
+                Histogram.Snapshot snapshot = mHistogram.snapshot();
+                if (mLastSnapshot != null) {
+                    snapshot = snapshot.minus(mLastSnapshot);
+                }
+                for (double percentile : mPercentiles) {
+                    data.add(snapshot.getValueAtPercentile(percentile));
+                }
+            }
         }
         return data;
     }
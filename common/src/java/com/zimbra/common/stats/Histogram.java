@@ -0,0 +1,151 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values (typically latencies in milliseconds) in logarithmic buckets, for
+ * reporting percentiles.
+ * <p>
+ * Values below {@value #SUB_BUCKETS} are counted exactly.  Above that, each power of two is split into
+ * {@value #SUB_BUCKETS} buckets, so a reported percentile is at most about 3% above the actual value.  Values
+ * above {@link #MAX_VALUE} are counted as {@link #MAX_VALUE}.
+ * <p>
+ * {@link #record} is lock-free and does not allocate.  Percentiles are computed from a {@link Snapshot}; the
+ * difference of two snapshots gives the distribution of the values recorded in between.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Largest value that is tracked accurately, about 24 days in milliseconds. */
+    public static final long MAX_VALUE = Integer.MAX_VALUE;
+
+    private static final int NUM_BUCKETS = getBucket(MAX_VALUE) + 1;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(NUM_BUCKETS);
+
+    /**
+     * Adds a value to the distribution.  Negative values are counted as 0.
+     */
+    public void record(long value) {
+        mCounts.incrementAndGet(getBucket(value));
+    }
+
+    /**
+     * Returns a copy of the current distribution.  Values recorded while the copy is made may or may not be
+     * included.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return new Snapshot(counts);
+    }
+
+    /**
+     * Clears the distribution.  Values recorded concurrently may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return value < 0 ? 0 : (int) value;
+        }
+        if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + (shift << SUB_BUCKET_BITS) + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * Returns the largest value counted in the given bucket.
+     */
+    static long getHighestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) >>> SUB_BUCKET_BITS;
+        long mantissa = SUB_BUCKETS + ((bucket - SUB_BUCKETS) & (SUB_BUCKETS - 1));
+        return Math.min(((mantissa + 1) << shift) - 1, MAX_VALUE);
+    }
+
+    /**
+     * An immutable copy of the bucket counts.
+     */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long mTotalCount;
+
+        Snapshot(long[] counts) {
+            mCounts = counts;
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            mTotalCount = total;
+        }
+
+        public long getCount() {
+            return mTotalCount;
+        }
+
+        /**
+         * Returns the distribution of the values recorded since {@code earlier} was taken.  If the histogram was
+         * reset in between, buckets that went down are counted as empty.
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] counts = new long[mCounts.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = Math.max(mCounts[i] - earlier.mCounts[i], 0);
+            }
+            return new Snapshot(counts);
+        }
+
+        /**
+         * Returns the value that the given percentage of the recorded values are less than or equal to, or 0 if
+         * no values were recorded.
+         *
+         * @param percentile between 0 and 100, for example 99.9
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (mTotalCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(Math.min(Math.max(percentile, 0.0), 100.0) / 100.0 * mTotalCount);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return getHighestValue(i);
+                }
+            }
+            return MAX_VALUE;
+        }
+    }
+}
@@ -20,10 +20,50 @@ package com.zimbra.common.stats;
 /**
  * A <code>Counter</code> that supports <code>start()</code>
  * and <code>stop()</code> methods for conveniently timing events.
+ * Optionally keeps a {@link Histogram} of the elapsed times, for
+ * reporting percentiles.
  */
 public class StopWatch
 extends Counter {
 
+    private final Histogram mHistogram;
+
+    public StopWatch() {
+        this(false);
+    }
+
+    /**
+     * @param trackPercentiles if <code>true</code>, elapsed times are also
+     * recorded in a {@link Histogram}
+     */
+    public StopWatch(boolean trackPercentiles) {
+        mHistogram = trackPercentiles ? new Histogram() : null;
+    }
+
+    /**
+     * Returns the histogram of elapsed times, or <code>null</code> if this
+     * <code>StopWatch</code> does not track percentiles.
+     */
+    public Histogram getHistogram() {
+        return mHistogram;
+    }
+
+    @Override
+    public void increment(long value) {
+        super.increment(value);
+        if (mHistogram != null) {
+            mHistogram.record(value);
+        }
+    }
+
+    @Override
+    public synchronized void reset() {
+        super.reset();
+        if (mHistogram != null) {
+            mHistogram.reset();
+        }
+    }
+
     public long start() {
         return System.currentTimeMillis();
     }
@@ -24,6 +24,12 @@ import java.util.SortedMap;
 import java.util.TreeMap;
 
 /**
+ * BEncoding of maps, lists, integers and strings, as used by {@code Metadata}.
+ * <p>
+ * {@link #decode} and {@link #encode} convert between the encoding and {@code HashMap}s, {@code ArrayList}s,
+ * {@code Long}s and {@code String}s.  {@link Reader} walks the same format without building those intermediate
+ * objects, for callers that only need a few values or already know the structure.
+ *
  * @since Jul 7, 2005
  * @author dkarp
  */
@@ -34,21 +40,29 @@ public final class BEncoding {
         BEncodingException(Exception e)  { super(e); }
     }
 
+    /** Decoded single-character strings, which are most of the keys in {@code Metadata}. */
+    private static final String[] SINGLE_CHARS = new String[128];
+    static {
+        for (char c = 0; c < SINGLE_CHARS.length; c++) {
+            SINGLE_CHARS[c] = String.valueOf(c).intern();
+        }
+    }
+
     public static String encode(Map<?, ?> object) {
-        return encode(new StringBuilder(), object).toString();
+        return encode(new StringBuilder(256), object).toString();
     }
 
     public static String encode(List<?> object) {
-        return encode(new StringBuilder(), object).toString();
+        return encode(new StringBuilder(256), object).toString();
     }
 
     public static <T> T decode(String data) throws BEncodingException {
         if (data == null)
             return null;
         try {
-            Offset offset = new Offset();
-            Object result = decode(data.toCharArray(), offset);
-            if (offset.offset != data.length()) {
+            Reader reader = new Reader(data);
+            Object result = reader.readValueOrEnd();
+            if (reader.offset != data.length()) {
                 throw new BEncodingException("extra characters at end of encoded string");
             }
             @SuppressWarnings("unchecked")
@@ -69,7 +83,7 @@ public final class BEncoding {
             if (!tree.isEmpty())
                 for (Map.Entry<?, ?> entry : tree.entrySet()) {
                     if (entry.getKey() != null && entry.getValue() != null) {
-                        encode(sb, entry.getKey().toString());
+                        appendString(sb, entry.getKey().toString());
                         encode(sb, entry.getValue());
                     }
                 }
@@ -83,58 +97,239 @@ public final class BEncoding {
             }
             sb.append('e');
         } else if (object instanceof Long || object instanceof Integer || object instanceof Short || object instanceof Byte) {
-            sb.append('i').append(object).append('e');
+            // append(long) writes the digits straight into the buffer
+            sb.append('i').append(((Number) object).longValue()).append('e');
         } else if (object != null) {
-            String value = object.toString();
-            sb.append(value.length()).append(':').append(value);
+            appendString(sb, object.toString());
         }
         return sb;
     }
 
-    private static final class Offset {
-        int offset;
+    private static void appendString(StringBuilder sb, String value) {
+        sb.append(value.length()).append(':').append(value);
     }
 
-    private static Object decode(char[] buffer, Offset offset) throws BEncodingException {
-        Object key, value;
-        char c = buffer[offset.offset++];
-        switch (c) {
-            case 'd':
-                Map<String, Object> map = new HashMap<String, Object>();
-                while ((key = decode(buffer, offset)) != null) {
-                    if ((value = decode(buffer, offset)) == null) {
-                        throw new BEncodingException("missing dictionary value for key " + key.toString());
+    /**
+     * Streams the values out of an encoded string.  For example, a dictionary is read with
+     * <pre>
+     *  reader.beginDictionary();
+     *  while (reader.hasNext()) {
+     *      String key = reader.readString();
+     *      ... read or skip the value ...
+     *  }
+     *  reader.end();
+     * </pre>
+     * Integers are returned as primitive {@code long}s, and values that aren't needed are skipped without being
+     * decoded.  The reader throws {@link BEncodingException} on malformed data; as with {@link BEncoding#decode},
+     * a malformed integer or length has a {@link NumberFormatException} as its cause.
+     */
+    public static final class Reader {
+        public enum Token { DICTIONARY, LIST, INTEGER, STRING, END }
+
+        private final String data;
+        private int offset;
+
+        public Reader(String data) {
+            this.data = data;
+        }
+
+        /** Returns the position of the next unread character. */
+        public int getOffset() {
+            return offset;
+        }
+
+        /** Returns true if all of the data has been read. */
+        public boolean isDone() {
+            return offset >= data.length();
+        }
+
+        /** Returns the type of the next value, or {@link Token#END} if the current dictionary or list is over. */
+        public Token peek() throws BEncodingException {
+            switch (charAt(offset)) {
+                case 'd':
+                    return Token.DICTIONARY;
+                case 'l':
+                    return Token.LIST;
+                case 'i':
+                    return Token.INTEGER;
+                case 'e':
+                    return Token.END;
+                default:
+                    return Token.STRING;
+            }
+        }
+
+        /** Returns true if the current dictionary or list has another entry. */
+        public boolean hasNext() throws BEncodingException {
+            return charAt(offset) != 'e';
+        }
+
+        public void beginDictionary() throws BEncodingException {
+            expect('d');
+        }
+
+        public void beginList() throws BEncodingException {
+            expect('l');
+        }
+
+        /** Reads the end of the current dictionary or list. */
+        public void end() throws BEncodingException {
+            expect('e');
+        }
+
+        public long readLong() throws BEncodingException {
+            expect('i');
+            return parseLong('e');
+        }
+
+        public String readString() throws BEncodingException {
+            long length = parseLong(':');
+            int start = offset;
+            if (length < 0 || length > data.length() - start) {
+                throw new BEncodingException(new StringIndexOutOfBoundsException("string length " + length +
+                        " at offset " + start + " runs past the end of the data"));
+            }
+            offset += (int) length;
+            if (length == 1 && data.charAt(start) < SINGLE_CHARS.length) {
+                return SINGLE_CHARS[data.charAt(start)];
+            }
+            return length == 0 ? "" : data.substring(start, offset);
+        }
+
+        /** Skips the next value, including everything in it if it's a dictionary or list. */
+        public void skipValue() throws BEncodingException {
+            switch (peek()) {
+                case DICTIONARY:
+                case LIST:
+                    offset++;
+                    while (hasNext()) {
+                        skipValue();
                     }
-                    map.put(key.toString(), value);
-                }
-                return map;
+                    end();
+                    break;
+                case INTEGER:
+                    readLong();
+                    break;
+                case STRING:
+                    long length = parseLong(':');
+                    if (length < 0 || length > data.length() - offset) {
+                        throw new BEncodingException(new StringIndexOutOfBoundsException("string length " + length +
+                                " at offset " + offset + " runs past the end of the data"));
+                    }
+                    offset += (int) length;
+                    break;
+                default:
+                    throw new BEncodingException("unexpected end at offset " + offset);
+            }
+        }
 
-            case 'l':
-                List<Object> list = new ArrayList<Object>();
-                while ((key = decode(buffer, offset)) != null) {
-                    list.add(key);
-                }
-                return list;
+        /**
+         * Reads the next value as a {@code HashMap}, {@code ArrayList}, {@code Long} or {@code String}, as
+         * {@link BEncoding#decode} does.
+         */
+        public Object readValue() throws BEncodingException {
+            Object value = readValueOrEnd();
+            if (value == null) {
+                throw new BEncodingException("unexpected end at offset " + (offset - 1));
+            }
+            return value;
+        }
 
-            case 'e':
-                return null;
+        /** Same as {@link #readValue}, but consumes and returns null for the end of a dictionary or list. */
+        Object readValueOrEnd() throws BEncodingException {
+            switch (charAt(offset)) {
+                case 'd':
+                    offset++;
+                    Map<String, Object> map = new HashMap<String, Object>();
+                    while (hasNext()) {
+                        // keys are always strings, except in hand-made data
+                        String key = peek() == Token.STRING ? readString() : readValue().toString();
+                        if (!hasNext()) {
+                            throw new BEncodingException("missing dictionary value for key " + key);
+                        }
+                        map.put(key, readValue());
+                    }
+                    offset++;
+                    return map;
+                case 'l':
+                    offset++;
+                    List<Object> list = new ArrayList<Object>();
+                    while (hasNext()) {
+                        list.add(readValue());
+                    }
+                    offset++;
+                    return list;
+                case 'e':
+                    offset++;
+                    return null;
+                case 'i':
+                    offset++;
+                    return Long.valueOf(parseLong('e'));
+                default:
+                    return readString();
+            }
+        }
 
-            case 'i':
-                return Long.valueOf(readLong(buffer, offset, 'e'));
+        private char charAt(int index) throws BEncodingException {
+            if (index >= data.length()) {
+                throw new BEncodingException(new StringIndexOutOfBoundsException("unexpected end of data at offset "
+                        + index));
+            }
+            return data.charAt(index);
+        }
 
-            default:
-                offset.offset--;
-                long length = readLong(buffer, offset, ':');
-                int start = offset.offset;
-                offset.offset += length;
-                return new String(buffer, start, (int) length);
+        private void expect(char c) throws BEncodingException {
+            if (charAt(offset) != c) {
+                throw new BEncodingException("expected '" + c + "' at offset " + offset + " but found '" +
+                        data.charAt(offset) + "'");
+            }
+            offset++;
         }
-    }
 
-    private static long readLong(char[] buffer, Offset offset, char terminator) {
-        int start = offset.offset;
-        while (buffer[offset.offset++] != terminator) ;
-        return Long.parseLong(new String(buffer, start, offset.offset - start - 1));
-    }
+        /**
+         * Parses a decimal number up to the terminator as {@link Long#parseLong} would, without a substring.
+         */
+        private long parseLong(char terminator) throws BEncodingException {
+            int start = offset;
+            int end = data.indexOf(terminator, start);
+            if (end < 0) {
+                throw new BEncodingException(new StringIndexOutOfBoundsException("missing '" + terminator +
+                        "' after offset " + start));
+            }
+            int i = start;
+            boolean negative = false;
+            if (i < end && (data.charAt(i) == '-' || data.charAt(i) == '+')) {
+                negative = data.charAt(i) == '-';
+                i++;
+            }
+            if (i == end || end - i > 19) {
+                return parseLongSlow(start, end);
+            }
+            // accumulate negatively, as Long.parseLong does, so that Long.MIN_VALUE fits
+            long result = 0;
+            for (; i < end; i++) {
+                int digit = data.charAt(i) - '0';
+                if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10) {
+                    return parseLongSlow(start, end);
+                }
+                result = result * 10 - digit;
+            }
+            if (!negative && result == Long.MIN_VALUE) {
+                return parseLongSlow(start, end);
+            }
+            offset = end + 1;
+            return negative ? result : -result;
+        }
 
+        /** Lets {@link Long#parseLong} report or handle whatever the fast path didn't. */
+        private long parseLongSlow(int start, int end) throws BEncodingException {
+            try {
+                long result = Long.parseLong(data.substring(start, end));
+                offset = end + 1;
+                return result;
+            } catch (NumberFormatException e) {
+                throw new BEncodingException(e);
+            }
+        }
+    }
 }
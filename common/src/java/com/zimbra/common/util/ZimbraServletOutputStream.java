@@ -17,9 +17,17 @@
 package com.zimbra.common.util;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 import javax.servlet.ServletOutputStream;
 
+import com.google.common.base.Charsets;
+
 import com.zimbra.common.localconfig.LC;
 
 
@@ -57,57 +65,95 @@ import com.zimbra.common.localconfig.LC;
  * This wrapper implements the append methods by converting data to UTF-8 and 
  * write to the ServletOutputStream.  This way IOexception won't be eaten(problem of doing 1), 
  * and we don't interfere with jetty's process in deciding on the transfer encoding(problem of doing 2).
+ *
+ * Characters are encoded through fixed-size char and byte buffers, so writing a large response neither grows
+ * the buffer nor allocates a String and byte array per flush.
  */
 
 public class ZimbraServletOutputStream implements Appendable {
 
     private static final int BUFFER_SIZE = LC.zimbra_servlet_output_stream_buffer_size.intValueWithinRange(512, 20480);
-    ServletOutputStream mOut;
-    
-    // buffer to avoid frequent toString().getBytes()
-    StringBuilder mBuffer = new StringBuilder(BUFFER_SIZE);
-    
+    OutputStream mOut;
+
+    private final CharBuffer mChars = CharBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer mBytes = ByteBuffer.allocate(BUFFER_SIZE);
+    // unpaired surrogates are written as '?', same as String.getBytes()
+    private final CharsetEncoder mEncoder = Charsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
     public ZimbraServletOutputStream(ServletOutputStream out) {
         mOut = out;
     }
-    
+
+    /**
+     * Writes to any stream, e.g. a {@link BufferStream} when the response size has to be known up front.
+     */
+    public ZimbraServletOutputStream(OutputStream out) {
+        mOut = out;
+    }
+
     public Appendable append(CharSequence csq) throws IOException {
         append(csq, 0, csq.length());
         return this;
     }
 
     public Appendable append(char c) throws IOException {
-        if (mBuffer.length() + 1 > BUFFER_SIZE)
-            flush();
-        mBuffer.append(c);
+        if (!mChars.hasRemaining())
+            encode(false);
+        mChars.put(c);
         return this;
     }
 
     public Appendable append(CharSequence csq, int start, int end) throws IOException {
-        int lenToAppend = end - start;
-        
-        if (lenToAppend >= BUFFER_SIZE) {
-            // data to append itself exceeds our threshold, don't let the buffer grow(realloc)
-            flush(); // flush existing data in the buffer
-            write(csq.subSequence(start, end).toString()); // then directly flush this append data out without buffering
-        } else {
-            if (mBuffer.length() + lenToAppend > BUFFER_SIZE)
-                flush();
-            mBuffer.append(csq, start, end);
+        while (start < end) {
+            if (!mChars.hasRemaining())
+                encode(false);
+            int len = Math.min(end - start, mChars.remaining());
+            if (csq instanceof String) {
+                mChars.put((String) csq, start, start + len);
+            } else {
+                for (int i = start; i < start + len; i++)
+                    mChars.put(csq.charAt(i));
+            }
+            start += len;
         }
-        
         return this;
     }
-    
-    private void write(String str) throws IOException {
-        mOut.write(str.getBytes("utf-8"));
+
+    /**
+     * Encodes the buffered characters and writes the bytes out.  A high surrogate at the end of the buffer is
+     * held back until its pair arrives, unless {@code endOfInput} is set.
+     */
+    private void encode(boolean endOfInput) throws IOException {
+        mChars.flip();
+        CoderResult result;
+        do {
+            result = mEncoder.encode(mChars, mBytes, endOfInput);
+            if (result.isOverflow() || mBytes.position() > 0)
+                writeBytes();
+        } while (result.isOverflow());
+        if (endOfInput) {
+            while (mEncoder.flush(mBytes).isOverflow())
+                writeBytes();
+            writeBytes();
+            mEncoder.reset();
+        }
+        mChars.compact();
     }
-    
-    public void flush() throws IOException {
-        if (mBuffer.length() > 0) {
-            write(mBuffer.toString());
-            mBuffer.setLength(0);
+
+    private void writeBytes() throws IOException {
+        if (mBytes.position() > 0) {
+            mOut.write(mBytes.array(), 0, mBytes.position());
+            mBytes.clear();
         }
     }
 
+    /**
+     * Writes out everything appended so far.  Does not flush the underlying stream.
+     */
+    public void flush() throws IOException {
+        if (mChars.position() > 0)
+            encode(true);
+    }
+
 }
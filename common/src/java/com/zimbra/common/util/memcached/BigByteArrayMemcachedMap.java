@@ -18,6 +18,8 @@
 package com.zimbra.common.util.memcached;
 
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 import com.zimbra.common.service.ServiceException;
 
@@ -92,6 +94,47 @@ public class BigByteArrayMemcachedMap<K extends MemcachedKey, V> {
         return value;
     }
 
+    /**
+     * Returns values for given keys.  The returned java.util.Map is never null and has an
+     * entry for every key.  Entry value will be null if key was not found in memcached.
+     * The main values of all keys are fetched in one batch, and the chunks of big values
+     * in a second one.  Use this method rather than calling get() in a loop.
+     * @param keys
+     * @return
+     * @throws ServiceException
+     */
+    public Map<K, V> getMulti(Collection<K> keys) throws ServiceException {
+        return getMulti(keys, ZimbraMemcachedClient.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Same as getMulti(keys), waiting at most timeout millis for each batch.
+     * @param keys
+     * @param timeout in millis
+     * @return
+     * @throws ServiceException
+     */
+    public Map<K, V> getMulti(Collection<K> keys, long timeout) throws ServiceException {
+        Map<String, K> keyMap = toKeyMap(keys);
+        Map<String, byte[]> dataMap = mClient.getBigByteArrayMulti(keyMap.keySet(), timeout);
+        Map<K, V> result = new HashMap<K, V>(keys.size() * 2);
+        for (Map.Entry<String, K> entry : keyMap.entrySet()) {
+            byte[] data = dataMap.get(entry.getKey());
+            result.put(entry.getValue(), data != null ? mSerializer.deserialize(data) : null);
+        }
+        return result;
+    }
+
+    private Map<String, K> toKeyMap(Collection<K> keys) {
+        Map<String, K> keyMap = new HashMap<String, K>(keys.size() * 2);
+        for (K key : keys) {
+            String prefix = key.getKeyPrefix();
+            String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
+            keyMap.put(kval, key);
+        }
+        return keyMap;
+    }
+
     /**
      * Sets the key/value pair in memcached.
      * @param key
@@ -105,6 +148,26 @@ public class BigByteArrayMemcachedMap<K extends MemcachedKey, V> {
         mClient.putBigByteArray(kval, data, mAckWrites);
     }
 
+    /**
+     * Sets multiple key/value pairs in memcached.  The sets are pipelined rather than each
+     * waiting for the previous one's ack.
+     * @param map
+     * @throws ServiceException
+     */
+    public void putMulti(Map<K, V> map) throws ServiceException {
+        Map<String, byte[]> values = new HashMap<String, byte[]>(map.size() * 2);
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            K key = entry.getKey();
+            String prefix = key.getKeyPrefix();
+            String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
+            byte[] data = mSerializer.serialize(entry.getValue());
+            if (data != null)
+                values.put(kval, data);
+        }
+        mClient.putBigByteArrayMulti(values, ZimbraMemcachedClient.DEFAULT_EXPIRY,
+                ZimbraMemcachedClient.DEFAULT_TIMEOUT, mAckWrites);
+    }
+
     /**
      * Remove the key from memcached.
      * @param key
@@ -117,15 +180,12 @@ public class BigByteArrayMemcachedMap<K extends MemcachedKey, V> {
     }
 
     /**
-     * Remove multiple keys from memcached.  This operation is done serially in a loop.
+     * Remove multiple keys from memcached.  The deletes are pipelined rather than each waiting
+     * for the previous one's ack.
      * @param keys
      * @throws ServiceException
      */
     public void removeMulti(Collection<K> keys) throws ServiceException {
-        for (K key : keys) {
-            String prefix = key.getKeyPrefix();
-            String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
-            mClient.remove(kval, mAckWrites);
-        }
+        mClient.removeMulti(toKeyMap(keys).keySet(), ZimbraMemcachedClient.DEFAULT_TIMEOUT, mAckWrites);
     }
 }
@@ -20,6 +20,10 @@ package com.zimbra.common.util.memcached;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.zimbra.common.service.ServiceException;
 
@@ -60,6 +64,10 @@ import com.zimbra.common.service.ServiceException;
  *     keys.add(k2);
  *     Map<MyKey, MyValue> values = mcdMap.getMulti(keys);
  *
+ *     Future<Map<MyKey, MyValue>> future = mcdMap.getMultiAsync(keys);
+ *     ... do something else while memcached responds ...
+ *     Map<MyKey, MyValue> found = future.get(100, TimeUnit.MILLISECONDS);
+ *
  * @param <K> key implements the MemcachedKey interface
  * @param <V> value must have a Serializer<V> implementation
  */
@@ -112,13 +120,19 @@ public class MemcachedMap<K extends MemcachedKey, V> {
      * @throws ServiceException
      */
     public Map<K, V> getMulti(Collection<K> keys) throws ServiceException {
-        Map<String, K> keyMap = new HashMap<String, K>(keys.size());
-        for (K key : keys) {
-            String prefix = key.getKeyPrefix();
-            String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
-            keyMap.put(kval, key);
-        }
-        Map<String, Object> valueMap = mClient.getMulti(keyMap.keySet());
+        return getMulti(keys, ZimbraMemcachedClient.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Same as getMulti(keys), waiting at most timeout millis for memcached to respond.
+     * @param keys
+     * @param timeout in millis
+     * @return
+     * @throws ServiceException
+     */
+    public Map<K, V> getMulti(Collection<K> keys, long timeout) throws ServiceException {
+        Map<String, K> keyMap = toKeyMap(keys);
+        Map<String, Object> valueMap = mClient.getMulti(keyMap.keySet(), timeout);
         Map<K, V> result = new HashMap<K, V>(keys.size());
         // Put the values in a map keyed by the K objects.
         for (Map.Entry<String, Object> entry : valueMap.entrySet()) {
@@ -134,6 +148,80 @@ public class MemcachedMap<K extends MemcachedKey, V> {
         return result;
     }
 
+    /**
+     * Starts looking up the values for given keys, all in one batch, and returns without waiting
+     * for memcached to respond.  The map returned by the future only has entries for keys that
+     * were found.  Values are deserialized when the future's get() is called; a deserialization
+     * failure is thrown from it as an ExecutionException.
+     * @param keys
+     * @return
+     */
+    public Future<Map<K, V>> getMultiAsync(Collection<K> keys) {
+        Map<String, K> keyMap = toKeyMap(keys);
+        return new DeserializingFuture(mClient.getMultiAsync(keyMap.keySet()), keyMap);
+    }
+
+    private Map<String, K> toKeyMap(Collection<K> keys) {
+        Map<String, K> keyMap = new HashMap<String, K>(keys.size());
+        for (K key : keys) {
+            String prefix = key.getKeyPrefix();
+            String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
+            keyMap.put(kval, key);
+        }
+        return keyMap;
+    }
+
+    private class DeserializingFuture implements Future<Map<K, V>> {
+        private final Future<Map<String, Object>> mFuture;
+        private final Map<String, K> mKeyMap;
+
+        DeserializingFuture(Future<Map<String, Object>> future, Map<String, K> keyMap) {
+            mFuture = future;
+            mKeyMap = keyMap;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return mFuture.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mFuture.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return mFuture.isDone();
+        }
+
+        @Override
+        public Map<K, V> get() throws InterruptedException, ExecutionException {
+            return deserialize(mFuture.get());
+        }
+
+        @Override
+        public Map<K, V> get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+            return deserialize(mFuture.get(timeout, unit));
+        }
+
+        private Map<K, V> deserialize(Map<String, Object> valueMap) throws ExecutionException {
+            Map<K, V> result = new HashMap<K, V>(valueMap.size());
+            try {
+                for (Map.Entry<String, Object> entry : valueMap.entrySet()) {
+                    K key = mKeyMap.get(entry.getKey());
+                    if (key != null && entry.getValue() != null) {
+                        result.put(key, mSerializer.deserialize(entry.getValue()));
+                    }
+                }
+            } catch (ServiceException e) {
+                throw new ExecutionException(e);
+            }
+            return result;
+        }
+    }
+
     /**
      * Sets the key/value pair in memcached.
      * @param key
@@ -148,14 +236,30 @@ public class MemcachedMap<K extends MemcachedKey, V> {
     }
 
     /**
-     * Sets multiple key/value pairs in memcached.  This operation is done serially in a loop.
+     * Sets multiple key/value pairs in memcached.  The sets are pipelined rather than each
+     * waiting for the previous one's ack.
      * @param map
      * @throws ServiceException
      */
     public void putMulti(Map<K, V> map) throws ServiceException {
+        putMulti(map, ZimbraMemcachedClient.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Same as putMulti(map), waiting at most timeout millis for all acks if writes are ack'd.
+     * @param map
+     * @param timeout in millis
+     * @throws ServiceException
+     */
+    public void putMulti(Map<K, V> map, long timeout) throws ServiceException {
+        Map<String, Object> values = new HashMap<String, Object>(map.size() * 2);
         for (Map.Entry<K, V> entry : map.entrySet()) {
-            put(entry.getKey(), entry.getValue());
+            K key = entry.getKey();
+            String prefix = key.getKeyPrefix();
+            String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
+            values.put(kval, mSerializer.serialize(entry.getValue()));
         }
+        mClient.putMulti(values, ZimbraMemcachedClient.DEFAULT_EXPIRY, timeout, mAckWrites);
     }
 
     /**
@@ -170,15 +274,12 @@ public class MemcachedMap<K extends MemcachedKey, V> {
     }
 
     /**
-     * Remove multiple keys from memcached.  This operation is done serially in a loop.
+     * Remove multiple keys from memcached.  The deletes are pipelined rather than each waiting
+     * for the previous one's ack.
      * @param keys
      * @throws ServiceException
      */
     public void removeMulti(Collection<K> keys) throws ServiceException {
-        for (K key : keys) {
-            String prefix = key.getKeyPrefix();
-            String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
-            mClient.remove(kval, mAckWrites);
-        }
+        mClient.removeMulti(toKeyMap(keys).keySet(), ZimbraMemcachedClient.DEFAULT_TIMEOUT, mAckWrites);
     }
 }
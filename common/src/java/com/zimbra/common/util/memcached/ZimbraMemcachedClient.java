@@ -24,7 +24,9 @@ import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -35,6 +37,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.zip.CRC32;
 
+import com.google.common.util.concurrent.Futures;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.BEncoding;
 import com.zimbra.common.util.BEncoding.BEncodingException;
@@ -48,6 +51,7 @@ import net.spy.memcached.DefaultConnectionFactory;
 import net.spy.memcached.DefaultHashAlgorithm;
 import net.spy.memcached.HashAlgorithm;
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.BulkFuture;
 import net.spy.memcached.transcoders.Transcoder;
 
 public class ZimbraMemcachedClient {
@@ -345,6 +349,23 @@ public class ZimbraMemcachedClient {
         return value;
     }
 
+    /**
+     * Starts retrieving the values corresponding to the given keys, all in one batch, and returns without waiting
+     * for them.  Unlike getMulti, the map returned by the future only has entries for keys that were found.
+     * If the client is not connected, the future is already done and returns an empty map.
+     * @param keys
+     * @return future map of (key, value)
+     */
+    public Future<Map<String, Object>> getMultiAsync(Collection<String> keys) {
+        MemcachedClient client;
+        synchronized (this) {
+            client = mMCDClient;
+        }
+        if (client == null || keys.isEmpty())
+            return Futures.<Map<String, Object>>immediateFuture(new HashMap<String, Object>());
+        return client.asyncGetBulk(keys);
+    }
+
     // put
 
     /**
@@ -397,6 +418,54 @@ public class ZimbraMemcachedClient {
         }
     }
 
+    /**
+     * Puts multiple key/value pairs.  All sets are sent before waiting for any ack, so that they're pipelined
+     * on the memcached connections rather than each taking a round trip.
+     * @param values map of (key, value)
+     * @param expirySec expiry in seconds
+     * @param timeout in millis, for all the acks together
+     * @param waitForAck if true, block until all are ack'd or timeout; if false, return immediately
+     * @return true if all values were set
+     */
+    public boolean putMulti(Map<String, ?> values, int expirySec, long timeout, boolean waitForAck) {
+        MemcachedClient client;
+        synchronized (this) {
+            client = mMCDClient;
+            if (expirySec == DEFAULT_EXPIRY)
+                expirySec = mDefaultExpiry;
+            if (timeout == DEFAULT_TIMEOUT)
+                timeout = mDefaultTimeout;
+        }
+        if (client == null) return false;
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(values.size());
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            futures.add(client.set(entry.getKey(), expirySec, entry.getValue()));
+        }
+        return !waitForAck || waitForAcks(futures, timeout, "set");
+    }
+
+    // Waits for the acks of pipelined operations, up to timeout millis in total.
+    private static boolean waitForAcks(List<Future<Boolean>> futures, long timeout, String op) {
+        long deadline = System.currentTimeMillis() + timeout;
+        boolean allSucceeded = true;
+        for (Future<Boolean> future : futures) {
+            Boolean success = null;
+            try {
+                success = future.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                ZimbraLog.misc.warn("memcached " + op + " timed out after " + timeout + "ms", e);
+                future.cancel(false);
+            } catch (InterruptedException e) {
+                ZimbraLog.misc.warn("InterruptedException during memcached " + op + " operation", e);
+            } catch (ExecutionException e) {
+                ZimbraLog.misc.warn("ExecutionException during memcached " + op + " operation", e);
+            }
+            if (success == null || !success.booleanValue())
+                allSucceeded = false;
+        }
+        return allSucceeded;
+    }
+
     // remove
 
     /**
@@ -444,6 +513,28 @@ public class ZimbraMemcachedClient {
         }
     }
 
+    /**
+     * Removes the values for the given keys.  All deletes are sent before waiting for any ack.
+     * @param keys
+     * @param timeout in millis, for all the acks together
+     * @param waitForAck if true, block until all are ack'd or timeout; if false, return immediately
+     * @return true if all values were removed
+     */
+    public boolean removeMulti(Collection<String> keys, long timeout, boolean waitForAck) {
+        MemcachedClient client;
+        synchronized (this) {
+            client = mMCDClient;
+            if (timeout == DEFAULT_TIMEOUT)
+                timeout = mDefaultTimeout;
+        }
+        if (client == null) return false;
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(keys.size());
+        for (String key : keys) {
+            futures.add(client.delete(key));
+        }
+        return !waitForAck || waitForAcks(futures, timeout, "delete");
+    }
+
     // simple wrapper around a byte[]
     private static class ByteArray {
         private byte[] mBytes;
@@ -722,83 +813,114 @@ public class ZimbraMemcachedClient {
         }
         if (client == null) return false;
 
+        Map<String, ByteArray> entries = toBigByteArrayEntries(key, value);
+        if (entries == null) return false;
+
+        // Set the chunks, if any, and then the main value.  When waiting for acks, the main value is only set
+        // after all chunks have been added successfully.
+        ByteArrayTranscoder bat = new ByteArrayTranscoder();
+        for (Map.Entry<String, ByteArray> entry : entries.entrySet()) {
+            Future<Boolean> future = client.set(entry.getKey(), expirySec, entry.getValue(), bat);
+            if (waitForAck) {
+                Boolean success = null;
+                try {
+                    success = future.get(timeout, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    ZimbraLog.misc.warn("memcached set timed out after " + timeout + "ms", e);
+                    future.cancel(false);
+                } catch (InterruptedException e) {
+                    ZimbraLog.misc.warn("InterruptedException during memcached set operation", e);
+                } catch (ExecutionException e) {
+                    ZimbraLog.misc.warn("ExecutionException during memcached set operation", e);
+                }
+                if (success == null || !success.booleanValue())
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts multiple key/value pairs of big byte arrays.  All sets, including those of chunks, are sent before
+     * waiting for any ack.  A value whose chunks fail to be set is read back as a cache miss.
+     * @param values map of (key, value)
+     * @param expirySec expiry in seconds
+     * @param timeout in millis, for all the acks together
+     * @param waitForAck if true, block until all are ack'd or timeout; if false, return immediately
+     * @return true if all values were set
+     */
+    public boolean putBigByteArrayMulti(Map<String, byte[]> values, int expirySec, long timeout,
+            boolean waitForAck) {
+        MemcachedClient client;
+        synchronized (this) {
+            client = mMCDClient;
+            if (expirySec == DEFAULT_EXPIRY)
+                expirySec = mDefaultExpiry;
+            if (timeout == DEFAULT_TIMEOUT)
+                timeout = mDefaultTimeout;
+        }
+        if (client == null) return false;
+
+        boolean allSucceeded = true;
         ByteArrayTranscoder bat = new ByteArrayTranscoder();
-        ByteArray mainValue;
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(values.size());
+        for (Map.Entry<String, byte[]> value : values.entrySet()) {
+            Map<String, ByteArray> entries = toBigByteArrayEntries(value.getKey(), value.getValue());
+            if (entries == null) {
+                allSucceeded = false;
+                continue;
+            }
+            for (Map.Entry<String, ByteArray> entry : entries.entrySet()) {
+                futures.add(client.set(entry.getKey(), expirySec, entry.getValue(), bat));
+            }
+        }
+        if (!waitForAck)
+            return allSucceeded;
+        return waitForAcks(futures, timeout, "set") && allSucceeded;
+    }
+
+    // Returns the memcached entries that make up a big byte array value: its chunks, if any, followed by
+    // the main value.  Returns null if the value can't be stored.
+    private static Map<String, ByteArray> toBigByteArrayEntries(String key, byte[] value) {
+        Map<String, ByteArray> entries = new LinkedHashMap<String, ByteArray>();
         if (value.length < MAX_CHUNK_SIZE) {
             // Value is short enough.  Set it directly, with a prefix.  Requires 1 memcached set operation.
             byte[] prefixed = new byte[value.length + 1];
             System.arraycopy(value, 0, prefixed, 0, value.length);
             prefixed[value.length] = BBA_PREFIX_VALUE;
-            mainValue = new ByteArray(prefixed);
-        } else {
-            // Value can't fit in a single memcached entry.  Split into chunks and use table of contents.
-            // Requires N+1 memcached set operations.
-            ByteArrayChunks chunks;
-            try {
-                chunks = new ByteArrayChunks(value);
-            } catch (ServiceException e) {
-                ZimbraLog.misc.warn("Unable to split byte array into chunks", e);
-                return false;
-            }
-            ByteArrayChunksTOC toc = chunks.makeTOC();
-    
-            // Add chunks to the cache.
-            String chunkKeyPrefix = key + ":" + toc.getFingerprint() + ".";
-            int numChunks = chunks.getNumChunks();
-            for (int i = 0; i < numChunks; ++i) {
-                String chunkKey = chunkKeyPrefix + i;
-                ByteArray byteArray = chunks.getChunk(i);
-                Future<Boolean> future = client.set(chunkKey, expirySec, byteArray, bat);
-                if (waitForAck) {
-                    Boolean success = null;
-                    try {
-                        success = future.get(timeout, TimeUnit.MILLISECONDS);
-                    } catch (TimeoutException e) {
-                        ZimbraLog.misc.warn("memcached set timed out after " + timeout + "ms", e);
-                        future.cancel(false);
-                    } catch (InterruptedException e) {
-                        ZimbraLog.misc.warn("InterruptedException during memcached set operation", e);
-                    } catch (ExecutionException e) {
-                        ZimbraLog.misc.warn("ExecutionException during memcached set operation", e);
-                    }
-                    if (success == null || !success.booleanValue())
-                        return false;
-                }
-            }
+            entries.put(key, new ByteArray(prefixed));
+            return entries;
+        }
 
-            // Put the table of contents as the main value.  Do this after all chunks have been
-            // added successfully.
-            byte[] tocBytes;
-            try {
-                tocBytes = toc.encode().getBytes("utf-8");
-            } catch (UnsupportedEncodingException e) {
-                ZimbraLog.misc.warn("Unable to get bytes for BBA table of contents", e);
-                return false;
-            }
-            byte[] prefixed = new byte[tocBytes.length + 1];
-            System.arraycopy(tocBytes, 0, prefixed, 0, tocBytes.length);
-            prefixed[tocBytes.length] = BBA_PREFIX_TOC;
-            mainValue = new ByteArray(prefixed);
+        // Value can't fit in a single memcached entry.  Split into chunks and use table of contents.
+        // Requires N+1 memcached set operations.
+        ByteArrayChunks chunks;
+        try {
+            chunks = new ByteArrayChunks(value);
+        } catch (ServiceException e) {
+            ZimbraLog.misc.warn("Unable to split byte array into chunks", e);
+            return null;
+        }
+        ByteArrayChunksTOC toc = chunks.makeTOC();
+        String chunkKeyPrefix = key + ":" + toc.getFingerprint() + ".";
+        int numChunks = chunks.getNumChunks();
+        for (int i = 0; i < numChunks; ++i) {
+            entries.put(chunkKeyPrefix + i, chunks.getChunk(i));
         }
 
-        // Put the main value.
-        Future<Boolean> future = client.set(key, expirySec, mainValue, bat);
-        if (waitForAck) {
-            Boolean success = null;
-            try {
-                success = future.get(timeout, TimeUnit.MILLISECONDS);
-            } catch (TimeoutException e) {
-                ZimbraLog.misc.warn("memcached set timed out after " + timeout + "ms", e);
-                future.cancel(false);
-            } catch (InterruptedException e) {
-                ZimbraLog.misc.warn("InterruptedException during memcached set operation", e);
-            } catch (ExecutionException e) {
-                ZimbraLog.misc.warn("ExecutionException during memcached set operation", e);
-            }
-            return success != null && success.booleanValue();
-        } else {
-            return true;
+        // The table of contents is the main value.
+        byte[] tocBytes;
+        try {
+            tocBytes = toc.encode().getBytes("utf-8");
+        } catch (UnsupportedEncodingException e) {
+            ZimbraLog.misc.warn("Unable to get bytes for BBA table of contents", e);
+            return null;
         }
+        byte[] prefixed = new byte[tocBytes.length + 1];
+        System.arraycopy(tocBytes, 0, prefixed, 0, tocBytes.length);
+        prefixed[tocBytes.length] = BBA_PREFIX_TOC;
+        entries.put(key, new ByteArray(prefixed));
+        return entries;
     }
 
     /**
@@ -819,99 +941,112 @@ public class ZimbraMemcachedClient {
      * @return null if no value is found for the key
      */
     public byte[] getBigByteArray(String key, long timeout) {
+        return getBigByteArrayMulti(Collections.singletonList(key), timeout).get(key);
+    }
+
+    /**
+     * Retrieves the big byte array values corresponding to the given keys.  The main values of all keys are
+     * fetched in one batch, and then the chunks of all values that were split into chunks in another.
+     * The returned map is never null and always contains an entry for every key.
+     * Null value is used for any key not found in memcached.
+     * @param keys
+     * @param timeout in millis, for each of the two batches
+     * @return map of (key, value); missing keys have null value
+     */
+    public Map<String, byte[]> getBigByteArrayMulti(Collection<String> keys, long timeout) {
+        Map<String, byte[]> result = new HashMap<String, byte[]>(keys.size() * 2);
+        for (String key : keys) {
+            result.put(key, null);
+        }
         MemcachedClient client;
         synchronized (this) {
             client = mMCDClient;
             if (timeout == DEFAULT_TIMEOUT)
                 timeout = mDefaultTimeout;
         }
-        if (client == null)
-            return null;
+        if (client == null || keys.isEmpty())
+            return result;
 
-        // Get the main value.  This may be the entire value or the table of contents.
+        // Get the main values.  Each may be the entire value or the table of contents.
         ByteArrayTranscoder bat = new ByteArrayTranscoder();
-        ByteArray mainValue = null;
-        Future<ByteArray> future = client.asyncGet(key, bat);
-        try {
-            mainValue = future.get(timeout, TimeUnit.MILLISECONDS);
-        } catch (TimeoutException e) {
-            ZimbraLog.misc.warn("memcached asyncGetBulk timed out after " + timeout + "ms", e);
-            future.cancel(false);
-        } catch (InterruptedException e) {
-            ZimbraLog.misc.warn("InterruptedException during memcached asyncGetBulk operation", e);
-        } catch (ExecutionException e) {
-            ZimbraLog.misc.warn("ExecutionException during memcached asyncGetBulk operation", e);
-        }
-        if (mainValue == null)
-            return null;
-        byte[] prefixed = mainValue.getBytes();
-        if (prefixed == null || prefixed.length < 2)
-            return null;
-        // First byte is value/TOC indicator.  Remove it.
-        byte[] value = new byte[prefixed.length - 1];
-        System.arraycopy(prefixed, 0, value, 0, prefixed.length - 1);
-        // If it's a short value, just return it.
-        if (prefixed[prefixed.length - 1] == BBA_PREFIX_VALUE)
-            return value;
-
+        Map<String, ByteArray> mainValues = getBulk(client, keys, bat, timeout);
+        Map<String, ByteArrayChunksTOC> tocs = new HashMap<String, ByteArrayChunksTOC>();
+        List<String> chunkKeys = new ArrayList<String>();
+        for (Map.Entry<String, ByteArray> entry : mainValues.entrySet()) {
+            String key = entry.getKey();
+            byte[] prefixed = entry.getValue() != null ? entry.getValue().getBytes() : null;
+            if (prefixed == null || prefixed.length < 2 || !result.containsKey(key))
+                continue;
+            // Last byte is value/TOC indicator.  Remove it.
+            byte[] value = new byte[prefixed.length - 1];
+            System.arraycopy(prefixed, 0, value, 0, prefixed.length - 1);
+            // If it's a short value, we're done with it.
+            if (prefixed[prefixed.length - 1] == BBA_PREFIX_VALUE) {
+                result.put(key, value);
+                continue;
+            }
 
-        // We have a table of contents.
-        String tocEncoded = null;
-        ByteArrayChunksTOC toc;
-        try {
-            tocEncoded = new String(value, "utf-8");
-            toc = new ByteArrayChunksTOC(tocEncoded);
-        } catch (UnsupportedEncodingException e) {
-            ZimbraLog.misc.warn("Unable to decode BBA table of contents", e);
-            return null;
-        } catch (ServiceException e) {
-            ZimbraLog.misc.warn("Invalid big byte array TOC: " + tocEncoded);
-            return null;
-        }
-        int numChunks = toc.getNumChunks();
-        if (numChunks <= 0) {
-            // This should never happen.  Just a sanity check.
-            ZimbraLog.misc.warn("Big byte array TOC has numChunks=0");
-            return null;
+            // We have a table of contents.
+            String tocEncoded = null;
+            ByteArrayChunksTOC toc;
+            try {
+                tocEncoded = new String(value, "utf-8");
+                toc = new ByteArrayChunksTOC(tocEncoded);
+            } catch (UnsupportedEncodingException e) {
+                ZimbraLog.misc.warn("Unable to decode BBA table of contents", e);
+                continue;
+            } catch (ServiceException e) {
+                ZimbraLog.misc.warn("Invalid big byte array TOC: " + tocEncoded);
+                continue;
+            }
+            if (toc.getNumChunks() <= 0) {
+                // This should never happen.  Just a sanity check.
+                ZimbraLog.misc.warn("Big byte array TOC has numChunks=0");
+                continue;
+            }
+            tocs.put(key, toc);
+            for (int i = 0; i < toc.getNumChunks(); ++i) {
+                chunkKeys.add(key + ":" + toc.getFingerprint() + "." + i);
+            }
         }
-        List<String> chunkKeys = new ArrayList<String>(numChunks);
-        for (int i = 0; i < numChunks; ++i) {
-            String ck = key + ":" + toc.getFingerprint() + "." + i;
-            chunkKeys.add(ck);
+        if (tocs.isEmpty())
+            return result;
+
+        // Get the chunks of all values from memcached.  Values with any chunk missing are cache misses.
+        Map<String, ByteArray> vals = getBulk(client, chunkKeys, bat, timeout);
+        for (Map.Entry<String, ByteArrayChunksTOC> entry : tocs.entrySet()) {
+            String key = entry.getKey();
+            ByteArrayChunksTOC toc = entry.getValue();
+            ByteArray[] byteArrays = new ByteArray[toc.getNumChunks()];
+            for (int i = 0; i < byteArrays.length; ++i) {
+                byteArrays[i] = vals.get(key + ":" + toc.getFingerprint() + "." + i);
+            }
+            try {
+                result.put(key, ByteArrayChunks.combine(byteArrays, toc));
+            } catch (ServiceException e) {
+                ZimbraLog.misc.warn("Unable to reassemble byte array from chunks", e);
+            }
         }
+        return result;
+    }
 
-        // Get the chunks from memcached.
-        Map<String, ByteArray> vals = null;
-        Future<Map<String, ByteArray>> futureChunks = client.asyncGetBulk(chunkKeys, bat);
+    // Gets a batch of byte array values.  Never returns null; values that didn't arrive in time are missing.
+    private static Map<String, ByteArray> getBulk(MemcachedClient client, Collection<String> keys,
+            ByteArrayTranscoder bat, long timeout) {
+        BulkFuture<Map<String, ByteArray>> future = client.asyncGetBulk(keys, bat);
         try {
-            vals = futureChunks.get(timeout, TimeUnit.MILLISECONDS);
-        } catch (TimeoutException e) {
-            ZimbraLog.misc.warn("memcached asyncGetBulk timed out after " + timeout + "ms", e);
-            futureChunks.cancel(false);
+            Map<String, ByteArray> vals = future.getSome(timeout, TimeUnit.MILLISECONDS);
+            if (!future.isDone()) {
+                ZimbraLog.misc.warn("memcached asyncGetBulk timed out after " + timeout + "ms");
+                future.cancel(false);
+            }
+            return vals != null ? vals : new HashMap<String, ByteArray>();
         } catch (InterruptedException e) {
             ZimbraLog.misc.warn("InterruptedException during memcached asyncGetBulk operation", e);
         } catch (ExecutionException e) {
             ZimbraLog.misc.warn("ExecutionException during memcached asyncGetBulk operation", e);
         }
-        // Make sure all chunks are there.  If not, just return null.
-        if (vals == null) return null;
-        ByteArray[] byteArrays = new ByteArray[numChunks];
-        int index = 0;
-        for (String ck : chunkKeys) {
-            ByteArray ba = (ByteArray) vals.get(ck);
-            if (ba == null)
-                return null;
-            byteArrays[index] = ba;
-            ++index;
-        }
-
-        byte[] data = null;
-        try {
-            data = ByteArrayChunks.combine(byteArrays, toc);
-        } catch (ServiceException e) {
-            ZimbraLog.misc.warn("Unable to reassemble byte array from chunks", e);
-        }
-        return data;
+        return new HashMap<String, ByteArray>();
     }
 
     public static void main(String[] args) throws Exception {
@@ -0,0 +1,62 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.soap;
+
+import javax.xml.bind.JAXBContext;
+
+import org.dom4j.io.DocumentResult;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.Element.XMLElement;
+import com.zimbra.soap.mail.message.SendMsgRequest;
+import com.zimbra.soap.mail.type.Msg;
+import com.zimbra.soap.mail.type.MsgToSend;
+
+public class JaxbElementBuilderTest {
+
+    private static Element viaDom4j(Object o) throws Exception {
+        DocumentResult dr = new DocumentResult();
+        JAXBContext.newInstance(o.getClass()).createMarshaller().marshal(o, dr);
+        return Element.convertDOM(dr.getDocument().getRootElement(), XMLElement.mFactory);
+    }
+
+    private static Element viaBuilder(Object o, boolean removePrefixes) throws Exception {
+        JaxbElementBuilder builder = new JaxbElementBuilder(XMLElement.mFactory, removePrefixes);
+        JAXBContext.newInstance(o.getClass()).createMarshaller().marshal(o, builder);
+        return builder.getElement();
+    }
+
+    @Test
+    public void matchesDom4j() throws Exception {
+        MsgToSend msg = new MsgToSend();
+        msg.setHeaders(ImmutableList.of(new Msg.Header("X-One", "1 & <2>"), new Msg.Header("X-Two", "日本")));
+        msg.setSubject("subject");
+        SendMsgRequest req = new SendMsgRequest();
+        req.setMsg(msg);
+
+        Element expected = viaDom4j(req);
+        Element built = viaBuilder(req, false);
+        Assert.assertNotNull(built);
+        Assert.assertEquals(expected.toString(), built.toString());
+        // without prefixes the namespace is inherited from the root
+        Assert.assertEquals(expected.toString().replace("xmlns:mail=", "xmlns=").replace("mail:", ""),
+                viaBuilder(req, true).toString());
+    }
+}
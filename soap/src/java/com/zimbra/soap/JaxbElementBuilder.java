@@ -0,0 +1,139 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.soap;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.dom4j.Namespace;
+import org.dom4j.QName;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.google.common.base.Strings;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.Element.ContainerException;
+
+/**
+ * Builds an {@link Element} tree straight from the SAX events of a JAXB marshaller, so marshalling a response
+ * doesn't first build a complete dom4j document.  The result matches {@link Element#convertDOM}.
+ * <p>
+ * Content that {@code convertDOM} may flatten to text (XHTML, or text mixed with child elements) is not handled:
+ * the builder stops and {@link #getElement()} returns null, and the caller should go through dom4j instead.
+ */
+final class JaxbElementBuilder extends DefaultHandler {
+
+    private static final class Frame {
+        final Element elt;
+        final StringBuilder text = new StringBuilder();
+
+        Frame(Element elt) {
+            this.elt = elt;
+        }
+    }
+
+    private final Element.ElementFactory factory;
+    private final boolean removePrefixes;
+    private final Deque<Frame> stack = new ArrayDeque<Frame>();
+    private Element root;
+    private boolean unsupported;
+
+    JaxbElementBuilder(Element.ElementFactory factory, boolean removePrefixes) {
+        this.factory = factory;
+        this.removePrefixes = removePrefixes;
+    }
+
+    /**
+     * @return the root element, or null if the content has to be converted through dom4j
+     */
+    Element getElement() {
+        return unsupported ? null : root;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) {
+        if (unsupported) {
+            return;
+        }
+        if (Element.XHTML_NS_URI.equalsIgnoreCase(uri)) {
+            unsupported = true;
+            return;
+        }
+        Element elt = factory.createElement(getQName(uri, localName, qName));
+        for (int i = 0; i < atts.getLength(); i++) {
+            String name = atts.getQName(i);
+            if (Strings.isNullOrEmpty(name)) {
+                name = atts.getLocalName(i);
+            }
+            if (name.equals("xmlns") || name.startsWith("xmlns:")) {
+                continue;
+            }
+            elt.addAttribute(name, atts.getValue(i));
+        }
+        stack.push(new Frame(elt));
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if (unsupported) {
+            return;
+        }
+        Frame frame = stack.pop();
+        if (hasText(frame)) {
+            try {
+                frame.elt.setText(frame.text.toString());
+            } catch (ContainerException e) {
+                unsupported = true;
+                return;
+            }
+        }
+        Frame parent = stack.peek();
+        if (parent == null) {
+            root = frame.elt;
+        } else {
+            parent.elt.addNonUniqueElement(frame.elt);
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (!unsupported && !stack.isEmpty()) {
+            stack.peek().text.append(ch, start, length);
+        }
+    }
+
+    private QName getQName(String uri, String localName, String qName) {
+        if (Strings.isNullOrEmpty(localName)) {
+            int colon = qName.indexOf(':');
+            localName = colon < 0 ? qName : qName.substring(colon + 1);
+        }
+        int colon = qName == null ? -1 : qName.indexOf(':');
+        if (removePrefixes || colon < 0) {
+            return new QName(localName, Namespace.get(Strings.nullToEmpty(uri)));
+        }
+        return new QName(localName, Namespace.get(qName.substring(0, colon), uri));
+    }
+
+    private static boolean hasText(Frame frame) {
+        for (int i = 0; i < frame.text.length(); i++) {
+            if (frame.text.charAt(i) > ' ') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1178,6 +1178,12 @@ public final class JaxbUtil {
                 marshaller = createMarshaller(o.getClass());
             }
             // marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+            JaxbElementBuilder builder = new JaxbElementBuilder(factory, removePrefixes);
+            marshaller.marshal(o, builder);
+            if (builder.getElement() != null) {
+                return builder.getElement();
+            }
+            // content that has to be flattened to text still goes through dom4j
             DocumentResult dr = new DocumentResult();
             marshaller.marshal(o, dr);
             Document theDoc = dr.getDocument();
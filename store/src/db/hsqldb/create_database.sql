@@ -74,7 +74,7 @@ CREATE TABLE *{DATABASE_NAME}.mail_item_dumpster (
    recipients    VARCHAR(128),
    subject       VARCHAR(255),
    name          VARCHAR(255),
-   metadata      VARCHAR(255),
+   metadata      VARCHAR(1000000),
    mod_metadata  INTEGER NOT NULL,
    change_date   INTEGER,
    mod_content   INTEGER NOT NULL,
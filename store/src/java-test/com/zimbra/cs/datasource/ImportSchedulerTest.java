@@ -0,0 +1,165 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.datasource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ImportScheduler}.
+ */
+public final class ImportSchedulerTest {
+
+    @Test
+    public void bounded() throws Exception {
+        ImportScheduler scheduler = new ImportScheduler("ImportSchedulerTest", 2);
+        try {
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger maxRunning = new AtomicInteger();
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(6);
+            for (int i = 0; i < 6; i++) {
+                scheduler.submit("acct" + i, new Runnable() {
+                    @Override
+                    public void run() {
+                        int n = running.incrementAndGet();
+                        synchronized (maxRunning) {
+                            maxRunning.set(Math.max(maxRunning.get(), n));
+                        }
+                        try {
+                            release.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                        }
+                        running.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+            Thread.sleep(200);
+            Assert.assertEquals(2, running.get());
+            Assert.assertEquals(6, scheduler.getQueuedCount());
+            Assert.assertEquals(6, scheduler.getAccountCount());
+            release.countDown();
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(2, maxRunning.get());
+        } finally {
+            scheduler.shutdown();
+        }
+        Assert.assertEquals(0, scheduler.getQueuedCount());
+        Assert.assertEquals(0, scheduler.getAccountCount());
+    }
+
+    @Test
+    public void fairShare() throws Exception {
+        ImportScheduler scheduler = new ImportScheduler("ImportSchedulerTest", 1);
+        try {
+            final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(5);
+            scheduler.submit("a", new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                    }
+                    order.add("a1");
+                    done.countDown();
+                }
+            });
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            // queued behind a1, but b and c get their turn in between
+            for (String name : new String[] { "a2", "a3", "b1", "c1" }) {
+                final String task = name;
+                scheduler.submit(name.substring(0, 1), new Runnable() {
+                    @Override
+                    public void run() {
+                        order.add(task);
+                        done.countDown();
+                    }
+                });
+            }
+            Assert.assertEquals(3, scheduler.getAccountCount());
+            release.countDown();
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(Arrays.asList("a1", "b1", "c1", "a2", "a3"), order);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void failure() throws Exception {
+        ImportScheduler scheduler = new ImportScheduler("ImportSchedulerTest", 1);
+        try {
+            final CountDownLatch done = new CountDownLatch(1);
+            scheduler.submit("a", new Runnable() {
+                @Override
+                public void run() {
+                    throw new IllegalStateException("import failed");
+                }
+            });
+            // the account's next import still runs
+            scheduler.submit("a", new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void error() throws Exception {
+        ImportScheduler scheduler = new ImportScheduler("ImportSchedulerTest", 1);
+        try {
+            final CountDownLatch done = new CountDownLatch(1);
+            scheduler.submit("a", new Runnable() {
+                @Override
+                public void run() {
+                    throw new OutOfMemoryError("import failed");
+                }
+            });
+            // an Error kills the thread, but the account isn't left stuck behind it
+            scheduler.submit("a", new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            Assert.assertEquals(0, scheduler.getQueuedCount());
+            Assert.assertEquals(0, scheduler.getAccountCount());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.datasource.imap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+
+/**
+ * Unit test for {@link FetchPipeline}.
+ */
+public final class FetchPipelineTest {
+
+    private static class Recorder implements FetchPipeline.Handler<Integer> {
+        final List<Integer> handled = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> discarded = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void handle(List<Integer> batch) throws Exception {
+            batchSizes.add(batch.size());
+            handled.addAll(batch);
+        }
+
+        @Override
+        public void discard(Integer item) {
+            discarded.add(item);
+        }
+    }
+
+    @Test
+    public void ordered() throws Exception {
+        Recorder recorder = new Recorder();
+        FetchPipeline<Integer> pipeline = new FetchPipeline<Integer>(recorder, 100, 4);
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 50; i++) {
+            pipeline.put(i);
+            expected.add(i);
+        }
+        pipeline.finish();
+        Assert.assertEquals(expected, recorder.handled);
+        for (int size : recorder.batchSizes) {
+            Assert.assertTrue(size <= 4);
+        }
+        Assert.assertTrue(recorder.discarded.isEmpty());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Recorder recorder = new Recorder() {
+            @Override
+            public void handle(List<Integer> batch) throws Exception {
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                super.handle(batch);
+            }
+        };
+        final FetchPipeline<Integer> pipeline = new FetchPipeline<Integer>(recorder, 2, 10);
+        pipeline.put(1);
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        pipeline.put(2);
+        pipeline.put(3);
+        // the queue is full until the first batch is done
+        final CountDownLatch put = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pipeline.put(4);
+                    put.countDown();
+                } catch (ServiceException e) {
+                }
+            }
+        };
+        thread.start();
+        Assert.assertFalse(put.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        Assert.assertTrue(put.await(10, TimeUnit.SECONDS));
+        pipeline.finish();
+        Assert.assertEquals(4, recorder.handled.size());
+    }
+
+    @Test
+    public void failure() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ServiceException error = ServiceException.FAILURE("add failed", null);
+        Recorder recorder = new Recorder() {
+            @Override
+            public void handle(List<Integer> batch) throws Exception {
+                release.await(10, TimeUnit.SECONDS);
+                throw error;
+            }
+        };
+        FetchPipeline<Integer> pipeline = new FetchPipeline<Integer>(recorder, 10, 1);
+        pipeline.put(1);
+        pipeline.put(2);
+        pipeline.put(3);
+        release.countDown();
+        try {
+            pipeline.finish();
+            Assert.fail();
+        } catch (ServiceException e) {
+            Assert.assertSame(error, e);
+        }
+        // whatever was still queued is released, and so is anything put afterwards
+        try {
+            pipeline.put(4);
+            Assert.fail();
+        } catch (ServiceException e) {
+            Assert.assertSame(error, e);
+        }
+        Assert.assertTrue(recorder.discarded.contains(4));
+        Assert.assertEquals(3, recorder.discarded.size());
+    }
+
+    @Test
+    public void abort() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Recorder recorder = new Recorder() {
+            @Override
+            public void handle(List<Integer> batch) throws Exception {
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                super.handle(batch);
+            }
+        };
+        final FetchPipeline<Integer> pipeline = new FetchPipeline<Integer>(recorder, 10, 1);
+        pipeline.put(1);
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        pipeline.put(2);
+        pipeline.put(3);
+        // waits for the batch being handled, but drops the rest right away
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                pipeline.abort();
+            }
+        };
+        thread.start();
+        for (int i = 0; i < 100 && recorder.discarded.size() < 2; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertTrue(thread.isAlive());
+        release.countDown();
+        thread.join(10000);
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertEquals(Collections.singletonList(1), recorder.handled);
+        Assert.assertEquals(2, recorder.discarded.size());
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.datasource.imap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.DataSource;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.datasource.DataSourceManager;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.soap.admin.type.DataSourceType;
+
+/**
+ * Unit test for {@link ImapSync} against a scripted in-process IMAP server.
+ */
+public final class ImapSyncTest {
+
+    private static final String DS_ID = "ImapSyncTest";
+    private static final String FETCH_NEW = "(FLAGS INTERNALDATE BODY.PEEK[])";
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ImapSync.reset(DS_ID);
+        MailboxTestUtil.clearData();
+    }
+
+    /**
+     * A remote message.  Messages with an odd UID are \Seen.
+     */
+    private static final class RemoteMessage {
+        final long uid;
+        final String subject;
+        final byte[] content;
+
+        RemoteMessage(String folder, long uid) {
+            this.uid = uid;
+            this.subject = folder + " " + uid;
+            this.content = ("From: sender@example.com\r\n" +
+                    "To: test@zimbra.com\r\n" +
+                    "Subject: " + subject + "\r\n" +
+                    "Message-ID: <" + folder + "." + uid + "@example.com>\r\n" +
+                    "Date: Sat, 17 Oct 2026 10:00:00 +0000\r\n" +
+                    "\r\n" +
+                    "message " + uid + " in " + folder + "\r\n").getBytes(Charsets.UTF_8);
+        }
+
+        boolean isSeen() {
+            return uid % 2 == 1;
+        }
+    }
+
+    /**
+     * A minimal IMAP server, with a thread per connection, serving what {@link ImapSync} asks of an import-only data
+     * source.  It records the commands it gets, and holds up the SELECT of any folder other than INBOX until that many
+     * connections have selected one, so folders are only synced if they are synced in parallel.
+     */
+    private static final class MockImapServer {
+        final Map<String, List<RemoteMessage>> folders = new LinkedHashMap<String, List<RemoteMessage>>();
+        // UIDs whose content is left out when fetched along with other messages
+        final Set<String> partial = new HashSet<String>();
+        final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+        final Map<String, Integer> selectedBy = Collections.synchronizedMap(new HashMap<String, Integer>());
+        final AtomicInteger logins = new AtomicInteger();
+        // failures serving a connection, which would otherwise only show up as a confusing client error
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        private final CountDownLatch parallel;
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        private ServerSocket serverSocket;
+
+        MockImapServer(int connections) {
+            parallel = new CountDownLatch(connections);
+        }
+
+        MockImapServer add(String folder, int count) {
+            List<RemoteMessage> msgs = new ArrayList<RemoteMessage>();
+            for (int uid = 1; uid <= count; uid++) {
+                msgs.add(new RemoteMessage(folder, uid));
+            }
+            folders.put(folder, msgs);
+            return this;
+        }
+
+        MockImapServer partial(String folder, long uid) {
+            partial.add(folder + ":" + uid);
+            return this;
+        }
+
+        int start() throws IOException {
+            serverSocket = new ServerSocket(0);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int id = 1; !serverSocket.isClosed(); id++) {
+                        final Socket sock;
+                        try {
+                            sock = serverSocket.accept();
+                        } catch (IOException e) {
+                            return;
+                        }
+                        final int conn = id;
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    serve(sock, conn);
+                                } catch (Exception e) {
+                                    errors.add(e);
+                                } finally {
+                                    try {
+                                        sock.close();
+                                    } catch (IOException ignore) {
+                                    }
+                                }
+                            }
+                        });
+                    }
+                }
+            });
+            return serverSocket.getLocalPort();
+        }
+
+        void shutdown() {
+            try {
+                serverSocket.close();
+            } catch (IOException ignore) {
+            }
+            executor.shutdownNow();
+        }
+
+        List<String> getCommands(String suffix) {
+            List<String> result = new ArrayList<String>();
+            synchronized (commands) {
+                for (String cmd : commands) {
+                    if (cmd.endsWith(suffix)) {
+                        result.add(cmd);
+                    }
+                }
+            }
+            return result;
+        }
+
+        private void serve(Socket sock, int conn) throws Exception {
+            BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), Charsets.ISO_8859_1));
+            OutputStream out = sock.getOutputStream();
+            send(out, "* OK [CAPABILITY IMAP4rev1] ready");
+            String selected = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ", 3);
+                String tag = parts[0];
+                String cmd = parts[1].toUpperCase();
+                String args = parts.length > 2 ? parts[2] : "";
+                if (cmd.equals("CAPABILITY")) {
+                    send(out, "* CAPABILITY IMAP4rev1");
+                } else if (cmd.equals("LOGIN")) {
+                    logins.incrementAndGet();
+                } else if (cmd.equals("LIST")) {
+                    if (args.endsWith("\"\"")) {
+                        send(out, "* LIST (\\Noselect) \"/\" \"\"");
+                    } else {
+                        for (String name : folders.keySet()) {
+                            send(out, "* LIST (\\HasNoChildren) \"/\" \"" + name + "\"");
+                        }
+                    }
+                } else if (cmd.equals("STATUS")) {
+                    String name = mailboxName(args);
+                    List<RemoteMessage> msgs = folders.get(name);
+                    send(out, "* STATUS \"" + name + "\" (MESSAGES " + msgs.size() + " UIDNEXT " + (msgs.size() + 1) +
+                            " UIDVALIDITY " + uidValidity(name) + ")");
+                } else if (cmd.equals("SELECT")) {
+                    selected = mailboxName(args);
+                    if (!selected.equals("INBOX")) {
+                        selectedBy.put(selected, conn);
+                        parallel.countDown();
+                        parallel.await(10, TimeUnit.SECONDS);
+                    }
+                    List<RemoteMessage> msgs = folders.get(selected);
+                    send(out, "* FLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft)");
+                    send(out, "* " + msgs.size() + " EXISTS");
+                    send(out, "* 0 RECENT");
+                    send(out, "* OK [UIDVALIDITY " + uidValidity(selected) + "] UIDs valid");
+                    send(out, "* OK [UIDNEXT " + (msgs.size() + 1) + "] Predicted next UID");
+                } else if (cmd.equals("UID") && args.toUpperCase().startsWith("FETCH ")) {
+                    String[] fetch = args.split(" ", 3);
+                    commands.add(selected + " " + fetch[1] + " " + fetch[2]);
+                    fetch(out, selected, fetch[1], fetch[2]);
+                } else if (cmd.equals("LOGOUT")) {
+                    send(out, "* BYE logging out");
+                    send(out, tag + " OK LOGOUT completed");
+                    return;
+                } else if (!cmd.equals("NOOP") && !cmd.equals("CLOSE")) {
+                    send(out, tag + " BAD unexpected command");
+                    continue;
+                }
+                send(out, tag + " OK " + cmd + " completed");
+            }
+        }
+
+        private void fetch(OutputStream out, String folder, String seq, String items) throws IOException {
+            List<RemoteMessage> msgs = folders.get(folder);
+            List<Long> uids = new ArrayList<Long>();
+            for (String range : seq.split(",")) {
+                String[] ends = range.split(":");
+                long first = uid(ends[0], msgs);
+                long last = ends.length > 1 ? uid(ends[1], msgs) : first;
+                for (long uid = Math.min(first, last); uid <= Math.max(first, last); uid++) {
+                    uids.add(uid);
+                }
+            }
+            for (int i = 0; i < msgs.size(); i++) {
+                RemoteMessage msg = msgs.get(i);
+                if (!uids.contains(msg.uid)) {
+                    continue;
+                }
+                StringBuilder sb = new StringBuilder();
+                sb.append("* ").append(i + 1).append(" FETCH (UID ").append(msg.uid);
+                if (items.contains("FLAGS")) {
+                    sb.append(" FLAGS (").append(msg.isSeen() ? "\\Seen" : "").append(')');
+                }
+                if (items.contains("INTERNALDATE")) {
+                    sb.append(" INTERNALDATE \"17-Oct-2026 10:00:00 +0000\"");
+                }
+                if (items.contains("BODY.PEEK[]") && (uids.size() == 1 || !partial.contains(folder + ":" + msg.uid))) {
+                    sb.append(" BODY[] {").append(msg.content.length).append("}\r\n");
+                    out.write(sb.toString().getBytes(Charsets.ISO_8859_1));
+                    out.write(msg.content);
+                    sb.setLength(0);
+                }
+                sb.append(')');
+                send(out, sb.toString());
+            }
+        }
+
+        private static long uid(String value, List<RemoteMessage> msgs) {
+            return value.equals("*") ? msgs.get(msgs.size() - 1).uid : Long.parseLong(value);
+        }
+
+        private static String mailboxName(String args) {
+            if (args.startsWith("\"")) {
+                return args.substring(1, args.indexOf('"', 1));
+            }
+            int end = args.indexOf(' ');
+            return end < 0 ? args : args.substring(0, end);
+        }
+
+        private static long uidValidity(String folder) {
+            return 1000 + Math.abs(folder.hashCode() % 1000);
+        }
+
+        private static void send(OutputStream out, String line) throws IOException {
+            out.write((line + "\r\n").getBytes(Charsets.ISO_8859_1));
+            out.flush();
+        }
+    }
+
+    private static DataSource newDataSource(Account account, int port) throws Exception {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraDataSourceEnabled, "TRUE");
+        attrs.put(Provisioning.A_zimbraDataSourceImportOnly, "TRUE");
+        attrs.put(Provisioning.A_zimbraDataSourceHost, "localhost");
+        attrs.put(Provisioning.A_zimbraDataSourcePort, String.valueOf(port));
+        attrs.put(Provisioning.A_zimbraDataSourceConnectionType, "cleartext");
+        attrs.put(Provisioning.A_zimbraDataSourceUsername, "test");
+        attrs.put(Provisioning.A_zimbraDataSourcePassword, DataSource.encryptData(DS_ID, "secret"));
+        attrs.put(Provisioning.A_zimbraDataSourceFolderId, String.valueOf(Mailbox.ID_FOLDER_USER_ROOT));
+        return new DataSource(account, DataSourceType.imap, "imap", DS_ID, attrs, Provisioning.getInstance());
+    }
+
+    @Test
+    public void parallelImport() throws Exception {
+        Account account = Provisioning.getInstance().getAccountById(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(account);
+        // INBOX first on the import's own connection, then the rest on three connections at once
+        MockImapServer server = new MockImapServer(3)
+                .add("INBOX", 3).add("Work", 4).add("Lists", 2).add("Travel", 5)
+                .partial("Work", 2);
+        int port = server.start();
+        int connections = LC.data_source_imap_folder_connections.intValue();
+        LC.data_source_imap_folder_connections.setDefault(3);
+        DataSource ds = newDataSource(account, port);
+        DataSourceManager.addManaged(ds);
+        try {
+            ImapSync sync = new ImapSync(ds);
+            sync.importData(true);
+            Assert.assertEquals(Collections.emptyList(), server.errors);
+
+            // two helpers logged in and took a folder each
+            Assert.assertEquals(3, server.logins.get());
+            Assert.assertEquals(3, new HashSet<Integer>(server.selectedBy.values()).size());
+
+            ImapFolderCollection trackers = ImapFolder.getFolders(ds);
+            for (Map.Entry<String, List<RemoteMessage>> entry : server.folders.entrySet()) {
+                String name = entry.getKey();
+                List<RemoteMessage> remote = entry.getValue();
+                Folder folder = mbox.getFolderByPath(null, "/" + name);
+                if (name.equals("INBOX")) {
+                    Assert.assertEquals(Mailbox.ID_FOLDER_INBOX, folder.getId());
+                }
+
+                // every message was imported with its flags
+                Map<String, Boolean> expected = new HashMap<String, Boolean>();
+                for (RemoteMessage msg : remote) {
+                    expected.put(msg.subject, !msg.isSeen());
+                }
+                Map<String, Boolean> imported = new HashMap<String, Boolean>();
+                Set<Integer> ids = new HashSet<Integer>();
+                for (int id : mbox.listItemIds(null, MailItem.Type.MESSAGE, folder.getId())) {
+                    Message msg = mbox.getMessageById(null, id);
+                    imported.put(msg.getSubject(), msg.isUnread());
+                    ids.add(id);
+                }
+                Assert.assertEquals(name, expected, imported);
+
+                // with a tracker for each of them
+                ImapFolder tracker = trackers.getByRemotePath(name);
+                Assert.assertEquals(name, folder.getId(), tracker.getItemId());
+                ImapMessageCollection tracked = tracker.getMessages();
+                Assert.assertEquals(name, remote.size(), tracked.size());
+                Assert.assertEquals(name, ids, tracked.getItemIds());
+                Set<Long> uids = new HashSet<Long>();
+                for (RemoteMessage msg : remote) {
+                    uids.add(msg.uid);
+                }
+                Assert.assertEquals(name, uids, tracked.getUids());
+                Assert.assertEquals(name, remote.size(), sync.getFolderSyncState(folder.getId()).getLastFetchedUid());
+            }
+
+            // new messages came in with one FETCH of flags, date and content per folder, plus one more for the
+            // message that came back without its content
+            List<String> fetches = server.getCommands(FETCH_NEW);
+            Assert.assertEquals(fetches.toString(), server.folders.size() + 1, fetches.size());
+            for (String name : server.folders.keySet()) {
+                // newest first
+                StringBuilder seq = new StringBuilder();
+                for (RemoteMessage msg : server.folders.get(name)) {
+                    seq.insert(0, seq.length() == 0 ? "" : ",").insert(0, msg.uid);
+                }
+                Assert.assertTrue(fetches.toString(), fetches.contains(name + " " + seq + " " + FETCH_NEW));
+            }
+            // ...which was looked up again and then fetched on its own
+            Assert.assertEquals(Collections.singletonList("Work 2 (FLAGS INTERNALDATE)"),
+                    server.getCommands("(FLAGS INTERNALDATE)"));
+            Assert.assertTrue(fetches.contains("Work 2 " + FETCH_NEW));
+        } finally {
+            LC.data_source_imap_folder_connections.setDefault(connections);
+            DataSourceManager.deleteManaged(account.getId(), DS_ID);
+            server.shutdown();
+        }
+    }
+}
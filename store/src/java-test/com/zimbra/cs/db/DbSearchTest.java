@@ -205,6 +205,59 @@ public final class DbSearchTest {
         Assert.assertEquals("SUBJECT0000000104", result.get(2).getSortValue());
     }
 
+    @Test
+    public void dateSeek() throws Exception {
+        int[] dates = { 100, 200, 200, 200, 300, 300 };
+        for (int i = 0; i < dates.length; i++) {
+            DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
+                    "(mailbox_id, id, type, flags, date, size, tags, mod_metadata, mod_content) " +
+                    "VALUES(?, ?, ?, 0, ?, 0, 0, 0, 0)", mbox.getId(), 100 + i, MailItem.Type.MESSAGE.toByte(),
+                    dates[i]);
+        }
+
+        DbSearchConstraints.Leaf constraints = new DbSearchConstraints.Leaf();
+        constraints.seekAfter = new DbSearchConstraints.SortKeyBound(SortBy.DATE_DESC, 200000L, 103);
+        List<DbSearch.Result> result = new DbSearch(mbox).search(conn, constraints, SortBy.DATE_DESC, 0, 100,
+                DbSearch.FetchMode.ID);
+        Assert.assertEquals(3, result.size());
+        Assert.assertEquals(102, result.get(0).getId());
+        Assert.assertEquals(101, result.get(1).getId());
+        Assert.assertEquals(100, result.get(2).getId());
+        Assert.assertEquals(3, new DbSearch(mbox).countResults(conn, constraints));
+
+        constraints.seekAfter = new DbSearchConstraints.SortKeyBound(SortBy.DATE_ASC, 200000L, 102);
+        result = new DbSearch(mbox).search(conn, constraints, SortBy.DATE_ASC, 0, 100, DbSearch.FetchMode.ID);
+        Assert.assertEquals(3, result.size());
+        Assert.assertEquals(103, result.get(0).getId());
+        Assert.assertEquals(104, result.get(1).getId());
+        Assert.assertEquals(105, result.get(2).getId());
+    }
+
+    @Test
+    public void sizeSeek() throws Exception {
+        int[] sizes = { 10, 20, 20, 30 };
+        for (int i = 0; i < sizes.length; i++) {
+            DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
+                    "(mailbox_id, id, type, flags, date, size, tags, mod_metadata, mod_content) " +
+                    "VALUES(?, ?, ?, 0, 0, ?, 0, 0, 0)", mbox.getId(), 100 + i, MailItem.Type.MESSAGE.toByte(),
+                    sizes[i]);
+        }
+
+        DbSearchConstraints.Leaf constraints = new DbSearchConstraints.Leaf();
+        constraints.seekAfter = new DbSearchConstraints.SortKeyBound(SortBy.SIZE_ASC, 20L, 101);
+        List<DbSearch.Result> result = new DbSearch(mbox).search(conn, constraints, SortBy.SIZE_ASC, 0, 100,
+                DbSearch.FetchMode.ID);
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(102, result.get(0).getId());
+        Assert.assertEquals(103, result.get(1).getId());
+
+        constraints.seekAfter = new DbSearchConstraints.SortKeyBound(SortBy.ID_DESC, 0L, 102);
+        result = new DbSearch(mbox).search(conn, constraints, SortBy.ID_DESC, 0, 100, DbSearch.FetchMode.ID);
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(101, result.get(0).getId());
+        Assert.assertEquals(100, result.get(1).getId());
+    }
+
     @Test
     public void mdate() throws Exception {
         DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
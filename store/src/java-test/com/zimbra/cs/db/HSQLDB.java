@@ -119,6 +119,7 @@ public final class HSQLDB extends Db {
             case BITWISE_OPERATIONS:
             case REPLACE_INTO:
             case DISABLE_CONSTRAINT_CHECK:
+            case ON_DUPLICATE_KEY:
                 return false;
             default:
                 return true;
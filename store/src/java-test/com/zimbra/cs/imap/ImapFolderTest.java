@@ -1,5 +1,10 @@
 package com.zimbra.cs.imap;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -12,6 +17,7 @@ import org.junit.Test;
 
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Flag;
 import com.zimbra.cs.mailbox.MailItem.Type;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
@@ -61,4 +67,48 @@ public class ImapFolderTest {
         Assert.assertNotNull(i4set);
         Assert.assertEquals(3, i4set.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void serializeSequence() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapPath path = new ImapPath("trash", creds);
+
+        ImapFolder i4folder = new ImapFolder(path, (byte) 0, null);
+        i4folder.cache(new ImapMessage(1, Type.MESSAGE, 1, 0, null), false);
+        i4folder.cache(new ImapMessage(2, Type.MESSAGE, 2, Flag.BITMASK_FLAGGED, new String[] { "red", "blue" }), true);
+        i4folder.cache(new ImapMessage(7, Type.CONTACT, 9, 0, new String[] { "blue" }), false);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bout);
+        out.writeObject(i4folder);
+        out.close();
+        ImapFolder restored = (ImapFolder) new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray())).readObject();
+
+        Assert.assertEquals(3, restored.getSize());
+        ImapMessage i4msg = restored.getByImapId(2);
+        Assert.assertEquals(2, i4msg.msgId);
+        Assert.assertEquals(2, i4msg.sequence);
+        Assert.assertEquals(Flag.BITMASK_FLAGGED, i4msg.flags);
+        Assert.assertTrue((i4msg.sflags & ImapMessage.FLAG_RECENT) != 0);
+        Assert.assertEquals(Arrays.asList("red", "blue"), Arrays.asList(i4msg.tags));
+        Assert.assertSame(i4msg, restored.getBySequence(2));
+
+        // item id differs from the UID, so this goes through the id map
+        i4msg = restored.getById(7);
+        Assert.assertEquals(9, i4msg.imapUid);
+        Assert.assertEquals(Type.CONTACT, i4msg.getType());
+        Assert.assertEquals(3, i4msg.sequence);
+
+        // the restored folder can still be modified and serialized again
+        restored.cache(new ImapMessage(10, Type.MESSAGE, 10, 0, null), false);
+        Assert.assertEquals(4, restored.getSize());
+        bout = new ByteArrayOutputStream();
+        out = new ObjectOutputStream(bout);
+        out.writeObject(restored);
+        out.close();
+        restored = (ImapFolder) new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray())).readObject();
+        Assert.assertEquals(4, restored.getSize());
+        Assert.assertEquals(10, restored.getByImapId(10).msgId);
+        Assert.assertNull(restored.getByImapId(5));
+    }
+}
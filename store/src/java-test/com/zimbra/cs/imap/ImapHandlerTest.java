@@ -243,6 +243,34 @@ public class ImapHandlerTest {
         Assert.assertEquals("Output of SEARCH", "* SEARCH 2\r\nsearchtag OK SEARCH completed\r\n", baos.toString());
     }
 
+    @Test
+    public void testStoreSilent() throws Exception {
+        Account acct = Provisioning.getInstance().getAccount("12aa345b-2b47-44e6-8cb8-7fdfa18c1a9f");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        TestUtil.addMessage(mbox, "Message 1");
+        TestUtil.addMessage(mbox, "Message 2");
+
+        ImapHandler handler = new MockImapHandler();
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapPath pathInbox = new MockImapPath(null, mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX), creds);
+        handler.setCredentials(creds);
+        handler.setSelectedFolder(pathInbox, (byte) 0);
+        ByteArrayOutputStream baos = (ByteArrayOutputStream) handler.output;
+        baos.reset();
+
+        // the client's own flag changes must not come back to it as unsolicited FETCH responses
+        Assert.assertTrue(handler.doSTORE("storetag", "1:2", Arrays.asList("\\Flagged"), ImapHandler.StoreAction.ADD,
+                true, -1, false));
+        Thread.sleep(500);
+        Assert.assertTrue(handler.doNOOP("nooptag"));
+        Assert.assertEquals("Output of STORE .SILENT",
+                "storetag OK STORE completed\r\nnooptag OK NOOP completed\r\n", baos.toString());
+
+        Assert.assertTrue(handler.doSTORE("storetag", "1", Arrays.asList("\\Seen"), ImapHandler.StoreAction.ADD,
+                false, -1, false));
+        Assert.assertTrue(baos.toString().contains("* 1 FETCH (FLAGS (\\Flagged \\Seen \\Recent))"));
+    }
+
 
     class MockImapPath extends ImapPath {
 
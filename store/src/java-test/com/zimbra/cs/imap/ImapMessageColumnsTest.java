@@ -0,0 +1,90 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.imap.ImapMessageColumns.ImapMessageList;
+import com.zimbra.cs.mailbox.MailItem;
+
+public class ImapMessageColumnsTest {
+
+    private static List<ImapMessage> messages(int count) {
+        List<ImapMessage> list = new ArrayList<ImapMessage>();
+        for (int i = 1; i <= count; i++) {
+            ImapMessage i4msg = new ImapMessage(i, MailItem.Type.MESSAGE, i + 100, 0,
+                    i % 2 == 0 ? new String[] { "even", "tag" + i } : null);
+            i4msg.sequence = i;
+            list.add(i4msg);
+        }
+        return list;
+    }
+
+    @Test
+    public void encodeAndRead() throws Exception {
+        ImapMessageColumns columns = ImapMessageColumns.encode(messages(5));
+        Assert.assertEquals(5, columns.size());
+        Assert.assertEquals(3, columns.getMsgId(2));
+        Assert.assertEquals(103, columns.getImapUid(2));
+        Assert.assertNull(columns.getTags(2));
+        Assert.assertArrayEquals(new String[] { "even", "tag4" }, columns.getTags(3));
+    }
+
+    @Test
+    public void offHeapBuffer() throws Exception {
+        ImapMessageColumns columns = ImapMessageColumns.encode(messages(4));
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        columns.writeTo(bout);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bout.size());
+        direct.put(bout.toByteArray()).flip();
+
+        ImapMessageColumns wrapped = ImapMessageColumns.wrap(direct);
+        Assert.assertEquals(4, wrapped.size());
+        ImapMessage i4msg = wrapped.toMessage(1);
+        Assert.assertEquals(2, i4msg.msgId);
+        Assert.assertEquals(102, i4msg.imapUid);
+        Assert.assertEquals(2, i4msg.sequence);
+        Assert.assertArrayEquals(new String[] { "even", "tag2" }, i4msg.tags);
+    }
+
+    @Test
+    public void lazyList() throws Exception {
+        ImapMessageList list = new ImapMessageList(ImapMessageColumns.encode(messages(3)));
+        Assert.assertEquals(3, list.size());
+        Assert.assertEquals(102, list.getImapUid(1));
+        Assert.assertSame(list.get(1), list.get(1));
+        Assert.assertTrue(list.isEncoded());
+
+        // changes to handed-out messages survive re-encoding
+        list.get(0).flags = 5;
+        ImapMessageColumns reencoded = ImapMessageColumns.encode(list);
+        Assert.assertEquals(5, reencoded.getFlags(0));
+        Assert.assertEquals(103, reencoded.getImapUid(2));
+
+        list.add(new ImapMessage(4, MailItem.Type.MESSAGE, 104, 0, null));
+        Assert.assertFalse(list.isEncoded());
+        Assert.assertEquals(4, list.size());
+        Assert.assertEquals(104, list.getImapUid(3));
+        Assert.assertEquals(5, list.get(0).flags);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.Pair;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for the {@code ENVELOPE} and {@code BODYSTRUCTURE} stored with messages by {@link ImapMessage}.
+ */
+public final class ImapMessageTest {
+
+    private static final String MULTIPART =
+        "From: Sender <sender@example.com>\r\n" +
+        "To: rcpt@example.com, \"Récipient\" <other@example.com>\r\n" +
+        "Subject: structure\r\n" +
+        "Message-ID: <1@example.com>\r\n" +
+        "Content-Type: multipart/mixed; boundary=\"BOUNDARY\"\r\n" +
+        "\r\n" +
+        "--BOUNDARY\r\n" +
+        "Content-Type: text/plain; charset=us-ascii\r\n" +
+        "\r\n" +
+        "body text\r\n" +
+        "--BOUNDARY\r\n" +
+        "Content-Type: application/octet-stream; name=\"a.bin\"\r\n" +
+        "Content-Disposition: attachment; filename=\"a.bin\"\r\n" +
+        "Content-Transfer-Encoding: base64\r\n" +
+        "\r\n" +
+        "AAECAw==\r\n" +
+        "--BOUNDARY--\r\n";
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LC.imap_persist_structure.setDefault(true);
+        LC.imap_persist_structure_max_size.setDefault(16384);
+        MailboxTestUtil.clearData();
+    }
+
+    private static Message addMessage(Mailbox mbox) throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        return mbox.addMessage(null, new ParsedMessage(MULTIPART.getBytes("UTF-8"), false), dopt, null);
+    }
+
+    private static String envelope(MimeMessage mm) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(baos, false, "UTF-8");
+        ImapMessage.serializeEnvelope(ps, mm);
+        ps.flush();
+        return baos.toString("UTF-8");
+    }
+
+    private static String bodystructure(MimeMessage mm) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(baos, false, "UTF-8");
+        ImapMessage.serializeStructure(ps, mm, true);
+        ps.flush();
+        return baos.toString("UTF-8");
+    }
+
+    @Test
+    public void storedAtDelivery() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg = addMessage(mbox);
+        MimeMessage mm = ImapMessage.getMimeMessage(msg);
+        Assert.assertEquals(envelope(mm), msg.getImapEnvelope());
+        Assert.assertEquals(bodystructure(mm), msg.getImapBodyStructure());
+        Assert.assertTrue(msg.getImapBodyStructure().contains("\"MIXED\""));
+
+        // and read back from the database
+        mbox.purge(MailItem.Type.MESSAGE);
+        msg = mbox.getMessageById(null, msg.getId());
+        Assert.assertEquals(envelope(mm), msg.getImapEnvelope());
+        Assert.assertEquals(bodystructure(mm), msg.getImapBodyStructure());
+        Pair<String, String> structure = ImapMessage.getPersistedStructure(msg);
+        Assert.assertEquals(msg.getImapEnvelope(), structure.getFirst());
+        Assert.assertEquals(msg.getImapBodyStructure(), structure.getSecond());
+    }
+
+    @Test
+    public void backfill() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        LC.imap_persist_structure.setDefault(false);
+        Message msg = addMessage(mbox);
+        Assert.assertNull(msg.getImapEnvelope());
+        Assert.assertNull(ImapMessage.getPersistedStructure(msg));
+        int modseq = msg.getModifiedSequence();
+
+        LC.imap_persist_structure.setDefault(true);
+        MimeMessage mm = ImapMessage.getMimeMessage(msg);
+        Pair<String, String> structure = ImapMessage.persistStructure(msg, mm);
+        Assert.assertEquals(envelope(mm), structure.getFirst());
+        Assert.assertEquals(bodystructure(mm), structure.getSecond());
+
+        // stored without counting as a change to the message
+        mbox.purge(MailItem.Type.MESSAGE);
+        msg = mbox.getMessageById(null, msg.getId());
+        Assert.assertEquals(structure.getFirst(), msg.getImapEnvelope());
+        Assert.assertEquals(structure.getSecond(), msg.getImapBodyStructure());
+        Assert.assertEquals(modseq, msg.getModifiedSequence());
+    }
+
+    @Test
+    public void tooLarge() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        LC.imap_persist_structure_max_size.setDefault(100);
+        Message msg = addMessage(mbox);
+        Assert.assertNull(msg.getImapEnvelope());
+        Assert.assertNull(msg.getImapBodyStructure());
+        Assert.assertNull(ImapMessage.precomputeStructure(ImapMessage.getMimeMessage(msg)));
+    }
+}
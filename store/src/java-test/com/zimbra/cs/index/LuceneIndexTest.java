@@ -16,6 +16,17 @@
  */
 package com.zimbra.cs.index;
 
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.Contact;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+
 /**
  * Unit test for {@link LuceneIndex}.
  */
@@ -27,4 +38,39 @@ public final class LuceneIndexTest extends AbstractIndexStoreTest {
         // Default for LC.zimbra_class_index_store_factory.value() is USUALLY this
         return "com.zimbra.cs.index.LuceneIndex$Factory";
     }
+
+    @Test
+    public void searcherRefreshedAfterCommit() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder folder = mbox.getFolderById(null, Mailbox.ID_FOLDER_CONTACTS);
+        Contact contact1 = createContact(mbox, "a", "bc", "abc@zimbra.com");
+        Contact contact2 = createContact(mbox, "x", "yz", "xyz@zimbra.com");
+        mbox.index.indexDeferredItems();
+
+        IndexStore index = mbox.index.getIndexStore();
+        index.deleteIndex();
+        Indexer indexer = index.openIndexer();
+        indexer.addDocument(folder, contact1, contact1.generateIndexData());
+        indexer.close();
+
+        TermQuery query = new TermQuery(new Term(LuceneFields.L_CONTACT_DATA, "zimbra.com"));
+        ZimbraIndexSearcher before = index.openSearcher();
+        Assert.assertEquals(1, before.search(query, 100).getTotalHits());
+
+        indexer = index.openIndexer();
+        indexer.addDocument(folder, contact2, contact2.generateIndexData());
+        indexer.close();
+
+        ZimbraIndexSearcher after = index.openSearcher();
+        Assert.assertEquals(2, after.search(query, 100).getTotalHits());
+        // a searcher opened before the commit keeps its point-in-time view until it is released
+        Assert.assertEquals(1, before.search(query, 100).getTotalHits());
+        before.close();
+        after.close();
+
+        // nothing committed since, so the cached searcher is reused
+        ZimbraIndexSearcher again = index.openSearcher();
+        Assert.assertSame(after, again);
+        again.close();
+    }
 }
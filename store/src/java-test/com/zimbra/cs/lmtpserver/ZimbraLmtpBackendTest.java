@@ -0,0 +1,97 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.lmtpserver;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+
+public class ZimbraLmtpBackendTest {
+    private static final int NUM_RECIPIENTS = 7;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        for (int i = 0; i < NUM_RECIPIENTS; i++) {
+            HashMap<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put(Provisioning.A_zimbraId, UUID.randomUUID().toString());
+            prov.createAccount("rcpt" + i + "@zimbra.com", "secret", attrs);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_lmtp_delivery_recipients_per_thread.setDefault(20);
+        LC.zimbra_lmtp_delivery_max_fanout.setDefault(4);
+    }
+
+    @Test
+    public void parallelDelivery() throws Exception {
+        LC.zimbra_lmtp_delivery_recipients_per_thread.setDefault(1);
+        LC.zimbra_lmtp_delivery_max_fanout.setDefault(3);
+
+        LmtpEnvelope env = new LmtpEnvelope();
+        env.setSender(new LmtpAddress("<sender@zimbra.com>", null, null));
+        for (int i = 0; i < NUM_RECIPIENTS; i++) {
+            LmtpAddress rcpt = new LmtpAddress("<rcpt" + i + "@zimbra.com>", null, null);
+            rcpt.setOnLocalServer(true);
+            env.addLocalRecipient(rcpt);
+        }
+        // this one has no account and must still get a status
+        LmtpAddress unknown = new LmtpAddress("<nobody@zimbra.com>", null, null);
+        unknown.setOnLocalServer(true);
+        env.addLocalRecipient(unknown);
+
+        byte[] content = ("From: sender@zimbra.com\r\nTo: list@zimbra.com\r\nSubject: fanout\r\n" +
+                "Message-ID: <fanout@zimbra.com>\r\n\r\nhello\r\n").getBytes();
+        new ZimbraLmtpBackend(LmtpConfig.getInstance()).deliver(env, new ByteArrayInputStream(content), content.length);
+
+        List<LmtpAddress> recipients = env.getLocalRecipients();
+        for (int i = 0; i < NUM_RECIPIENTS; i++) {
+            Assert.assertEquals(recipients.get(i).getEmailAddress(), LmtpReply.DELIVERY_OK,
+                    recipients.get(i).getDeliveryStatus());
+            Account acct = Provisioning.getInstance().getAccountByName("rcpt" + i + "@zimbra.com");
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+            List<MailItem> msgs = mbox.getItemList(null, MailItem.Type.MESSAGE, Mailbox.ID_FOLDER_INBOX);
+            Assert.assertEquals(1, msgs.size());
+            Assert.assertEquals("fanout", ((Message) msgs.get(0)).getSubject());
+        }
+        Assert.assertEquals(LmtpReply.PERMANENT_FAILURE, unknown.getDeliveryStatus());
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailboxListener.ChangeNotification;
+import com.zimbra.cs.session.PendingModifications;
+import com.zimbra.cs.session.Session;
+
+/**
+ * Unit test for {@link ChangeNotificationDispatcher}.
+ */
+public final class ChangeNotificationDispatcherTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static class TestSession extends Session {
+        final List<Integer> changeIds = new ArrayList<Integer>();
+        final List<Integer> created = new ArrayList<Integer>();
+        Thread thread;
+        CountDownLatch block;
+
+        TestSession() {
+            super(MockProvisioning.DEFAULT_ACCOUNT_ID, Session.Type.NULL);
+        }
+
+        @Override
+        public void notifyPendingChanges(PendingModifications pns, int changeId, Session source) {
+            CountDownLatch latch;
+            synchronized (this) {
+                latch = block;
+                block = null;
+            }
+            if (latch != null) {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+            }
+            synchronized (this) {
+                thread = Thread.currentThread();
+                changeIds.add(changeId);
+                if (pns.created != null) {
+                    for (Object key : pns.created.keySet()) {
+                        created.add(((PendingModifications.ModificationKey) key).getItemId());
+                    }
+                }
+                notifyAll();
+            }
+        }
+
+        synchronized void awaitChange(int changeId) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while ((changeIds.isEmpty() || changeIds.get(changeIds.size() - 1) < changeId) &&
+                    System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+        }
+
+        @Override
+        protected boolean isMailboxListener() {
+            return true;
+        }
+
+        @Override
+        protected boolean isRegisteredInCache() {
+            return false;
+        }
+
+        @Override
+        protected long getSessionIdleLifetime() {
+            return 0;
+        }
+
+        @Override
+        protected void cleanup() {
+        }
+    }
+
+    @Test
+    public void delivered() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        TestSession session = new TestSession();
+        session.register();
+        try {
+            Folder folder = mbox.createFolder(null, "/delivered", new Folder.FolderOptions());
+            // the committing thread waited for delivery, which happened on another thread
+            synchronized (session) {
+                Assert.assertEquals(mbox.getLastChangeID(), session.changeIds.get(session.changeIds.size() - 1)
+                        .intValue());
+                Assert.assertTrue(session.created.contains(folder.getId()));
+                Assert.assertNotSame(Thread.currentThread(), session.thread);
+            }
+        } finally {
+            session.unregister();
+        }
+    }
+
+    @Test
+    public void source() throws Exception {
+        final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        final List<Boolean> locked = new ArrayList<Boolean>();
+        TestSession session = new TestSession() {
+            @Override
+            public void notifyPendingChanges(PendingModifications pns, int changeId, Session source) {
+                locked.add(mbox.lock.isWriteLockedByCurrentThread());
+                super.notifyPendingChanges(pns, changeId, source);
+            }
+        };
+        session.register();
+        boolean wait = LC.zimbra_mailbox_notify_wait.booleanValue();
+        LC.zimbra_mailbox_notify_wait.setDefault(false);
+        try {
+            // the session a change is made through gets it from the committing thread, before the lock is released
+            OperationContext octxt = new OperationContext(mbox.getAccount()).setSession(session);
+            mbox.createFolder(octxt, "/source", new Folder.FolderOptions());
+            synchronized (session) {
+                Assert.assertEquals(mbox.getLastChangeID(), session.changeIds.get(session.changeIds.size() - 1)
+                        .intValue());
+                Assert.assertSame(Thread.currentThread(), session.thread);
+            }
+            Assert.assertEquals(1, locked.size());
+            Assert.assertTrue(locked.get(0));
+        } finally {
+            LC.zimbra_mailbox_notify_wait.setDefault(wait);
+            session.unregister();
+        }
+    }
+
+    @Test
+    public void coalesced() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        TestSession session = new TestSession();
+        session.register();
+        CountDownLatch latch = new CountDownLatch(1);
+        session.block = latch;
+        boolean wait = LC.zimbra_mailbox_notify_wait.booleanValue();
+        LC.zimbra_mailbox_notify_wait.setDefault(false);
+        try {
+            // the first change holds up delivery; the rest queue up behind it and go out together
+            List<Integer> ids = new ArrayList<Integer>();
+            for (int i = 0; i < 5; i++) {
+                ids.add(mbox.createFolder(null, "/coalesced" + i, new Folder.FolderOptions()).getId());
+            }
+            latch.countDown();
+            session.awaitChange(mbox.getLastChangeID());
+            synchronized (session) {
+                Assert.assertEquals(2, session.changeIds.size());
+                Assert.assertEquals(mbox.getLastChangeID(), session.changeIds.get(1).intValue());
+                Assert.assertEquals(ids, session.created);
+            }
+        } finally {
+            LC.zimbra_mailbox_notify_wait.setDefault(wait);
+            session.unregister();
+        }
+    }
+
+    @Test
+    public void slowSession() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        TestSession slow = new TestSession();
+        TestSession fast = new TestSession();
+        slow.register();
+        fast.register();
+        CountDownLatch latch = new CountDownLatch(1);
+        slow.block = latch;
+        boolean wait = LC.zimbra_mailbox_notify_wait.booleanValue();
+        LC.zimbra_mailbox_notify_wait.setDefault(false);
+        try {
+            // a session that doesn't take its notifications only holds up its own queue
+            mbox.createFolder(null, "/slow0", new Folder.FolderOptions());
+            mbox.createFolder(null, "/slow1", new Folder.FolderOptions());
+            fast.awaitChange(mbox.getLastChangeID());
+            synchronized (fast) {
+                Assert.assertEquals(mbox.getLastChangeID(), fast.changeIds.get(fast.changeIds.size() - 1).intValue());
+            }
+            synchronized (slow) {
+                Assert.assertTrue(slow.changeIds.isEmpty());
+            }
+            latch.countDown();
+            slow.awaitChange(mbox.getLastChangeID());
+            synchronized (slow) {
+                Assert.assertEquals(mbox.getLastChangeID(), slow.changeIds.get(slow.changeIds.size() - 1).intValue());
+            }
+        } finally {
+            LC.zimbra_mailbox_notify_wait.setDefault(wait);
+            latch.countDown();
+            slow.unregister();
+            fast.unregister();
+        }
+    }
+
+    @Test
+    public void listeners() throws Exception {
+        final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        final List<Boolean> locked = new ArrayList<Boolean>();
+        MailboxListener listener = new MailboxListener() {
+            @Override
+            public void notify(ChangeNotification notification) {
+                if (notification.mailboxAccount.getId().equals(mbox.getAccountId())) {
+                    locked.add(mbox.lock.isWriteLockedByCurrentThread());
+                }
+            }
+        };
+        MailboxListener.register(listener);
+        try {
+            // cache invalidation can't wait, so listeners are still notified by the committing thread
+            mbox.createFolder(null, "/listeners", new Folder.FolderOptions());
+            Assert.assertEquals(1, locked.size());
+            Assert.assertTrue(locked.get(0));
+        } finally {
+            MailboxListener.unregister(listener);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+
+/**
+ * Unit test for {@link CompactMetadata}.
+ */
+public final class CompactMetadataTest {
+
+    @Before
+    public void setUp() {
+        LC.zimbra_metadata_compact_encoding.setDefault(true);
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_metadata_compact_encoding.setDefault(false);
+    }
+
+    private static Metadata sample() {
+        Metadata nested = new Metadata().put("g", "474b7021-cef6-469d-b5fb-54c96117efd1").put("r", 1).put("t", 1);
+        MetadataList list = new MetadataList().add(nested).add("text").add(-42L);
+        return new Metadata()
+            .put(Metadata.FN_FRAGMENT, "The numbers look fine to me")
+            .put(Metadata.FN_MODSEQ, 628)
+            .put(Metadata.FN_TOTAL_SIZE, 7596456L)
+            .put(Metadata.FN_COLOR, Long.MIN_VALUE)
+            .put("not-in-dictionary", "résumé 📧")
+            .put("bool", true)
+            .put("double", 1.5)
+            .put(Metadata.FN_ENTRIES, list)
+            .put(Metadata.FN_RIGHTS_MAP, new Metadata().put("g", new MetadataList().add(nested)));
+    }
+
+    @Test
+    public void roundTrip() throws ServiceException {
+        Metadata meta = sample();
+        String encoded = meta.toString();
+        Assert.assertTrue(encoded, CompactMetadata.isCompact(encoded));
+
+        Metadata decoded = new Metadata(encoded);
+        Assert.assertEquals(meta.size(), decoded.size());
+        Assert.assertEquals("The numbers look fine to me", decoded.get(Metadata.FN_FRAGMENT));
+        Assert.assertEquals(628, decoded.getInt(Metadata.FN_MODSEQ, -1));
+        Assert.assertEquals(7596456L, decoded.getLong(Metadata.FN_TOTAL_SIZE));
+        Assert.assertEquals(Long.MIN_VALUE, decoded.getLong(Metadata.FN_COLOR));
+        Assert.assertEquals("résumé 📧", decoded.get("not-in-dictionary"));
+        Assert.assertTrue(decoded.getBool("bool"));
+        Assert.assertEquals(1.5, decoded.getDouble("double"), 0.0);
+        Assert.assertFalse(decoded.containsKey("missing"));
+        Assert.assertNull(decoded.get("missing", null));
+
+        MetadataList list = decoded.getList(Metadata.FN_ENTRIES);
+        Assert.assertEquals(3, list.size());
+        Assert.assertEquals("474b7021-cef6-469d-b5fb-54c96117efd1", list.getMap(0).get("g"));
+        Assert.assertEquals(1L, list.getMap(0).getLong("r"));
+        Assert.assertEquals("text", list.get(1));
+        Assert.assertEquals(-42L, list.getLong(2));
+        Assert.assertEquals(1, decoded.getMap(Metadata.FN_RIGHTS_MAP).getList("g").size());
+
+        // same values, with the same types, as the BEncoded text would have given
+        Assert.assertEquals(new Metadata(textEncode(meta)).asMap().toString(), new Metadata(encoded).asMap().toString());
+    }
+
+    private static String textEncode(Metadata meta) {
+        LC.zimbra_metadata_compact_encoding.setDefault(false);
+        try {
+            return meta.toString();
+        } finally {
+            LC.zimbra_metadata_compact_encoding.setDefault(true);
+        }
+    }
+
+    @Test
+    public void readText() throws ServiceException {
+        String text = "d1:ai1e4:aclmd1:gld1:ei0e1:g36:474b7021-cef6-469d-b5fb-54c96117efd11:ri1e1:ti1eee2:gei0e2:iei0ee" +
+            "5:mdveri4e4:mseqi628e2:szi7596456e4:unxti744e1:vi10e2:vti5ee";
+        Metadata meta = new Metadata(text);
+        Assert.assertEquals(628L, meta.getLong(Metadata.FN_MODSEQ));
+
+        // rewritten in the compact format, without the legacy version
+        Metadata migrated = new Metadata(meta.toString());
+        Assert.assertTrue(CompactMetadata.isCompact(meta.toString()));
+        Assert.assertFalse(migrated.containsKey(Metadata.FN_MD_VERSION));
+        Assert.assertEquals(meta.asMap().toString(), migrated.asMap().toString());
+
+        // and back to text when the compact format is turned off
+        Assert.assertTrue(textEncode(migrated).startsWith("d1:ai1e4:aclmd1:gl"));
+    }
+
+    @Test
+    public void export() throws ServiceException {
+        String encoded = sample().toString();
+        Assert.assertTrue(CompactMetadata.isCompact(encoded));
+        // exports stay BEncoded, with the legacy version, whatever the setting
+        String exported = Metadata.toLegacyString(encoded);
+        Assert.assertTrue(exported, exported.startsWith("d"));
+        Assert.assertTrue(exported, exported.contains("1:vi" + Metadata.LEGACY_METADATA_VERSION + "e"));
+        Assert.assertEquals(new Metadata(encoded).asMap().toString(), new Metadata(exported).asMap().toString());
+        Assert.assertSame(exported, Metadata.toLegacyString(exported));
+    }
+
+    @Test
+    public void unchanged() throws ServiceException {
+        String encoded = sample().toString();
+        Metadata meta = new Metadata(encoded);
+        meta.get(Metadata.FN_FRAGMENT);
+        meta.getMap(Metadata.FN_RIGHTS_MAP);
+        Assert.assertSame(encoded, meta.toString());
+
+        meta.put(Metadata.FN_MODSEQ, 629);
+        Assert.assertNotSame(encoded, meta.toString());
+        Assert.assertEquals(629, new Metadata(meta.toString()).getInt(Metadata.FN_MODSEQ, -1));
+    }
+
+    @Test
+    public void keys() throws ServiceException {
+        Metadata meta = sample();
+        Metadata decoded = new Metadata(meta.toString());
+        Assert.assertEquals(new TreeSet<String>(meta.keys()), new TreeSet<String>(decoded.keys()));
+    }
+
+    @Test
+    public void empty() throws ServiceException {
+        Metadata meta = new Metadata(new Metadata().toString());
+        Assert.assertTrue(meta.isEmpty());
+        Assert.assertEquals(0, meta.size());
+    }
+
+    @Test
+    public void corrupt() {
+        String encoded = sample().toString();
+        for (String bad : new String[] {
+                encoded.substring(0, encoded.length() - 3), encoded + "AAAA", encoded.substring(0, 4) + "!!!!" }) {
+            try {
+                new Metadata(bad);
+                Assert.fail(bad);
+            } catch (MailServiceException e) {
+                Assert.assertEquals(MailServiceException.INVALID_METADATA, e.getCode());
+            }
+        }
+    }
+}
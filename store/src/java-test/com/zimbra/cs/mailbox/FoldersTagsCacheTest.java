@@ -0,0 +1,120 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.index.SortBy;
+import com.zimbra.cs.mailbox.FoldersTagsCache.FoldersTags;
+import com.zimbra.cs.mailbox.FoldersTagsCache.FoldersTagsChanges;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for {@link FoldersTagsCache}.
+ */
+public final class FoldersTagsCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void encode() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        mbox.createTag(null, "tag", (byte) 0);
+        FoldersTags ftData = new FoldersTags(mbox.getFolderList(null, SortBy.NONE), mbox.getTagList(null), 42);
+        FoldersTags decoded = FoldersTags.decode(new Metadata(ftData.encode().toString()));
+        Assert.assertEquals(42, decoded.getChangeId());
+        Assert.assertEquals(mbox.getFolderList(null, SortBy.NONE).size(), decoded.getFolders().size());
+        Assert.assertEquals(1, decoded.getTags().size());
+
+        FoldersTagsChanges changes = new FoldersTagsChanges(42, Arrays.asList(2, 7, 2));
+        FoldersTagsChanges decodedChanges = FoldersTagsChanges.decode(new Metadata(changes.encode().toString()));
+        Assert.assertEquals(42, decodedChanges.getSnapshotChangeId());
+        Assert.assertEquals(Arrays.asList(2, 7), Arrays.asList(decodedChanges.getIds().toArray()));
+    }
+
+    @Test
+    public void delta() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder renamed = mbox.createFolder(null, "/renamed", new Folder.FolderOptions());
+        Folder deleted = mbox.createFolder(null, "/deleted", new Folder.FolderOptions());
+        Tag tag = mbox.createTag(null, "tag", (byte) 0);
+
+        // take a snapshot...
+        int changeId = mbox.getLastChangeID();
+        Map<Integer, MailItem.UnderlyingData> folders = toMap(mbox.getFolderList(null, SortBy.NONE));
+        Map<Integer, MailItem.UnderlyingData> tags = toMap(mbox.getTagList(null));
+        int unchanged = folders.size() - 2;
+
+        // ...and change things after it
+        mbox.rename(null, renamed.getId(), MailItem.Type.FOLDER, "/other");
+        mbox.delete(null, deleted.getId(), MailItem.Type.FOLDER);
+        Folder created = mbox.createFolder(null, "/created", new Folder.FolderOptions());
+        mbox.delete(null, tag.getId(), MailItem.Type.TAG);
+        Tag createdTag = mbox.createTag(null, "created", (byte) 0);
+        mbox.addMessage(null, new ParsedMessage("Subject: delta\r\n\r\nbody".getBytes(), false),
+                new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+
+        int delta;
+        mbox.beginTransaction("delta", null);
+        try {
+            delta = DbMailItem.getFoldersAndTagsDelta(mbox, changeId, Collections.singleton(Mailbox.ID_FOLDER_INBOX),
+                    folders, tags);
+        } finally {
+            mbox.endTransaction(false);
+        }
+        Assert.assertTrue(delta >= 6 && delta < unchanged);
+        Assert.assertEquals("other", folders.get(renamed.getId()).name);
+        Assert.assertFalse(folders.containsKey(deleted.getId()));
+        Assert.assertEquals("created", folders.get(created.getId()).name);
+        Assert.assertEquals(1, folders.get(Mailbox.ID_FOLDER_INBOX).size);
+        Assert.assertFalse(tags.containsKey(tag.getId()));
+        Assert.assertEquals("created", tags.get(createdTag.getId()).name);
+        Assert.assertEquals(mbox.getFolderList(null, SortBy.NONE).size(), folders.size());
+    }
+
+    private static Map<Integer, MailItem.UnderlyingData> toMap(List<? extends MailItem> items) throws Exception {
+        Map<Integer, MailItem.UnderlyingData> map = new HashMap<Integer, MailItem.UnderlyingData>();
+        for (MailItem item : items) {
+            MailItem.UnderlyingData ud = new MailItem.UnderlyingData();
+            ud.deserialize(item.serializeUnderlyingData());
+            map.put(ud.id, ud);
+        }
+        return map;
+    }
+}
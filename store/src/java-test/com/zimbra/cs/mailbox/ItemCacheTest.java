@@ -0,0 +1,158 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.UUIDUtil;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for {@link ItemCache}.
+ */
+public final class ItemCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_mailbox_item_cache_max_bytes.setDefault(4 * 1024 * 1024);
+    }
+
+    private static List<Message> addMessages(Mailbox mbox, int count) throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        List<Message> msgs = new ArrayList<Message>(count);
+        for (int i = 0; i < count; i++) {
+            msgs.add(mbox.addMessage(null, new ParsedMessage(("From: sender@zimbra.com\r\nSubject: cache " + i +
+                    "\r\n\r\nbody " + i).getBytes(), false), dopt, null));
+        }
+        return msgs;
+    }
+
+    @Test
+    public void lookups() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        List<Message> msgs = addMessages(mbox, 40);
+
+        ItemCache cache = new ItemCache(mbox);
+        long bytes = 0;
+        for (Message msg : msgs) {
+            msg.mData.uuid = UUIDUtil.generateUUID(); // only some item types have them
+            cache.put(msg);
+            bytes += msg.getEstimatedSize();
+        }
+        Assert.assertEquals(40, cache.size());
+        Assert.assertEquals(bytes, cache.getBytes());
+        Assert.assertTrue(ItemCache.getMailboxBytes().get(mbox.getId()) >= bytes);
+        for (Message msg : msgs) {
+            Assert.assertSame(msg, cache.get(msg.getId()));
+            Assert.assertSame(msg, cache.get(msg.getUuid()));
+            Assert.assertTrue(cache.contains(msg));
+        }
+        Assert.assertNull(cache.get(-1));
+        Assert.assertNull(cache.get("no such uuid"));
+
+        // putting an item again replaces it and keeps the total right
+        cache.put(msgs.get(0));
+        Assert.assertEquals(40, cache.size());
+        Assert.assertEquals(bytes, cache.getBytes());
+
+        // most recently used last
+        cache.get(msgs.get(1).getId());
+        List<MailItem> values = new ArrayList<MailItem>(cache.values());
+        Assert.assertSame(msgs.get(2), values.get(0));
+        Assert.assertSame(msgs.get(0), values.get(38));
+        Assert.assertSame(msgs.get(1), values.get(39));
+
+        for (int i = 0; i < 38; i++) {
+            Assert.assertSame(msgs.get(i), cache.remove(msgs.get(i)));
+            Assert.assertNull(cache.get(msgs.get(i).getUuid()));
+        }
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(msgs.get(38).getEstimatedSize() + msgs.get(39).getEstimatedSize(), cache.getBytes());
+        Assert.assertSame(msgs.get(39), cache.get(msgs.get(39).getId()));
+        Assert.assertNull(cache.remove(msgs.get(0)));
+
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getBytes());
+        Assert.assertNull(cache.get(msgs.get(39).getId()));
+    }
+
+    @Test
+    public void evict() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        List<Message> msgs = addMessages(mbox, 10);
+
+        ItemCache cache = new ItemCache(mbox);
+        for (Message msg : msgs) {
+            cache.put(msg);
+        }
+        Assert.assertNull(cache.getEldest(10, Long.MAX_VALUE));
+        Assert.assertSame(msgs.get(0), cache.getEldest(9, Long.MAX_VALUE));
+        Assert.assertSame(msgs.get(0), cache.getEldest(10, cache.getBytes() - 1));
+
+        // nothing is evicted while a transaction uses the cache
+        cache.pin();
+        Assert.assertEquals(0, cache.evict(Long.MAX_VALUE));
+        Assert.assertEquals(10, cache.size());
+        cache.unpin();
+
+        long freed = cache.evict(1);
+        Assert.assertEquals(msgs.get(0).getEstimatedSize(), freed);
+        Assert.assertEquals(9, cache.size());
+        Assert.assertNull(cache.get(msgs.get(0).getId()));
+
+        cache.evict(Long.MAX_VALUE);
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void trimToBytes() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        // caches of the mailboxes of earlier tests, which had the same id, may not have been collected yet
+        Long others = ItemCache.getMailboxBytes().get(mbox.getId());
+        Message msg = addMessages(mbox, 1).get(0);
+        int limit = msg.getEstimatedSize() * 5;
+        LC.zimbra_mailbox_item_cache_max_bytes.setDefault(limit);
+
+        addMessages(mbox, 20);
+        long cached = ItemCache.getMailboxBytes().get(mbox.getId()) - (others == null ? 0 : others);
+        Assert.assertTrue(cached + " > " + limit, cached <= limit);
+    }
+}
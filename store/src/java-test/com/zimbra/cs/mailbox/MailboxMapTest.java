@@ -0,0 +1,114 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailboxManager.MailboxMap;
+
+public class MailboxMapTest {
+
+    @Test
+    public void putAndGet() {
+        MailboxMap map = new MailboxMap(10);
+        Assert.assertNull(map.put(1, "one"));
+        Assert.assertEquals("one", map.get(1));
+        Assert.assertEquals("one", map.put(1, "uno"));
+        Assert.assertEquals("uno", map.get(1));
+        Assert.assertEquals(1, map.size());
+        Assert.assertEquals("uno", map.remove(1));
+        Assert.assertNull(map.get(1));
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void demotion() throws Exception {
+        MailboxMap map = new MailboxMap(2);
+        map.put(1, "one");
+        map.put(2, "two");
+        map.get(1);
+        map.put(3, "three");
+
+        // least recently used entry was pushed to the soft tier but is still reachable
+        Assert.assertEquals(2, map.mHardMap.size());
+        Assert.assertTrue(map.mSoftMap.containsKey(2));
+        Assert.assertEquals("two", map.get(2));
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals(3, map.values().size());
+
+        // re-caching a demoted entry promotes it back to the hard tier
+        map.put(2, "two");
+        Assert.assertFalse(map.mSoftMap.containsKey(2));
+        Assert.assertTrue(map.mHardMap.containsKey(2));
+        Assert.assertEquals(3, map.size());
+    }
+
+    @Test
+    public void demotionSkipsLockedEntries() throws Exception {
+        final MailboxMap map = new MailboxMap(2);
+        map.put(1, "one");
+        map.put(2, "two");
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread holder = new Thread() {
+            @Override
+            public void run() {
+                map.lockFor(1).lock();
+                try {
+                    locked.countDown();
+                    done.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                } finally {
+                    map.lockFor(1).unlock();
+                }
+            }
+        };
+        holder.start();
+        try {
+            Assert.assertTrue(locked.await(10, TimeUnit.SECONDS));
+            // the least recently used entry is busy, so the next one goes instead
+            map.put(3, "three");
+            Assert.assertTrue(map.mHardMap.containsKey(1));
+            Assert.assertTrue(map.mSoftMap.containsKey(2));
+            Assert.assertEquals(2, map.mHardMap.size());
+        } finally {
+            done.countDown();
+            holder.join();
+        }
+    }
+
+    @Test
+    public void softOnly() {
+        MailboxMap map = new MailboxMap(0);
+        map.put(1, "one");
+        Assert.assertEquals("one", map.get(1));
+        Assert.assertEquals(1, map.keySet().size());
+        Assert.assertEquals("one", map.remove(1));
+        Assert.assertEquals(0, map.size());
+    }
+
+    @Test
+    public void lockStriping() {
+        MailboxMap map = new MailboxMap(10);
+        Assert.assertSame(map.lockFor(42), map.lockFor(42));
+        Assert.assertNotSame(map.lockFor(1), map.lockFor(2));
+    }
+}
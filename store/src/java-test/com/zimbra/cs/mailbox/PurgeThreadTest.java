@@ -0,0 +1,79 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.stats.Counter;
+import com.zimbra.cs.mailbox.PurgeThread.PurgeCandidate;
+import com.zimbra.cs.mailbox.PurgeThread.Throttle;
+
+/**
+ * Unit test for {@link PurgeThread}.
+ */
+public final class PurgeThreadTest {
+
+    @Test
+    public void order() {
+        PriorityQueue<PurgeCandidate> queue = new PriorityQueue<PurgeCandidate>();
+        queue.add(new PurgeCandidate(1, 0L, 0));
+        queue.add(new PurgeCandidate(2, 500L, 1));
+        queue.add(new PurgeCandidate(3, 0L, 2));
+        queue.add(new PurgeCandidate(4, 500L, 3));
+        queue.add(new PurgeCandidate(5, 1000L, 4));
+        // unfinished mailboxes go first
+        queue.add(new PurgeCandidate(6, Long.MAX_VALUE, 5));
+
+        List<Integer> ids = new ArrayList<Integer>();
+        while (!queue.isEmpty()) {
+            ids.add(queue.poll().mailboxId);
+        }
+        Assert.assertEquals(Arrays.asList(6, 5, 2, 4, 1, 3), ids);
+    }
+
+    @Test
+    public void throttle() {
+        Counter dbConn = new Counter();
+        Counter lmtpRcpt = new Counter();
+        dbConn.increment(10);
+        lmtpRcpt.increment(500);
+        Assert.assertFalse(new Throttle(dbConn, lmtpRcpt).isBusy());
+
+        // averages of 505ms and 500ms
+        dbConn.increment(1000);
+        Assert.assertTrue(new Throttle(dbConn, lmtpRcpt).isBusy());
+        lmtpRcpt.increment(LC.purge_pause_lmtp_rcpt_ms.longValue() * 10);
+        Throttle throttle = new Throttle(dbConn, lmtpRcpt);
+        long max = LC.purge_pause_db_conn_ms.longValue();
+        LC.purge_pause_db_conn_ms.setDefault(0);
+        try {
+            Assert.assertTrue(throttle.isBusy());
+        } finally {
+            LC.purge_pause_db_conn_ms.setDefault(max);
+        }
+
+        // nothing recorded since the last sample
+        Assert.assertFalse(new Throttle(new Counter(), new Counter()).isBusy());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.index.SortBy;
+import com.zimbra.cs.index.ZimbraQueryResults;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for {@link ReIndexScheduler}.
+ */
+public final class ReIndexSchedulerTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test1@zimbra.com", "secret", new HashMap<String, Object>());
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, UUID.randomUUID().toString());
+        prov.createAccount("test2@zimbra.com", "secret", attrs);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void reIndexMailboxes() throws Exception {
+        Mailbox mbox1 = getMailbox("test1@zimbra.com");
+        Mailbox mbox2 = getMailbox("test2@zimbra.com");
+        // more messages than are extracted at once, so that the pipeline has to drain and refill
+        addMessages(mbox1, 30);
+        addMessages(mbox2, 5);
+
+        ReIndexScheduler scheduler = ReIndexScheduler.getInstance();
+        Assert.assertEquals(2, scheduler.schedule(Arrays.asList(mbox1.getId(), mbox2.getId())));
+        Assert.assertEquals(0, scheduler.schedule(Arrays.asList(mbox1.getId())));
+        waitUntilDone(scheduler, mbox1);
+        waitUntilDone(scheduler, mbox2);
+
+        Assert.assertEquals(30, countHits(mbox1, "subject:reindex"));
+        Assert.assertEquals(5, countHits(mbox2, "subject:reindex"));
+        Assert.assertEquals(20, countHits(mbox1, "content:even"));
+        Assert.assertNull(mbox1.index.getReIndexStatus());
+    }
+
+    private static Mailbox getMailbox(String name) throws Exception {
+        Account account = Provisioning.getInstance().getAccountByName(name);
+        return MailboxManager.getInstance().getMailboxByAccount(account);
+    }
+
+    private static void addMessages(Mailbox mbox, int count) throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        for (int i = 0; i < count; i++) {
+            String body = i % 3 == 0 ? "odd" : "even";
+            mbox.addMessage(null, new ParsedMessage(("From: sender@zimbra.com\r\nSubject: reindex " + i +
+                    "\r\n\r\n" + body).getBytes(), false), dopt, null);
+        }
+        MailboxTestUtil.index(mbox);
+    }
+
+    private static void waitUntilDone(ReIndexScheduler scheduler, Mailbox mbox) throws InterruptedException {
+        for (int i = 0; i < 300 && scheduler.isScheduled(mbox.getId()); i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertFalse(scheduler.isScheduled(mbox.getId()));
+    }
+
+    private static int countHits(Mailbox mbox, String query) throws Exception {
+        ZimbraQueryResults results = mbox.index.search(new OperationContext(mbox), query,
+                EnumSet.of(MailItem.Type.MESSAGE), SortBy.NONE, 100);
+        try {
+            int count = 0;
+            while (results.hasNext()) {
+                results.getNext();
+                count++;
+            }
+            return count;
+        } finally {
+            results.close();
+        }
+    }
+}
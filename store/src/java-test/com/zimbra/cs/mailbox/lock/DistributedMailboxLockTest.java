@@ -0,0 +1,180 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.lock;
+
+import static org.mockito.AdditionalMatchers.and;
+import static org.mockito.AdditionalMatchers.gt;
+import static org.mockito.AdditionalMatchers.leq;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreV2;
+import org.apache.curator.framework.recipes.locks.Lease;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.cs.zookeeper.WriterIntent;
+
+public class DistributedMailboxLockTest {
+    private InterProcessSemaphoreMutex mutex;
+    private InterProcessSemaphoreV2 leases;
+    private Lease lease;
+    private Collection<Lease> all;
+    private WriterIntent writers;
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void setUp() throws Exception {
+        mutex = mock(InterProcessSemaphoreMutex.class);
+        leases = mock(InterProcessSemaphoreV2.class);
+        lease = mock(Lease.class);
+        all = Collections.singletonList(mock(Lease.class));
+        when(mutex.acquire(anyLong(), any(TimeUnit.class))).thenReturn(true);
+        when(leases.acquire(anyLong(), any(TimeUnit.class))).thenReturn(lease);
+        when(leases.acquire(anyInt(), anyLong(), any(TimeUnit.class))).thenReturn(all);
+        writers = mock(WriterIntent.class);
+        when(writers.announce()).thenReturn("/writers/1/writer-0");
+    }
+
+    @Test
+    public void readLeaseIsCached() throws Exception {
+        DistributedMailboxLock dlock = new DistributedMailboxLock(1, mutex, leases, writers, 4, 60000);
+        Assert.assertTrue(dlock.acquire(false, 1, TimeUnit.SECONDS));
+        Assert.assertTrue(dlock.acquire(false, 1, TimeUnit.SECONDS));
+        dlock.release(false);
+        dlock.release(false);
+        Assert.assertTrue(dlock.hasCachedReadLease());
+        Assert.assertTrue(dlock.acquire(false, 1, TimeUnit.SECONDS));
+        dlock.release(false);
+
+        verify(leases, times(1)).acquire(anyLong(), any(TimeUnit.class));
+        verify(leases, never()).returnLease(lease);
+        verify(mutex, never()).acquire(anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void writeDropsCachedReadLease() throws Exception {
+        DistributedMailboxLock dlock = new DistributedMailboxLock(1, mutex, leases, writers, 4, 60000);
+        Assert.assertTrue(dlock.acquire(false, 1, TimeUnit.SECONDS));
+        dlock.release(false);
+        Assert.assertTrue(dlock.hasCachedReadLease());
+
+        Assert.assertTrue(dlock.acquire(true, 1, TimeUnit.SECONDS));
+        Assert.assertFalse(dlock.hasCachedReadLease());
+        verify(leases).returnLease(lease);
+        // whatever is left of the timeout after registering as a waiting writer and taking the mutex
+        verify(leases).acquire(eq(4), and(gt(500L), leq(1000L)), eq(TimeUnit.MILLISECONDS));
+
+        dlock.release(true);
+        verify(leases).returnAll(all);
+        verify(mutex).release();
+        verify(writers).withdraw("/writers/1/writer-0");
+    }
+
+    @Test
+    public void noLingerWhileWriterWaiting() throws Exception {
+        DistributedMailboxLock dlock = new DistributedMailboxLock(1, mutex, leases, writers, 4, 60000);
+        Assert.assertTrue(dlock.acquire(false, 1, TimeUnit.SECONDS));
+        when(writers.isWriterWaiting()).thenReturn(true);
+        dlock.release(false);
+        Assert.assertFalse(dlock.hasCachedReadLease());
+        verify(leases).returnLease(lease);
+    }
+
+    @Test
+    public void cachedReadLeaseNotSharedWhileWriterWaiting() throws Exception {
+        final DistributedMailboxLock dlock = new DistributedMailboxLock(1, mutex, leases, writers, 4, 60000);
+        Assert.assertTrue(dlock.acquire(false, 1, TimeUnit.SECONDS));
+        when(writers.isWriterWaiting()).thenReturn(true);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean acquired = new AtomicBoolean();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    acquired.set(dlock.acquire(false, 10, TimeUnit.SECONDS));
+                } catch (Exception e) {
+                }
+            }
+        };
+        reader.start();
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        // the new reader doesn't join the local one while a writer waits
+        reader.join(200);
+        Assert.assertTrue(reader.isAlive());
+        dlock.release(false);
+        // ...it queues for a lease of its own once the local reader is gone
+        reader.join(10000);
+        Assert.assertTrue(acquired.get());
+        verify(leases).returnLease(lease);
+        verify(leases, times(2)).acquire(anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void timeoutWhileWriterWaiting() throws Exception {
+        DistributedMailboxLock dlock = new DistributedMailboxLock(1, mutex, leases, writers, 4, 60000);
+        Assert.assertTrue(dlock.acquire(false, 1, TimeUnit.SECONDS));
+        when(writers.isWriterWaiting()).thenReturn(true);
+        // a reader arriving while the local one still holds the lease times out rather than joining it
+        Assert.assertFalse(dlock.acquire(false, 100, TimeUnit.MILLISECONDS));
+        dlock.release(false);
+        Assert.assertFalse(dlock.hasCachedReadLease());
+    }
+
+    @Test
+    public void writeReleasesMutexWhenReadersDoNotDrain() throws Exception {
+        when(leases.acquire(anyInt(), anyLong(), any(TimeUnit.class))).thenReturn(null);
+        DistributedMailboxLock dlock = new DistributedMailboxLock(1, mutex, leases, writers, 4, 0);
+        Assert.assertFalse(dlock.acquire(true, 1, TimeUnit.SECONDS));
+        verify(mutex).release();
+    }
+
+    @Test
+    public void noLinger() throws Exception {
+        DistributedMailboxLock dlock = new DistributedMailboxLock(1, mutex, leases, writers, 4, 0);
+        Assert.assertTrue(dlock.acquire(false, 1, TimeUnit.SECONDS));
+        dlock.release(false);
+        Assert.assertFalse(dlock.hasCachedReadLease());
+        verify(leases).returnLease(lease);
+    }
+
+    @Test
+    public void exclusiveOnly() throws Exception {
+        DistributedMailboxLock dlock = new DistributedMailboxLock(1, mutex, null, null, 4, 60000);
+        Assert.assertFalse(dlock.isReadWrite());
+        Assert.assertTrue(dlock.acquire(false, 1, TimeUnit.SECONDS));
+        dlock.release(false);
+        verify(mutex).acquire(1, TimeUnit.SECONDS);
+        verify(mutex).release();
+    }
+}
@@ -16,8 +16,13 @@
  */
 package com.zimbra.cs.mime;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.document.Document;
 import org.junit.Assert;
@@ -25,6 +30,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.google.common.io.ByteStreams;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.L10nUtil;
 import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
@@ -33,6 +39,9 @@ import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.index.IndexDocument;
 import com.zimbra.cs.index.LuceneFields;
 import com.zimbra.cs.index.analysis.RFC822AddressTokenStream;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mime.handler.TextPlainHandler;
+import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
  * Unit test for {@link ParsedMessage}.
@@ -42,9 +51,34 @@ import com.zimbra.cs.index.analysis.RFC822AddressTokenStream;
 public final class ParsedMessageTest {
 
     @BeforeClass
-    public static void init() {
-        System.setProperty("log4j.configuration", "log4j-test.properties");
-        Provisioning.setInstance(new MockProvisioning());
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        MockProvisioning prov = new MockProvisioning();
+        MockMimeTypeInfo slow = new MockMimeTypeInfo();
+        slow.setMimeTypes("application/x-slow");
+        slow.setHandlerClass(SlowHandler.class.getName());
+        slow.setIndexingEnabled(true);
+        prov.addMimeType("application/x-slow", slow);
+        Provisioning.setInstance(prov);
+    }
+
+    /** Extracts like {@code text/plain}, once {@link #release} is counted down. */
+    public static final class SlowHandler extends TextPlainHandler {
+        static volatile CountDownLatch release = new CountDownLatch(0);
+        // the thread that extracted each content
+        static final Map<String, Thread> THREADS = new ConcurrentHashMap<String, Thread>();
+
+        @Override
+        protected String getContentImpl() throws MimeHandlerException {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new MimeHandlerException(e);
+            }
+            String content = super.getContentImpl();
+            THREADS.put(content.trim(), Thread.currentThread());
+            return content;
+        }
     }
 
     /**
@@ -152,4 +186,121 @@ public final class ParsedMessageTest {
         pm = new ParsedMessage(raw, false);
         Assert.assertFalse("normal message fragment", pm.getFragment(null).equals(msgWasEncrypted));
     }
+
+    private static String multipart(String... attachments) {
+        StringBuilder raw = new StringBuilder(
+                "From: sender@zimbra.com\r\n" +
+                "To: rcpt@zimbra.com\r\n" +
+                "Subject: parts\r\n" +
+                "Content-Type: multipart/mixed; boundary=BOUNDARY\r\n" +
+                "\r\n" +
+                "--BOUNDARY\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "\r\n" +
+                "body text\r\n");
+        for (int i = 0; i < attachments.length; i += 2) {
+            raw.append("--BOUNDARY\r\n")
+                    .append("Content-Type: ").append(attachments[i]).append("\r\n")
+                    .append("Content-Disposition: attachment; filename=file").append(i / 2).append(".txt\r\n")
+                    .append("\r\n")
+                    .append(attachments[i + 1]).append("\r\n");
+        }
+        return raw.append("--BOUNDARY--\r\n").toString();
+    }
+
+    private static List<String> getPartNames(List<IndexDocument> docs) {
+        List<String> names = new ArrayList<String>();
+        for (IndexDocument doc : docs) {
+            names.add(doc.toDocument().get(LuceneFields.L_PARTNAME));
+        }
+        return names;
+    }
+
+    @Test
+    public void attachments() throws Exception {
+        ParsedMessage pm = new ParsedMessage(multipart("text/plain", "first attachment", "text/html",
+                "<html><body>second attachment</body></html>", "text/plain", "third attachment").getBytes(), true);
+        Assert.assertEquals("body text", pm.getFragment(null));
+        List<IndexDocument> docs = pm.getLuceneDocuments();
+        // the parts are added in order whichever finishes first, then the toplevel document
+        Assert.assertEquals(Arrays.asList("1", "2", "3", "4", LuceneFields.L_PARTNAME_TOP), getPartNames(docs));
+        String content = docs.get(4).toDocument().getFieldable(LuceneFields.L_CONTENT).stringValue();
+        Assert.assertTrue(content, content.contains("body text first attachment second attachment third attachment"));
+    }
+
+    @Test
+    public void extractionTimeout() throws Exception {
+        long timeout = LC.zimbra_mime_extract_part_timeout.longValue();
+        long timeouts = ZimbraPerf.COUNTER_MIME_EXTRACT_TIMEOUTS.getCount();
+        LC.zimbra_mime_extract_part_timeout.setDefault(200);
+        SlowHandler.release = new CountDownLatch(1);
+        try {
+            ParsedMessage pm = new ParsedMessage(multipart("application/x-slow", "slow attachment", "text/plain",
+                    "fast attachment").getBytes(), true);
+            List<IndexDocument> docs = pm.getLuceneDocuments();
+            // the slow part is indexed without its content
+            Assert.assertEquals(Arrays.asList("1", "2", "3", LuceneFields.L_PARTNAME_TOP), getPartNames(docs));
+            Assert.assertEquals(timeouts + 1, ZimbraPerf.COUNTER_MIME_EXTRACT_TIMEOUTS.getCount());
+            Assert.assertFalse(pm.hasTemporaryAnalysisFailure());
+            Assert.assertEquals("file0.txt", docs.get(1).toDocument().get(LuceneFields.L_FILENAME));
+            String content = docs.get(3).toDocument().getFieldable(LuceneFields.L_CONTENT).stringValue();
+            Assert.assertTrue(content, content.contains("fast attachment"));
+            Assert.assertFalse(content, content.contains("slow attachment"));
+        } finally {
+            SlowHandler.release.countDown();
+            LC.zimbra_mime_extract_part_timeout.setDefault(timeout);
+        }
+    }
+
+    @Test
+    public void extractionQueued() throws Exception {
+        long timeout = LC.zimbra_mime_extract_part_timeout.longValue();
+        long timeouts = ZimbraPerf.COUNTER_MIME_EXTRACT_TIMEOUTS.getCount();
+        int threads = LC.zimbra_mime_extract_threads.intValue();
+        LC.zimbra_mime_extract_part_timeout.setDefault(200);
+        SlowHandler.release = new CountDownLatch(1);
+        try {
+            // more slow parts than extraction threads, and a fast one queued behind them
+            List<String> attachments = new ArrayList<String>();
+            for (int i = 0; i < threads; i++) {
+                attachments.add("application/x-slow");
+                attachments.add("slow attachment");
+            }
+            attachments.add("text/plain");
+            attachments.add("fast attachment");
+            ParsedMessage pm = new ParsedMessage(multipart(attachments.toArray(new String[0])).getBytes(), true);
+            List<IndexDocument> docs = pm.getLuceneDocuments();
+            // only the slow parts timed out; the fast one wasn't dropped for waiting its turn
+            Assert.assertEquals(timeouts + threads, ZimbraPerf.COUNTER_MIME_EXTRACT_TIMEOUTS.getCount());
+            String content = docs.get(docs.size() - 1).toDocument().getFieldable(LuceneFields.L_CONTENT)
+                    .stringValue();
+            Assert.assertTrue(content, content.contains("fast attachment"));
+            Assert.assertFalse(content, content.contains("slow attachment"));
+
+            // the next message doesn't wait for the abandoned extractions either
+            timeouts = ZimbraPerf.COUNTER_MIME_EXTRACT_TIMEOUTS.getCount();
+            pm = new ParsedMessage(multipart("text/plain", "first attachment", "text/plain", "second attachment")
+                    .getBytes(), true);
+            docs = pm.getLuceneDocuments();
+            Assert.assertEquals(timeouts, ZimbraPerf.COUNTER_MIME_EXTRACT_TIMEOUTS.getCount());
+            content = docs.get(docs.size() - 1).toDocument().getFieldable(LuceneFields.L_CONTENT).stringValue();
+            Assert.assertTrue(content, content.contains("first attachment second attachment"));
+        } finally {
+            SlowHandler.release.countDown();
+            LC.zimbra_mime_extract_part_timeout.setDefault(timeout);
+        }
+    }
+
+    @Test
+    public void singlePart() throws Exception {
+        String raw = "From: sender@zimbra.com\r\n" +
+                "To: rcpt@zimbra.com\r\n" +
+                "Subject: single part\r\n" +
+                "Content-Type: application/x-slow\r\n" +
+                "\r\n" +
+                "single part\r\n";
+        new ParsedMessage(raw.getBytes(), true).getLuceneDocuments();
+        // nothing to extract in parallel, so it isn't handed to another thread
+        Assert.assertSame(Thread.currentThread(), SlowHandler.THREADS.get("single part"));
+    }
 }
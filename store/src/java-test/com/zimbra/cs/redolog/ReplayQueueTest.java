@@ -0,0 +1,183 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.mailbox.MailboxOperation;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+/**
+ * Unit test for {@link ReplayQueue}.
+ */
+public final class ReplayQueueTest {
+
+    private static final ReplayQueue.Player PLAYER = new ReplayQueue.Player() {
+        @Override
+        public void play(RedoableOp op) throws Exception {
+            op.redo();
+        }
+    };
+
+    private static class TestOp extends RedoableOp {
+        TestOp(int mboxId) {
+            super(MailboxOperation.Preview, null);
+            setMailboxId(mboxId);
+        }
+
+        @Override
+        public void redo() throws Exception {
+        }
+
+        @Override
+        protected String getPrintableData() {
+            return null;
+        }
+
+        @Override
+        protected void serializeData(RedoLogOutput out) throws IOException {
+        }
+
+        @Override
+        protected void deserializeData(RedoLogInput in) throws IOException {
+        }
+    }
+
+    @Test
+    public void mailboxOrder() throws Exception {
+        final Map<Integer, List<Integer>> played = new HashMap<Integer, List<Integer>>();
+        for (int mboxId = 1; mboxId <= 20; mboxId++) {
+            played.put(mboxId, Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        ReplayQueue queue = new ReplayQueue("ReplayQueueTest", 4, 10, PLAYER);
+        try {
+            for (int seq = 0; seq < 100; seq++) {
+                for (int mboxId = 1; mboxId <= 20; mboxId++) {
+                    final List<Integer> list = played.get(mboxId);
+                    final int n = seq;
+                    queue.submit(new TestOp(mboxId) {
+                        @Override
+                        public void redo() {
+                            list.add(n);
+                        }
+                    });
+                }
+            }
+            queue.drain();
+            Assert.assertEquals(2000, queue.getPlayedCount());
+            Assert.assertEquals(20, queue.getMailboxCount());
+        } finally {
+            queue.shutdown();
+        }
+        for (List<Integer> list : played.values()) {
+            Assert.assertEquals(100, list.size());
+            for (int seq = 0; seq < 100; seq++) {
+                Assert.assertEquals(seq, list.get(seq).intValue());
+            }
+        }
+    }
+
+    @Test
+    public void concurrentMailboxes() throws Exception {
+        // each op waits for the other one, so this only finishes if the two mailboxes play at the same time
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final AtomicBoolean met = new AtomicBoolean(true);
+        ReplayQueue queue = new ReplayQueue("ReplayQueueTest", 2, 0, PLAYER);
+        try {
+            for (int mboxId = 1; mboxId <= 2; mboxId++) {
+                queue.submit(new TestOp(mboxId) {
+                    @Override
+                    public void redo() throws Exception {
+                        try {
+                            barrier.await(5, TimeUnit.SECONDS);
+                        } catch (Exception e) {
+                            met.set(false);
+                        }
+                    }
+                });
+            }
+            queue.drain();
+        } finally {
+            queue.shutdown();
+        }
+        Assert.assertTrue(met.get());
+    }
+
+    @Test
+    public void crossMailboxBarrier() throws Exception {
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicBoolean doneBeforeBarrier = new AtomicBoolean(false);
+        ReplayQueue queue = new ReplayQueue("ReplayQueueTest", 2, 0, PLAYER);
+        try {
+            queue.submit(new TestOp(1) {
+                @Override
+                public void redo() throws Exception {
+                    Thread.sleep(100);
+                    done.set(true);
+                }
+            });
+            queue.submit(new TestOp(RedoableOp.MAILBOX_ID_ALL) {
+                @Override
+                public void redo() {
+                    doneBeforeBarrier.set(done.get());
+                }
+            });
+            Assert.assertTrue(doneBeforeBarrier.get());
+            Assert.assertEquals(2, queue.getPlayedCount());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void error() throws Exception {
+        ReplayQueue queue = new ReplayQueue("ReplayQueueTest", 2, 0, PLAYER);
+        try {
+            queue.submit(new TestOp(1) {
+                @Override
+                public void redo() throws Exception {
+                    throw new IOException("failed");
+                }
+            });
+            try {
+                queue.drain();
+                Assert.fail();
+            } catch (ServiceException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+            try {
+                queue.submit(new TestOp(2));
+                Assert.fail();
+            } catch (ServiceException expected) {
+            }
+        } finally {
+            queue.shutdown();
+        }
+    }
+}
@@ -2,7 +2,11 @@ package com.zimbra.cs.redolog.logger;
 
 import com.zimbra.cs.mailbox.MailboxOperation;
 import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.CommitId;
+import com.zimbra.cs.redolog.RedoCommitCallback;
 import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.RolloverManager;
+import com.zimbra.cs.redolog.op.CommitTxn;
 import com.zimbra.cs.redolog.op.RedoableOp;
 import junit.framework.Assert;
 import org.easymock.EasyMock;
@@ -13,7 +17,12 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class  FileLogWriterTest {
     @Rule public TemporaryFolder folder = new TemporaryFolder();
@@ -71,4 +80,84 @@ public class  FileLogWriterTest {
     public void logBeforeOpen() throws Exception {
         logWriter.log(null, null, false);
     }
+
+    @Test
+    public void groupCommit() throws Exception {
+        File logfile = folder.newFile("grouplog");
+        final FileLogWriter groupWriter = new FileLogWriter(mockRedoLogManager, logfile, 10, true);
+        groupWriter.open();
+
+        final RedoableOp op = EasyMock.createMockBuilder(RedoableOp.class)
+                                  .withConstructor(MailboxOperation.Preview)
+                                  .createMock();
+        final int threads = 8;
+        final int perThread = 50;
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> loggers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            loggers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            groupWriter.log(op, new ByteArrayInputStream("some bytes".getBytes()), j % 2 == 0);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : loggers) {
+            t.start();
+        }
+        for (Thread t : loggers) {
+            t.join();
+        }
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+
+        // asynchronous records are only guaranteed to be written after a flush
+        groupWriter.flush();
+        Assert.assertEquals("file size incorrect.",
+                            FileHeader.HEADER_LEN + 10 * threads * perThread, groupWriter.getSize());
+        groupWriter.close();
+        Assert.assertEquals(FileHeader.HEADER_LEN + 10 * threads * perThread, logfile.length());
+    }
+
+    @Test
+    public void groupCommitCallback() throws Exception {
+        RolloverManager rolloverManager = EasyMock.createNiceMock(RolloverManager.class);
+        RedoLogManager redoLogManager = EasyMock.createNiceMock(RedoLogManager.class);
+        EasyMock.expect(redoLogManager.getRolloverManager()).andStubReturn(rolloverManager);
+        EasyMock.replay(rolloverManager, redoLogManager);
+        FileLogWriter groupWriter = new FileLogWriter(redoLogManager, folder.newFile("grouplog"), 10, true);
+        groupWriter.open();
+        try {
+            RedoableOp op = EasyMock.createMockBuilder(RedoableOp.class)
+                                .withConstructor(MailboxOperation.Preview)
+                                .createMock();
+            final CountDownLatch committed = new CountDownLatch(1);
+            op.setCommitCallback(new RedoCommitCallback() {
+                @Override
+                public void callback(CommitId cid) {
+                    committed.countDown();
+                }
+            });
+            // commits are logged asynchronously; the callback must run without any later synchronous write
+            groupWriter.log(new CommitTxn(op), new ByteArrayInputStream("some bytes".getBytes()), false);
+            Assert.assertTrue("commit callback not run", committed.await(10, TimeUnit.SECONDS));
+        } finally {
+            groupWriter.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void groupCommitAfterClose() throws Exception {
+        FileLogWriter groupWriter = new FileLogWriter(mockRedoLogManager, folder.newFile("grouplog"), 10, true);
+        groupWriter.open();
+        groupWriter.close();
+        groupWriter.log(null, new ByteArrayInputStream("some bytes".getBytes()), true);
+    }
 }
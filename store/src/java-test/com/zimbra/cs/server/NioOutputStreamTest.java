@@ -16,12 +16,21 @@
  */
 package com.zimbra.cs.server;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.channels.FileChannel;
+
+import javax.net.ssl.SSLContext;
+
 import junit.framework.Assert;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.FileRegion;
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.DummySession;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.ssl.SslFilter;
 import org.junit.Test;
 
 /**
@@ -82,6 +91,41 @@ public final class NioOutputStreamTest {
         out.close();
     }
 
+    @Test
+    public void writeFileRegion() throws Exception {
+        File file = File.createTempFile("nio", ".txt");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write("0123456789".getBytes());
+            fos.close();
+
+            DummySession session = new DummySession();
+            TestIoHandler handler = new TestIoHandler();
+            session.setHandler(handler);
+            NioOutputStream out = new NioOutputStream(session, 10, Integer.MAX_VALUE, Integer.MAX_VALUE);
+            Assert.assertTrue(out.isFileRegionSupported());
+            out.write("{6}\r\n");
+            FileChannel channel = new FileInputStream(file).getChannel();
+            out.write(channel, 2, 6);
+            out.write(")");
+            out.flush();
+            Assert.assertEquals(3, handler.getWriteCount());
+            Assert.assertEquals("{6}\r\n<2+6>)", handler.toString());
+            Assert.assertFalse(channel.isOpen());
+            out.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void fileRegionNotSupportedWithTls() throws Exception {
+        DummySession session = new DummySession();
+        session.getFilterChain().addFirst("ssl", new SslFilter(SSLContext.getDefault()));
+        NioOutputStream out = new NioOutputStream(session, 10, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        Assert.assertFalse(out.isFileRegionSupported());
+    }
+
     private static final class TestIoHandler extends IoHandlerAdapter {
         private int writes = 0;
         private StringBuilder out = new StringBuilder();
@@ -89,6 +133,13 @@ public final class NioOutputStreamTest {
         @Override
         public void messageSent(IoSession session, Object message) {
             writes++;
+            if (message instanceof FileRegion) {
+                // the region has been consumed and its channel closed by the time it is reported as sent
+                FileRegion region = (FileRegion) message;
+                long written = region.getWrittenBytes();
+                out.append("<").append(region.getPosition() - written).append('+').append(written).append('>');
+                return;
+            }
             IoBuffer buf = (IoBuffer) message;
             while (buf.hasRemaining()) {
                 out.append((char) buf.get());
@@ -0,0 +1,122 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.session;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Unit test for {@link AllAccountsWaitSet}.
+ */
+@SuppressWarnings("deprecation")
+public final class AllAccountsWaitSetTest {
+
+    private static final Set<MailItem.Type> TYPES = EnumSet.of(MailItem.Type.MESSAGE);
+
+    private static void commit(String commitId, String accountId, int changeId, Integer... folderIds) {
+        AllAccountsWaitSet.mailboxChangeCommitted(commitId, accountId, TYPES, changeId,
+                new HashSet<Integer>(Arrays.asList(folderIds)));
+    }
+
+    private static WaitSetCallback newCallback() {
+        WaitSetCallback cb = new WaitSetCallback();
+        cb.completedLatch = new CountDownLatch(1);
+        return cb;
+    }
+
+    @Test
+    public void summaries() throws Exception {
+        AllAccountsWaitSet ws = AllAccountsWaitSet.create("owner", "summaries", TYPES);
+        try {
+            commit("c1", "a", 10, 2);
+            commit("c2", "b", 3, 7);
+            commit("c3", "a", 12, 5);
+            // not interested in these
+            AllAccountsWaitSet.mailboxChangeCommitted("c4", "c", EnumSet.of(MailItem.Type.CONTACT), 1,
+                    Collections.<Integer>emptySet());
+            Assert.assertEquals(2, AllAccountsWaitSet.getPendingAccountCount());
+            Assert.assertTrue(AllAccountsWaitSet.getPendingSize() > 0);
+
+            WaitSetCallback cb = newCallback();
+            ws.doWait(cb, "0", null, null);
+            Assert.assertTrue(cb.completed);
+            Assert.assertEquals("c3", cb.seqNo);
+            Assert.assertEquals(new HashSet<String>(Arrays.asList("a", "b")), cb.signalledAccounts);
+            Assert.assertEquals(12, cb.changeSummaries.get("a").getChangeId());
+            Assert.assertEquals(new HashSet<Integer>(Arrays.asList(2, 5)), cb.changeSummaries.get("a").getFolderIds());
+            Assert.assertEquals(3, cb.changeSummaries.get("b").getChangeId());
+            Assert.assertEquals(0, AllAccountsWaitSet.getPendingAccountCount());
+
+            // acknowledging c3 drops what was sent
+            commit("c5", "b", 4);
+            cb = newCallback();
+            ws.doWait(cb, "c3", null, null);
+            Assert.assertTrue(cb.completed);
+            Assert.assertEquals("c5", cb.seqNo);
+            Assert.assertEquals(Collections.singleton("b"), cb.signalledAccounts);
+            Assert.assertEquals(4, cb.changeSummaries.get("b").getChangeId());
+        } finally {
+            ws.destroy();
+        }
+    }
+
+    @Test
+    public void batched() throws Exception {
+        long delay = LC.zimbra_waitset_all_accounts_batch_delay_ms.longValue();
+        LC.zimbra_waitset_all_accounts_batch_delay_ms.setDefault(500);
+        AllAccountsWaitSet ws = AllAccountsWaitSet.create("owner", "batched", TYPES);
+        try {
+            WaitSetCallback cb = newCallback();
+            ws.doWait(cb, "0", null, null);
+            Assert.assertFalse(cb.completed);
+
+            // committed on other threads, handed over together once the batch delay is up
+            Thread[] threads = new Thread[5];
+            for (int i = 0; i < threads.length; i++) {
+                final int n = i;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        commit("c" + n, "acct" + n, n + 1, n);
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertTrue(cb.completedLatch.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(5, cb.signalledAccounts.size());
+            Assert.assertEquals(5, cb.changeSummaries.size());
+            Assert.assertEquals(3, cb.changeSummaries.get("acct2").getChangeId());
+        } finally {
+            LC.zimbra_waitset_all_accounts_batch_delay_ms.setDefault(delay);
+            ws.destroy();
+        }
+    }
+}
@@ -26,6 +26,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPOutputStream;
 
 import org.junit.After;
@@ -122,6 +123,52 @@ public class FileDescriptorCacheTest {
         assertEquals(2, fdc.getSize());
     }
 
+    @Test
+    public void concurrentReads() throws Exception {
+        FileCache<String> uc = FileCache.Builder.createWithStringKey(uncompressedDir, false).build();
+        final FileDescriptorCache fdc = new FileDescriptorCache(uc);
+        fdc.setMaxSize(3);
+
+        final List<File> files = Lists.newArrayList();
+        for (int i = 0; i < 8; i++) {
+            File file = File.createTempFile(NAME_PREFIX, ".tmp");
+            tempFiles.add(file);
+            Files.write(("content " + i).getBytes(), file);
+            files.add(file);
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = Lists.newArrayList();
+        for (int t = 0; t < 8; t++) {
+            final int offset = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        byte[] buf = new byte[9];
+                        for (int i = 0; i < 500; i++) {
+                            int n = (i + offset) % files.size();
+                            File file = files.get(n);
+                            int len = fdc.read(file.getPath(), file.length(), 0, buf, 0, buf.length);
+                            assertEquals("content " + n, new String(buf, 0, len));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue(fdc.getSize() <= 3);
+    }
+
     private void write(File file, String content)
     throws IOException {
         OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
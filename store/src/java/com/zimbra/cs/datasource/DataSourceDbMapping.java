@@ -48,6 +48,10 @@ public class DataSourceDbMapping {
         DbDataSource.addMapping(ds, item);
     }
 
+    public void addMappings(DataSource ds, Collection<DataSourceItem> items) throws ServiceException {
+        DbDataSource.addMappings(ds, items);
+    }
+
     public void deleteMapping(DataSource ds, int itemId) throws ServiceException {
         DbDataSource.deleteMapping(ds, itemId);
     }
@@ -16,9 +16,7 @@
  */
 package com.zimbra.cs.datasource;
 
-import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
 import static java.util.Collections.newSetFromMap;
-import static java.util.concurrent.Executors.newCachedThreadPool;
 
 import java.io.File;
 import java.lang.reflect.Constructor;
@@ -29,7 +27,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 
 import javax.mail.MessagingException;
 import javax.mail.Session;
@@ -93,7 +90,8 @@ public class DataSourceManager {
 
     private final DataSourceConfig config;
 
-    private static final ExecutorService executor = newCachedThreadPool(newDaemonThreadFactory("ImportData"));
+    private static final ImportScheduler scheduler =
+        new ImportScheduler("ImportData", LC.data_source_import_threads.intValue());
 
     private static <E> Set<E> newConcurrentHashSet() {
         return newSetFromMap(new ConcurrentHashMap<E, Boolean>());
@@ -335,7 +333,7 @@ public class DataSourceManager {
     public static void asyncImportData(final DataSource ds) {
         ZimbraLog.datasource.debug("Requesting async import for DataSource %s", ds.getId());
 
-        executor.submit(new Runnable() {
+        scheduler.submit(ds.getAccountId(), new Runnable() {
             @Override
             public void run() {
                 try {
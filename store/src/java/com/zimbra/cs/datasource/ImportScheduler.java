@@ -0,0 +1,89 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.datasource;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.util.KeyedSerialExecutor;
+
+/**
+ * Runs data source imports on a fixed number of threads, sharing them fairly between accounts.  An account's imports
+ * run one at a time, in the order they were submitted.  Accounts with imports waiting take turns: once one of an
+ * account's imports is done, its next one goes to the back of the line, behind the other accounts, so a user with
+ * many data sources can't hold up everyone else.
+ */
+final class ImportScheduler {
+
+    private final ExecutorService executor;
+    private final KeyedSerialExecutor<String, Runnable> pending;
+
+    /**
+     * @param name prefix of the thread names
+     * @param numThreads maximum number of imports running at the same time
+     */
+    ImportScheduler(String name, int numThreads) {
+        executor = Executors.newFixedThreadPool(Math.max(numThreads, 1),
+                new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build());
+        pending = new KeyedSerialExecutor<String, Runnable>(executor, 1,
+                new KeyedSerialExecutor.Handler<String, Runnable>() {
+            @Override
+            public void handle(String accountId, List<Runnable> tasks) {
+                for (Runnable task : tasks) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        ZimbraLog.datasource.warn("Import for account %s failed", accountId, e);
+                    }
+                }
+            }
+
+            @Override
+            public void rejected(String accountId, List<Runnable> tasks) {
+                ZimbraLog.datasource.warn("Dropped %d imports for account %s after shutdown", tasks.size(),
+                        accountId);
+            }
+        });
+    }
+
+    void submit(String accountId, Runnable task) {
+        pending.submit(accountId, task);
+    }
+
+    /** Returns the number of imports submitted that haven't finished yet. */
+    int getQueuedCount() {
+        return pending.getPendingCount();
+    }
+
+    /** Returns the number of accounts with imports that haven't finished yet. */
+    int getAccountCount() {
+        return pending.getKeyCount();
+    }
+
+    void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
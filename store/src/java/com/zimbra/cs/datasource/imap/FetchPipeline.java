@@ -0,0 +1,192 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.datasource.imap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Hands fetched messages to another thread to be added to the mailbox, so that the next messages are read from the
+ * server while the previous ones are parsed and added.  Messages are handled in the order they were put, in batches
+ * of whatever has arrived in the meantime.  The queue is bounded: when it's full, {@link #put} waits, which stops
+ * reading from the server until the mailbox catches up.
+ * <p>
+ * If handling a batch fails, the rest of the queue is discarded and the next call to {@link #put} or
+ * {@link #finish} throws.
+ */
+final class FetchPipeline<T> {
+
+    interface Handler<T> {
+        void handle(List<T> batch) throws Exception;
+
+        /** Releases an item that won't be handled. */
+        void discard(T item);
+    }
+
+    // One handling thread per thread fetching messages: each import, and each of the folder connections it may
+    // open.  Pipelines started while all of them are busy wait for a thread; their fetchers stop once they're full.
+    private static final ThreadPoolExecutor HANDLERS;
+    static {
+        int threads = Math.max(LC.data_source_import_threads.intValue(), 1) *
+                Math.max(LC.data_source_imap_folder_connections.intValue(), 1);
+        HANDLERS = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("ImapImport-%d").setDaemon(true).build());
+        HANDLERS.allowCoreThreadTimeOut(true);
+    }
+
+    private final Handler<T> handler;
+    private final int capacity;
+    private final int batchSize;
+    private final Deque<T> queue = new ArrayDeque<T>();
+    private boolean running = false;
+    private Throwable error;
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param capacity maximum number of items waiting to be handled
+     * @param batchSize maximum number of items handed to the handler at once
+     */
+    FetchPipeline(Handler<T> handler, int capacity, int batchSize) {
+        this.handler = handler;
+        this.capacity = Math.max(capacity, 1);
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    void put(T item) throws ServiceException {
+        boolean start;
+        synchronized (this) {
+            boolean interrupted = false;
+            while (queue.size() >= capacity && error == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                handler.discard(item);
+                checkError();
+            }
+            queue.add(item);
+            start = !running;
+            running = true;
+        }
+        if (start) {
+            HANDLERS.execute(drainer);
+        }
+    }
+
+    /**
+     * Waits until everything put so far has been handled.
+     *
+     * @throws ServiceException if handling any of it failed
+     */
+    synchronized void finish() throws ServiceException {
+        awaitIdle();
+        checkError();
+    }
+
+    /**
+     * Discards everything that hasn't been handled yet, and waits for the batch being handled, if any.
+     */
+    synchronized void abort() {
+        for (T item : queue) {
+            handler.discard(item);
+        }
+        queue.clear();
+        awaitIdle();
+    }
+
+    private void awaitIdle() {
+        assert Thread.holdsLock(this);
+        boolean interrupted = false;
+        while (running) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkError() throws ServiceException {
+        assert Thread.holdsLock(this);
+        if (error instanceof ServiceException) {
+            throw (ServiceException) error;
+        } else if (error != null) {
+            throw ServiceException.FAILURE("Adding fetched messages failed", error);
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                List<T> batch;
+                synchronized (this) {
+                    if (error != null) {
+                        for (T item : queue) {
+                            handler.discard(item);
+                        }
+                        queue.clear();
+                    }
+                    if (queue.isEmpty()) {
+                        running = false;
+                        notifyAll();
+                        return;
+                    }
+                    batch = new ArrayList<T>(Math.min(queue.size(), batchSize));
+                    while (!queue.isEmpty() && batch.size() < batchSize) {
+                        batch.add(queue.poll());
+                    }
+                    notifyAll(); // room for more
+                }
+                try {
+                    handler.handle(batch);
+                } catch (Throwable t) {
+                    synchronized (this) {
+                        if (error == null) {
+                            error = t;
+                        }
+                    }
+                }
+            }
+        } finally {
+            ZimbraLog.clearContext();
+        }
+    }
+}
@@ -26,6 +26,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -38,6 +39,7 @@ import com.zimbra.common.util.Log;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.DataSource;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.datasource.DataSourceDbMapping;
 import com.zimbra.cs.datasource.DataSourceManager;
 import com.zimbra.cs.datasource.IOExceptionHandler;
 import com.zimbra.cs.datasource.MessageContent;
@@ -69,8 +71,10 @@ import com.zimbra.cs.util.Zimbra;
 
 class ImapFolderSync {
     private final ImapSync imapSync;
-    private final ImapConnection connection;
+    private ImapConnection connection;
     private ImapConnection refetchConnection;
+    private FetchPipeline<MessageData> pipeline;
+    private final List<ImapMessage> pendingTrackers = new ArrayList<ImapMessage>();
     private final DataSource ds;
     private final Mailbox mailbox;
     private final Statistics stats = new Statistics();
@@ -93,6 +97,11 @@ class ImapFolderSync {
     private static final Log LOG = ZimbraLog.datasource;
 
     private static final int FETCH_SIZE = LC.data_source_fetch_size.intValue();
+    private static final int FETCH_QUEUE_SIZE = LC.data_source_imap_fetch_queue_size.intValue();
+    private static final int ADD_BATCH_SIZE = LC.data_source_imap_add_batch_size.intValue();
+
+    // fetches flags, date and content of new messages in one round trip
+    private static final String FETCH_NEW = "(FLAGS INTERNALDATE BODY.PEEK[])";
 
     // Max number of errors before we generate report and skip item
     private static final int MAX_ITEM_ERRORS = 3;
@@ -118,6 +127,16 @@ class ImapFolderSync {
         this.fullSync = imapSync.isFullSync();
     }
 
+    /*
+     * Moves the rest of this folder's sync to another connection, so that it can run alongside other folders.
+     */
+    void setConnection(ImapConnection connection) {
+        this.connection = connection;
+        if (remoteFolder != null) {
+            remoteFolder = new RemoteFolder(connection, remoteFolder.getPath());
+        }
+    }
+
     /*
      * Synchronizes existing remote IMAP folder. Returns tracker if successful
      * otherwise returns null if local folder deleted or is not eligible for
@@ -771,29 +790,40 @@ class ImapFolderSync {
             imapSync.getInboxFolderSync() : null;
         removeSkippedUids(uids);
         Iterator<Long> it = uids.iterator();
-        while (it.hasNext()) {
-            imapSync.checkIsEnabled();
-            fetchMessages(nextFetchSeq(it));
-            // Send pending messages if any...
-            ds.checkPendingMessages();
-            long time = System.currentTimeMillis();
-            long freq = ds.getSyncFrequency();
-            if (maxUid > 0 && freq > 0 && time - lastCheckTime > freq) {
-                lastCheckTime = time;
-                if (inbox != null && inbox.hasNewRemoteMessages()) {
-                    // If there are new INBOX messages then go and fetch them
-                    // before continuing to fetch messages from current folder.
-                    remoteFolder.debug("Found new INBOX messages during sync");
-                    inbox.fetchNewMessages();
-                    mailboxInfo = remoteFolder.select();
-                }
-                // Check for newly arrived messages...
-                fetchNewMessages();
-                if (refetchConnection != null) {
-                    refetchConnection.close();
+        boolean fetched = false;
+        try {
+            while (it.hasNext()) {
+                imapSync.checkIsEnabled();
+                fetchMessages(nextFetchSeq(it));
+                // Send pending messages if any...
+                ds.checkPendingMessages();
+                long time = System.currentTimeMillis();
+                long freq = ds.getSyncFrequency();
+                if (maxUid > 0 && freq > 0 && time - lastCheckTime > freq) {
+                    lastCheckTime = time;
+                    getPipeline().finish();
+                    if (inbox != null && inbox.hasNewRemoteMessages()) {
+                        // If there are new INBOX messages then go and fetch them
+                        // before continuing to fetch messages from current folder.
+                        remoteFolder.debug("Found new INBOX messages during sync");
+                        inbox.fetchNewMessages();
+                        mailboxInfo = remoteFolder.select();
+                    }
+                    // Check for newly arrived messages...
+                    fetchNewMessages();
+                    if (refetchConnection != null) {
+                        refetchConnection.close();
+                    }
                 }
             }
+            fetched = true;
+        } finally {
+            if (!fetched) {
+                // don't leave messages being added behind us while the error is handled
+                getPipeline().abort();
+            }
         }
+        getPipeline().finish();
     }
 
     private void fetchNewMessages() throws IOException, ServiceException {
@@ -807,6 +837,7 @@ class ImapFolderSync {
             do {
                 fetchMessages(nextFetchSeq(it));
             } while (it.hasNext());
+            getPipeline().finish();
             maxUid = newUids.get(0);
         }
         syncState.setLastUidNext(mailboxInfo.getUidNext());
@@ -842,51 +873,57 @@ class ImapFolderSync {
         return sb.toString();
     }
 
+    /*
+     * Fetches flags, date and content of the messages in one round trip, and hands them to the pipeline to be added
+     * while the next ones are fetched. Messages that didn't come back whole are then fetched one at a time.
+     */
     private void fetchMessages(String seq) throws ServiceException, IOException {
-        final Map<Long, MessageData> flagsByUid =
-            connection.uidFetch(seq, "(FLAGS INTERNALDATE)");
-        removeDeleted(flagsByUid);
-        final Set<Long> uidSet = flagsByUid.keySet();
-        if (uidSet.isEmpty()) return;
-        FetchResponseHandler handler = new FetchResponseHandler() {
+        final Set<Long> uidSet = new HashSet<Long>();
+        for (String uid : seq.split(",")) {
+            uidSet.add(Long.valueOf(uid));
+        }
+        final FetchPipeline<MessageData> pipeline = getPipeline();
+        FetchResponseHandler handler = new FetchResponseHandler(false) {
             @Override
             public void handleFetchResponse(MessageData md) throws Exception {
                 long uid = md.getUid();
-                IOExceptionHandler.getInstance().trackSyncItem(mailbox, uid);
-                try {
-                    handleFetch(md, flagsByUid, true);
-                    clearError(uid);
-                } catch (OutOfMemoryError e) {
-                    Zimbra.halt("Out of memory", e);
-                } catch (Exception e) {
-                    if (!IOExceptionHandler.getInstance().isRecoverable(mailbox, uid, "Exception syncing UID "+uid+" in folder "+remoteFolder.getPath(), e)) {
-                        syncFailed("Fetch failed for uid " + uid, e);
-                        SyncErrorManager.incrementErrorCount(ds, remoteId(uid));
-                    }
+                if (md.getBodySections() == null || md.getFlags() == null || !uidSet.remove(uid)) {
+                    // unsolicited, or missing some of the data, in which case we fetch it again below
+                    discardFetched(md);
+                } else if (md.getFlags().isDeleted()) {
+                    remoteFolder.debug("Remote message with uid %d is flagged \\Deleted", uid);
+                    discardFetched(md);
+                } else {
+                    pipeline.put(md);
                 }
-                uidSet.remove(uid);
             }
         };
         // Try fetching group of messages first
         LOG.debug("Fetching messages for sequence: " + seq);
         try {
-            connection.uidFetch(getSequence(uidSet), "BODY.PEEK[]", handler);
+            connection.uidFetch(seq, FETCH_NEW, handler);
         } catch (CommandFailedException e) {
             String msg = "UID FETCH failed: " + e.toString();
             checkCanContinue(msg, e);
             LOG.warn(msg, e);
         }
         if (uidSet.isEmpty()) return;
+        // Skip messages that are gone or have been deleted in the meantime
+        Map<Long, MessageData> flagsByUid = connection.uidFetch(getSequence(uidSet), "(FLAGS INTERNALDATE)");
+        removeDeleted(flagsByUid);
+        uidSet.retainAll(flagsByUid.keySet());
+        if (uidSet.isEmpty()) return;
         LOG.info("Fetching remaining messages one at a time for UIDs: " + uidSet);
         for (long uid : getOrderedUids(uidSet)) {
             try {
                 LOG.info("Fetching message for uid: " + uid);
-                MessageData md = connection.uidFetch(uid, "BODY.PEEK[]");
-                if (md == null) {
+                MessageData md = connection.uidFetch(uid, FETCH_NEW);
+                if (md == null || md.getBodySections() == null) {
                     //FLAGS returned data for UID but BODY.PEEK[] is not; server error; provide more meaningful error than NPE
                     throw ServiceException.FAILURE("Server returned no response for UID FETCH "+uid+" BODY.PEEK[]", null);
                 }
-                handler.handleFetchResponse(md);
+                uidSet.remove(uid);
+                pipeline.put(md);
             } catch (Exception e) {
                 String msg = "Error while fetching message for UID " + uid;
                 checkCanContinue(msg, e);
@@ -898,6 +935,100 @@ class ImapFolderSync {
         }
     }
 
+    private FetchPipeline<MessageData> getPipeline() {
+        if (pipeline == null) {
+            pipeline = new FetchPipeline<MessageData>(new FetchPipeline.Handler<MessageData>() {
+                @Override
+                public void handle(List<MessageData> batch) throws ServiceException {
+                    addFetched(batch);
+                }
+
+                @Override
+                public void discard(MessageData md) {
+                    discardFetched(md);
+                }
+            }, FETCH_QUEUE_SIZE, ADD_BATCH_SIZE);
+        }
+        return pipeline;
+    }
+
+    /*
+     * Adds a batch of fetched messages to the mailbox, on the pipeline's thread. Their trackers are written together
+     * once the batch is done.
+     */
+    private void addFetched(List<MessageData> batch) throws ServiceException {
+        ZimbraLog.addMboxToContext(mailbox.getId());
+        ZimbraLog.addAccountNameToContext(ds.getAccount().getName());
+        ZimbraLog.addDataSourceNameToContext(ds.getName());
+        Iterator<MessageData> it = batch.iterator();
+        try {
+            while (it.hasNext()) {
+                MessageData md = it.next();
+                try {
+                    addFetched(md);
+                } finally {
+                    discardFetched(md);
+                }
+            }
+        } finally {
+            while (it.hasNext()) {
+                discardFetched(it.next());
+            }
+            flushTrackers();
+        }
+    }
+
+    private void addFetched(MessageData md) throws ServiceException {
+        long uid = md.getUid();
+        IOExceptionHandler.getInstance().trackSyncItem(mailbox, uid);
+        try {
+            handleFetch(md, md, localFolder.getId(), true, true);
+            clearError(uid);
+        } catch (OutOfMemoryError e) {
+            Zimbra.halt("Out of memory", e);
+        } catch (Exception e) {
+            if (!IOExceptionHandler.getInstance().isRecoverable(mailbox, uid, "Exception syncing UID "+uid+" in folder "+remoteFolder.getPath(), e)) {
+                syncFailed("Fetch failed for uid " + uid, e);
+                SyncErrorManager.incrementErrorCount(ds, remoteId(uid));
+            }
+        }
+    }
+
+    private void flushTrackers() throws ServiceException {
+        if (pendingTrackers.isEmpty()) {
+            return;
+        }
+        try {
+            List<DataSourceItem> items = new ArrayList<DataSourceItem>(pendingTrackers.size());
+            for (ImapMessage msgTracker : pendingTrackers) {
+                items.add(msgTracker.getDataSourceItem());
+            }
+            DataSourceDbMapping.getInstance().addMappings(ds, items);
+            for (ImapMessage msgTracker : pendingTrackers) {
+                syncState.updateLastFetchedUid(msgTracker.getUid());
+            }
+        } finally {
+            pendingTrackers.clear();
+        }
+    }
+
+    // Releases the message content of a fetch response
+    private static void discardFetched(MessageData md) {
+        Body[] sections = md.getBodySections();
+        if (sections != null) {
+            for (Body section : sections) {
+                if (section.getData() instanceof MessageContent) {
+                    try {
+                        ((MessageContent) section.getData()).cleanup();
+                    } catch (IOException e) {
+                        ZimbraLog.datasource.debug("Unable to clean up message content", e);
+                    }
+                }
+            }
+        }
+        md.dispose();
+    }
+
     // Discard messages that have been flagged \Deleted
     private void removeDeleted(Map<Long, MessageData> mds) {
         Iterator<MessageData> it = mds.values().iterator();
@@ -967,7 +1098,7 @@ class ImapFolderSync {
                             long uid = md.getUid();
                             IOExceptionHandler.getInstance().trackSyncItem(mailbox, uid);
                             try {
-                                handleFetch(md, msgFlags, folderId, false, false);
+                                handleFetch(md, msgFlags.get(uid), folderId, false, false);
                                 clearError(uid);
                             } catch (OutOfMemoryError e) {
                                 Zimbra.halt("Out of memory", e);
@@ -986,18 +1117,12 @@ class ImapFolderSync {
         }
     }
 
-    private void handleFetch(MessageData md, Map<Long, MessageData> flagsByUid, boolean restorePurged)
-        throws ServiceException, IOException {
-        handleFetch(md, flagsByUid, localFolder.getId(), true, restorePurged);
-    }
-
-    private void handleFetch(MessageData md, Map<Long, MessageData> flagsByUid, int folderId, boolean storeSync, boolean restorePurged)
+    private void handleFetch(MessageData md, MessageData flagsData, int folderId, boolean storeSync, boolean restorePurged)
         throws ServiceException, IOException {
         long uid = md.getUid();
         if (uid == -1) {
             throw new MailException("Missing UID in FETCH response");
         }
-        MessageData flagsData = flagsByUid.get(uid);
         remoteFolder.debug("Found new IMAP message with uid %d", uid);
         // Parse the message data
         Date date = flagsData.getInternalDate();
@@ -1025,7 +1150,12 @@ class ImapFolderSync {
             mc.cleanup();
         }
         if (msg != null && msg.getFolderId() == folderId) {
-            storeImapMessage(uid, msg.getId(), zflags, storeSync);
+            if (storeSync) {
+                // written along with the rest of the batch
+                pendingTrackers.add(new ImapMessage(ds, localFolder.getId(), msg.getId(), zflags, uid));
+            } else {
+                storeImapMessage(uid, msg.getId(), zflags, false);
+            }
             stats.msgsAddedLocally++;
         } else {
             // Message was filtered and discarded or moved to another folder.
@@ -19,15 +19,22 @@ package com.zimbra.cs.datasource.imap;
 import static com.zimbra.common.util.SystemUtil.coalesce;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.RemoteServiceException;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Log;
@@ -63,6 +70,18 @@ public class ImapSync extends MailItemImport {
     private static final Pattern ILLEGAL_FOLDER_CHARS = Pattern.compile("[:\\*\\?\"<>\\|]");
     private static final Log LOG = ZimbraLog.datasource;
 
+    // Helpers syncing folders alongside the import threads, enough for every import to use all its extra folder
+    // connections. A helper that only starts once its import has run out of folders has nothing left to do.
+    private static final ThreadPoolExecutor FOLDER_SYNCS;
+    static {
+        int threads = Math.max(LC.data_source_import_threads.intValue(), 1) *
+                Math.max(LC.data_source_imap_folder_connections.intValue() - 1, 1);
+        FOLDER_SYNCS = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("ImapFolderSync-%d").setDaemon(true).build());
+        FOLDER_SYNCS.allowCoreThreadTimeOut(true);
+    }
+
     public ImapSync(DataSource ds) throws ServiceException {
         this(ds, false);
     }
@@ -328,6 +347,11 @@ public class ImapSync extends MailItemImport {
     }
 
     private void syncMessages(Set<Integer> folderIds) throws ServiceException {
+        if (dataSource.isImportOnly() && !dataSource.isOffline() &&
+                LC.data_source_imap_folder_connections.intValue() > 1) {
+            syncMessagesInParallel(folderIds);
+            return;
+        }
         // If folder ids specified, then only sync messages for specified
         // folders, otherwise sync messages for all folders.
         for (ImapFolderSync ifs : syncedFolders.values()) {
@@ -344,6 +368,146 @@ public class ImapSync extends MailItemImport {
         }
     }
 
+    /*
+     * Nothing is pushed back to the server for import-only data sources, so once INBOX is done (its filter rules may
+     * file messages into other folders) the remaining folders don't depend on each other. They are shared out between
+     * this thread and helpers, each helper with its own connection.
+     */
+    private void syncMessagesInParallel(Set<Integer> folderIds) throws ServiceException {
+        final FolderQueue queue = new FolderQueue();
+        for (ImapFolderSync ifs : syncedFolders.values()) {
+            LocalFolder folder = ifs.getLocalFolder();
+            int folderId = folder.getId();
+            if (folderIds != null && !folderIds.contains(folderId)) {
+                continue;
+            }
+            if (folderId == Mailbox.ID_FOLDER_INBOX) {
+                checkIsEnabled();
+                try {
+                    ifs.syncMessages();
+                } catch (Exception e) {
+                    syncFailed(folder.getPath(), e);
+                }
+            } else {
+                queue.folders.add(ifs);
+            }
+        }
+        int helpers = Math.min(LC.data_source_imap_folder_connections.intValue(), queue.folders.size()) - 1;
+        for (int i = 0; i < helpers; i++) {
+            FOLDER_SYNCS.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queue.help();
+                }
+            });
+        }
+        queue.run(connection);
+        queue.close();
+        if (queue.error != null) {
+            syncFailed(queue.failedPath, queue.error);
+        }
+    }
+
+    /*
+     * Folders waiting for their messages to be synced, taken in turn by the import thread and helpers. Once a
+     * folder fails no more are handed out.
+     */
+    private final class FolderQueue {
+        final Deque<ImapFolderSync> folders = new ArrayDeque<ImapFolderSync>();
+        private int active = 0;
+        private boolean closed = false;
+        String failedPath;
+        Exception error;
+
+        private synchronized ImapFolderSync next() {
+            return error == null ? folders.poll() : null;
+        }
+
+        private synchronized void failed(ImapFolderSync ifs, Exception e) {
+            if (error == null) {
+                error = e;
+                failedPath = ifs.getLocalFolder().getPath();
+            } else {
+                LOG.error("Synchronization of folder '%s' failed", ifs.getLocalFolder().getPath(), e);
+            }
+        }
+
+        /*
+         * Syncs folders until there are none left, on the given connection or, for a helper, on one of its own
+         * opened with the first folder.
+         */
+        void run(ImapConnection conn) {
+            boolean helper = conn == null;
+            ImapFolderSync ifs;
+            try {
+                while ((ifs = next()) != null) {
+                    try {
+                        checkIsEnabled();
+                        if (helper) {
+                            if (conn == null) {
+                                conn = ConnectionManager.newConnection(dataSource, authenticator);
+                            }
+                            ifs.setConnection(conn);
+                        }
+                        try {
+                            ifs.syncMessages();
+                        } finally {
+                            if (helper) {
+                                ifs.setConnection(connection);
+                            }
+                        }
+                    } catch (Exception e) {
+                        failed(ifs, e);
+                    }
+                }
+            } finally {
+                if (helper && conn != null) {
+                    conn.close();
+                }
+            }
+        }
+
+        void help() {
+            synchronized (this) {
+                if (closed) {
+                    // started too late, there's nothing left to do
+                    return;
+                }
+                active++;
+            }
+            try {
+                ZimbraLog.addMboxToContext(mbox.getId());
+                ZimbraLog.addAccountNameToContext(dataSource.getAccount().getName());
+                ZimbraLog.addDataSourceNameToContext(dataSource.getName());
+                run(null);
+            } catch (ServiceException e) {
+                LOG.warn("Unable to look up account of data source %s", dataSource.getName(), e);
+            } finally {
+                ZimbraLog.clearContext();
+                synchronized (this) {
+                    active--;
+                    notifyAll();
+                }
+            }
+        }
+
+        // Waits for helpers still syncing a folder
+        synchronized void close() {
+            closed = true;
+            boolean interrupted = false;
+            while (active > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     public FolderSyncState getFolderSyncState(int folderId) {
         if (syncState != null) {
             FolderSyncState ss = syncState.getFolderSyncState(folderId);
@@ -142,6 +142,59 @@ public class DbDataSource {
         }
     }
 
+    /**
+     * Adds several mappings in one transaction.
+     */
+    public static void addMappings(DataSource ds, Collection<DataSourceItem> items) throws ServiceException {
+        if (items.isEmpty()) {
+            return;
+        }
+        if (!Db.supports(Db.Capability.ON_DUPLICATE_KEY)) {
+            // duplicates have to be updated one at a time
+            for (DataSourceItem item : items) {
+                addMapping(ds, item);
+            }
+            return;
+        }
+        Mailbox mbox = DataSourceManager.getInstance().getMailbox(ds);
+        String dataSourceId = ds.getId();
+
+        ZimbraLog.datasource.debug("Adding %d mappings for dataSource %s", items.size(), ds.getName());
+
+        DbConnection conn = null;
+        PreparedStatement stmt = null;
+        try {
+            conn = DbPool.getConnection(mbox);
+            stmt = conn.prepareStatement("INSERT INTO " + getTableName(mbox) + " (" + DbMailItem.MAILBOX_ID +
+                    "data_source_id, item_id, folder_id, remote_id, metadata) VALUES (" +
+                    DbMailItem.MAILBOX_ID_VALUE + "?, ?, ?, ?, ?)" +
+                    " ON DUPLICATE KEY UPDATE data_source_id = ?, item_id = ?, folder_id = ?, remote_id = ?, metadata = ?");
+            for (DataSourceItem item : items) {
+                if (item.remoteId == null) {
+                    item.remoteId = "";
+                }
+                String metadata = DbMailItem.checkMetadataLength((item.md == null) ? null : item.md.toString());
+                int i = 1;
+                i = DbMailItem.setMailboxId(stmt, mbox, i);
+                for (int n = 0; n < 2; n++) {
+                    stmt.setString(i++, dataSourceId);
+                    stmt.setInt(i++, item.itemId);
+                    stmt.setInt(i++, item.folderId);
+                    stmt.setString(i++, item.remoteId);
+                    stmt.setString(i++, metadata);
+                }
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("Unable to add mappings for dataSource " + ds.getName(), e);
+        } finally {
+            DbPool.closeStatement(stmt);
+            DbPool.quietClose(conn);
+        }
+    }
+
     public static void updateMapping(DataSource ds, DataSourceItem item) throws ServiceException {
         updateMapping(ds, item, false);
     }
@@ -993,6 +993,30 @@ public class DbMailItem {
         }
     }
 
+    /**
+     * Rewrites an item's metadata while leaving its change numbers alone, for values that are derived from the item
+     * and don't change anything a client can see.
+     */
+    public static void saveDerivedMetadata(MailItem item, Metadata metadata) throws ServiceException {
+        Mailbox mbox = item.getMailbox();
+        DbConnection conn = mbox.getOperationConnection();
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(item) +
+                        " SET metadata = ?" +
+                        " WHERE " + IN_THIS_MAILBOX_AND + "id = ?");
+            int pos = 1;
+            stmt.setString(pos++, checkMetadataLength(metadata.toString()));
+            pos = setMailboxId(stmt, mbox, pos);
+            stmt.setInt(pos++, item.getId());
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("writing metadata for mailbox " + item.getMailboxId() + ", item " + item.getId(), e);
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     public static void persistCounts(MailItem item, Metadata metadata) throws ServiceException {
         Mailbox mbox = item.getMailbox();
         DbConnection conn = mbox.getOperationConnection();
@@ -2134,6 +2158,62 @@ public class DbMailItem {
         }
     }
 
+    /**
+     * Brings folders and tags that were loaded from a snapshot taken at change {@code changeId} up to date: those
+     * modified after that change or listed in {@code changedIds} are read again, new ones are added and deleted
+     * ones are dropped.  Folder and tag counts are not recalculated.
+     *
+     * @return the number of folders and tags that were read or dropped
+     */
+    public static int getFoldersAndTagsDelta(Mailbox mbox, int changeId, Collection<Integer> changedIds,
+            Map<Integer, UnderlyingData> folders, Map<Integer, UnderlyingData> tags) throws ServiceException {
+        List<Integer> changed = new ArrayList<Integer>(changedIds);
+        DbConnection conn = mbox.getOperationConnection();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            String table = getMailItemTableName(mbox, "mi");
+
+            // the folder ids are cheap to read, and tell us which folders have been deleted...
+            Set<Integer> existing = new HashSet<Integer>(folders.size() * 2);
+            stmt = conn.prepareStatement("SELECT id FROM " + table +
+                        " WHERE " + IN_THIS_MAILBOX_AND + "type IN " + FOLDER_TYPES);
+            setMailboxId(stmt, mbox, 1);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                existing.add(rs.getInt(1));
+            }
+            int delta = folders.size();
+            folders.keySet().retainAll(existing);
+            delta -= folders.size();
+            rs.close();
+            stmt.close();
+
+            // ...and only the folders that have changed are read in full
+            stmt = conn.prepareStatement("SELECT " + DB_FIELDS + " FROM " + table +
+                        " WHERE " + IN_THIS_MAILBOX_AND + "type IN " + FOLDER_TYPES + " AND (mod_metadata > ?" +
+                        (changed.isEmpty() ? "" : " OR " + DbUtil.whereIn("id", changed.size())) + ")");
+            int pos = setMailboxId(stmt, mbox, 1);
+            stmt.setInt(pos++, changeId);
+            for (int id : changed) {
+                stmt.setInt(pos++, id);
+            }
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                UnderlyingData data = constructItem(rs);
+                folders.put(data.id, data);
+                delta++;
+            }
+
+            return delta + DbTag.getTagsDelta(mbox, changeId, changed, tags);
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("fetching changed folder data for mailbox " + mbox.getId(), e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     public static Mailbox.MailboxData getFoldersAndTags(Mailbox mbox, FolderTagMap folderData, FolderTagMap tagData, boolean forceReload)
     throws ServiceException {
         boolean reload = forceReload;
@@ -409,6 +409,9 @@ public final class DbSearch {
         if (constraint.cursorRange != null) {
             needAnd = needAnd | encodeCursorRange(constraint.cursorRange, needAnd);
         }
+        if (constraint.seekAfter != null) {
+            needAnd = needAnd | encodeSeekAfter(constraint.seekAfter, needAnd);
+        }
 
         for (Map.Entry<DbSearchConstraints.RangeType, DbSearchConstraints.Range> entry : constraint.ranges.entries()) {
             switch (entry.getKey()) {
@@ -1170,6 +1173,27 @@ public final class DbSearch {
         return true;
     }
 
+    private boolean encodeSeekAfter(DbSearchConstraints.SortKeyBound bound, boolean and) {
+        // matches orderBy(): the sort column, then mi.id in the same direction
+        String after = bound.sortBy.getDirection() == SortBy.Direction.DESC ? " < ?" : " > ?";
+        if (and) {sql.append(" AND "); }
+        if (bound.sortBy.getKey() == SortBy.Key.ID) {
+            sql.append("mi.id").append(after);
+            params.add(bound.itemId);
+            return true;
+        }
+        String col = toSortField(bound.sortBy);
+        Object value = bound.sortBy.getKey() == SortBy.Key.DATE ?
+                (Object) (int) Math.min(bound.sortValue / 1000, Integer.MAX_VALUE) : (Object) bound.sortValue;
+        // the leading inclusive bound keeps this a range scan on the sort column's index
+        sql.append('(').append(col).append(bound.sortBy.getDirection() == SortBy.Direction.DESC ? " <= ?" : " >= ?");
+        sql.append(" AND (").append(col).append(after).append(" OR mi.id").append(after).append("))");
+        params.add(value);
+        params.add(value);
+        params.add(bound.itemId);
+        return true;
+    }
+
     private void setParameters(PreparedStatement stmt) throws SQLException {
         int pos = 0;
         for (Object param : params) {
@@ -23,6 +23,7 @@ import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -231,6 +232,52 @@ public final class DbTag {
         }
     }
 
+    /**
+     * Tag counterpart of {@link DbMailItem#getFoldersAndTagsDelta}.
+     */
+    static int getTagsDelta(Mailbox mbox, int changeId, List<Integer> changedIds, Map<Integer, UnderlyingData> tags)
+            throws ServiceException {
+        DbConnection conn = mbox.getOperationConnection();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            Set<Integer> existing = new HashSet<Integer>(tags.size() * 2);
+            stmt = conn.prepareStatement("SELECT id FROM " + getTagTableName(mbox) +
+                    " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + "id > 0");
+            DbMailItem.setMailboxId(stmt, mbox, 1);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                existing.add(rs.getInt(1));
+            }
+            int delta = tags.size();
+            tags.keySet().retainAll(existing);
+            delta -= tags.size();
+            rs.close();
+            stmt.close();
+
+            stmt = conn.prepareStatement("SELECT " + TAG_FIELDS + " FROM " + getTagTableName(mbox) +
+                    " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + "id > 0 AND (sequence > ?" +
+                    (changedIds.isEmpty() ? "" : " OR " + DbUtil.whereIn("id", changedIds.size())) + ")");
+            int pos = DbMailItem.setMailboxId(stmt, mbox, 1);
+            stmt.setInt(pos++, changeId);
+            for (int id : changedIds) {
+                stmt.setInt(pos++, id);
+            }
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                UnderlyingData data = asUnderlyingData(rs);
+                tags.put(data.id, data);
+                delta++;
+            }
+            return delta;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("fetching changed tags for mailbox " + mbox.getId(), e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     public static PendingDelete getImapDeleted(Mailbox mbox, Set<Folder> folders) throws ServiceException {
         if (folders != null && folders.isEmpty()) {
             return new PendingDelete();
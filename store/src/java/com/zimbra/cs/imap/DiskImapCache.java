@@ -16,21 +16,36 @@
  */
 package com.zimbra.cs.imap;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.InputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
 
 import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.ItemIdentifier;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.cs.io.SecureObjectInputStream;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailclient.util.ByteBufferInputStream;
 
 /**
  * IMAP cache using local disk.
+ * <p>
+ * Each cache file starts with the folder's {@link ImapMessageColumns} encoding, followed by the rest of the serialized
+ * {@link ImapFolder}.  Files are read through a read-only memory mapping and the restored folder's message sequence
+ * reads the mapped columns in place, so an idle session that gets paged back in keeps its message list off the heap
+ * until the folder actually changes.
  *
  * @author dkarp
  * @author ysasaki
@@ -41,6 +56,11 @@ final class DiskImapCache implements ImapSessionManager.Cache<String, ImapFolder
             "data" + File.separator + "mailboxd" + File.separator + "imap" + File.separator + "cache";
     private static final File CACHE_DIR = new File(LC.zimbra_home.value(), CACHE_DATA_SUBDIR);
     private static final String IMAP_CACHEFILE_SUFFIX = ".i4c";
+    private static final int FILE_MAGIC = 0x49344332; // "I4C2"
+    private static final Set<String> VALID_CLASS_NAMES = new HashSet<String>(Arrays.asList(
+            ImapFolder.class.getName(), ImapMessageColumns.External.class.getName(),
+            ItemIdentifier.class.getName(), ImapFlagCache.class.getName(), ImapFlagCache.ImapFlag.class.getName(),
+            MailItem.Type.class.getName()));
 
     DiskImapCache() {
         CACHE_DIR.mkdirs();
@@ -91,18 +111,27 @@ final class DiskImapCache implements ImapSessionManager.Cache<String, ImapFolder
             return;
         }
         FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
         try {
-            oos = new ObjectOutputStream(fos = new FileOutputStream(pagefile));
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            ColumnsOutputStream oos = new ColumnsOutputStream(bout);
             synchronized (folder) {
                 oos.writeObject(folder);
             }
+            oos.close();
+            if (oos.columns == null) {
+                throw new IOException("no message sequence in serialized folder");
+            }
+
+            DataOutputStream out = new DataOutputStream(fos = new FileOutputStream(pagefile));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(oos.columns.length());
+            oos.columns.writeTo(out);
+            bout.writeTo(out);
+            out.flush();
         } catch (IOException e) {
-            ByteUtil.closeStream(oos);
             ByteUtil.closeStream(fos);
             pagefile.delete();
         } finally {
-            ByteUtil.closeStream(oos);
             ByteUtil.closeStream(fos);
         }
     }
@@ -113,20 +142,37 @@ final class DiskImapCache implements ImapSessionManager.Cache<String, ImapFolder
         if (!pagefile.exists()) {
             return null;
         }
-        FileInputStream fis = null;
-        ObjectInputStream ois = null;
+        RandomAccessFile raf = null;
         try {
+            // the mapping stays valid after the file is closed
+            raf = new RandomAccessFile(pagefile, "r");
+            ByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (mapped.getInt(0) != FILE_MAGIC) {
+                throw new IOException("unknown IMAP cache file format");
+            }
+            int columnsLength = mapped.getInt(4);
+            mapped.position(8).limit(8 + columnsLength);
+            ImapMessageColumns columns = ImapMessageColumns.wrap(mapped);
+            mapped.limit(mapped.capacity()).position(8 + columnsLength);
+
             // read serialized ImapFolder from cache
-            ois = new SecureObjectInputStream(fis = new FileInputStream(pagefile), ImapFolder.class.getName());
+            ColumnsInputStream ois = new ColumnsInputStream(new ByteBufferInputStream(mapped.slice()), columns);
             return (ImapFolder) ois.readObject();
         } catch (Exception e) {
-            ByteUtil.closeStream(ois);
-            ByteUtil.closeStream(fis);
+            close(raf);
             pagefile.delete();
             return null;
         } finally {
-            ByteUtil.closeStream(ois);
-            ByteUtil.closeStream(fis);
+            close(raf);
+        }
+    }
+
+    private static void close(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
         }
     }
 
@@ -140,4 +186,39 @@ final class DiskImapCache implements ImapSessionManager.Cache<String, ImapFolder
     public void updateAccessTime(String key) {
         //nothing to do; disk cache never expires
     }
+
+    /** Pulls the folder's {@link ImapMessageColumns} out of the object stream so they can be stored separately. */
+    private static final class ColumnsOutputStream extends ObjectOutputStream {
+        ImapMessageColumns columns;
+
+        ColumnsOutputStream(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (obj instanceof ImapMessageColumns) {
+                columns = (ImapMessageColumns) obj;
+                return new ImapMessageColumns.External();
+            }
+            return obj;
+        }
+    }
+
+    /** Puts the separately stored {@link ImapMessageColumns} back in place of their placeholder. */
+    private static final class ColumnsInputStream extends SecureObjectInputStream {
+        private final ImapMessageColumns columns;
+
+        ColumnsInputStream(InputStream in, ImapMessageColumns columns) throws IOException {
+            super(in, new HashSet<String>(VALID_CLASS_NAMES));
+            this.columns = columns;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws IOException {
+            return obj instanceof ImapMessageColumns.External ? columns : obj;
+        }
+    }
 }
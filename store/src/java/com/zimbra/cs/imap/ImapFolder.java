@@ -16,6 +16,9 @@
  */
 package com.zimbra.cs.imap;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -59,7 +62,7 @@ import com.zimbra.cs.session.PendingModifications.Change;
  */
 public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Serializable {
     // Update serialVersionUID when changing any instance members. Otherwise serialization won't work correctly.
-    private static final long serialVersionUID = 3845968507901145794L;
+    private static final long serialVersionUID = -1405470211739434652L;
     public static final byte SELECT_READONLY  = 0x01;
     public static final byte SELECT_CONDSTORE = 0x02;
 
@@ -74,7 +77,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     private final int uidValidity;
     private String query;
     private Set<MailItem.Type> typeConstraint = ImapHandler.ITEM_TYPES;
-    private final List<ImapMessage> sequence = new ArrayList<ImapMessage>();
+    private transient List<ImapMessage> sequence = new ArrayList<ImapMessage>(); // serialized as ImapMessageColumns
     private final ImapFlagCache tags;   // operationally could be "transient", but that makes deserialization replay depend on magic
 
     // below this point are session-specific attributes of the folder SELECT state
@@ -340,7 +343,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         int high = getSize() - 1;
         while (low <= high) {
             int mid = (low + high) >> 1;
-            int targetUid = sequence.get(mid).imapUid;
+            int targetUid = getImapUid(mid);
             if (targetUid < uid) {
                 low = mid + 1;
             } else if (targetUid > uid) {
@@ -352,6 +355,16 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         return -(low + 1);  // key not found
     }
 
+    /** Returns the IMAP UID at the given 0-based index in the folder's
+     *  {@link #sequence} without unpacking a restored sequence. */
+    private int getImapUid(int index) {
+        List<ImapMessage> seq = sequence;
+        if (seq instanceof ImapMessageColumns.ImapMessageList) {
+            return ((ImapMessageColumns.ImapMessageList) seq).getImapUid(index);
+        }
+        return seq.get(index).imapUid;
+    }
+
     /** Returns the ImapMessage with the given Zimbra item ID from the
      *  folder's {@link #sequence} message list. */
     protected synchronized ImapMessage getById(int id) {
@@ -374,9 +387,20 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         if (messageIds == null) {
             // lookup miss means we need to generate the item-id-to-imap-message mapping
             messageIds = new HashMap<Integer, ImapMessage>();
-            for (ImapMessage i4msg : sequence) {
-                if (i4msg != null && i4msg.msgId != i4msg.imapUid) {
-                    messageIds.put(i4msg.msgId, i4msg);
+            if (sequence instanceof ImapMessageColumns.ImapMessageList) {
+                // only unpack the messages that actually need an entry
+                ImapMessageColumns.ImapMessageList list = (ImapMessageColumns.ImapMessageList) sequence;
+                for (int i = 0, size = list.size(); i < size; i++) {
+                    int msgId = list.getMsgId(i);
+                    if (msgId != 0 && msgId != list.getImapUid(i)) {
+                        messageIds.put(msgId, list.get(i));
+                    }
+                }
+            } else {
+                for (ImapMessage i4msg : sequence) {
+                    if (i4msg != null && i4msg.msgId != i4msg.imapUid) {
+                        messageIds.put(i4msg.msgId, i4msg);
+                    }
                 }
             }
         }
@@ -1104,6 +1128,17 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         return removed;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(ImapMessageColumns.encode(sequence));
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        // messages are unpacked lazily, so paging a large folder back in doesn't rebuild the whole object graph
+        sequence = new ImapMessageColumns.ImapMessageList((ImapMessageColumns) in.readObject());
+    }
+
     protected synchronized void restore(ImapListener sess, SessionData sdata)
             throws ImapSessionClosedException, ServiceException {
         session = sess;
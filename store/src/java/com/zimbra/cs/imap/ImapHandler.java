@@ -1325,7 +1325,7 @@ public abstract class ImapHandler {
         return extensionEnabled("AUTH=" + mechanism);
     }
 
-    private boolean doNOOP(String tag) throws IOException {
+    protected boolean doNOOP(String tag) throws IOException {
         ImapListener i4selected = getCurrentImapListener();
         if(i4selected != null) {
             MailboxStore mbox = i4selected.getMailbox();
@@ -4051,7 +4051,17 @@ public abstract class ImapHandler {
                     }
 
                     if ((parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0) {
-                        mm = ImapMessage.getMimeMessage(item);
+                        // ENVELOPE and BODYSTRUCTURE are usually stored with the message, so the blob
+                        // only needs to be read if something else was asked for
+                        boolean wantsStructure = (attributes & (FETCH_BODYSTRUCTURE | FETCH_ENVELOPE)) != 0;
+                        Pair<String, String> structure = wantsStructure ? ImapMessage.getPersistedStructure(item) : null;
+                        mm = null;
+                        if (structure == null || (parts != null && !parts.isEmpty()) || (attributes & FETCH_BODY) != 0) {
+                            mm = ImapMessage.getMimeMessage(item);
+                            if (structure == null && wantsStructure) {
+                                structure = ImapMessage.persistStructure(item, mm);
+                            }
+                        }
                         if ((attributes & FETCH_BODY) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("BODY ");
@@ -4061,13 +4071,21 @@ public abstract class ImapHandler {
                         if ((attributes & FETCH_BODYSTRUCTURE) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("BODYSTRUCTURE ");
-                            ImapMessage.serializeStructure(result, mm, true);
+                            if (structure != null) {
+                                result.print(structure.getSecond());
+                            } else {
+                                ImapMessage.serializeStructure(result, mm, true);
+                            }
                             empty = false;
                         }
                         if ((attributes & FETCH_ENVELOPE) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("ENVELOPE ");
-                            ImapMessage.serializeEnvelope(result, mm);
+                            if (structure != null) {
+                                result.print(structure.getFirst());
+                            } else {
+                                ImapMessage.serializeEnvelope(result, mm);
+                            }
                             empty = false;
                         }
                         if (parts != null) {
@@ -4219,7 +4237,7 @@ public abstract class ImapHandler {
         i4folder.undirtyMessage(i4msg);
     }
 
-    private boolean doSTORE(String tag, String sequenceSet, List<String> flagNames, StoreAction operation, boolean silent,
+    protected boolean doSTORE(String tag, String sequenceSet, List<String> flagNames, StoreAction operation, boolean silent,
             int modseq, boolean byUID) throws IOException, ImapException {
         checkCommandThrottle(new StoreCommand(sequenceSet, flagNames, operation, modseq));
         if (!checkState(tag, State.SELECTED)) {
@@ -51,6 +51,7 @@ import org.apache.commons.io.IOUtils;
 import com.google.common.base.MoreObjects;
 import com.zimbra.client.ZContact;
 import com.zimbra.client.ZMessage;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.BaseItemInfo;
 import com.zimbra.common.mailbox.ContactConstants;
 import com.zimbra.common.mailbox.MailItemType;
@@ -64,6 +65,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ArrayUtil;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.InputStreamWithSize;
+import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
 import com.zimbra.cs.mailbox.Contact;
@@ -74,6 +76,7 @@ import com.zimbra.cs.mailbox.util.TagUtil;
 import com.zimbra.cs.mime.MPartInfo;
 import com.zimbra.cs.mime.Mime;
 import com.zimbra.cs.service.formatter.VCard;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.JMSession;
 import com.zimbra.soap.mail.type.ImapMessageInfo;
 
@@ -724,6 +727,76 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
         }
     }
 
+    /**
+     * Computes the {@code ENVELOPE} and {@code BODYSTRUCTURE} of a message as they are sent in a FETCH response, so
+     * that they can be stored with the message and later FETCHes don't have to read and parse its blob.  Returns
+     * null if storing them is disabled, if the message can't be serialized, or if they add up to more than
+     * {@code imap_persist_structure_max_size} chars; FETCH then parses the message as it always has.
+     *
+     * @return the envelope and the body structure (with extension data)
+     */
+    public static Pair<String, String> precomputeStructure(MimeMessage mm) {
+        if (mm == null || !LC.imap_persist_structure.booleanValue()) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+            PrintStream ps = new PrintStream(baos, false, MimeConstants.P_CHARSET_UTF8);
+            serializeEnvelope(ps, mm);
+            ps.flush();
+            String envelope = baos.toString(MimeConstants.P_CHARSET_UTF8);
+            baos.reset();
+            serializeStructure(ps, mm, true);
+            ps.flush();
+            String bodystructure = baos.toString(MimeConstants.P_CHARSET_UTF8);
+            if (envelope.length() + bodystructure.length() > LC.imap_persist_structure_max_size.intValue()) {
+                return null;
+            }
+            return new Pair<String, String>(envelope, bodystructure);
+        } catch (Exception e) {
+            // never fail a delivery over this; FETCH will report any real problem with the message
+            ZimbraLog.imap.debug("unable to precompute ENVELOPE and BODYSTRUCTURE", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the {@code ENVELOPE} and {@code BODYSTRUCTURE} stored with a message, or null if the item isn't a
+     * message or they haven't been stored yet.
+     */
+    static Pair<String, String> getPersistedStructure(ZimbraMailItem item) {
+        if (!(item instanceof Message)) {
+            return null;
+        }
+        Message msg = (Message) item;
+        String envelope = msg.getImapEnvelope(), bodystructure = msg.getImapBodyStructure();
+        boolean hit = envelope != null && bodystructure != null;
+        ZimbraPerf.COUNTER_IMAP_STRUCTURE_CACHE.increment(hit ? 100 : 0);
+        return hit ? new Pair<String, String>(envelope, bodystructure) : null;
+    }
+
+    /**
+     * Computes the {@code ENVELOPE} and {@code BODYSTRUCTURE} of a message that was added before they were stored at
+     * delivery and stores them with it, so that only the first FETCH of an older message has to parse it.
+     *
+     * @return the structures, or null if they can't be precomputed for this item
+     */
+    static Pair<String, String> persistStructure(ZimbraMailItem item, MimeMessage mm) {
+        if (!(item instanceof Message)) {
+            return null;
+        }
+        Pair<String, String> structure = precomputeStructure(mm);
+        if (structure != null) {
+            Message msg = (Message) item;
+            try {
+                msg.getMailbox().setImapStructure(msg.getId(), structure);
+            } catch (ServiceException e) {
+                ZimbraLog.imap.debug("unable to store ENVELOPE and BODYSTRUCTURE for message %d", msg.getId(), e);
+            }
+        }
+        return structure;
+    }
+
     private static int getLineCount(MimePart mp) {
         // if the MimePart implementation counts lines, use its count
         try {
@@ -0,0 +1,427 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import com.zimbra.common.util.ArrayUtil;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Compact columnar encoding of an {@link ImapFolder}'s message sequence, used when the folder is paged out of memory.
+ * <p>
+ * Instead of one serialized {@link ImapMessage} per message, the sequence is stored as parallel arrays of item IDs,
+ * IMAP UIDs, flags and session flags, plus per-message tag indices into a dictionary of tag names.  The encoding is a
+ * single {@link ByteBuffer} and all accessors read it in place, so the buffer can be a memory-mapped file region (see
+ * {@link DiskImapCache}) as well as a heap array.
+ * <p>
+ * Layout, all big-endian:
+ * <pre>
+ *   int magic, int count, int tagCount
+ *   tagCount x (int length, UTF-8 bytes), padded to a 4-byte boundary
+ *   int[count] msgId, int[count] imapUid, int[count] flags
+ *   short[count] sflags, padded to a 4-byte boundary
+ *   int[count + 1] tag start offsets, int[] tag indices
+ * </pre>
+ * A zero item ID marks an empty slot.
+ */
+final class ImapMessageColumns implements java.io.Serializable {
+    private static final long serialVersionUID = 6310588390128871329L;
+
+    private static final int MAGIC = 0x49344d31; // "I4M1"
+
+    private transient ByteBuffer buf;
+    private transient int count;
+    private transient String[] tagNames;
+    private transient int msgIdOffset, uidOffset, flagsOffset, sflagsOffset, tagStartOffset, tagIndexOffset;
+
+    private ImapMessageColumns(ByteBuffer buf) throws IOException {
+        init(buf);
+    }
+
+    private void init(ByteBuffer data) throws IOException {
+        buf = data;
+        try {
+            if (buf.getInt(0) != MAGIC) {
+                throw new IOException("not an encoded IMAP message sequence");
+            }
+            count = buf.getInt(4);
+            tagNames = new String[buf.getInt(8)];
+            int pos = 12;
+            for (int i = 0; i < tagNames.length; i++) {
+                int len = buf.getInt(pos);
+                byte[] name = new byte[len];
+                ByteBuffer dup = buf.duplicate();
+                dup.position(pos + 4);
+                dup.get(name);
+                tagNames[i] = new String(name, StandardCharsets.UTF_8);
+                pos += 4 + len;
+            }
+            msgIdOffset = align(pos);
+            uidOffset = msgIdOffset + 4 * count;
+            flagsOffset = uidOffset + 4 * count;
+            sflagsOffset = flagsOffset + 4 * count;
+            tagStartOffset = align(sflagsOffset + 2 * count);
+            tagIndexOffset = tagStartOffset + 4 * (count + 1);
+            if (tagIndexOffset + 4 * buf.getInt(tagStartOffset + 4 * count) > buf.limit()) {
+                throw new IOException("truncated IMAP message sequence");
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("truncated IMAP message sequence", e);
+        }
+    }
+
+    private static int align(int pos) {
+        return (pos + 3) & ~3;
+    }
+
+    /** Wraps an encoded sequence without copying it.  The buffer must not be modified afterwards. */
+    static ImapMessageColumns wrap(ByteBuffer data) throws IOException {
+        return new ImapMessageColumns(data.slice());
+    }
+
+    static ImapMessageColumns encode(List<ImapMessage> messages) {
+        if (messages instanceof ImapMessageList) {
+            return ((ImapMessageList) messages).toColumns();
+        }
+        Encoder encoder = new Encoder(messages.size());
+        for (ImapMessage i4msg : messages) {
+            encoder.add(i4msg);
+        }
+        return encoder.finish();
+    }
+
+    int size() {
+        return count;
+    }
+
+    int getMsgId(int index) {
+        return buf.getInt(msgIdOffset + 4 * checkIndex(index));
+    }
+
+    int getImapUid(int index) {
+        return buf.getInt(uidOffset + 4 * checkIndex(index));
+    }
+
+    int getFlags(int index) {
+        return buf.getInt(flagsOffset + 4 * checkIndex(index));
+    }
+
+    short getSessionFlags(int index) {
+        return buf.getShort(sflagsOffset + 2 * checkIndex(index));
+    }
+
+    String[] getTags(int index) {
+        int start = buf.getInt(tagStartOffset + 4 * checkIndex(index));
+        int end = buf.getInt(tagStartOffset + 4 * (index + 1));
+        if (start == end) {
+            return null;
+        }
+        String[] tags = new String[end - start];
+        for (int i = start; i < end; i++) {
+            tags[i - start] = tagNames[buf.getInt(tagIndexOffset + 4 * i)];
+        }
+        return tags;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + count);
+        }
+        return index;
+    }
+
+    /** Builds the {@link ImapMessage} at the given 0-based index, or returns null for an empty slot. */
+    ImapMessage toMessage(int index) {
+        int msgId = getMsgId(index);
+        if (msgId == 0) {
+            return null;
+        }
+        short sflags = getSessionFlags(index);
+        MailItem.Type type = (sflags & ImapMessage.FLAG_IS_CONTACT) == 0 ? MailItem.Type.MESSAGE : MailItem.Type.CONTACT;
+        ImapMessage i4msg = new ImapMessage(msgId, type, getImapUid(index), getFlags(index), getTags(index));
+        i4msg.flags = getFlags(index);
+        i4msg.sflags = sflags;
+        i4msg.sequence = index + 1;
+        return i4msg;
+    }
+
+    /** Returns the encoded length in bytes. */
+    int length() {
+        return buf.limit();
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        if (buf.hasArray()) {
+            out.write(buf.array(), buf.arrayOffset(), buf.limit());
+        } else {
+            byte[] copy = new byte[buf.limit()];
+            ByteBuffer dup = buf.duplicate();
+            dup.rewind();
+            dup.get(copy);
+            out.write(copy);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(length());
+        writeTo(out);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        init(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Stands in for the columns in a serialized {@link ImapFolder} when the encoded sequence is stored outside the
+     * object stream, as {@link DiskImapCache} does.
+     */
+    static final class External implements java.io.Serializable {
+        private static final long serialVersionUID = -2781208823390410734L;
+    }
+
+    private static final class Encoder {
+        private final int[] msgIds, uids, flags, tagStarts;
+        private final short[] sflags;
+        private final Map<String, Integer> tagIds = new LinkedHashMap<String, Integer>();
+        private final List<Integer> tagIndices = new ArrayList<Integer>();
+        private int size;
+
+        Encoder(int capacity) {
+            msgIds = new int[capacity];
+            uids = new int[capacity];
+            flags = new int[capacity];
+            sflags = new short[capacity];
+            tagStarts = new int[capacity + 1];
+        }
+
+        void add(ImapMessage i4msg) {
+            if (i4msg == null) {
+                add(0, 0, 0, (short) 0, null);
+            } else {
+                add(i4msg.msgId, i4msg.imapUid, i4msg.flags, i4msg.sflags, i4msg.tags);
+            }
+        }
+
+        void add(int msgId, int uid, int flagBits, short sflagBits, String[] tags) {
+            msgIds[size] = msgId;
+            uids[size] = uid;
+            flags[size] = flagBits;
+            sflags[size] = sflagBits;
+            tagStarts[size] = tagIndices.size();
+            if (!ArrayUtil.isEmpty(tags)) {
+                for (String tag : tags) {
+                    Integer id = tagIds.get(tag);
+                    if (id == null) {
+                        id = tagIds.size();
+                        tagIds.put(tag, id);
+                    }
+                    tagIndices.add(id);
+                }
+            }
+            size++;
+        }
+
+        ImapMessageColumns finish() {
+            tagStarts[size] = tagIndices.size();
+            List<byte[]> names = new ArrayList<byte[]>(tagIds.size());
+            int namesLength = 0;
+            for (String tag : tagIds.keySet()) {
+                byte[] name = tag.getBytes(StandardCharsets.UTF_8);
+                names.add(name);
+                namesLength += 4 + name.length;
+            }
+            int length = align(12 + namesLength) + 12 * size + align(2 * size) + 4 * (size + 1) + 4 * tagIndices.size();
+
+            ByteBuffer out = ByteBuffer.allocate(length);
+            out.putInt(MAGIC).putInt(size).putInt(names.size());
+            for (byte[] name : names) {
+                out.putInt(name.length).put(name);
+            }
+            out.position(align(out.position()));
+            for (int i = 0; i < size; i++) {
+                out.putInt(msgIds[i]);
+            }
+            for (int i = 0; i < size; i++) {
+                out.putInt(uids[i]);
+            }
+            for (int i = 0; i < size; i++) {
+                out.putInt(flags[i]);
+            }
+            for (int i = 0; i < size; i++) {
+                out.putShort(sflags[i]);
+            }
+            out.position(align(out.position()));
+            for (int i = 0; i <= size; i++) {
+                out.putInt(tagStarts[i]);
+            }
+            for (Integer index : tagIndices) {
+                out.putInt(index);
+            }
+            out.flip();
+            try {
+                return new ImapMessageColumns(out);
+            } catch (IOException e) {
+                throw new IllegalStateException("unable to read back encoded IMAP message sequence", e);
+            }
+        }
+    }
+
+    /**
+     * The message sequence of a folder restored from its columnar encoding.  {@link ImapMessage} objects are built
+     * one at a time as they are looked up, and UID and item ID lookups can go straight to the columns.  The first
+     * structural change copies the whole sequence into an ordinary list and drops the encoding.
+     * <p>
+     * Callers synchronize on the owning {@link ImapFolder} for changes; lookups may be unsynchronized, so building an
+     * element is synchronized here to make sure each index only ever yields one {@link ImapMessage} instance.
+     */
+    static final class ImapMessageList extends AbstractList<ImapMessage> implements RandomAccess {
+        private ImapMessageColumns columns;
+        private ImapMessage[] loaded;
+        private ArrayList<ImapMessage> messages;
+
+        ImapMessageList(ImapMessageColumns columns) {
+            this.columns = columns;
+            this.loaded = new ImapMessage[columns.size()];
+        }
+
+        @Override
+        public synchronized ImapMessage get(int index) {
+            if (messages != null) {
+                return messages.get(index);
+            }
+            ImapMessage i4msg = loaded[columns.checkIndex(index)];
+            if (i4msg == null) {
+                i4msg = loaded[index] = columns.toMessage(index);
+            }
+            return i4msg;
+        }
+
+        @Override
+        public synchronized int size() {
+            return messages != null ? messages.size() : columns.size();
+        }
+
+        /** Returns the IMAP UID at the given 0-based index without building the {@link ImapMessage}. */
+        synchronized int getImapUid(int index) {
+            if (messages != null) {
+                return messages.get(index).imapUid;
+            }
+            ImapMessage i4msg = loaded[columns.checkIndex(index)];
+            return i4msg != null ? i4msg.imapUid : columns.getImapUid(index);
+        }
+
+        /** Returns the item ID at the given 0-based index without building the {@link ImapMessage}. */
+        synchronized int getMsgId(int index) {
+            if (messages != null) {
+                ImapMessage i4msg = messages.get(index);
+                return i4msg == null ? 0 : i4msg.msgId;
+            }
+            ImapMessage i4msg = loaded[columns.checkIndex(index)];
+            return i4msg != null ? i4msg.msgId : columns.getMsgId(index);
+        }
+
+        /** Whether the sequence is still backed by its columnar encoding. */
+        synchronized boolean isEncoded() {
+            return messages == null;
+        }
+
+        @Override
+        public synchronized ImapMessage set(int index, ImapMessage element) {
+            return materialize().set(index, element);
+        }
+
+        @Override
+        public synchronized void add(int index, ImapMessage element) {
+            materialize().add(index, element);
+            modCount++;
+        }
+
+        @Override
+        public synchronized ImapMessage remove(int index) {
+            ImapMessage removed = materialize().remove(index);
+            modCount++;
+            return removed;
+        }
+
+        @Override
+        public synchronized void clear() {
+            materialize().clear();
+            modCount++;
+        }
+
+        private ArrayList<ImapMessage> materialize() {
+            if (messages == null) {
+                ArrayList<ImapMessage> list = new ArrayList<ImapMessage>(columns.size() + 16);
+                for (int i = 0; i < columns.size(); i++) {
+                    list.add(get(i));
+                }
+                messages = list;
+                columns = null;
+                loaded = null;
+            }
+            return messages;
+        }
+
+        /** Re-encodes the sequence, copying untouched rows straight from the current encoding. */
+        synchronized ImapMessageColumns toColumns() {
+            if (messages != null) {
+                Encoder encoder = new Encoder(messages.size());
+                for (ImapMessage i4msg : messages) {
+                    encoder.add(i4msg);
+                }
+                return encoder.finish();
+            }
+            boolean touched = false;
+            for (ImapMessage i4msg : loaded) {
+                if (i4msg != null) {
+                    touched = true;
+                    break;
+                }
+            }
+            if (!touched) {
+                // nothing was handed out, so nothing can have changed
+                return columns;
+            }
+            Encoder encoder = new Encoder(columns.size());
+            for (int i = 0; i < columns.size(); i++) {
+                if (loaded[i] != null) {
+                    encoder.add(loaded[i]);
+                } else {
+                    encoder.add(columns.getMsgId(i), columns.getImapUid(i), columns.getFlags(i),
+                            columns.getSessionFlags(i), columns.getTags(i));
+                }
+            }
+            return encoder.finish();
+        }
+    }
+}
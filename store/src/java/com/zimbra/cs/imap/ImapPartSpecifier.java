@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Enumeration;
 import java.util.List;
 
@@ -30,6 +32,7 @@ import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimePart;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.ZimbraMailItem;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -37,7 +40,14 @@ import com.zimbra.common.util.InputStreamWithSize;
 import com.zimbra.common.util.StartOutOfBoundsException;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.server.NioOutputStream;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.file.VolumeMailboxBlob;
+import com.zimbra.cs.util.IOUtil;
 
 class ImapPartSpecifier {
     static class BinaryDecodingException extends Exception {
@@ -182,9 +192,84 @@ class ImapPartSpecifier {
 
     void write(PrintStream ps, OutputStream os, ZimbraMailItem zmi)
     throws IOException, BinaryDecodingException, ServiceException {
+        if (os instanceof NioOutputStream && writeFileRegion(ps, (NioOutputStream) os, zmi)) {
+            return;
+        }
         write(ps, os, new ZimbraMailItemGettableInputStreamWithSize(zmi));
     }
 
+    /**
+     * Writes a <tt>BODY[]</tt> or <tt>RFC822</tt> literal, or an octet range of one, straight from the message's
+     * blob file, so that the content is never copied through the heap.  Only uncompressed blobs on local volumes
+     * qualify, and only while the connection doesn't need to encrypt what it sends.  Returns {@code false},
+     * having written nothing, if the existing path has to be used instead.
+     */
+    private boolean writeFileRegion(PrintStream ps, NioOutputStream os, ZimbraMailItem zmi) throws IOException {
+        if (!isEntireMessage() || command.startsWith("BINARY") || !(zmi instanceof Message) ||
+                !LC.imap_fetch_zero_copy.booleanValue() || !os.isFileRegionSupported()) {
+            return false;
+        }
+        long size = zmi.getSize();
+        long start = 0, length = size;
+        if (octetStart >= 0) {
+            start = octetStart;
+            length = Math.min(size, octetEnd) - octetStart;
+        }
+        if (length <= 0) {
+            return false;
+        }
+        FileChannel channel = openBlobFile((Message) zmi, size);
+        if (channel == null) {
+            return false;
+        }
+        boolean sent = false;
+        try {
+            ps.print(this);
+            ps.print(" {");
+            ps.print(length);
+            ps.write('}');   /* } added to fix vim buggy brace matching code */
+            os.write(ImapHandler.LINE_SEPARATOR_BYTES);
+            os.write(channel, start, length);
+            sent = true;
+        } finally {
+            if (!sent) {
+                IOUtil.closeQuietly(channel);
+            }
+        }
+        ZimbraPerf.COUNTER_IMAP_ZERO_COPY_BYTES.increment(length);
+        return true;
+    }
+
+    /**
+     * Opens the message's blob file if it's an uncompressed file on a local volume holding exactly the
+     * message's {@code size} bytes, as recorded in MAIL_ITEM.  Returns {@code null} otherwise.
+     */
+    private static FileChannel openBlobFile(Message msg, long size) {
+        FileChannel channel = null;
+        try {
+            MailboxBlob mblob = msg.getBlob();
+            if (!(mblob instanceof VolumeMailboxBlob)) {
+                return null;
+            }
+            Blob blob = mblob.getLocalBlob();
+            if (blob == null || blob.isCompressed()) {
+                return null;
+            }
+            channel = FileChannel.open(blob.getFile().toPath(), StandardOpenOption.READ);
+            if (channel.size() != size) {
+                ZimbraLog.imap.debug("blob size %d does not match size %d of message %d",
+                        channel.size(), size, msg.getId());
+                IOUtil.closeQuietly(channel);
+                return null;
+            }
+            return channel;
+        } catch (IOException | ServiceException e) {
+            ZimbraLog.imap.debug("cannot send blob of message %d as a file region", msg.getId(), e);
+            IOUtil.closeQuietly(channel);
+            return null;
+        }
+    }
+
     void write(PrintStream ps, OutputStream os, MimeMessage mimeMsg)
     throws IOException, BinaryDecodingException, ServiceException {
         write(ps, os, new MimeMessageGettableInputStreamWithSize(mimeMsg));
@@ -106,6 +106,7 @@ final class MemcachedImapCache implements ImapSessionManager.Cache<String, ImapF
             this.validClassNames.add(ImapFolder.class.getName());
             this.validClassNames.add(ItemIdentifier.class.getName());
             this.validClassNames.add(ImapMessage.class.getName());
+            this.validClassNames.add(ImapMessageColumns.class.getName());
             this.validClassNames.add(ImapFlagCache.class.getName());
             this.validClassNames.add(MailItem.Type.class.getName());
         }
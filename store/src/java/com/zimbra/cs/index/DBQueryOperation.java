@@ -60,6 +60,7 @@ public class DBQueryOperation extends QueryOperation {
 
     private DbSearchConstraints constraints = new DbSearchConstraints.Leaf();
     private int hitsOffset = 0; // this is the logical offset of the end of the mDBHits buffer
+    private DbSearch.Result lastDbHit; // last row of the mDBHits buffer, which the next chunk continues from
     private int dbOffset = 0; // this is the offset IN THE DATABASE when we're doing a DB-FIRST iteration
     private int cursorOffset = -1; // calculated cursor offset
 
@@ -459,6 +460,7 @@ public class DBQueryOperation extends QueryOperation {
             dbOffset = 0;
             dbHitsIter = null;
             hitsOffset = 0;
+            lastDbHit = null;
             endOfHits = false;
             atStart = true;
         } else {
@@ -684,7 +686,19 @@ public class DBQueryOperation extends QueryOperation {
     }
 
     private void noLuceneGetNextChunk(SortBy sort) throws ServiceException {
-        dbSearch(dbHits, sort, hitsOffset, hitsPerChunk);
+        if (lastDbHit != null && DbSearchConstraints.SortKeyBound.isSupported(sort)) {
+            // continue from the last row we read rather than have the DB skip hitsOffset rows all over again
+            DbSearchConstraints.Leaf top = getTopLeafConstraint();
+            DbSearchConstraints.SortKeyBound cursorBound = top.seekAfter;
+            top.setSeekAfter(sort, ((Number) lastDbHit.getSortValue()).longValue(), lastDbHit.getId());
+            try {
+                dbSearch(dbHits, sort, 0, hitsPerChunk);
+            } finally {
+                top.seekAfter = cursorBound;
+            }
+        } else {
+            dbSearch(dbHits, sort, hitsOffset, hitsPerChunk);
+        }
 
         if (dbHits.size() < hitsPerChunk) {
             endOfHits = true;
@@ -846,6 +860,7 @@ public class DBQueryOperation extends QueryOperation {
                 endOfHits = true;
             } else {
                 hitsOffset += dbHits.size();
+                lastDbHit = dbHits.get(dbHits.size() - 1);
                 dbHitsIter = dbHits.iterator();
             }
 
@@ -941,45 +956,77 @@ public class DBQueryOperation extends QueryOperation {
             case DATE_ASC: {
                 long low = Long.parseLong(cursor.getSortValue());
                 long high = cursor.getEndSortValue() != null ? Long.parseLong(cursor.getEndSortValue()) : -1;
+                int seekId = getSeekCursorId(cursor);
                 DbSearchConstraints.Leaf top = getTopLeafConstraint();
                 if (calcOffset) {
                     offsetConstraints = top.clone();
-                    offsetConstraints.addDateRange(-1, false, low, false, true);
+                    if (seekId > 0) {
+                        offsetConstraints.setSeekAfter(SortBy.DATE_DESC, low, seekId);
+                    } else {
+                        offsetConstraints.addDateRange(-1, false, low, false, true);
+                    }
                 }
                 top.addDateRange(low, true, high, false, true);
+                if (seekId > 0) {
+                    top.setSeekAfter(sort, low, seekId);
+                }
                 break;
             }
             case DATE_DESC: {
                 long high = Long.parseLong(cursor.getSortValue());
                 long low = cursor.getEndSortValue() != null ? Long.parseLong(cursor.getEndSortValue()) : -1;
+                int seekId = getSeekCursorId(cursor);
                 DbSearchConstraints.Leaf top = getTopLeafConstraint();
                 if (calcOffset) {
                     offsetConstraints = top.clone();
-                    offsetConstraints.addDateRange(high, false, -1, false, true);
+                    if (seekId > 0) {
+                        offsetConstraints.setSeekAfter(SortBy.DATE_ASC, high, seekId);
+                    } else {
+                        offsetConstraints.addDateRange(high, false, -1, false, true);
+                    }
                 }
                 top.addDateRange(low, false, high, true, true);
+                if (seekId > 0) {
+                    top.setSeekAfter(sort, high, seekId);
+                }
                 break;
             }
             case SIZE_ASC: {
                 long low = Long.parseLong(cursor.getSortValue());
                 long high = cursor.getEndSortValue() != null ? Long.parseLong(cursor.getEndSortValue()) : -1;
+                int seekId = getSeekCursorId(cursor);
                 DbSearchConstraints.Leaf top = getTopLeafConstraint();
                 if (calcOffset) {
                     offsetConstraints = top.clone();
-                    offsetConstraints.addSizeRange(-1, false, low, false, true);
+                    if (seekId > 0) {
+                        offsetConstraints.setSeekAfter(SortBy.SIZE_DESC, low, seekId);
+                    } else {
+                        offsetConstraints.addSizeRange(-1, false, low, false, true);
+                    }
                 }
                 top.addSizeRange(low, true, high, false, true);
+                if (seekId > 0) {
+                    top.setSeekAfter(sort, low, seekId);
+                }
                 break;
             }
             case SIZE_DESC: {
                 long high = Long.parseLong(cursor.getSortValue());
                 long low = cursor.getEndSortValue() != null ? Long.parseLong(cursor.getEndSortValue()) : -1;
+                int seekId = getSeekCursorId(cursor);
                 DbSearchConstraints.Leaf top = getTopLeafConstraint();
                 if (calcOffset) {
                     offsetConstraints = top.clone();
-                    offsetConstraints.addSizeRange(high, false, -1, false, true);
+                    if (seekId > 0) {
+                        offsetConstraints.setSeekAfter(SortBy.SIZE_ASC, high, seekId);
+                    } else {
+                        offsetConstraints.addSizeRange(high, false, -1, false, true);
+                    }
                 }
                 top.addSizeRange(low, false, high, true, true);
+                if (seekId > 0) {
+                    top.setSeekAfter(sort, high, seekId);
+                }
                 break;
             }
             case READ_ASC:
@@ -1030,6 +1077,18 @@ public class DBQueryOperation extends QueryOperation {
         }
     }
 
+    /**
+     * Returns the id of the cursor's item if the rows up to it can be skipped with a keyset bound, that is if it's
+     * an item in this mailbox; otherwise returns 0 and the cursor is found by scanning the rows with its sort value.
+     */
+    private int getSeekCursorId(SearchParams.Cursor cursor) {
+        ItemId iid = cursor.getItemId();
+        if (iid == null || iid.getId() <= 0 || !iid.belongsTo(context.getMailbox())) {
+            return 0;
+        }
+        return iid.getId();
+    }
+
     @Override
     QueryOperation optimize(Mailbox mbox) {
         return this;
@@ -159,7 +159,8 @@ public interface DbSearchConstraints extends Cloneable {
             hasIndexId == null &&
             excludeHasRecipients == false &&
             ranges.isEmpty() &&
-            cursorRange == null) {
+            cursorRange == null &&
+            seekAfter == null) {
                 return true;
             } else {
                 return false;
@@ -256,6 +257,7 @@ public interface DbSearchConstraints extends Cloneable {
                 }
         );
         public CursorRange cursorRange; // optional
+        public SortKeyBound seekAfter; // optional
 
         public boolean typesFactoredOut = false;
         public boolean excludeHasRecipients = false;
@@ -354,6 +356,7 @@ public interface DbSearchConstraints extends Cloneable {
             for (Map.Entry<RangeType, Range> entry : ranges.entries()) {
                 result.ranges.put(entry.getKey(), entry.getValue().clone());
             }
+            result.seekAfter = seekAfter;
             return result;
         }
 
@@ -810,6 +813,15 @@ public interface DbSearchConstraints extends Cloneable {
             cursorRange = new CursorRange(min, minInclusive, max, maxInclusive, sort);
         }
 
+        /**
+         * Only matches items that come strictly after the given one in {@code sort} order.
+         *
+         * @see SortKeyBound
+         */
+        void setSeekAfter(SortBy sort, long sortValue, int itemId) {
+            seekAfter = new SortKeyBound(sort, sortValue, itemId);
+        }
+
         public void addItemIdRange(int min, boolean minInclusive, int max, boolean maxInclusive, boolean bool) {
             if (min < 0 && max < 0) {
                 return;
@@ -1141,7 +1153,8 @@ public interface DbSearchConstraints extends Cloneable {
                 leaf.hasIndexId == null &&
                 leaf.excludeHasRecipients == false &&
                 leaf.ranges.isEmpty() &&
-                leaf.cursorRange == null) {
+                leaf.cursorRange == null &&
+                leaf.seekAfter == null) {
                     onlyFolderConstraints.add(leaf);
                 } else {
                     otherConstraints.add(leaf);
@@ -1540,6 +1553,42 @@ public interface DbSearchConstraints extends Cloneable {
         }
     }
 
+    /**
+     * Keyset (seek) bound: only items that sort strictly after the item with the given sort value and id.  Unlike a
+     * {@link CursorRange} or a LIMIT offset, this doesn't read the rows up to that item at all, so a page deep into
+     * the results costs no more than the first one.  Only for sorts on a non-null numeric column that are ordered
+     * by item id within equal values; see {@link #isSupported(SortBy)}.
+     */
+    public static final class SortKeyBound {
+        public final SortBy sortBy;
+        public final long sortValue; // as returned in hits: milliseconds for DATE
+        public final int itemId;
+
+        public SortKeyBound(SortBy sort, long sortValue, int itemId) {
+            assert isSupported(sort) : sort;
+            this.sortBy = sort;
+            this.sortValue = sortValue;
+            this.itemId = itemId;
+        }
+
+        public static boolean isSupported(SortBy sort) {
+            switch (sort.getKey()) {
+                case DATE:
+                case SIZE:
+                case ID:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).add("sort", sortBy).add("value", sortValue).add("id", itemId)
+                    .toString();
+        }
+    }
+
     public static final class RemoteFolderDescriptor {
         private final ItemId folderId;
         private String subfolderPath;
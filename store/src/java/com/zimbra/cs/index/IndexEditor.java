@@ -42,6 +42,7 @@ import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 
+import com.google.common.primitives.Ints;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.common.account.Key.AccountBy;
@@ -50,6 +51,7 @@ import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxIndex;
 import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.ReIndexScheduler;
 import com.zimbra.cs.server.ProtocolHandler;
 import com.zimbra.cs.server.TcpServer;
 import com.zimbra.common.io.TcpServerInputStream;
@@ -90,15 +92,8 @@ public final class IndexEditor {
             return;
         }
         int ids[] = mmgr.getMailboxIds();
-        for (int i = 0; i < ids.length; i++) {
-            mLog.info("Mailbox "+ids[i]+"\n");
-            try {
-                Mailbox mbx = mmgr.getMailboxById(ids[i]);
-                mbx.index.startReIndex();
-            } catch (ServiceException e) {
-                mLog.info("Exception ReIndexing " + ids[i], e);
-            }
-        }
+        int queued = ReIndexScheduler.getInstance().schedule(Ints.asList(ids));
+        mLog.info("Queued " + queued + " mailboxes for re-indexing\n");
     }
 
     public void reIndex(int mailboxId) {
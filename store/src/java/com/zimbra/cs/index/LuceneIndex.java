@@ -27,6 +27,7 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -48,6 +49,7 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.NoSuchDirectoryException;
 import org.apache.lucene.util.Version;
 
@@ -66,6 +68,7 @@ import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxIndex;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.IOUtil;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.VolumeManager;
@@ -118,6 +121,10 @@ public final class LuceneIndex extends IndexStore {
     private final LuceneDirectory luceneDirectory;
     private final AtomicBoolean pendingDelete = new AtomicBoolean(false);
     private final WriterInfo writerInfo = new WriterInfo();
+    /** bumped by every commit; a cached searcher opened at an older generation is reopened before it is used */
+    private final AtomicLong commitGeneration = new AtomicLong();
+    /** serializes opening and reopening the searcher; searches that find a current searcher never take it */
+    private final ReentrantLock searcherLock = new ReentrantLock();
 
     /**
      * Holds information related to writers to the index.
@@ -262,15 +269,14 @@ public final class LuceneIndex extends IndexStore {
      * file system cache.
      */
     @Override
-    public synchronized void warmup() {
-        if (SEARCHER_CACHE.asMap().containsKey(mailbox.getId()) ||
-                GAL_SEARCHER_CACHE.containsKey(mailbox.getId())) {
+    public void warmup() {
+        if (getCachedSearcher() != null) {
             return; // already warmed up
         }
         long start = System.currentTimeMillis();
         try {
-            try (IndexSearcher searcher = (IndexSearcher) openSearcher()) {
-                searcher.search(new TermQuery(new Term(LuceneFields.L_CONTENT, "zimbra")), 1,
+            try (ZimbraIndexSearcher searcher = openSearcher()) {
+                searcher.search(new TermQuery(new Term(LuceneFields.L_CONTENT, "zimbra")), null, 1,
                     new Sort(new SortField(LuceneFields.L_SORT_DATE, SortField.STRING, true)));
             }
         } catch (IOException e) {
@@ -368,54 +374,191 @@ public final class LuceneIndex extends IndexStore {
 
     /**
      * Caller is responsible for calling {@link IndexReader#close()} to release system resources associated with it.
+     * <p>
+     * Concurrent searches share the cached searcher without locking.  If the index was committed since the searcher
+     * was opened, it is first reopened incrementally, from the live {@link IndexWriter} when there is one.
      *
      * @return A {@link IndexReader} for this index.
      * @throws IOException if opening an {@link IndexReader} failed
      */
     @Override
-    public synchronized ZimbraIndexSearcher openSearcher() throws IOException {
-        IndexSearcherImpl searcher = null;
+    public ZimbraIndexSearcher openSearcher() throws IOException {
+        while (true) {
+            IndexSearcherImpl searcher = getCachedSearcher();
+            if (searcher != null && searcher.getGeneration() != commitGeneration.get()) {
+                searcher = reopenSearcher();
+            }
+            if (searcher == null) {
+                searcher = openNewSearcher();
+            } else {
+                ZimbraLog.search.debug("CacheHitLuceneSearcher %s", searcher);
+            }
+            if (searcher.tryInc()) {
+                return searcher;
+            }
+            // evicted and closed before we got to it
+        }
+    }
+
+    private IndexSearcherImpl getCachedSearcher() {
         if (mailbox.isGalSyncMailbox()) {
-            searcher = GAL_SEARCHER_CACHE.get(mailbox.getId());
+            return GAL_SEARCHER_CACHE.get(mailbox.getId());
         } else {
-            searcher = SEARCHER_CACHE.getIfPresent(mailbox.getId());
+            return SEARCHER_CACHE.getIfPresent(mailbox.getId());
+        }
+    }
+
+    private void cacheSearcher(IndexSearcherImpl searcher) {
+        if (mailbox.isGalSyncMailbox()) {
+            //make sure that we close the previous value associated with the key
+            IOUtil.closeQuietly(GAL_SEARCHER_CACHE.put(mailbox.getId(), searcher));
+        } else {
+            // Bug: 69870
+            // No need to close the previous value associated with the key here.
+            // CacheBuilder sends a callback using removalListener onRemoval(..)
+            // which eventually closes IndexSearcher
+            SEARCHER_CACHE.asMap().put(mailbox.getId(), searcher);
         }
-        if (searcher != null) {
-            ZimbraLog.search.debug("CacheHitLuceneSearcher %s", searcher);
-            searcher.inc();
+    }
+
+    /**
+     * Opens a searcher from the index directory and caches it, unless another thread got there first.
+     */
+    private IndexSearcherImpl openNewSearcher() throws IOException {
+        searcherLock.lock();
+        try {
+            IndexSearcherImpl searcher = getCachedSearcher();
+            if (searcher != null) {
+                return searcher;
+            }
+            long generation = commitGeneration.get();
+            READER_THROTTLE.acquireUninterruptibly();
+            long start = System.currentTimeMillis();
+            try {
+                searcher = new IndexSearcherImpl(openIndexReader(true), generation, true);
+            } catch (IOException e) {
+                // Handle the special case of trying to open a not-yet-created index, by opening for write and
+                // immediately closing. Index directory should get initialized as a result.
+                synchronized (this) {
+                    if (isEmptyDirectory(luceneDirectory.getDirectory())) {
+                        // create an empty index
+                        IndexWriter writer = new IndexWriter(luceneDirectory,
+                                getWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE));
+                        IOUtil.closeQuietly(writer);
+                        searcher = new IndexSearcherImpl(openIndexReader(false), generation, true);
+                    } else {
+                        throw e;
+                    }
+                }
+            } finally {
+                if (searcher == null) {
+                    READER_THROTTLE.release();
+                }
+            }
+
+            ZimbraLog.search.debug("OpenLuceneSearcher %s,elapsed=%d", searcher, System.currentTimeMillis() - start);
+            cacheSearcher(searcher);
             return searcher;
+        } finally {
+            searcherLock.unlock();
         }
+    }
 
-        READER_THROTTLE.acquireUninterruptibly();
-        long start = System.currentTimeMillis();
+    /**
+     * Brings the cached searcher up to the latest commit.  Only the segments that changed are opened; while a writer
+     * is open the new reader comes from it (near-real-time) instead of from the directory.
+     *
+     * @return the cached searcher, or null if there is none
+     */
+    private IndexSearcherImpl reopenSearcher() {
+        // take the writer reference outside searcherLock: releasing it may close the writer, which needs the monitor
+        IndexWriterRef ref = acquireWriterRef();
         try {
-            searcher = new IndexSearcherImpl(openIndexReader(true));
-        } catch (IOException e) {
-            // Handle the special case of trying to open a not-yet-created index, by opening for write and immediately
-            // closing. Index directory should get initialized as a result.
-            if (isEmptyDirectory(luceneDirectory.getDirectory())) {
-                // create an empty index
-                IndexWriter writer = new IndexWriter(luceneDirectory,
-                        getWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE));
-                IOUtil.closeQuietly(writer);
-                searcher = new IndexSearcherImpl(openIndexReader(false));
-            } else {
-                throw e;
+            searcherLock.lock();
+            try {
+                IndexSearcherImpl searcher = getCachedSearcher();
+                long generation = commitGeneration.get();
+                if (searcher == null || searcher.getGeneration() == generation) {
+                    return searcher;
+                }
+                long start = ZimbraPerf.STOPWATCH_INDEX_REOPEN.start();
+                IndexReader oldReader = ((ZimbraLuceneIndexReader) searcher.getIndexReader()).getLuceneReader();
+                IndexReader newReader;
+                try {
+                    newReader = reopenReader(oldReader, ref);
+                } catch (IOException e) {
+                    ZimbraLog.search.warn("Failed to reopen %s, searching the previous commit", searcher, e);
+                    return searcher;
+                }
+                if (newReader == null) {
+                    searcher.setGeneration(generation);
+                } else if (READER_THROTTLE.tryAcquire()) {
+                    searcher = new IndexSearcherImpl(newReader, generation, true);
+                    cacheSearcher(searcher);
+                } else {
+                    // no reader permit to spare; keep searching the previous commit and try again next time
+                    ZimbraLog.search.debug("Too many open readers, not reopening %s", searcher);
+                    IOUtil.closeQuietly(newReader);
+                    return searcher;
+                }
+                ZimbraPerf.STOPWATCH_INDEX_REOPEN.stop(start);
+                ZimbraLog.search.debug("ReopenLuceneSearcher %s,nrt=%b,elapsed=%d", searcher, ref != null,
+                        System.currentTimeMillis() - start);
+                return searcher;
+            } finally {
+                searcherLock.unlock();
             }
         } finally {
-            if (searcher == null) {
-                READER_THROTTLE.release();
+            if (ref != null) {
+                ref.dec();
             }
         }
+    }
 
-        ZimbraLog.search.debug("OpenLuceneSearcher %s,elapsed=%d", searcher, System.currentTimeMillis() - start);
-        searcher.inc();
-        if (mailbox.isGalSyncMailbox()) {
-            IOUtil.closeQuietly(GAL_SEARCHER_CACHE.put(mailbox.getId(), searcher));
-        } else {
-            SEARCHER_CACHE.asMap().put(mailbox.getId(), searcher);
+    /**
+     * @return the new reader, or null if the index did not change
+     */
+    private IndexReader reopenReader(IndexReader oldReader, IndexWriterRef ref) throws IOException {
+        if (ref != null) {
+            try {
+                return IndexReader.openIfChanged(oldReader, ref.get(), true);
+            } catch (AlreadyClosedException e) {
+                // closed after a failed commit; read the last commit from the directory
+            }
+        }
+        try {
+            return IndexReader.openIfChanged(oldReader, true);
+        } catch (AlreadyClosedException e) {
+            // a near-real-time reader can only be reopened through its writer, which is gone now
+            return openIndexReader(true);
+        }
+    }
+
+    /**
+     * Returns a reference to the open writer, if any.  The caller must release it with {@link IndexWriterRef#dec()}.
+     */
+    private IndexWriterRef acquireWriterRef() {
+        writerInfo.getHasNoWritersLock().lock();
+        try {
+            IndexWriterRef ref = writerInfo.getWriterRef();
+            return ref != null && ref.tryInc() ? ref : null;
+        } finally {
+            writerInfo.getHasNoWritersLock().unlock();
+        }
+    }
+
+    /**
+     * Refreshes the cached searcher in the background after a commit, so the next search usually finds it current.
+     */
+    private void submitReopen() {
+        if (getCachedSearcher() == null) {
+            return;
+        }
+        try {
+            mailbox.index.submit(new ReopenTask());
+        } catch (RejectedExecutionException e) {
+            ZimbraLog.index.debug("Skipping background reopen because all index threads are busy");
         }
-        return searcher;
     }
 
     /**
@@ -516,6 +659,7 @@ public final class LuceneIndex extends IndexStore {
                 repair(e);
                 throw e; // fail to commit regardless of the repair
             }
+            commitGeneration.incrementAndGet();
             mailbox.index.submit(task); // merge must run in background
             success = true;
         } catch (RejectedExecutionException e) {
@@ -674,9 +818,22 @@ public final class LuceneIndex extends IndexStore {
         }
     }
 
+    private final class ReopenTask extends MailboxIndex.IndexTask {
+        ReopenTask() {
+            super(mailbox);
+        }
+
+        @Override
+        public void exec() {
+            reopenSearcher();
+        }
+    }
+
     private IndexWriterConfig getWriterConfig() {
         IndexWriterConfig config = new IndexWriterConfig(VERSION, mailbox.index.getAnalyzer());
         config.setMergeScheduler(new MergeScheduler());
+        // same as readers opened from the directory, for near-real-time readers
+        config.setReaderTermsIndexDivisor(LC.zimbra_index_lucene_term_index_divisor.intValue());
         config.setMaxBufferedDocs(LC.zimbra_index_lucene_max_buffered_docs.intValue());
         config.setRAMBufferSizeMB(LC.zimbra_index_lucene_ram_buffer_size_kb.intValue() / 1024.0);
         if (LC.zimbra_index_lucene_merge_policy.booleanValue()) {
@@ -797,30 +954,7 @@ public final class LuceneIndex extends IndexStore {
         @Override
         public void close() throws IOException {
             writer.index.commitWriter();
-            ZimbraIndexSearcher searcher = null;
-            if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                searcher = GAL_SEARCHER_CACHE.get(writer.getIndex().mailbox.getId());
-            } else {
-                searcher = SEARCHER_CACHE.getIfPresent(writer.getIndex().mailbox.getId());
-            }
-            if (searcher != null) {
-                ZimbraLuceneIndexReader ndxReader = (ZimbraLuceneIndexReader)searcher.getIndexReader();
-                IndexReader newReader = IndexReader.openIfChanged(ndxReader.getLuceneReader(), true);
-                if (newReader != null) {
-                    if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                        //make sure that we close the previous value associated with the key
-                        IOUtil.closeQuietly(GAL_SEARCHER_CACHE.put(writer.getIndex().mailbox.getId(),
-                                new IndexSearcherImpl(newReader)));
-                    } else {
-                        // Bug: 69870
-                        // No need to close the previous value associated with the key here.
-                        // CacheBuilder sends a callback using removalListener onRemoval(..)
-                        // which eventually closes IndexSearcher
-                        SEARCHER_CACHE.asMap().put(writer.getIndex().mailbox.getId(),
-                            new IndexSearcherImpl(newReader));
-                    }
-                }
-            }
+            writer.index.submitReopen();
         }
 
         @Override
@@ -926,6 +1060,21 @@ public final class LuceneIndex extends IndexStore {
             count.incrementAndGet();
         }
 
+        /**
+         * Like {@link #inc()}, but fails if the writer is already being closed.
+         */
+        boolean tryInc() {
+            while (true) {
+                int current = count.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (count.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
         void dec() {
             synchronized (index) {
                 if (count.decrementAndGet() <= 0) {
@@ -943,14 +1092,40 @@ public final class LuceneIndex extends IndexStore {
         private final AtomicInteger count = new AtomicInteger(1);
         private final IndexSearcher luceneSearcher;
         private final ZimbraIndexReader luceneReader;
+        private final boolean throttled; // holds a READER_THROTTLE permit
+        private volatile long generation;
 
-        IndexSearcherImpl(IndexReader reader) {
+        IndexSearcherImpl(IndexReader reader, long generation, boolean throttled) {
             luceneSearcher = new IndexSearcher(reader);
             luceneReader = new ZimbraLuceneIndexReader(luceneSearcher.getIndexReader());
+            this.generation = generation;
+            this.throttled = throttled;
         }
 
-        void inc() {
-            count.incrementAndGet();
+        /**
+         * Adds a reference, unless the searcher has already been closed.
+         */
+        boolean tryInc() {
+            while (true) {
+                int current = count.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (count.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return the commit generation of the index this searcher reflects
+         */
+        long getGeneration() {
+            return generation;
+        }
+
+        void setGeneration(long generation) {
+            this.generation = generation;
         }
 
         @Override
@@ -961,7 +1136,9 @@ public final class LuceneIndex extends IndexStore {
                     IOUtil.closeQuietly(luceneSearcher);
                 } finally {
                     IOUtil.closeQuietly(getIndexReader());
-                    READER_THROTTLE.release();
+                    if (throttled) {
+                        READER_THROTTLE.release();
+                    }
                 }
             }
         }
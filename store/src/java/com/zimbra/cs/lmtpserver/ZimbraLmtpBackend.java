@@ -28,7 +28,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.mail.MessagingException;
@@ -41,6 +46,8 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.lmtp.LmtpClient;
 import com.zimbra.common.lmtp.LmtpProtocolException;
@@ -76,6 +83,7 @@ import com.zimbra.cs.mailbox.QuotaWarning;
 import com.zimbra.cs.mime.ParsedMessage;
 import com.zimbra.cs.mime.ParsedMessageOptions;
 import com.zimbra.cs.service.util.ItemId;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.MailboxBlob;
@@ -87,6 +95,7 @@ public class ZimbraLmtpBackend implements LmtpBackend {
     private static List<LmtpCallback> callbacks = new CopyOnWriteArrayList<LmtpCallback>();
     private static Map<String, Set<Integer>> receivedMessageIDs;
     private static final LoadingCache<Integer, ReentrantLock> mailboxDeliveryLocks = createMailboxDeliveryLocks();
+    private static final ThreadPoolExecutor deliveryExecutor = createDeliveryExecutor();
 
     private final LmtpConfig config;
 
@@ -125,6 +134,33 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         return cache;
     }
 
+    /**
+     * Creates the pool of threads that help LMTP sessions deliver to many local recipients, or returns
+     * {@code null} if parallel delivery is disabled.
+     */
+    private static ThreadPoolExecutor createDeliveryExecutor() {
+        int threads = LC.zimbra_lmtp_delivery_threads.intValue();
+        if (threads <= 0) {
+            return null;
+        }
+        // no queue: when every thread is busy the LMTP thread simply delivers more of the message itself
+        return new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("LmtpDelivery-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Returns how many threads, including the LMTP thread, should deliver a message to the given number of
+     * local recipients.
+     */
+    private static int getDeliveryFanout(int numRecipients) {
+        if (deliveryExecutor == null) {
+            return 1;
+        }
+        int perThread = Math.max(LC.zimbra_lmtp_delivery_recipients_per_thread.intValue(), 1);
+        int wanted = (numRecipients + perThread - 1) / perThread;
+        return Math.max(Math.min(wanted, LC.zimbra_lmtp_delivery_max_fanout.intValue()), 1);
+    }
+
     @Override public LmtpReply getAddressStatus(LmtpAddress address) {
         String addr = address.getEmailAddress();
 
@@ -421,7 +457,6 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         throws ServiceException, IOException {
 
         List<LmtpAddress> recipients = env.getLocalRecipients();
-        String envSender = env.getSender().getEmailAddress();
 
         boolean shared = recipients.size() > 1;
         List<Integer> targetMailboxIds = new ArrayList<Integer>(recipients.size());
@@ -535,177 +570,8 @@ public class ZimbraLmtpBackend implements LmtpBackend {
 
             // We now know which addresses are valid and which ParsedMessage
             // version each recipient needs.  Deliver!
-            for (LmtpAddress recipient : recipients) {
-                String rcptEmail = recipient.getEmailAddress();
-                LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
-                RecipientDetail rd = rcptMap.get(recipient);
-                if (rd == null) {
-                    // Account or mailbox not found.
-                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
-                            envSender, rcptEmail);
-                    recipient.setDeliveryStatus(LmtpReply.PERMANENT_FAILURE);
-                    continue;
-                }
-                if (rd.account != null) {
-                    ZimbraLog.addAccountNameToContext(rd.account.getName());
-                }
-                if (rd.mbox != null) {
-                    ZimbraLog.addMboxToContext(rd.mbox.getId());
-                }
-
-                boolean success = false;
-                try {
-                    switch (rd.action) {
-                    case discard:
-                        ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
-                                envSender, rcptEmail);
-                        if (rd.account.getPrefMailForwardingAddress() != null) {
-                            // mail forwarding is set up
-                            for (LmtpCallback callback : callbacks) {
-                                ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, rd.pm);
-                            }
-                        }
-                        reply = LmtpReply.DELIVERY_OK;
-                        break;
-                    case deliver:
-                        Account account = rd.account;
-                        Mailbox mbox = rd.mbox;
-                        ParsedMessage pm = rd.pm;
-                        List<ItemId> addedMessageIds = null;
-                        ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
-                        boolean acquiredLock;
-                        try {
-                            // Wait for the lock, up to the timeout
-                            acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
-                        } catch (InterruptedException e) {
-                            acquiredLock = false;
-                        }
-                        if (!acquiredLock) {
-                            ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
-                                    envSender, rcptEmail);
-                            reply = LmtpReply.TEMPORARY_FAILURE;
-                            break;
-                        }
-                        try {
-                            if (dedupe(pm, mbox)) {
-                                // message was already delivered to this mailbox
-                                ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
-                            } else if (mbox.dedupeForSelfMsg(pm)) {
-                                ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
-                                        pm.getMessageID());
-
-                            } else if (recipient.getSkipFilters()) {
-                                msgId = pm.getMessageID();
-                                int folderId = Mailbox.ID_FOLDER_INBOX;
-                                if (recipient.getFolder() != null) {
-                                    try {
-                                        Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
-                                        folderId = folder.getId();
-                                    } catch (ServiceException se) {
-                                        if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
-                                            Folder folder = mbox.createFolder(null, recipient.getFolder(),
-                                                    new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
-                                            folderId = folder.getId();
-                                        } else {
-                                            throw se;
-                                        }
-                                    }
-                                }
-                                int flags = Flag.BITMASK_UNREAD;
-                                if (recipient.getFlags() != null) {
-                                    flags = Flag.toBitmask(recipient.getFlags());
-                                }
-                                DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
-                                dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
-                                Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                            } else if (!DebugConfig.disableIncomingFilter) {
-                                // Get msgid first, to avoid having to reopen and reparse the blob
-                                // file if Mailbox.addMessageInternal() closes it.
-                                pm.getMessageID();
-                                addedMessageIds = RuleManager.applyRulesToIncomingMessage(
-                                        null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, sharedDeliveryCtxt,
-                                        Mailbox.ID_FOLDER_INBOX, false, true);
-                            } else {
-                                pm.getMessageID();
-                                DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
-                                dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
-                                Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                            }
-                            success = true;
-                            if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                                addToDedupeCache(pm, mbox);
-                            }
-                        } finally {
-                            lock.unlock();
-                        }
-
-                        if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                            // Execute callbacks
-                            for (LmtpCallback callback : callbacks) {
-                                for (ItemId id : addedMessageIds) {
-                                    if (id.belongsTo(mbox)) {
-                                        // Message was added to the local mailbox, as opposed to a mountpoint.
-                                        ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                        try {
-                                            Message msg = mbox.getMessageById(null, id.getId());
-                                            callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
-                                        } catch (OutOfMemoryError oome) {
-                                            Zimbra.halt("LMTP callback failed", oome);
-                                        } catch (Throwable t) {
-                                            ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        reply = LmtpReply.DELIVERY_OK;
-                        break;
-                    case defer:
-                        // Delivery to mailbox skipped.  Let MTA retry again later.
-                        // This case happens for shared delivery to a mailbox in
-                        // backup mode.
-                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
-                                envSender, rcptEmail);
-                        reply = LmtpReply.TEMPORARY_FAILURE;
-                        break;
-                    }
-                } catch (DeliveryServiceException e) {
-                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
-                    reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
-                } catch (ServiceException e) {
-                    if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED)) {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
-                        if (config.isPermanentFailureWhenOverQuota()) {
-                            reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
-                        } else {
-                            reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
-                        }
-                    } else if (e.isReceiversFault()) {
-                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.TEMPORARY_FAILURE;
-                    } else {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.PERMANENT_FAILURE;
-                    }
-                } catch (Exception e) {
-                    reply = LmtpReply.TEMPORARY_FAILURE;
-                    ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                } finally {
-                    if (rd.action == DeliveryAction.deliver && !success) {
-                        // Message was not delivered.  Remove it from the dedupe
-                        // cache so we don't dedupe it on LMTP retry.
-                        removeFromDedupeCache(msgId, rd.mbox);
-                    }
-                    recipient.setDeliveryStatus(reply);
-                    if (shared && rd != null && rd.esd) {
-                        rd.mbox.endSharedDelivery();
-                        rd.esd = false;
-                    }
-                }
-            }
+            new LocalDelivery(env, blob, data, sharedDeliveryCtxt, rcptMap, msgId,
+                    pmAttachIndex, pmNoAttachIndex).run();
 
             // If this message is being streamed from disk, cache it
             ParsedMessage mimeSource = pmAttachIndex != null ? pmAttachIndex : pmNoAttachIndex;
@@ -739,6 +605,326 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         }
     }
 
+    /**
+     * Delivers one message to its local recipients.  Recipients are handed out in order from a shared cursor, so a
+     * message with many recipients can be worked on by the LMTP thread and by helpers from {@link #deliveryExecutor}
+     * at the same time.  {@code ParsedMessage} is not thread-safe, so each helper parses its own copy of the message.
+     */
+    private final class LocalDelivery {
+        private final LmtpEnvelope env;
+        private final String envSender;
+        private final Blob blob;
+        private final byte[] data;
+        private final DeliveryContext dctxt;
+        private final Map<LmtpAddress, RecipientDetail> rcptMap;
+        private final List<LmtpAddress> recipients;
+        private final String msgId;
+        private final ParsedMessage pmAttachIndex;
+        private final ParsedMessage pmNoAttachIndex;
+        private final AtomicInteger next = new AtomicInteger();
+
+        LocalDelivery(LmtpEnvelope env, Blob blob, byte[] data, DeliveryContext dctxt,
+                Map<LmtpAddress, RecipientDetail> rcptMap, String msgId,
+                ParsedMessage pmAttachIndex, ParsedMessage pmNoAttachIndex) {
+            this.env = env;
+            this.envSender = env.getSender().getEmailAddress();
+            this.blob = blob;
+            this.data = data;
+            this.dctxt = dctxt;
+            this.rcptMap = rcptMap;
+            this.recipients = env.getLocalRecipients();
+            this.msgId = msgId;
+            this.pmAttachIndex = pmAttachIndex;
+            this.pmNoAttachIndex = pmNoAttachIndex;
+        }
+
+        /**
+         * Delivers to every local recipient and returns once each of them has a delivery status.
+         */
+        void run() {
+            Lane own = new Lane(true, null);
+            // The first successful delivery logs the StoreIncomingBlob redo record and sets the MailboxBlob that
+            // later recipients link to, so keep going serially until that has happened.
+            while (dctxt.isFirst()) {
+                if (!own.deliverNext()) {
+                    return;
+                }
+            }
+            int remaining = recipients.size() - next.get();
+            int helpers = getDeliveryFanout(remaining) - 1;
+            if (helpers <= 0) {
+                own.deliverAll();
+                if (dctxt.getShared()) {
+                    ZimbraPerf.COUNTER_LMTP_FANOUT.increment(1);
+                }
+                return;
+            }
+
+            CountDownLatch done = new CountDownLatch(helpers);
+            int started = 0;
+            for (; started < helpers; started++) {
+                try {
+                    deliveryExecutor.execute(new Lane(false, done));
+                } catch (RejectedExecutionException e) {
+                    // every delivery thread is busy; this thread will pick up the slack
+                    break;
+                }
+            }
+            for (int i = started; i < helpers; i++) {
+                done.countDown();
+            }
+            ZimbraPerf.COUNTER_LMTP_FANOUT.increment(started + 1);
+            ZimbraLog.lmtp.debug("delivering to %d remaining recipients on %d threads", remaining, started + 1);
+
+            own.deliverAll();
+            // the incoming blob is deleted once we return, so wait for the helpers even if interrupted
+            Uninterruptibles.awaitUninterruptibly(done);
+        }
+
+        /**
+         * One thread's share of the delivery.
+         */
+        private final class Lane implements Runnable {
+            private final boolean primary;
+            private final CountDownLatch done;
+            private ParsedMessage attachIndexCopy;
+            private ParsedMessage noAttachIndexCopy;
+
+            Lane(boolean primary, CountDownLatch done) {
+                this.primary = primary;
+                this.done = done;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    deliverAll();
+                } catch (OutOfMemoryError oome) {
+                    Zimbra.halt("LMTP delivery failed", oome);
+                } catch (Throwable t) {
+                    ZimbraLog.lmtp.warn("LMTP delivery thread threw an exception", t);
+                } finally {
+                    ZimbraLog.clearContext();
+                    done.countDown();
+                }
+            }
+
+            void deliverAll() {
+                while (deliverNext()) {
+                    // keep claiming recipients until there are none left
+                }
+            }
+
+            /**
+             * Delivers to the next recipient nobody has claimed yet.
+             *
+             * @return false if there were no recipients left
+             */
+            boolean deliverNext() {
+                int i = next.getAndIncrement();
+                if (i >= recipients.size()) {
+                    return false;
+                }
+                long start = ZimbraPerf.STOPWATCH_LMTP_RCPT.start();
+                deliverTo(recipients.get(i), this);
+                ZimbraPerf.STOPWATCH_LMTP_RCPT.stop(start);
+                return true;
+            }
+
+            /**
+             * Returns this thread's version of one of the message's {@code ParsedMessage}s.
+             */
+            ParsedMessage parsedMessage(ParsedMessage pm) throws ServiceException, IOException {
+                if (primary || pm == null) {
+                    return pm;
+                } else if (pm == pmAttachIndex) {
+                    if (attachIndexCopy == null) {
+                        attachIndexCopy = new ParsedMessage(new ParsedMessageOptions(blob, data).setAttachmentIndexing(true));
+                    }
+                    return attachIndexCopy;
+                } else if (pm == pmNoAttachIndex) {
+                    if (noAttachIndexCopy == null) {
+                        noAttachIndexCopy = new ParsedMessage(new ParsedMessageOptions(blob, data).setAttachmentIndexing(false));
+                    }
+                    return noAttachIndexCopy;
+                }
+                return pm;
+            }
+        }
+
+        private void deliverTo(LmtpAddress recipient, Lane lane) {
+            String rcptEmail = recipient.getEmailAddress();
+            LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
+            RecipientDetail rd = rcptMap.get(recipient);
+            if (rd == null) {
+                // Account or mailbox not found.
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
+                        envSender, rcptEmail);
+                recipient.setDeliveryStatus(LmtpReply.PERMANENT_FAILURE);
+                return;
+            }
+            if (rd.account != null) {
+                ZimbraLog.addAccountNameToContext(rd.account.getName());
+            }
+            if (rd.mbox != null) {
+                ZimbraLog.addMboxToContext(rd.mbox.getId());
+            }
+
+            boolean success = false;
+            try {
+                switch (rd.action) {
+                case discard:
+                    ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
+                            envSender, rcptEmail);
+                    if (rd.account.getPrefMailForwardingAddress() != null) {
+                        ParsedMessage pm = lane.parsedMessage(rd.pm);
+                        // mail forwarding is set up
+                        for (LmtpCallback callback : callbacks) {
+                            ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                            callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, pm);
+                        }
+                    }
+                    reply = LmtpReply.DELIVERY_OK;
+                    break;
+                case deliver:
+                    Account account = rd.account;
+                    Mailbox mbox = rd.mbox;
+                    ParsedMessage pm = lane.parsedMessage(rd.pm);
+                    List<ItemId> addedMessageIds = null;
+                    ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
+                    boolean acquiredLock;
+                    try {
+                        // Wait for the lock, up to the timeout
+                        acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        acquiredLock = false;
+                    }
+                    if (!acquiredLock) {
+                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
+                                envSender, rcptEmail);
+                        reply = LmtpReply.TEMPORARY_FAILURE;
+                        break;
+                    }
+                    try {
+                        if (dedupe(pm, mbox)) {
+                            // message was already delivered to this mailbox
+                            ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
+                        } else if (mbox.dedupeForSelfMsg(pm)) {
+                            ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
+                                    pm.getMessageID());
+
+                        } else if (recipient.getSkipFilters()) {
+                            int folderId = Mailbox.ID_FOLDER_INBOX;
+                            if (recipient.getFolder() != null) {
+                                try {
+                                    Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
+                                    folderId = folder.getId();
+                                } catch (ServiceException se) {
+                                    if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
+                                        Folder folder = mbox.createFolder(null, recipient.getFolder(),
+                                                new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
+                                        folderId = folder.getId();
+                                    } else {
+                                        throw se;
+                                    }
+                                }
+                            }
+                            int flags = Flag.BITMASK_UNREAD;
+                            if (recipient.getFlags() != null) {
+                                flags = Flag.toBitmask(recipient.getFlags());
+                            }
+                            DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
+                            dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
+                            Message msg = mbox.addMessage(null, pm, dopt, dctxt);
+                            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                        } else if (!DebugConfig.disableIncomingFilter) {
+                            // Get msgid first, to avoid having to reopen and reparse the blob
+                            // file if Mailbox.addMessageInternal() closes it.
+                            pm.getMessageID();
+                            addedMessageIds = RuleManager.applyRulesToIncomingMessage(
+                                    null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, dctxt,
+                                    Mailbox.ID_FOLDER_INBOX, false, true);
+                        } else {
+                            pm.getMessageID();
+                            DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+                            dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
+                            Message msg = mbox.addMessage(null, pm, dopt, dctxt);
+                            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                        }
+                        success = true;
+                        if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                            addToDedupeCache(pm, mbox);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+
+                    if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                        // Execute callbacks
+                        for (LmtpCallback callback : callbacks) {
+                            for (ItemId id : addedMessageIds) {
+                                if (id.belongsTo(mbox)) {
+                                    // Message was added to the local mailbox, as opposed to a mountpoint.
+                                    ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                                    try {
+                                        Message msg = mbox.getMessageById(null, id.getId());
+                                        callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
+                                    } catch (OutOfMemoryError oome) {
+                                        Zimbra.halt("LMTP callback failed", oome);
+                                    } catch (Throwable t) {
+                                        ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    reply = LmtpReply.DELIVERY_OK;
+                    break;
+                case defer:
+                    // Delivery to mailbox skipped.  Let MTA retry again later.
+                    // This case happens for shared delivery to a mailbox in
+                    // backup mode.
+                    ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
+                            envSender, rcptEmail);
+                    reply = LmtpReply.TEMPORARY_FAILURE;
+                    break;
+                }
+            } catch (DeliveryServiceException e) {
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
+                reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
+            } catch (ServiceException e) {
+                if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED)) {
+                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
+                    if (config.isPermanentFailureWhenOverQuota()) {
+                        reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
+                    } else {
+                        reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
+                    }
+                } else if (e.isReceiversFault()) {
+                    ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+                    reply = LmtpReply.TEMPORARY_FAILURE;
+                } else {
+                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
+                    reply = LmtpReply.PERMANENT_FAILURE;
+                }
+            } catch (Exception e) {
+                reply = LmtpReply.TEMPORARY_FAILURE;
+                ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+            } finally {
+                if (rd.action == DeliveryAction.deliver && !success) {
+                    // Message was not delivered.  Remove it from the dedupe
+                    // cache so we don't dedupe it on LMTP retry.
+                    removeFromDedupeCache(msgId, rd.mbox);
+                }
+                recipient.setDeliveryStatus(reply);
+                if (dctxt.getShared() && rd.esd) {
+                    rd.mbox.endSharedDelivery();
+                    rd.esd = false;
+                }
+            }
+        }
+    }
+
     private void deliverMessageToRemoteMailboxes(Blob blob, byte[] data, LmtpEnvelope env) {
         Multimap<String, LmtpAddress> serverToRecipientsMap = env.getRemoteServerToRecipientsMap();
         for (String server : serverToRecipientsMap.keySet()) {
@@ -0,0 +1,261 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailboxListener.ChangeNotification;
+import com.zimbra.cs.session.PendingLocalModifications;
+import com.zimbra.cs.session.Session;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.KeyedSerialExecutor;
+
+/**
+ * Delivers the change notifications of one {@link Mailbox} to its {@link Session}s.  {@link MailboxListener}s are
+ * not involved; they keep shared caches consistent and are still notified by the committing thread under the lock.
+ * <p>
+ * Notifications are queued in commit order while the mailbox lock is held, and delivered by a thread pool shared by
+ * all mailboxes once the lock is released, so sessions no longer hold up other writers.  Every session has its own
+ * queue, which is delivered by one thread at a time and in commit order.  A session that is slow to take its
+ * notifications, e.g. an IMAP IDLE connection whose client stopped reading, only holds up its own queue, never the
+ * other sessions of the mailbox.  Whatever queued up for a session while its previous batch was being delivered goes
+ * out as the next batch, and within a batch, consecutive notifications from the same source session are merged into
+ * one.
+ * <p>
+ * The session a change was made through is the exception: it is notified by the committing thread before the mailbox
+ * lock is released, after anything still queued for it, so that e.g. an IMAP {@code STORE .SILENT} never sees its
+ * own changes come back as unsolicited responses.
+ * <p>
+ * After releasing the mailbox lock, a thread that committed changes waits for them to be delivered, so callers still
+ * find their own changes in their sessions (see {@code zimbra_mailbox_notify_wait}).  Threads also wait while too
+ * many notifications are queued for the mailbox (see {@code zimbra_mailbox_notify_max_pending}).
+ */
+public final class ChangeNotificationDispatcher {
+
+    private static final ExecutorService EXECUTOR;
+    static {
+        int threads = LC.zimbra_mailbox_notify_threads.intValue();
+        EXECUTOR = threads > 0 ? Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("MailboxNotify-%d").setDaemon(true).build()) : null;
+    }
+
+    private static final AtomicInteger PENDING = new AtomicInteger();
+
+    // set on the threads delivering notifications, which must never wait for deliveries themselves
+    private static final ThreadLocal<Boolean> DELIVERING = new ThreadLocal<Boolean>();
+
+    private final Mailbox mbox;
+    // notifications queued or being delivered, by session
+    private final KeyedSerialExecutor<Session, Pending> queues;
+    // notifications that haven't been delivered to all their sessions yet
+    private int undelivered = 0;
+    // last notification queued by each thread, until that thread has waited for it
+    private final ThreadLocal<Pending> lastEnqueued = new ThreadLocal<Pending>();
+
+    ChangeNotificationDispatcher(Mailbox mbox) {
+        this.mbox = mbox;
+        this.queues = EXECUTOR == null ? null : new KeyedSerialExecutor<Session, Pending>(EXECUTOR,
+                Integer.MAX_VALUE, new KeyedSerialExecutor.Handler<Session, Pending>() {
+            @Override
+            public void handle(Session session, List<Pending> batch) {
+                deliverBatch(session, batch);
+            }
+
+            @Override
+            public void rejected(Session session, List<Pending> batch) {
+                synchronized (ChangeNotificationDispatcher.this) {
+                    delivered(batch);
+                }
+            }
+        });
+    }
+
+    /** Returns the number of notifications queued for delivery across all mailboxes. */
+    public static int getPendingCount() {
+        return PENDING.get();
+    }
+
+    private static final class Pending {
+        final ChangeNotification notification;
+        final Session source;
+        // sessions the notification still has to be delivered to; guarded by the dispatcher
+        int remaining;
+
+        Pending(ChangeNotification notification, Session source, int remaining) {
+            this.notification = notification;
+            this.source = source;
+            this.remaining = remaining;
+        }
+    }
+
+    /**
+     * Queues a committed change for delivery.  Must be called with the mailbox write lock held, so that changes are
+     * queued in commit order.
+     *
+     * @param source the session the change was made through, if any
+     * @param sessions the sessions listening on the mailbox when the change was committed
+     */
+    void dispatch(ChangeNotification notification, Session source, Session[] sessions) {
+        if (sessions.length == 0) {
+            return;
+        }
+        Pending pending = new Pending(notification, source, sessions.length);
+        if (EXECUTOR == null) {
+            List<Pending> batch = new ArrayList<Pending>(1);
+            batch.add(pending);
+            for (Session session : sessions) {
+                deliver(session, batch);
+            }
+            return;
+        }
+        synchronized (this) {
+            undelivered++;
+        }
+        lastEnqueued.set(pending);
+        PENDING.incrementAndGet();
+        boolean own = false;
+        for (Session session : sessions) {
+            if (session == source) {
+                own = true;
+            } else {
+                queues.submit(session, pending);
+            }
+        }
+        if (own) {
+            // the session the change was made through gets it before the lock is released, or e.g. an IMAP client
+            // would be sent FETCH responses for its own STORE .SILENT after the command completed
+            queues.runNow(source, pending, LC.zimbra_mailbox_notify_wait_timeout_ms.longValue());
+        }
+    }
+
+    /**
+     * Called when the current thread no longer holds the mailbox lock.  If it queued notifications, waits until they
+     * have been delivered, and until the mailbox's backlog is down to the limit, but never for longer than
+     * {@code zimbra_mailbox_notify_wait_timeout_ms}.
+     */
+    void awaitDelivery() {
+        Pending last = lastEnqueued.get();
+        if (last == null) {
+            return; // nothing queued by this thread
+        }
+        lastEnqueued.remove();
+        if (DELIVERING.get() != null) {
+            return;
+        }
+        // a session's notifications are delivered in order, so once the last one is out, so are all the others
+        Pending own = LC.zimbra_mailbox_notify_wait.booleanValue() ? last : null;
+        long maxPending = Math.max(LC.zimbra_mailbox_notify_max_pending.longValue(), 0);
+        synchronized (this) {
+            if ((own == null || own.remaining == 0) && undelivered <= maxPending) {
+                return;
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        long deadline = start + LC.zimbra_mailbox_notify_wait_timeout_ms.longValue();
+        boolean interrupted = false;
+        synchronized (this) {
+            while ((own != null && own.remaining > 0) || undelivered > maxPending) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    ZimbraLog.mailbox.warn("gave up waiting for change notifications to be delivered (%d queued)",
+                            undelivered);
+                    break;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+            }
+        }
+        ZimbraPerf.COUNTER_NOTIFY_WAIT.increment(System.currentTimeMillis() - start);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deliverBatch(Session session, List<Pending> batch) {
+        // also set while delivering inline to the committing session, which is already held up by its own change
+        boolean nested = DELIVERING.get() != null;
+        if (!nested) {
+            DELIVERING.set(Boolean.TRUE);
+        }
+        long start = ZimbraPerf.STOPWATCH_NOTIFY.start();
+        try {
+            if (mbox.isListener(session)) { // unless it went away after the changes were committed
+                deliver(session, batch);
+            }
+        } finally {
+            if (!nested) {
+                DELIVERING.remove();
+            }
+            ZimbraPerf.STOPWATCH_NOTIFY.stop(start);
+            ZimbraPerf.COUNTER_NOTIFY_BATCH.increment(batch.size());
+            synchronized (this) {
+                delivered(batch);
+            }
+        }
+    }
+
+    // must be called with the dispatcher locked
+    private void delivered(List<Pending> batch) {
+        boolean done = false;
+        for (Pending pending : batch) {
+            if (--pending.remaining == 0) {
+                undelivered--;
+                PENDING.decrementAndGet();
+                done = true;
+            }
+        }
+        if (done) {
+            notifyAll();
+        }
+    }
+
+    private static void deliver(Session session, List<Pending> batch) {
+        for (int i = 0; i < batch.size(); ) {
+            Pending first = batch.get(i);
+            PendingLocalModifications mods = first.notification.mods;
+            int changeId = first.notification.lastChangeId;
+            int next = i + 1;
+            for (; next < batch.size() && batch.get(next).source == first.source; next++) {
+                if (mods == first.notification.mods) {
+                    // don't touch the original, the other sessions get it too
+                    mods = new PendingLocalModifications();
+                    mods.add(first.notification.mods);
+                }
+                mods.add(batch.get(next).notification.mods);
+                changeId = batch.get(next).notification.lastChangeId;
+            }
+            try {
+                session.notifyPendingChanges(mods, changeId, first.source);
+            } catch (RuntimeException e) {
+                ZimbraLog.mailbox.error("ignoring error during notification", e);
+            }
+            i = next;
+        }
+    }
+}
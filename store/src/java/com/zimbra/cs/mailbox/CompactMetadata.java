@@ -0,0 +1,364 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * Compact serialization of {@link Metadata}, written instead of BEncoding when
+ * {@code zimbra_metadata_compact_encoding} is set.
+ * <p>
+ * The METADATA column is text, so this is a tokenized format over chars rather than over bytes: string values are
+ * copied in as they are and can be cut straight back out of the encoded string.  Numbers are varints of 5-bit
+ * digits, least significant first, written as {@code '0'+digit} except for the last one, which is written as
+ * {@code 'P'+digit}.  An encoded value is {@code "#"}, the format version, and the top-level map.
+ * <ul>
+ *  <li>map: a varint entry count and the entries, sorted by key
+ *  <li>key: varint {@code k}; the key is {@code KEYS[k - 1]}, or for {@code k == 0} a varint length and the key
+ *  <li>value: a type char and then, for {@code 's'}, a varint length and the string; for {@code 'i'}, a zigzag
+ *      varint; for {@code 'd'}, a map; for {@code 'l'}, a varint element count and the values
+ * </ul>
+ * As with BEncoding, {@code Integer}s, {@code Short}s and {@code Byte}s are read back as {@code Long}s, maps as
+ * {@code HashMap}s, any other value as its {@code toString()}, and null keys and values are dropped.
+ */
+final class CompactMetadata {
+
+    static final char VERSION = '1';
+
+    private static final char PREFIX = '#';
+    private static final char MORE = '0', LAST = 'P';
+    private static final char STRING = 's', LONG = 'i', MAP = 'd', LIST = 'l';
+
+    /**
+     * Keys that are written as their position in this array.  Append only: never remove or reorder entries, as
+     * that would change the meaning of metadata already in the database.  The first 31 take a single char.
+     */
+    private static final String[] KEYS = {
+        // the most common keys in message, conversation and folder metadata
+        "f", "s", "t", "r", "c", "mdver", "ver", "ct", "att", "prt", "no", "sz", "u", "i4l", "i4r", "i4d", "i4du",
+        "mseq", "unxt", "a", "aclm", "l", "lst", "d", "e", "g", "rt", "vt", "xd", "rp", "id",
+        // everything else in Metadata
+        "acl", "ad", "aid", "ais", "ape", "aps", "cif", "comp", "cr", "das", "wosd", "de", "dee", "do", "dt", "ast",
+        "en", "fld", "idnt", "inv", "ld", "lo", "lt", "nc", "p", "q", "rd", "rev", "rid", "rl", "rs", "ruuid", "sd",
+        "sg", "rem", "tzm", "ua", "url", "v", "ww", "X",
+        // nested maps: ACL grants, contact attachments, calendar replies
+        "n", "k", "ie", "ge", "size", "name", "part", "ctype", "field", "at", "i",
+        // precomputed IMAP structures in message metadata
+        "i4bs", "i4env"
+    };
+
+    private static final Map<String, Integer> KEY_INDEX = new HashMap<String, Integer>(KEYS.length * 2);
+    static {
+        for (int i = 0; i < KEYS.length; i++) {
+            KEY_INDEX.put(KEYS[i], i);
+        }
+    }
+
+    static final class CompactMetadataException extends Exception {
+        private static final long serialVersionUID = -3281754902641125843L;
+
+        CompactMetadataException(String message) {
+            super(message);
+        }
+    }
+
+    private CompactMetadata() {
+    }
+
+    static boolean isEnabled() {
+        return LC.zimbra_metadata_compact_encoding.booleanValue();
+    }
+
+    static boolean isCompact(String encoded) {
+        return encoded != null && !encoded.isEmpty() && encoded.charAt(0) == PREFIX;
+    }
+
+    static String encode(Map<?, ?> map) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(PREFIX).append(VERSION);
+        encodeMap(sb, map);
+        return sb.toString();
+    }
+
+    private static void encodeVarint(StringBuilder sb, long value) {
+        while ((value & ~0x1FL) != 0) {
+            sb.append((char) (MORE + (value & 0x1F)));
+            value >>>= 5;
+        }
+        sb.append((char) (LAST + value));
+    }
+
+    private static void encodeString(StringBuilder sb, String s) {
+        encodeVarint(sb, s.length());
+        sb.append(s);
+    }
+
+    private static void encodeMap(StringBuilder sb, Map<?, ?> map) {
+        SortedMap<?, ?> tree = map instanceof SortedMap ? (SortedMap<?, ?>) map : new TreeMap<Object, Object>(map);
+        int count = 0;
+        for (Map.Entry<?, ?> entry : tree.entrySet()) {
+            if (entry.getKey() != null && entry.getValue() != null) {
+                count++;
+            }
+        }
+        encodeVarint(sb, count);
+        for (Map.Entry<?, ?> entry : tree.entrySet()) {
+            if (entry.getKey() != null && entry.getValue() != null) {
+                String key = entry.getKey().toString();
+                Integer index = KEY_INDEX.get(key);
+                if (index != null) {
+                    encodeVarint(sb, index + 1);
+                } else {
+                    encodeVarint(sb, 0);
+                    encodeString(sb, key);
+                }
+                encodeValue(sb, entry.getValue());
+            }
+        }
+    }
+
+    private static void encodeValue(StringBuilder sb, Object value) {
+        if (value instanceof Map) {
+            sb.append(MAP);
+            encodeMap(sb, (Map<?, ?>) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            int count = 0;
+            for (Object element : list) {
+                if (element != null) {
+                    count++;
+                }
+            }
+            sb.append(LIST);
+            encodeVarint(sb, count);
+            for (Object element : list) {
+                if (element != null) {
+                    encodeValue(sb, element);
+                }
+            }
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            long l = ((Number) value).longValue();
+            sb.append(LONG);
+            encodeVarint(sb, (l << 1) ^ (l >> 63));
+        } else {
+            sb.append(STRING);
+            encodeString(sb, value.toString());
+        }
+    }
+
+    /**
+     * A decoded top-level map that only indexes its keys up front.  Values are decoded each time they're asked
+     * for, so callers reading a handful of fields don't pay for the rest.  The whole encoding is checked when the
+     * reader is created, so a reader that was successfully created never fails later.
+     */
+    static final class Reader {
+        private final String encoded;
+        private final String[] keys;
+        private final int[] offsets;
+        private final boolean sorted;
+
+        Reader(String encoded) throws CompactMetadataException {
+            if (!isCompact(encoded) || encoded.length() < 2) {
+                throw new CompactMetadataException("missing compact metadata header");
+            } else if (encoded.charAt(1) != VERSION) {
+                throw new CompactMetadataException("unsupported compact metadata version " + encoded.charAt(1));
+            }
+            this.encoded = encoded;
+
+            Cursor in = new Cursor(encoded, 2);
+            int count = in.readCount();
+            keys = new String[count];
+            offsets = new int[count];
+            boolean inOrder = true;
+            for (int i = 0; i < count; i++) {
+                keys[i] = in.readKey();
+                offsets[i] = in.pos;
+                in.skipValue();
+                if (i > 0 && keys[i - 1].compareTo(keys[i]) >= 0) {
+                    inOrder = false;
+                }
+            }
+            if (in.pos != encoded.length()) {
+                throw new CompactMetadataException("trailing data after compact metadata");
+            }
+            sorted = inOrder;
+        }
+
+        int size() {
+            return keys.length;
+        }
+
+        List<String> keys() {
+            return Collections.unmodifiableList(Arrays.asList(keys));
+        }
+
+        private int indexOf(String key) {
+            if (sorted) {
+                int index = Arrays.binarySearch(keys, key);
+                return index < 0 ? -1 : index;
+            }
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        boolean containsKey(String key) {
+            return key != null && indexOf(key) >= 0;
+        }
+
+        Object get(String key) {
+            int index = key == null ? -1 : indexOf(key);
+            return index < 0 ? null : new Cursor(encoded, offsets[index]).readValue();
+        }
+
+        Map<Object, Object> toMap() {
+            Map<Object, Object> map = new HashMap<Object, Object>(keys.length * 2);
+            for (int i = 0; i < keys.length; i++) {
+                map.put(keys[i], new Cursor(encoded, offsets[i]).readValue());
+            }
+            return map;
+        }
+    }
+
+    private static final class Cursor {
+        private final String encoded;
+        int pos;
+
+        Cursor(String encoded, int pos) {
+            this.encoded = encoded;
+            this.pos = pos;
+        }
+
+        private char readChar() throws CompactMetadataException {
+            if (pos >= encoded.length()) {
+                throw new CompactMetadataException("truncated compact metadata");
+            }
+            return encoded.charAt(pos++);
+        }
+
+        private long readVarint() throws CompactMetadataException {
+            long value = 0;
+            for (int shift = 0; shift < 65; shift += 5) {
+                int digit = readChar() - MORE;
+                if (digit >= LAST - MORE && digit < LAST - MORE + 32) {
+                    return value | (long) (digit - (LAST - MORE)) << shift;
+                } else if (digit < 0 || digit >= 32) {
+                    throw new CompactMetadataException("invalid digit in compact metadata at " + (pos - 1));
+                }
+                value |= (long) digit << shift;
+            }
+            throw new CompactMetadataException("malformed varint in compact metadata at " + pos);
+        }
+
+        /** Reads a length or count, which must fit in what's left of the encoding. */
+        int readCount() throws CompactMetadataException {
+            long count = readVarint();
+            if (count < 0 || count > encoded.length() - pos) {
+                throw new CompactMetadataException("invalid length in compact metadata at " + pos + ": " + count);
+            }
+            return (int) count;
+        }
+
+        private String readString() throws CompactMetadataException {
+            int length = readCount();
+            pos += length;
+            return encoded.substring(pos - length, pos);
+        }
+
+        String readKey() throws CompactMetadataException {
+            long k = readVarint();
+            if (k == 0) {
+                return readString();
+            } else if (k > KEYS.length) {
+                throw new CompactMetadataException("unknown key index in compact metadata: " + k);
+            }
+            return KEYS[(int) k - 1];
+        }
+
+        void skipValue() throws CompactMetadataException {
+            char type = readChar();
+            switch (type) {
+                case STRING:
+                    int length = readCount();
+                    pos += length;
+                    break;
+                case LONG:
+                    readVarint();
+                    break;
+                case MAP:
+                    for (int count = readCount(); count > 0; count--) {
+                        readKey();
+                        skipValue();
+                    }
+                    break;
+                case LIST:
+                    for (int count = readCount(); count > 0; count--) {
+                        skipValue();
+                    }
+                    break;
+                default:
+                    throw new CompactMetadataException("unknown value type in compact metadata: " + type);
+            }
+        }
+
+        /** Decodes a value that has already been checked by {@link #skipValue}. */
+        Object readValue() {
+            try {
+                char type = readChar();
+                switch (type) {
+                    case STRING:
+                        return readString();
+                    case LONG:
+                        long zigzag = readVarint();
+                        return Long.valueOf((zigzag >>> 1) ^ -(zigzag & 1));
+                    case MAP:
+                        int size = readCount();
+                        Map<String, Object> map = new HashMap<String, Object>(Math.max(size * 2, 4));
+                        for (; size > 0; size--) {
+                            String key = readKey();
+                            map.put(key, readValue());
+                        }
+                        return map;
+                    case LIST:
+                        int count = readCount();
+                        List<Object> list = new ArrayList<Object>(count);
+                        for (; count > 0; count--) {
+                            list.add(readValue());
+                        }
+                        return list;
+                    default:
+                        throw new IllegalStateException("unknown value type in compact metadata: " + type);
+                }
+            } catch (CompactMetadataException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -21,9 +21,9 @@
 package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.MailboxBlob;
@@ -34,15 +34,17 @@ import com.zimbra.cs.store.MailboxBlob;
  * or more folders within the same mailbox due to filter rules.
  * 
  * This class is used to carry information across multiple calls to
- * Mailbox.addMessage() for a single message being delivered.
+ * Mailbox.addMessage() for a single message being delivered.  LMTP may
+ * deliver to several recipients at once, so the state is safe to share
+ * between threads once the first mailbox has been delivered to.
  */
 public class DeliveryContext {
 
     private boolean mShared;
-    private Blob mIncomingBlob;
-    private MailboxBlob mMailboxBlob;
+    private volatile Blob mIncomingBlob;
+    private volatile MailboxBlob mMailboxBlob;
     private List<Integer> mMailboxIdList;
-    private boolean mIsFirst = true;
+    private volatile boolean mIsFirst = true;
     private Map <Integer,Blob> mailBoxBlobMap;
 
     /**
@@ -64,7 +66,7 @@ public class DeliveryContext {
         mMailboxBlob = null;
         mMailboxIdList = mboxIdList;
         if (mShared) {
-            mailBoxBlobMap =  new HashMap<Integer,Blob>();
+            mailBoxBlobMap =  new ConcurrentHashMap<Integer,Blob>();
         }
     }
 
@@ -116,7 +118,11 @@ public class DeliveryContext {
 
     public void setMailBoxSpecificBlob(int id, Blob blob) {
         if(mailBoxBlobMap != null) {
-           mailBoxBlobMap.put(id, blob);
+            if (blob == null) {
+                mailBoxBlobMap.remove(id);
+            } else {
+                mailBoxBlobMap.put(id, blob);
+            }
         }
     }
 
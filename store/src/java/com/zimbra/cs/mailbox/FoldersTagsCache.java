@@ -17,7 +17,10 @@
 package com.zimbra.cs.mailbox;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.service.ServiceException;
@@ -26,17 +29,24 @@ import com.zimbra.common.util.memcached.MemcachedMap;
 import com.zimbra.common.util.memcached.MemcachedSerializer;
 import com.zimbra.common.util.memcached.ZimbraMemcachedClient;
 import com.zimbra.cs.memcached.MemcachedConnector;
+import com.zimbra.cs.memcached.MemcachedKeyPrefix;
 
 /**
  * Memcached-based cache of folders and tags of mailboxes.  Loading folders/tags from database is expensive,
  * so we cache them in memcached.  The cached data must be kept up to date as changes occur to a folder or
  * a tag.  Folder changes occur very frequently because creating/deleting an item in a folder updates the
  * folder state.
+ * <p>
+ * Each snapshot records the change id it was taken at.  Rather than writing a new snapshot every time a folder or
+ * tag changes, a mailbox may record just the ids of the folders and tags that changed since in a small
+ * {@link FoldersTagsChanges} entry, and read those from the database when it next loads the snapshot.  The ids are
+ * needed on top of the change id because updating the counts of a folder doesn't change its modified sequence.
  */
 public class FoldersTagsCache {
     private static FoldersTagsCache sTheInstance = new FoldersTagsCache();
 
     private MemcachedMap<FoldersTagsCacheKey, FoldersTags> mMemcachedLookup;
+    private MemcachedMap<FoldersTagsCacheKey, FoldersTagsChanges> mChangesLookup;
 
     public static FoldersTagsCache getInstance() { return sTheInstance; }
 
@@ -44,15 +54,18 @@ public class FoldersTagsCache {
         ZimbraMemcachedClient memcachedClient = MemcachedConnector.getClient();
         FoldersTagsSerializer serializer = new FoldersTagsSerializer();
         mMemcachedLookup = new MemcachedMap<FoldersTagsCacheKey, FoldersTags>(memcachedClient, serializer, false);
+        mChangesLookup = new MemcachedMap<FoldersTagsCacheKey, FoldersTagsChanges>(memcachedClient,
+                new FoldersTagsChangesSerializer(), false);
     }
 
     static class FoldersTags {
-        private static final int DATA_VERSION = 1;
+        private static final int DATA_VERSION = 2;
 
         private MetadataList mFolders;
         private MetadataList mTags;
+        private int mChangeId;
 
-        public FoldersTags(List<Folder> folders, List<Tag> tags) {
+        public FoldersTags(List<Folder> folders, List<Tag> tags, int changeId) {
             mFolders = new MetadataList();
             for (Folder f : folders) {
                 mFolders.add(f.serializeUnderlyingData());
@@ -61,22 +74,26 @@ public class FoldersTagsCache {
             for (Tag t : tags) {
                 mTags.add(t.serializeUnderlyingData());
             }
+            mChangeId = changeId;
         }
 
-        private FoldersTags(MetadataList folders, MetadataList tags) {
+        private FoldersTags(MetadataList folders, MetadataList tags, int changeId) {
             mFolders = folders;
             mTags = tags;
+            mChangeId = changeId;
         }
 
         private static final String FN_DATA_VERSION = "dv";
         private static final String FN_FOLDERS = "folders";
         private static final String FN_TAGS = "tags";
+        private static final String FN_CHANGE_ID = "cid";
 
         public Metadata encode() {
             Metadata meta = new Metadata();
             meta.put(FN_DATA_VERSION, DATA_VERSION);
             meta.put(FN_FOLDERS, mFolders);
             meta.put(FN_TAGS, mTags);
+            meta.put(FN_CHANGE_ID, mChangeId);
             return meta;
         }
 
@@ -88,7 +105,12 @@ public class FoldersTagsCache {
             }
             MetadataList folders = meta.getList(FN_FOLDERS);
             MetadataList tags = meta.getList(FN_TAGS);
-            return new FoldersTags(folders, tags);
+            return new FoldersTags(folders, tags, (int) meta.getLong(FN_CHANGE_ID));
+        }
+
+        /** Returns the change id of the mailbox when this snapshot was taken. */
+        public int getChangeId() {
+            return mChangeId;
         }
 
         public List<Metadata> getFolders() {
@@ -112,6 +134,60 @@ public class FoldersTagsCache {
         }
     }
 
+    /**
+     * Ids of the folders and tags that have changed since the snapshot taken at a given change id.
+     */
+    static class FoldersTagsChanges {
+        private static final int DATA_VERSION = 1;
+
+        private static final String FN_DATA_VERSION = "dv";
+        private static final String FN_SNAPSHOT_CHANGE_ID = "cid";
+        private static final String FN_IDS = "ids";
+
+        private final int mSnapshotChangeId;
+        private final Set<Integer> mIds;
+
+        public FoldersTagsChanges(int snapshotChangeId, Collection<Integer> ids) {
+            mSnapshotChangeId = snapshotChangeId;
+            mIds = new LinkedHashSet<Integer>(ids);
+        }
+
+        public Metadata encode() {
+            MetadataList ids = new MetadataList();
+            for (int id : mIds) {
+                ids.add(id);
+            }
+            Metadata meta = new Metadata();
+            meta.put(FN_DATA_VERSION, DATA_VERSION);
+            meta.put(FN_SNAPSHOT_CHANGE_ID, mSnapshotChangeId);
+            meta.put(FN_IDS, ids);
+            return meta;
+        }
+
+        public static FoldersTagsChanges decode(Metadata meta) throws ServiceException {
+            int ver = (int) meta.getLong(FN_DATA_VERSION, 0);
+            if (ver != DATA_VERSION) {
+                ZimbraLog.mailbox.info("Ignoring cached folder/tag changes with stale data version");
+                return null;
+            }
+            MetadataList list = meta.getList(FN_IDS);
+            List<Integer> ids = new ArrayList<Integer>(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                ids.add(list.getInt(i));
+            }
+            return new FoldersTagsChanges((int) meta.getLong(FN_SNAPSHOT_CHANGE_ID), ids);
+        }
+
+        /** Returns the change id of the snapshot these changes apply to. */
+        public int getSnapshotChangeId() {
+            return mSnapshotChangeId;
+        }
+
+        public Set<Integer> getIds() {
+            return mIds;
+        }
+    }
+
     private static class FoldersTagsSerializer implements MemcachedSerializer<FoldersTags> {
         FoldersTagsSerializer() { }
 
@@ -127,6 +203,25 @@ public class FoldersTagsCache {
         }
     }
 
+    private static class FoldersTagsChangesSerializer implements MemcachedSerializer<FoldersTagsChanges> {
+        FoldersTagsChangesSerializer() { }
+
+        @Override
+        public Object serialize(FoldersTagsChanges value) {
+            return value.encode().toString();
+        }
+
+        @Override
+        public FoldersTagsChanges deserialize(Object obj) throws ServiceException {
+            Metadata meta = new Metadata((String) obj);
+            return FoldersTagsChanges.decode(meta);
+        }
+    }
+
+    private static FoldersTagsCacheKey getChangesKey(Mailbox mbox) {
+        return new FoldersTagsCacheKey(MemcachedKeyPrefix.MBOX_FOLDERS_TAGS_CHANGES, mbox.getAccountId());
+    }
+
     public FoldersTags get(Mailbox mbox) throws ServiceException {
         FoldersTagsCacheKey key = new FoldersTagsCacheKey(mbox.getAccountId());
         return mMemcachedLookup.get(key);
@@ -140,11 +235,23 @@ public class FoldersTagsCache {
         mMemcachedLookup.put(key, foldersTags);
     }
 
+    public FoldersTagsChanges getChanges(Mailbox mbox) throws ServiceException {
+        return mChangesLookup.get(getChangesKey(mbox));
+    }
+
+    public void putChanges(Mailbox mbox, FoldersTagsChanges changes) throws ServiceException {
+        if (DebugConfig.disableFoldersTagsCache)
+            return;
+
+        mChangesLookup.put(getChangesKey(mbox), changes);
+    }
+
     public void purgeMailbox(Mailbox mbox) throws ServiceException {
         if (DebugConfig.disableFoldersTagsCache)
             return;
 
         FoldersTagsCacheKey key = new FoldersTagsCacheKey(mbox.getAccountId());
         mMemcachedLookup.remove(key);
+        mChangesLookup.remove(getChangesKey(mbox));
     }
 }
@@ -21,16 +21,22 @@ import com.zimbra.common.util.memcached.MemcachedKey;
 import com.zimbra.cs.memcached.MemcachedKeyPrefix;
 
 public class FoldersTagsCacheKey implements MemcachedKey {
+    private String mKeyPrefix;
     private String mKeyStr;
 
     public FoldersTagsCacheKey(String accountId) {
+        this(MemcachedKeyPrefix.MBOX_FOLDERS_TAGS, accountId);
+    }
+
+    FoldersTagsCacheKey(String keyPrefix, String accountId) {
+        mKeyPrefix = keyPrefix;
         mKeyStr = accountId;
     }
 
     public boolean equals(Object other) {
         if (other instanceof FoldersTagsCacheKey) {
             FoldersTagsCacheKey otherKey = (FoldersTagsCacheKey) other;
-            return mKeyStr.equals(otherKey.mKeyStr);
+            return mKeyPrefix.equals(otherKey.mKeyPrefix) && mKeyStr.equals(otherKey.mKeyStr);
         }
         return false;
     }
@@ -40,6 +46,6 @@ public class FoldersTagsCacheKey implements MemcachedKey {
     }
 
     // MemcachedKey interface
-    public String getKeyPrefix() { return MemcachedKeyPrefix.MBOX_FOLDERS_TAGS; }
+    public String getKeyPrefix() { return mKeyPrefix; }
     public String getKeyValue() { return mKeyStr; }
 }
@@ -0,0 +1,544 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Sets;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * A mailbox's cache of {@link MailItem}s other than folders and tags.
+ * <p>
+ * Items are held in an int-keyed hash table, so that looking one up doesn't box its id, and are kept in access
+ * order.  Each is weighed by its {@link MailItem#getEstimatedSize() estimated size}: {@link Mailbox} trims its cache
+ * to an item count and to {@code zimbra_mailbox_item_cache_max_bytes} after every transaction, and the caches of
+ * all loaded mailboxes together are held to {@code zimbra_mailbox_item_cache_heap_percent} of the heap by evicting
+ * the least recently used items of the least recently used mailboxes.  Estimated sizes are reported per mailbox
+ * through JMX.
+ * <p>
+ * In always-on mode, items are cached in memcached instead.
+ */
+public final class ItemCache {
+
+    private static final int NONE = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    // estimated size of all the caches of loaded mailboxes
+    private static final AtomicLong totalBytes = new AtomicLong();
+    private static final Set<CacheReference> caches = Sets.newConcurrentHashSet();
+    private static final ReferenceQueue<ItemCache> collected = new ReferenceQueue<ItemCache>();
+    private static final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final Mailbox mbox;
+    private final boolean isAlwaysOn;
+    private final AtomicLong bytes = new AtomicLong(); // outlives the cache, so that it can be deducted from the total
+    private final AtomicInteger pins = new AtomicInteger();
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    // the hash table, guarded by this: a chain of entries per bucket, and entries in parallel arrays
+    private int[] buckets;
+    private int[] ids;
+    private MailItem[] items;
+    private int[] weights;
+    private int[] chain; // next entry in the bucket, or next free entry
+    private int[] older;
+    private int[] newer;
+    private int eldest, newest, free, used, count;
+    private final Map<String, MailItem> byUuid = new HashMap<String, MailItem>();
+
+    ItemCache(Mailbox mbox) {
+        this.mbox = mbox;
+        this.isAlwaysOn = Zimbra.isAlwaysOn();
+        allocate(MIN_CAPACITY);
+        if (!isAlwaysOn) {
+            caches.add(new CacheReference(this));
+        }
+    }
+
+    private static final class CacheReference extends WeakReference<ItemCache> {
+        final int mailboxId;
+        final AtomicLong bytes;
+
+        CacheReference(ItemCache cache) {
+            super(cache, collected);
+            mailboxId = cache.mbox.getId();
+            bytes = cache.bytes;
+        }
+    }
+
+    void put(MailItem item) {
+        if (isAlwaysOn) {
+            try {
+                MemcachedItemCache.getInstance().put(mbox, item);
+            } catch (ServiceException e) {
+                ZimbraLog.mailbox.error("error while writing item to cache", e);
+            }
+            return;
+        }
+        int id = item.getId();
+        int weight = item.getEstimatedSize();
+        synchronized (this) {
+            int entry = find(id);
+            if (entry == NONE) {
+                entry = newEntry(id);
+            } else {
+                unindex(items[entry]);
+                unlink(entry);
+            }
+            linkNewest(entry);
+            items[entry] = item;
+            addBytes(weight - weights[entry]);
+            weights[entry] = weight;
+            String uuid = item.getUuid();
+            if (uuid != null) {
+                byUuid.put(uuid, item);
+            }
+        }
+        lastAccess = System.currentTimeMillis();
+    }
+
+    MailItem get(int id) {
+        if (isAlwaysOn) {
+            MailItem item = null;
+            try {
+                item = MemcachedItemCache.getInstance().get(mbox, id);
+            } catch (ServiceException e) {
+                ZimbraLog.mailbox.error("error while fetching item from cache", e);
+            }
+            return item;
+        }
+        lastAccess = System.currentTimeMillis();
+        synchronized (this) {
+            return touch(find(id));
+        }
+    }
+
+    /**
+     * Looks up several items at once.  In always-on mode, they're fetched from memcached in a single batch rather
+     * than a round trip each.
+     *
+     * @return the items that were cached, by id
+     */
+    Map<Integer, MailItem> get(Collection<Integer> ids) {
+        if (isAlwaysOn) {
+            try {
+                return MemcachedItemCache.getInstance().get(mbox, ids);
+            } catch (ServiceException e) {
+                ZimbraLog.mailbox.error("error while fetching items from cache", e);
+                return Collections.emptyMap();
+            }
+        }
+        Map<Integer, MailItem> found = new HashMap<Integer, MailItem>(ids.size() * 2);
+        for (int id : ids) {
+            MailItem item = get(id);
+            if (item != null) {
+                found.put(id, item);
+            }
+        }
+        return found;
+    }
+
+    MailItem get(String uuid) {
+        if (isAlwaysOn) {
+            MailItem item = null;
+            try {
+                item = MemcachedItemCache.getInstance().get(mbox, uuid);
+            } catch (ServiceException e) {
+                ZimbraLog.mailbox.error("error while fetching item from cache", e);
+            }
+            return item;
+        }
+        lastAccess = System.currentTimeMillis();
+        synchronized (this) {
+            MailItem item = byUuid.get(uuid);
+            // look the item up by id as well to preserve the access order
+            return item == null ? null : touch(find(item.getId()));
+        }
+    }
+
+    MailItem remove(MailItem item) {
+        return remove(item.getId());
+    }
+
+    MailItem remove(int id) {
+        if (isAlwaysOn) {
+            MailItem removed = null;
+            try {
+                removed = MemcachedItemCache.getInstance().remove(mbox, id);
+            } catch (ServiceException e) {
+                ZimbraLog.mailbox.error("error while removing item from cache", e);
+            }
+            return removed;
+        }
+        synchronized (this) {
+            int entry = find(id);
+            if (entry == NONE) {
+                return null;
+            }
+            MailItem removed = items[entry];
+            removeEntry(entry);
+            shrink();
+            return removed;
+        }
+    }
+
+    boolean contains(MailItem item) {
+        if (isAlwaysOn) {
+            try {
+                return MemcachedItemCache.getInstance().get(mbox, item.getId()) != null;
+            } catch (ServiceException e) {
+                ZimbraLog.mailbox.error("error while checking item cache", e);
+                return false;
+            }
+        }
+        synchronized (this) {
+            return find(item.getId()) != NONE;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the cached items, least recently used first.
+     */
+    Collection<MailItem> values() {
+        if (isAlwaysOn) {
+            return Collections.emptyList();
+        }
+        synchronized (this) {
+            List<MailItem> values = new ArrayList<MailItem>(count);
+            for (int entry = eldest; entry != NONE; entry = newer[entry]) {
+                values.add(items[entry]);
+            }
+            return values;
+        }
+    }
+
+    synchronized int size() {
+        return isAlwaysOn ? 0 : count;
+    }
+
+    /** Returns the estimated size of the cached items. */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    synchronized void clear() {
+        addBytes(-bytes.get());
+        byUuid.clear();
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Returns the least recently used item if the cache holds more than {@code maxCount} items or more than
+     * {@code maxBytes}, otherwise null.  A single item is never reported for being too big, as that would evict
+     * it after every transaction.
+     */
+    synchronized MailItem getEldest(int maxCount, long maxBytes) {
+        if (count > maxCount || (count > 1 && bytes.get() > maxBytes)) {
+            return items[eldest];
+        }
+        return null;
+    }
+
+    /**
+     * Marks the cache as used by a transaction, which keeps other mailboxes from evicting its items to stay within
+     * the server-wide budget.  Synchronized so that it waits for an eviction already under way.
+     */
+    synchronized void pin() {
+        pins.incrementAndGet();
+    }
+
+    void unpin() {
+        pins.decrementAndGet();
+    }
+
+    /**
+     * Evicts the least recently used items, without cascading to their children, until at least {@code target}
+     * bytes have been freed or the cache is empty.  Nothing is evicted while the cache is pinned.
+     *
+     * @return bytes freed
+     */
+    synchronized long evict(long target) {
+        if (pins.get() != 0) {
+            // pinned since it was picked for eviction
+            return 0;
+        }
+        long freed = 0;
+        while (eldest != NONE && freed < target) {
+            freed += weights[eldest];
+            removeEntry(eldest);
+        }
+        shrink();
+        return freed;
+    }
+
+    private void addBytes(long delta) {
+        if (delta != 0) {
+            bytes.addAndGet(delta);
+            totalBytes.addAndGet(delta);
+        }
+    }
+
+    private MailItem touch(int entry) {
+        if (entry == NONE) {
+            return null;
+        }
+        if (entry != newest) {
+            unlink(entry);
+            linkNewest(entry);
+        }
+        return items[entry];
+    }
+
+    private int bucket(int id) {
+        return (id ^ (id >>> 16)) & (buckets.length - 1);
+    }
+
+    private int find(int id) {
+        for (int entry = buckets[bucket(id)]; entry != NONE; entry = chain[entry]) {
+            if (ids[entry] == id) {
+                return entry;
+            }
+        }
+        return NONE;
+    }
+
+    private int newEntry(int id) {
+        int entry;
+        if (free != NONE) {
+            entry = free;
+            free = chain[entry];
+        } else {
+            if (used == ids.length) {
+                rehash(ids.length * 2);
+            }
+            entry = used++;
+        }
+        ids[entry] = id;
+        weights[entry] = 0;
+        int bucket = bucket(id);
+        chain[entry] = buckets[bucket];
+        buckets[bucket] = entry;
+        count++;
+        return entry;
+    }
+
+    private void removeEntry(int entry) {
+        int bucket = bucket(ids[entry]);
+        if (buckets[bucket] == entry) {
+            buckets[bucket] = chain[entry];
+        } else {
+            int prev = buckets[bucket];
+            while (chain[prev] != entry) {
+                prev = chain[prev];
+            }
+            chain[prev] = chain[entry];
+        }
+        unlink(entry);
+        unindex(items[entry]);
+        addBytes(-weights[entry]);
+        items[entry] = null;
+        weights[entry] = 0;
+        chain[entry] = free;
+        free = entry;
+        count--;
+    }
+
+    private void unindex(MailItem item) {
+        String uuid = item.getUuid();
+        if (uuid != null && byUuid.get(uuid) == item) {
+            byUuid.remove(uuid);
+        }
+    }
+
+    private void linkNewest(int entry) {
+        older[entry] = newest;
+        newer[entry] = NONE;
+        if (newest == NONE) {
+            eldest = entry;
+        } else {
+            newer[newest] = entry;
+        }
+        newest = entry;
+    }
+
+    private void unlink(int entry) {
+        if (older[entry] == NONE) {
+            eldest = newer[entry];
+        } else {
+            newer[older[entry]] = newer[entry];
+        }
+        if (newer[entry] == NONE) {
+            newest = older[entry];
+        } else {
+            older[newer[entry]] = older[entry];
+        }
+    }
+
+    /** Gives back the space of a cache that has been trimmed well below its peak. */
+    private void shrink() {
+        if (ids.length > MIN_CAPACITY && count < ids.length / 4) {
+            rehash(Math.max(MIN_CAPACITY, ids.length / 2));
+        }
+    }
+
+    private void allocate(int capacity) {
+        buckets = new int[capacity];
+        Arrays.fill(buckets, NONE);
+        ids = new int[capacity];
+        items = new MailItem[capacity];
+        weights = new int[capacity];
+        chain = new int[capacity];
+        older = new int[capacity];
+        newer = new int[capacity];
+        eldest = newest = free = NONE;
+        used = count = 0;
+    }
+
+    /** Copies the entries into new arrays of the given capacity, compacting them in access order. */
+    private void rehash(int capacity) {
+        int[] oldIds = ids;
+        MailItem[] oldItems = items;
+        int[] oldWeights = weights;
+        int[] oldNewer = newer;
+        int oldEldest = eldest;
+        int oldCount = count;
+        allocate(capacity);
+        for (int entry = oldEldest; entry != NONE; entry = oldNewer[entry]) {
+            int copy = used++;
+            ids[copy] = oldIds[entry];
+            items[copy] = oldItems[entry];
+            weights[copy] = oldWeights[entry];
+            int bucket = bucket(ids[copy]);
+            chain[copy] = buckets[bucket];
+            buckets[bucket] = copy;
+            linkNewest(copy);
+        }
+        count = oldCount;
+    }
+
+    /**
+     * Returns the server-wide budget for the estimated size of all item caches, or 0 for no limit.
+     */
+    public static long getMaxTotalBytes() {
+        int percent = LC.zimbra_mailbox_item_cache_heap_percent.intValue();
+        return percent <= 0 ? 0 : Runtime.getRuntime().maxMemory() / 100 * Math.min(percent, 100);
+    }
+
+    /** Returns the estimated size of the item caches of all loaded mailboxes. */
+    public static long getTotalBytes() {
+        expungeCollected();
+        return totalBytes.get();
+    }
+
+    /** Returns the estimated size of the item cache of each loaded mailbox, by mailbox id. */
+    public static Map<Integer, Long> getMailboxBytes() {
+        expungeCollected();
+        Map<Integer, Long> result = new TreeMap<Integer, Long>();
+        for (CacheReference ref : caches) {
+            long size = ref.bytes.get();
+            if (size > 0 && ref.get() != null) {
+                Long previous = result.get(ref.mailboxId);
+                result.put(ref.mailboxId, previous == null ? size : previous + size);
+            }
+        }
+        return result;
+    }
+
+    /** Deducts the caches of mailboxes that have been garbage collected from the total. */
+    private static void expungeCollected() {
+        for (Reference<? extends ItemCache> ref; (ref = collected.poll()) != null;) {
+            CacheReference cacheRef = (CacheReference) ref;
+            if (caches.remove(cacheRef)) {
+                totalBytes.addAndGet(-cacheRef.bytes.get());
+            }
+        }
+    }
+
+    /**
+     * Evicts items from the caches of the least recently used mailboxes that aren't in a transaction until the
+     * total is 10% below the server-wide budget, if it's over.  Only one thread evicts at a time; the others carry
+     * on.
+     */
+    static void enforceBudget() {
+        expungeCollected();
+        long limit = getMaxTotalBytes();
+        if (limit <= 0 || totalBytes.get() <= limit || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long target = limit - limit / 10;
+            List<Candidate> candidates = new ArrayList<Candidate>();
+            for (CacheReference ref : caches) {
+                ItemCache cache = ref.get();
+                if (cache != null && cache.pins.get() == 0 && ref.bytes.get() > 0) {
+                    candidates.add(new Candidate(cache));
+                }
+            }
+            Collections.sort(candidates, Candidate.LEAST_RECENTLY_USED);
+            long freed = 0;
+            int mailboxes = 0;
+            for (Candidate candidate : candidates) {
+                long excess = totalBytes.get() - target;
+                if (excess <= 0) {
+                    break;
+                }
+                freed += candidate.cache.evict(excess);
+                mailboxes++;
+            }
+            ZimbraLog.cache.debug("evicted %d bytes of items from the caches of %d mailboxes", freed, mailboxes);
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static final class Candidate {
+        static final Comparator<Candidate> LEAST_RECENTLY_USED = new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate c1, Candidate c2) {
+                return Long.compare(c1.lastAccess, c2.lastAccess);
+            }
+        };
+
+        final ItemCache cache;
+        final long lastAccess; // a snapshot, so that the sort order doesn't change under us
+
+        Candidate(ItemCache cache) {
+            this.cache = cache;
+            this.lastAccess = cache.lastAccess;
+        }
+    }
+}
@@ -774,6 +774,7 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
                                                  // color map with 9 fixed colors.
     protected CustomMetadataList mExtendedData;
     protected ACL                rights;
+    private int                  estimatedSize;
 
     MailItem(Mailbox mbox, UnderlyingData data) throws ServiceException {
         this(mbox, data, false);
@@ -788,6 +789,7 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         mMailbox = mbox;
         decodeMetadata(mData.metadata);
         checkItemCreationAllowed(); // this check may rely on decoded metadata
+        updateEstimatedSize(mData.metadata);
         mData.metadata = null;
 
         if (!skipCache && ((data.getFlags() & Flag.BITMASK_UNCACHED) == 0)) {
@@ -1027,6 +1029,25 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         return Strings.nullToEmpty(mData.getSubject());
     }
 
+    /** rough heap footprint of a {@code MailItem} and its {@code UnderlyingData} without any metadata */
+    private static final int ITEM_OVERHEAD = 512;
+
+    /**
+     * Returns a rough estimate of the heap retained by this item, for sizing the item cache.  Decoded metadata
+     * takes up roughly four bytes for each char of its encoding, so this is mostly proportional to the metadata
+     * as it was when the item was loaded or last saved: a calendar item with hundreds of invites weighs far more
+     * than a short message.
+     */
+    int getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    private void updateEstimatedSize(String metadata) {
+        long chars = Strings.nullToEmpty(metadata).length() + Strings.nullToEmpty(mData.getSubject()).length() +
+                Strings.nullToEmpty(mData.name).length();
+        estimatedSize = (int) Math.min(Integer.MAX_VALUE, ITEM_OVERHEAD + chars * 4);
+    }
+
     /** Returns the item's underlying storage data so that it may be persisted
      *  somewhere besides the database - usually in encoded form. */
     public UnderlyingData getUnderlyingData() {
@@ -3486,13 +3507,12 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         mVersion = (int) meta.getLong(Metadata.FN_VERSION, 1);
 
         mExtendedData = null;
-        for (Map.Entry<String, ?> entry : meta.asMap().entrySet()) {
-            String key = entry.getKey();
+        for (String key : meta.keys()) {
             if (key.startsWith(CUSTOM_META_PREFIX)) {
                 if (mExtendedData == null) {
                     mExtendedData = new CustomMetadataList();
                 }
-                mExtendedData.addSection(key.substring(CUSTOM_META_PREFIX.length()), entry.getValue().toString());
+                mExtendedData.addSection(key.substring(CUSTOM_META_PREFIX.length()), meta.get(key, null));
             }
         }
 
@@ -3537,6 +3557,7 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
 
     protected void saveMetadata(String metadata) throws ServiceException {
         metadataChanged();
+        updateEstimatedSize(metadata);
         if (ZimbraLog.mailop.isDebugEnabled()) {
             ZimbraLog.mailop.debug("saving metadata for " + getMailopContext(this));
         }
@@ -21,7 +21,6 @@ import java.io.InputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -136,6 +135,7 @@ import com.zimbra.cs.mailbox.CalendarItem.AlarmData;
 import com.zimbra.cs.mailbox.CalendarItem.Callback;
 import com.zimbra.cs.mailbox.CalendarItem.ReplyInfo;
 import com.zimbra.cs.mailbox.FoldersTagsCache.FoldersTags;
+import com.zimbra.cs.mailbox.FoldersTagsCache.FoldersTagsChanges;
 import com.zimbra.cs.mailbox.MailItem.CustomMetadata;
 import com.zimbra.cs.mailbox.MailItem.PendingDelete;
 import com.zimbra.cs.mailbox.MailItem.TargetConstraint;
@@ -501,7 +501,10 @@ public class Mailbox implements MailboxStore {
             this.sync = null;
             this.config = null;
             this.deletes = null;
-            this.itemCache = null;
+            if (this.itemCache != null) {
+                this.itemCache.unpin();
+                this.itemCache = null;
+            }
             this.indexItems.clear();
             this.dirty.clear();
             this.otherDirtyStuff.clear();
@@ -597,128 +600,6 @@ public class Mailbox implements MailboxStore {
         }
     }
 
-    private static class ItemCache {
-        private final Map<Integer /* id */, MailItem> mapById;
-        private final Map<String /* uuid */, Integer /* id */> uuid2id;
-        private final Mailbox mbox;
-        private boolean isAlwaysOn = false;
-
-        public ItemCache(Mailbox mbox) {
-            mapById = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>().maximumWeightedCapacity(
-                            MAX_ITEM_CACHE_WITH_LISTENERS).build();
-            uuid2id = new ConcurrentHashMap<String, Integer>(MAX_ITEM_CACHE_WITH_LISTENERS);
-            this.mbox = mbox;
-            this.isAlwaysOn = Zimbra.isAlwaysOn();
-        }
-
-        public void put(MailItem item) {
-            if (isAlwaysOn) {
-                try {
-                    MemcachedItemCache.getInstance().put(mbox, item);
-                } catch (ServiceException e) {
-                    ZimbraLog.mailbox.error("error while writing item to cache", e);
-                }
-            } else {
-                int id = item.getId();
-                mapById.put(id, item);
-                String uuid = item.getUuid();
-                if (uuid != null) {
-                    uuid2id.put(uuid, id);
-                }
-            }
-        }
-
-        public MailItem get(int id) {
-            if (isAlwaysOn) {
-                MailItem item = null;
-                try {
-                    item = MemcachedItemCache.getInstance().get(mbox, id);
-                } catch (ServiceException e) {
-                    ZimbraLog.mailbox.error("error while fetching item from cache", e);
-                }
-                return item;
-            } else {
-                return mapById.get(id);
-            }
-        }
-
-        public MailItem get(String uuid) {
-            if (isAlwaysOn) {
-                MailItem item = null;
-                try {
-                    item = MemcachedItemCache.getInstance().get(mbox, uuid);
-                } catch (ServiceException e) {
-                    ZimbraLog.mailbox.error("error while fetching item from cache", e);
-                }
-                return item;
-            } else {
-                // Always fetch item from mapById map to preserve LRU's access time ordering.
-                Integer id = uuid2id.get(uuid);
-                return id != null ? mapById.get(id) : null;
-            }
-        }
-
-        public MailItem remove(MailItem item) {
-            return remove(item.getId());
-        }
-
-        public MailItem remove(int id) {
-            if (isAlwaysOn) {
-                MailItem removed = null;
-                try {
-                    removed = MemcachedItemCache.getInstance().remove(mbox, id);
-                } catch (ServiceException e) {
-                    ZimbraLog.mailbox.error("error while removing item from cache", e);
-                }
-                return removed;
-            } else {
-                MailItem removed = mapById.remove(id);
-                if (removed != null) {
-                    String uuid = removed.getUuid();
-                    if (uuid != null) {
-                        uuid2id.remove(uuid);
-                    }
-                }
-                return removed;
-            }
-        }
-
-        public boolean contains(MailItem item) {
-            if (isAlwaysOn) {
-                try {
-                    return MemcachedItemCache.getInstance().get(mbox, item.getId()) != null;
-                } catch (ServiceException e) {
-                    ZimbraLog.mailbox.error("error while checking item cache", e);
-                    return false;
-                }
-            } else {
-                return mapById.containsKey(item.getId());
-            }
-        }
-
-        public Collection<MailItem> values() {
-            if (isAlwaysOn) {
-                // return empty list
-                return Collections.emptyList();
-            } else {
-                return mapById.values();
-            }
-        }
-
-        public int size() {
-            if (isAlwaysOn) {
-                return 0;
-            } else {
-                return mapById.size();
-            }
-        }
-
-        public void clear() {
-            mapById.clear();
-            uuid2id.clear();
-        }
-    }
-
     // This class handles all the indexing internals for the Mailbox
     public final MailboxIndex index;
     public final MailboxLock lock;
@@ -740,10 +621,15 @@ public class Mailbox implements MailboxStore {
     private MailboxData mData;
     private final ThreadLocal<MailboxChange> threadChange = new ThreadLocal<MailboxChange>();
     private final List<Session> mListeners = new CopyOnWriteArrayList<Session>();
+    final ChangeNotificationDispatcher notifier = new ChangeNotificationDispatcher(this);
 
     private FolderCache mFolderCache;
     private Map<Object, Tag> mTagCache;
-    private SoftReference<ItemCache> mItemCache = new SoftReference<ItemCache>(null);
+    // change id of the memcached snapshot of the folder and tag caches, or -1 if there isn't one, and the ids of the
+    // folders and tags that changed since it was taken (not used when always-on, where every change is a snapshot)
+    private int foldersTagsSnapshotChangeId = -1;
+    private final Set<Integer> foldersTagsChangedIds = new HashSet<Integer>();
+    private final ItemCache mItemCache;
     private final Map<String, Integer> mConvHashes = new ConcurrentLinkedHashMap.Builder<String, Integer>()
                     .maximumWeightedCapacity(MAX_MSGID_CACHE).build();
     private final Map<String, Integer> mSentMessageIDs = new ConcurrentLinkedHashMap.Builder<String, Integer>()
@@ -758,6 +644,7 @@ public class Mailbox implements MailboxStore {
         mData = data;
         mData.lastChangeDate = System.currentTimeMillis();
         index = new MailboxIndex(this);
+        mItemCache = new ItemCache(this);
         // version init done in open()
         // index init done in open()
         lock = new MailboxLock(data.accountId, this);
@@ -1028,6 +915,10 @@ public class Mailbox implements MailboxStore {
         return sessions;
     }
 
+    boolean isListener(Session session) {
+        return mListeners.contains(session);
+    }
+
     boolean hasListeners(Session.Type stype) {
         if (mListeners.isEmpty()) {
             return false;
@@ -1836,14 +1727,11 @@ public class Mailbox implements MailboxStore {
             recorder.setChangeId(getOperationChangeID());
         }
 
-        // keep a hard reference to the item cache to avoid having it GCed during the op
-        ItemCache cache = mItemCache.get();
-        if (cache == null) {
-            cache = new ItemCache(this);
-            mItemCache = new SoftReference<ItemCache>(cache);
-            ZimbraLog.cache.debug("created a new MailItem cache for mailbox " + getId());
+        // keep other mailboxes from evicting items from our cache during the op
+        if (currentChange().itemCache == null) {
+            mItemCache.pin();
+            currentChange().itemCache = mItemCache;
         }
-        currentChange().itemCache = cache;
 
         // don't permit mailbox access during maintenance
         if (maintenance != null && !maintenance.canAccess()) {
@@ -2003,11 +1891,7 @@ public class Mailbox implements MailboxStore {
     }
 
     private void clearItemCache() {
-        if (currentChange().isActive()) {
-            currentChange().itemCache.clear();
-        } else {
-            mItemCache.clear();
-        }
+        mItemCache.clear();
         try {
             if (Zimbra.isAlwaysOn()) {
                 DbMailbox.incrementItemcacheCheckpoint(this);
@@ -2118,6 +2002,8 @@ public class Mailbox implements MailboxStore {
         mFolderCache = null;
         requiresWriteLock = true;
         // Remove from memcached cache
+        foldersTagsSnapshotChangeId = -1;
+        foldersTagsChangedIds.clear();
         try {
             FoldersTagsCache.getInstance().purgeMailbox(this);
         } catch (ServiceException e) {
@@ -2129,6 +2015,8 @@ public class Mailbox implements MailboxStore {
         mTagCache = null;
         requiresWriteLock = true;
         // Remove from memcached cache
+        foldersTagsSnapshotChangeId = -1;
+        foldersTagsChangedIds.clear();
         try {
             FoldersTagsCache.getInstance().purgeMailbox(this);
         } catch (ServiceException e) {
@@ -2287,6 +2175,7 @@ public class Mailbox implements MailboxStore {
         assert(lock.isWriteLockedByCurrentThread());
 
         ZimbraLog.cache.info("initializing folder and tag caches for mailbox %d", getId());
+        long start = ZimbraPerf.STOPWATCH_MBOX_FOLDERS_TAGS_LOAD.start();
         try {
             DbMailItem.FolderTagMap folderData = new DbMailItem.FolderTagMap();
             DbMailItem.FolderTagMap tagData = new DbMailItem.FolderTagMap();
@@ -2295,23 +2184,7 @@ public class Mailbox implements MailboxStore {
             // Load folders and tags from memcached if we can.
             boolean loadedFromMemcached = false;
             if (!initial && !DebugConfig.disableFoldersTagsCache) {
-                FoldersTagsCache ftCache = FoldersTagsCache.getInstance();
-                FoldersTags ftData = ftCache.get(this);
-                if (ftData != null) {
-                    List<Metadata> foldersMeta = ftData.getFolders();
-                    for (Metadata meta : foldersMeta) {
-                        MailItem.UnderlyingData ud = new MailItem.UnderlyingData();
-                        ud.deserialize(meta);
-                        folderData.put(ud, null);
-                    }
-                    List<Metadata> tagsMeta = ftData.getTags();
-                    for (Metadata meta : tagsMeta) {
-                        MailItem.UnderlyingData ud = new MailItem.UnderlyingData();
-                        ud.deserialize(meta);
-                        tagData.put(ud, null);
-                    }
-                    loadedFromMemcached = true;
-                }
+                loadedFromMemcached = loadFoldersAndTagsFromMemcached(folderData, tagData);
             }
 
             if (!loadedFromMemcached) {
@@ -2372,7 +2245,8 @@ public class Mailbox implements MailboxStore {
                 }
             }
 
-            if (!loadedFromMemcached && !DebugConfig.disableFoldersTagsCache) {
+            boolean snapshotStale = !Zimbra.isAlwaysOn() && foldersTagsSnapshotChangeId < 0;
+            if ((!loadedFromMemcached || snapshotStale) && !DebugConfig.disableFoldersTagsCache) {
                 cacheFoldersTagsToMemcached();
             }
             if (requiresWriteLock) {
@@ -2384,6 +2258,87 @@ public class Mailbox implements MailboxStore {
             mTagCache = null;
             mFolderCache = null;
             throw e;
+        } finally {
+            ZimbraPerf.STOPWATCH_MBOX_FOLDERS_TAGS_LOAD.stop(start);
+        }
+    }
+
+    /**
+     * Fills in the folder and tag data from the memcached snapshot.  Unless always-on, where the snapshot is rewritten
+     * whenever a folder or tag changes, the folders and tags that changed since the snapshot was taken are read again
+     * from the database.
+     *
+     * @return false if there is no usable snapshot
+     */
+    private boolean loadFoldersAndTagsFromMemcached(DbMailItem.FolderTagMap folderData,
+            DbMailItem.FolderTagMap tagData) throws ServiceException {
+        FoldersTagsCache ftCache = FoldersTagsCache.getInstance();
+        FoldersTags ftData = ftCache.get(this);
+        if (ftData == null) {
+            return false;
+        }
+        Map<Integer, MailItem.UnderlyingData> folders = new HashMap<Integer, MailItem.UnderlyingData>();
+        for (Metadata meta : ftData.getFolders()) {
+            MailItem.UnderlyingData ud = new MailItem.UnderlyingData();
+            ud.deserialize(meta);
+            folders.put(ud.id, ud);
+        }
+        Map<Integer, MailItem.UnderlyingData> tags = new HashMap<Integer, MailItem.UnderlyingData>();
+        for (Metadata meta : ftData.getTags()) {
+            MailItem.UnderlyingData ud = new MailItem.UnderlyingData();
+            ud.deserialize(meta);
+            tags.put(ud.id, ud);
+        }
+
+        if (!Zimbra.isAlwaysOn()) {
+            int snapshotChangeId = ftData.getChangeId();
+            FoldersTagsChanges changes = ftCache.getChanges(this);
+            if (changes == null || changes.getSnapshotChangeId() != snapshotChangeId) {
+                ZimbraLog.cache.debug("no changes recorded for folders/tags snapshot %d of mailbox %d",
+                        snapshotChangeId, mId);
+                return false;
+            }
+            Set<Integer> changedIds = changes.getIds();
+            int delta = 0;
+            if (!changedIds.isEmpty() || snapshotChangeId != getLastChangeID()) {
+                delta = DbMailItem.getFoldersAndTagsDelta(this, snapshotChangeId, changedIds, folders, tags);
+                ZimbraPerf.COUNTER_MBOX_FOLDERS_TAGS_DELTA.increment(delta);
+                ZimbraLog.cache.debug("read %d folders/tags changed since snapshot %d of mailbox %d", delta,
+                        snapshotChangeId, mId);
+            }
+            foldersTagsChangedIds.clear();
+            if (delta > LC.zimbra_folders_tags_cache_max_changes.intValue()) {
+                foldersTagsSnapshotChangeId = -1;
+            } else {
+                foldersTagsSnapshotChangeId = snapshotChangeId;
+                foldersTagsChangedIds.addAll(changedIds);
+            }
+        }
+
+        for (MailItem.UnderlyingData ud : folders.values()) {
+            folderData.put(ud, null);
+        }
+        for (MailItem.UnderlyingData ud : tags.values()) {
+            tagData.put(ud, null);
+        }
+        return true;
+    }
+
+    /**
+     * Records folders and tags changed by the current transaction in memcached.  A new snapshot is written once more
+     * than {@code zimbra_folders_tags_cache_max_changes} have changed since the last one.
+     */
+    private void cacheFoldersTagsChanges(Set<Integer> changedIds) throws ServiceException {
+        if (Zimbra.isAlwaysOn() || foldersTagsSnapshotChangeId < 0) {
+            cacheFoldersTagsToMemcached();
+            return;
+        }
+        foldersTagsChangedIds.addAll(changedIds);
+        if (foldersTagsChangedIds.size() > LC.zimbra_folders_tags_cache_max_changes.intValue()) {
+            cacheFoldersTagsToMemcached();
+        } else {
+            FoldersTagsCache.getInstance().putChanges(this,
+                    new FoldersTagsChanges(foldersTagsSnapshotChangeId, foldersTagsChangedIds));
         }
     }
 
@@ -2398,9 +2353,15 @@ public class Mailbox implements MailboxStore {
                     tagList.add(entry.getValue());
                 }
             }
-            FoldersTags ftData = new FoldersTags(folderList, tagList);
+            int changeId = getLastChangeID();
+            FoldersTags ftData = new FoldersTags(folderList, tagList, changeId);
             FoldersTagsCache ftCache = FoldersTagsCache.getInstance();
             ftCache.put(this, ftData);
+            if (!Zimbra.isAlwaysOn()) {
+                ftCache.putChanges(this, new FoldersTagsChanges(changeId, Collections.<Integer>emptySet()));
+                foldersTagsSnapshotChangeId = changeId;
+                foldersTagsChangedIds.clear();
+            }
         } finally {
             lock.release();
         }
@@ -2633,6 +2594,23 @@ public class Mailbox implements MailboxStore {
     }
 
 
+    /** Stores the IMAP {@code ENVELOPE} and {@code BODYSTRUCTURE} computed
+     *  for a message that was added before they were precomputed at
+     *  delivery.  They are derived from the message's blob, so this is
+     *  neither redo-logged nor seen as a change to the message.
+     *
+     * @see ImapMessage#precomputeStructure(MimeMessage) */
+    public void setImapStructure(int msgId, Pair<String, String> structure) throws ServiceException {
+        boolean success = false;
+        try {
+            beginTransaction("setImapStructure", null);
+            getMessageById(msgId).setImapStructure(structure);
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+    }
+
     /** Returns the access rights that the user has been granted on this
      *  item.  The owner of the {@link Mailbox} has all rights on all items
      *  in the Mailbox, as do all admin accounts.  All other users must be
@@ -2808,7 +2786,7 @@ public class Mailbox implements MailboxStore {
         }
         assert (currentChange().depth == 0);
 
-        ItemCache cache = mItemCache.get();
+        ItemCache cache = mItemCache;
         FolderCache folders = mFolderCache == null || Collections.disjoint(pms.changedTypes, FOLDER_TYPES) ? mFolderCache
                         : snapshotFolders();
 
@@ -3138,6 +3116,18 @@ public class Mailbox implements MailboxStore {
 
         Set<Integer> uncached = new HashSet<Integer>();
 
+        // in always-on mode every item cache lookup is a trip to memcached, so look them all up in one batch
+        Map<Integer, MailItem> prefetched = null;
+        if (Zimbra.isAlwaysOn() && type != MailItem.Type.UNKNOWN && !isCachedType(type) && ids.length > 1) {
+            List<Integer> keys = new ArrayList<Integer>(ids.length);
+            for (int id : ids) {
+                if (id > 0) {
+                    keys.add(id);
+                }
+            }
+            prefetched = getItemCache().get(keys);
+        }
+
         // try the cache first
         Integer miss = null;
         boolean relaxType = false;
@@ -3147,7 +3137,16 @@ public class Mailbox implements MailboxStore {
                 items[i] = null;
             } else {
                 Integer key = ids[i];
-                MailItem item = getCachedItem(key, type);
+                MailItem item;
+                if (prefetched != null && key > 0) {
+                    item = prefetched.get(key);
+                    if (item != null && !MailItem.isAcceptableType(type, MailItem.Type.of(item.mData.type))) {
+                        item = null;
+                    }
+                    logCacheActivity(key, type, item);
+                } else {
+                    item = getCachedItem(key, type);
+                }
                 // special-case virtual conversations
                 if (item == null && ids[i] <= -FIRST_USER_ID) {
 
@@ -6179,6 +6178,11 @@ public class Mailbox implements MailboxStore {
             localMsgMarkedRead = true;
         }
 
+        // extract the body text for the fragment now, rather than while holding the mailbox lock
+        if (pm != null) {
+            pm.setDefaultCharset(account.getPrefMailDefaultCharset());
+            pm.analyzeBodyParts();
+        }
 
         lock.lock();
         try {
@@ -9724,7 +9728,7 @@ public class Mailbox implements MailboxStore {
                         // if an "all accounts" waitset is active, and this change has an appropriate type,
                         // then we'll need to set a commit-callback
                         AllAccountsRedoCommitCallback cb = AllAccountsRedoCommitCallback.getRedoCallbackIfNecessary(
-                                        getAccountId(), currentChange().dirty.changedTypes);
+                                        getAccountId(), currentChange().changeId, currentChange().dirty);
                         if (cb != null) {
                             redoRecorder.setCommitCallback(cb);
                         }
@@ -9854,20 +9858,20 @@ public class Mailbox implements MailboxStore {
             DbMailbox.updateMailboxStats(this);
         }
 
-        boolean foldersTagsDirty = false;
+        Set<Integer> foldersTagsDirty = new HashSet<Integer>();
         if (currentChange().dirty != null && currentChange().dirty.hasNotifications()) {
             assert(currentChange().writeChange);
             if (currentChange().dirty.created != null) {
                 for (BaseItemInfo item : currentChange().dirty.created.values()) {
                     if (item instanceof Folder) {
                         Folder folder = (Folder) item;
-                        foldersTagsDirty = true;
+                        foldersTagsDirty.add(folder.getId());
                         if (folder.getSize() != 0) {
                             folder.saveFolderCounts(false);
                         }
                     } else if (item instanceof Tag) {
                         Tag tag = (Tag) item;
-                        foldersTagsDirty = true;
+                        foldersTagsDirty.add(tag.getId());
                         if (tag.isUnread()) {
                             tag.saveTagCounts();
                         }
@@ -9878,12 +9882,12 @@ public class Mailbox implements MailboxStore {
             if (currentChange().dirty.modified != null) {
                 for (Change change : currentChange().dirty.modified.values()) {
                     if (change.what instanceof Folder) {
-                        foldersTagsDirty = true;
+                        foldersTagsDirty.add(((Folder) change.what).getId());
                         if ((change.why & (Change.UNREAD | Change.SIZE)) != 0) {
                             ((Folder) change.what).saveFolderCounts(false);
                         }
                     } else if (change.what instanceof Tag) {
-                        foldersTagsDirty = true;
+                        foldersTagsDirty.add(((Tag) change.what).getId());
                         if ((change.why & Change.UNREAD | Change.SIZE) != 0) {
                             ((Tag) change.what).saveTagCounts();
                         }
@@ -9900,14 +9904,13 @@ public class Mailbox implements MailboxStore {
             if (currentChange().dirty.deleted != null) {
                 for (Change change : currentChange().dirty.deleted.values()) {
                     if (change.what instanceof Folder || change.what instanceof Tag) {
-                        foldersTagsDirty = true;
-                        break;
+                        foldersTagsDirty.add(((MailItem) change.what).getId());
                     }
                 }
             }
 
-            if (foldersTagsDirty) {
-                cacheFoldersTagsToMemcached();
+            if (!foldersTagsDirty.isEmpty()) {
+                cacheFoldersTagsChanges(foldersTagsDirty);
             }
         }
 
@@ -10022,13 +10025,8 @@ public class Mailbox implements MailboxStore {
         }
 
         if (notification != null) {
-            for (Session session : mListeners) {
-                try {
-                    session.notifyPendingChanges(notification.mods, notification.lastChangeId, source);
-                } catch (RuntimeException e) {
-                    ZimbraLog.mailbox.error("ignoring error during notification", e);
-                }
-            }
+            notifier.dispatch(notification, source, mListeners.toArray(new Session[0]));
+            // listeners invalidate caches shared with other mailboxes, so they still run before the lock is released
             MailboxListener.notifyListeners(notification);
         }
     }
@@ -10081,8 +10079,10 @@ public class Mailbox implements MailboxStore {
     private void trimItemCache() {
         try {
             int sizeTarget = mListeners.isEmpty() ? MAX_ITEM_CACHE_WITHOUT_LISTENERS : MAX_ITEM_CACHE_WITH_LISTENERS;
+            long bytesTarget = LC.zimbra_mailbox_item_cache_max_bytes.longValue();
             if (galSyncMailbox) {
                 sizeTarget = MAX_ITEM_CACHE_FOR_GALSYNC_MAILBOX;
+                bytesTarget = Long.MAX_VALUE;
             }
 
             ItemCache cache = currentChange().itemCache;
@@ -10090,31 +10090,16 @@ public class Mailbox implements MailboxStore {
                 return;
             }
 
-            int excess = cache.size() - sizeTarget;
-            if (excess <= 0) {
-                return;
-            }
-
-            // cache the overflow to avoid the Iterator's ConcurrentModificationException
-            MailItem[] overflow = new MailItem[excess];
-            int i = 0;
-            for (MailItem item : cache.values()) {
-                overflow[i++] = item;
-                if (i >= excess) {
-                    break;
-                }
-            }
-            // trim the excess; note that "uncache" can cascade and take out child items
-            while (--i >= 0) {
-                if (cache.size() <= sizeTarget) {
-                    return;
-                }
-
+            // trim the least recently used items; note that "uncache" can cascade and take out child items
+            for (MailItem eldest; (eldest = cache.getEldest(sizeTarget, bytesTarget)) != null;) {
                 try {
-                    uncache(overflow[i]);
+                    uncache(eldest);
                 } catch (ServiceException e) {
+                    cache.remove(eldest);
                 }
             }
+            // and keep the caches of all mailboxes within the server-wide budget
+            ItemCache.enforceBudget();
         } catch (RuntimeException e) {
             ZimbraLog.mailbox.error("ignoring error during item cache trim", e);
         }
@@ -20,13 +20,20 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Iterator;
 import java.util.ListIterator;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
@@ -95,6 +102,10 @@ public final class MailboxIndex {
     private static final ExecutorService REINDEX_EXECUTOR = new ThreadPoolExecutor(
             0, LC.zimbra_reindex_threads.intValue(), 0L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
             new ThreadFactoryBuilder().setNameFormat("ReIndex-%d").setDaemon(true).build());
+    // Re-indexes fetch items on their own thread and generate index data on these, shared by all of them.
+    private static final ExecutorService EXTRACT_EXECUTOR = LC.zimbra_reindex_extract_threads.intValue() > 0 ?
+            Executors.newFixedThreadPool(LC.zimbra_reindex_extract_threads.intValue(),
+                    new ThreadFactoryBuilder().setNameFormat("ReIndexExtract-%d").setDaemon(true).build()) : null;
 
     private volatile long lastFailedTime = -1;
     // Only one thread may run index at a time.
@@ -448,25 +459,43 @@ public final class MailboxIndex {
     }
 
     private synchronized void startReIndex(ReIndexTask task) throws ServiceException {
-        if ((indexStore != null) && indexStore.isPendingDelete()) {
-            throw ServiceException.FAILURE("Unable to submit reindex request. Index is pending delete", null);
-        }
+        checkReIndexAllowed();
         try {
-            if (reIndex != null) {
-                throw ServiceException.ALREADY_IN_PROGRESS(
-                        Integer.toString(mailbox.getId()), reIndex.status.toString());
-            }
-            // reIndex and compactIndex cannot interleave
-            if (isCompactIndexInProgress()) {
-                throw ServiceException.ALREADY_IN_PROGRESS(
-                        Integer.toString(mailbox.getId()), "Compact Index");
-            }
             REINDEX_EXECUTOR.submit(reIndex = task);
         } catch (RejectedExecutionException e) {
+            reIndex = null;
             throw ServiceException.FAILURE("Unable to submit reindex request. Try again later", e);
         }
     }
 
+    private void checkReIndexAllowed() throws ServiceException {
+        if ((indexStore != null) && indexStore.isPendingDelete()) {
+            throw ServiceException.FAILURE("Unable to submit reindex request. Index is pending delete", null);
+        }
+        if (reIndex != null) {
+            throw ServiceException.ALREADY_IN_PROGRESS(
+                    Integer.toString(mailbox.getId()), reIndex.status.toString());
+        }
+        // reIndex and compactIndex cannot interleave
+        if (isCompactIndexInProgress()) {
+            throw ServiceException.ALREADY_IN_PROGRESS(
+                    Integer.toString(mailbox.getId()), "Compact Index");
+        }
+    }
+
+    /**
+     * Re-indexes the whole mailbox on the calling thread, for {@link ReIndexScheduler}.  Progress is reported and
+     * the re-index can be cancelled just as for {@link #startReIndex()}.
+     */
+    void reIndexNow(ReIndexScheduler.Throttle throttle) throws ServiceException {
+        ReIndexTask task = new ReIndexTask(mailbox, null, throttle);
+        synchronized (this) {
+            checkReIndexAllowed();
+            reIndex = task;
+        }
+        task.run();
+    }
+
     public synchronized ReIndexStatus cancelReIndex() {
         if (reIndex == null) {
             return null;
@@ -512,11 +541,16 @@ public final class MailboxIndex {
 
     private class ReIndexTask extends IndexTask {
         private final Collection<Integer> ids;
-        private final ReIndexStatus status = new ReIndexStatus();
+        private final ReIndexStatus status;
 
         ReIndexTask(Mailbox mbox, Collection<Integer> ids) {
+            this(mbox, ids, null);
+        }
+
+        ReIndexTask(Mailbox mbox, Collection<Integer> ids, ReIndexScheduler.Throttle throttle) {
             super(mbox);
             this.ids = ids;
+            this.status = new ReIndexStatus(throttle);
         }
 
         @Override
@@ -729,6 +763,10 @@ public final class MailboxIndex {
         if (ids.isEmpty()) {
             return;
         }
+        if (status instanceof ReIndexStatus && EXTRACT_EXECUTOR != null) {
+            pipelineItemList(ids, status);
+            return;
+        }
 
         // we re-index 'chunks' of items -- up to a certain size or count
         List<Mailbox.IndexItemEntry> chunk = new ArrayList<Mailbox.IndexItemEntry>();
@@ -742,33 +780,9 @@ public final class MailboxIndex {
             // lock. Once we've accumulated a "chunk" of items, do a mailbox transaction to actually add them to the
             // index.
             ZimbraLog.index.debug("Tokenizing id=%d", id);
-            MailItem item = null;
-            try {
-                mailbox.beginReadTransaction("IndexItemList-Fetch", null);
-                item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, false);
-            } catch (MailServiceException.NoSuchItemException e) { // fallback to dumpster
-                try {
-                    item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, true);
-                } catch (MailServiceException.NoSuchItemException again) { // The item has just been deleted.
-                    ZimbraLog.index.debug("deferred item no longer exist id=%d", id);
-                    removeDeferredId(id);
-                    continue;
-                }
-            } catch (MailServiceException e) {
-                // fetch without metadata because reindex will regenerate metadata
-                if (MailServiceException.INVALID_METADATA.equals(e.getCode()) && isReIndexInProgress()) {
-                    UnderlyingData ud = DbMailItem.getById(mailbox, id, MailItem.Type.UNKNOWN, false);
-                    ud.metadata = null; // ignore corrupted metadata
-                    item = mailbox.getItem(ud);
-                } else {
-                    throw e;
-                }
-            } catch (Exception e) {
-                ZimbraLog.index.warn("Failed to fetch deferred item id=%d", id, e);
-                status.addFailed(1);
+            MailItem item = fetchItemToIndex(id, status);
+            if (item == null) {
                 continue;
-            } finally {
-                mailbox.endTransaction(item != null);
             }
             try {
                 chunk.add(new Mailbox.IndexItemEntry(item, item.generateIndexData()));
@@ -781,34 +795,158 @@ public final class MailboxIndex {
             chunkByteSize += item.getSize();
 
             if (i == ids.size() || chunkByteSize > MAX_TX_BYTES || chunk.size() >= MAX_TX_ITEMS) {
-                // we have a chunk of items and their corresponding index data -- add them to the index
-                try {
-                    ZimbraLog.index.debug("Batch progress %d/%d", i, ids.size());
+                ZimbraLog.index.debug("Batch progress %d/%d", i, ids.size());
+                commitChunk(chunk, status);
+                chunkByteSize = 0;
+            }
+        }
+    }
 
-                    if (status.isCancelled()) {
-                        throw ServiceException.INTERRUPTED("cancelled");
+    /**
+     * Same as the sequential loop in {@link #indexItemList}, but as a pipeline: this thread fetches items and hands
+     * them to {@link #EXTRACT_EXECUTOR}, which generates their index data in parallel, and commits the results in
+     * the original order while later items are still being extracted.
+     */
+    private void pipelineItemList(Collection<Integer> ids, BatchStatus status) throws ServiceException {
+        int maxInFlight = LC.zimbra_reindex_extract_threads.intValue() * 2;
+        Deque<Future<Mailbox.IndexItemEntry>> inFlight = new ArrayDeque<Future<Mailbox.IndexItemEntry>>(maxInFlight);
+        List<Mailbox.IndexItemEntry> chunk = new ArrayList<Mailbox.IndexItemEntry>();
+        long chunkByteSize = 0;
+        try {
+            Iterator<Integer> it = ids.iterator();
+            while (it.hasNext() || !inFlight.isEmpty()) {
+                if (it.hasNext() && inFlight.size() < maxInFlight) {
+                    int id = it.next();
+                    status.addProcessed(1);
+                    ZimbraLog.index.debug("Tokenizing id=%d", id);
+                    MailItem item = fetchItemToIndex(id, status);
+                    if (item != null) {
+                        status.throttle(item.getSize());
+                        inFlight.add(EXTRACT_EXECUTOR.submit(new ExtractIndexDataTask(item)));
                     }
+                    continue;
+                }
 
-                    try {
-                        boolean success = false;
-                        try {
-                            mailbox.beginTransaction("IndexItemList-Commit", null);
-                            for (Mailbox.IndexItemEntry entry : chunk) {
-                                mailbox.addIndexItemToCurrentChange(entry);
-                            }
-                            success = true;
-                        } finally {
-                            mailbox.endTransaction(success);
-                        }
-                    } catch (ServiceException e) {
-                        ZimbraLog.index.warn("Failed to index chunk=%s", chunk, e);
-                        status.addFailed(chunk.size());
+                Mailbox.IndexItemEntry entry = awaitIndexData(inFlight.remove(), status);
+                if (entry != null) {
+                    chunk.add(entry);
+                    chunkByteSize += entry.item.getSize();
+                }
+                if (chunkByteSize > MAX_TX_BYTES || chunk.size() >= MAX_TX_ITEMS ||
+                        (!chunk.isEmpty() && inFlight.isEmpty() && !it.hasNext())) {
+                    ZimbraLog.index.debug("Batch progress %d/%d", status.getProcessed(), ids.size());
+                    commitChunk(chunk, status);
+                    chunkByteSize = 0;
+                }
+            }
+        } finally {
+            for (Future<Mailbox.IndexItemEntry> future : inFlight) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static final class ExtractIndexDataTask implements Callable<Mailbox.IndexItemEntry> {
+        private final MailItem item;
+
+        ExtractIndexDataTask(MailItem item) {
+            this.item = item;
+        }
+
+        @Override
+        public Mailbox.IndexItemEntry call() throws MailItem.TemporaryIndexingException {
+            try {
+                return new Mailbox.IndexItemEntry(item, item.generateIndexData());
+            } catch (MailItem.TemporaryIndexingException e) {
+                ZimbraLog.index.warn("Temporary index failure id=%d", item.getId(), e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Waits for the index data of an item, or returns null if it failed and has been counted as failed.
+     */
+    private Mailbox.IndexItemEntry awaitIndexData(Future<Mailbox.IndexItemEntry> future, BatchStatus status)
+            throws ServiceException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw ServiceException.INTERRUPTED("interrupted while extracting index data");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof MailItem.TemporaryIndexingException) {
+                lastFailedTime = System.currentTimeMillis();
+                status.addFailed(1);
+                return null;
+            } else if (cause instanceof OutOfMemoryError) {
+                throw (OutOfMemoryError) cause;
+            }
+            throw ServiceException.FAILURE("Failed to extract index data", cause);
+        }
+    }
+
+    /**
+     * Fetches an item to index, or returns null if it no longer exists or can't be read.
+     */
+    private MailItem fetchItemToIndex(int id, BatchStatus status) throws ServiceException {
+        MailItem item = null;
+        try {
+            mailbox.beginReadTransaction("IndexItemList-Fetch", null);
+            item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, false);
+        } catch (MailServiceException.NoSuchItemException e) { // fallback to dumpster
+            try {
+                item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, true);
+            } catch (MailServiceException.NoSuchItemException again) { // The item has just been deleted.
+                ZimbraLog.index.debug("deferred item no longer exist id=%d", id);
+                removeDeferredId(id);
+                return null;
+            }
+        } catch (MailServiceException e) {
+            // fetch without metadata because reindex will regenerate metadata
+            if (MailServiceException.INVALID_METADATA.equals(e.getCode()) && isReIndexInProgress()) {
+                UnderlyingData ud = DbMailItem.getById(mailbox, id, MailItem.Type.UNKNOWN, false);
+                ud.metadata = null; // ignore corrupted metadata
+                item = mailbox.getItem(ud);
+            } else {
+                throw e;
+            }
+        } catch (Exception e) {
+            ZimbraLog.index.warn("Failed to fetch deferred item id=%d", id, e);
+            status.addFailed(1);
+            return null;
+        } finally {
+            mailbox.endTransaction(item != null);
+        }
+        return item;
+    }
+
+    /**
+     * Adds a chunk of items and their index data to the index in a single mailbox transaction, and clears it.
+     */
+    private void commitChunk(List<Mailbox.IndexItemEntry> chunk, BatchStatus status) throws ServiceException {
+        try {
+            if (status.isCancelled()) {
+                throw ServiceException.INTERRUPTED("cancelled");
+            }
+
+            try {
+                boolean success = false;
+                try {
+                    mailbox.beginTransaction("IndexItemList-Commit", null);
+                    for (Mailbox.IndexItemEntry entry : chunk) {
+                        mailbox.addIndexItemToCurrentChange(entry);
                     }
+                    success = true;
                 } finally {
-                    chunk.clear();
-                    chunkByteSize = 0;
+                    mailbox.endTransaction(success);
                 }
+            } catch (ServiceException e) {
+                ZimbraLog.index.warn("Failed to index chunk=%s", chunk, e);
+                status.addFailed(chunk.size());
             }
+        } finally {
+            chunk.clear();
         }
     }
 
@@ -1333,6 +1471,12 @@ public final class MailboxIndex {
             return false;
         }
 
+        /**
+         * Called before the content of an item is read, to hold back if the work is over budget.
+         */
+        void throttle(long bytes) throws ServiceException {
+        }
+
         @Override
         public String toString() {
             return MoreObjects.toStringHelper(this)
@@ -1351,8 +1495,10 @@ public final class MailboxIndex {
         private volatile int processed = 0;
         private volatile int failed = 0;
         private volatile boolean cancel = false;
+        private final ReIndexScheduler.Throttle throttle;
 
-        private ReIndexStatus() {
+        private ReIndexStatus(ReIndexScheduler.Throttle throttle) {
+            this.throttle = throttle;
         }
 
         @Override
@@ -1396,6 +1542,13 @@ public final class MailboxIndex {
         boolean isCancelled() {
             return cancel;
         }
+
+        @Override
+        void throttle(long bytes) throws ServiceException {
+            if (throttle != null) {
+                throttle.acquire(bytes, this);
+            }
+        }
     }
 
     public static abstract class IndexTask implements Runnable {
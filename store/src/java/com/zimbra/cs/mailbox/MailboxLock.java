@@ -20,14 +20,13 @@ import java.util.EmptyStackException;
 import java.util.Stack;
 import java.util.concurrent.TimeUnit;
 
-import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
-
 import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.lock.DebugZLock;
+import com.zimbra.cs.mailbox.lock.DistributedMailboxLock;
 import com.zimbra.cs.mailbox.lock.ZLock;
 import com.zimbra.cs.util.Zimbra;
 import com.zimbra.cs.zookeeper.CuratorManager;
@@ -43,14 +42,19 @@ import com.zimbra.cs.zookeeper.CuratorManager;
  */
 public final class MailboxLock {
     private final ZLock zLock = DebugConfig.debugMailboxLock ? new DebugZLock() : new ZLock();
-    private InterProcessSemaphoreMutex dLock = null;
+    private DistributedMailboxLock dLock = null;
     private final Stack<Boolean> lockStack = new Stack<Boolean>();
     private Mailbox mbox;
 
     public MailboxLock(String id, Mailbox mbox) {
         if (Zimbra.isAlwaysOn()) {
             try {
-                dLock = CuratorManager.getInstance().createLock(id);
+                CuratorManager curator = CuratorManager.getInstance();
+                if (curator == null) {
+                    ZimbraLog.mailbox.error("could not initialize distributed lock; ZooKeeper addresses not configured");
+                } else {
+                    dLock = new DistributedMailboxLock(curator, id, mbox.getId());
+                }
             } catch (ServiceException se) {
                 ZimbraLog.mailbox.error("could not initialize distributed lock", se);
             }
@@ -58,22 +62,24 @@ public final class MailboxLock {
         this.mbox = mbox;
     }
 
-    private void acquireDistributedLock(boolean write) throws ServiceException {
-        //TODO: consider read/write distributed lock
+    private void acquireDistributedLock(boolean write) {
         if (dLock != null && getHoldCount() == 1) {
+            boolean acquired;
             try {
-                dLock.acquire(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+                acquired = dLock.acquire(write, LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
             } catch (Exception e) {
                 throw new LockFailedException("could not acquire distributed lock", e);
             }
+            if (!acquired) {
+                throw new LockFailedException("timeout acquiring distributed " + (write ? "write" : "read") + " lock");
+            }
         }
     }
 
     private void releaseDistributedLock(boolean write) {
-        //TODO: consider read/write distributed lock
         if (dLock != null && getHoldCount() == 1) {
             try {
-                dLock.release();
+                dLock.release(write);
             } catch (Exception e) {
                 ZimbraLog.mailbox.warn("error while releasing distributed lock", e);
             }
@@ -171,9 +177,9 @@ public final class MailboxLock {
                 lockStack.push(write);
                 try {
                     acquireDistributedLock(write);
-                } catch (ServiceException e) {
-                    release();
-                    LockFailedException lfe = new LockFailedException("lockdb");
+                } catch (LockFailedException lfe) {
+                    // the distributed lock was never taken, so only undo the local one
+                    abandonLocalLock();
                     lfe.logStackTrace();
                     throw lfe;
                 }
@@ -200,9 +206,9 @@ public final class MailboxLock {
                 lockStack.push(write);
                 try {
                     acquireDistributedLock(write);
-                } catch (ServiceException e) {
-                    release();
-                    LockFailedException lfe = new LockFailedException("lockdb");
+                } catch (LockFailedException lfe) {
+                    // the distributed lock was never taken, so only undo the local one
+                    abandonLocalLock();
                     lfe.logStackTrace();
                     throw lfe;
                 }
@@ -241,6 +247,20 @@ public final class MailboxLock {
             zLock.readLock().unlock();
             assert(debugReleaseReadLock());
         }
+        if (getHoldCount() == 0 && mbox != null && mbox.notifier != null) {
+            // change notifications are delivered once the lock is released; see ChangeNotificationDispatcher
+            mbox.notifier.awaitDelivery();
+        }
+    }
+
+    private void abandonLocalLock() {
+        boolean write = lockStack.pop();
+        if (write) {
+            zLock.writeLock().unlock();
+        } else {
+            zLock.readLock().unlock();
+            assert(debugReleaseReadLock());
+        }
     }
 
     private void promote() {
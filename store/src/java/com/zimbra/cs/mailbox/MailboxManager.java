@@ -17,16 +17,20 @@
 package com.zimbra.cs.mailbox;
 
 import java.lang.ref.SoftReference;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
@@ -144,7 +148,7 @@ public class MailboxManager {
     /** Maps account IDs (<code>String</code>s) to mailbox IDs
      *  (<code>Integer</code>s).  <i>Every</i> mailbox in existence on the
      *  server appears in this mapping. */
-    private Map<String, Integer> mailboxIds;
+    private ConcurrentHashMap<String, Integer> mailboxIds;
 
     /**
      * Maps mailbox IDs ({@link Integer}s) to either
@@ -156,6 +160,9 @@ public class MailboxManager {
      * Mailboxes are faulted into memory as needed, but may drop from memory when the SoftReference expires due to
      * memory pressure combined with a lack of outstanding references to the {@link Mailbox}.  Only one {@link Mailbox}
      * per user is cached, and only that {@link Mailbox} can process user requests.
+     * <p>
+     * Lookups do not lock.  Any check-then-act sequence on an entry must hold {@link MailboxMap#lockFor(int)} for
+     * that mailbox id; the MailboxManager monitor is only used to serialize mailbox creation.
      */
     private MailboxMap cache;
 
@@ -164,7 +171,7 @@ public class MailboxManager {
         synchronized (this) {
             try {
                 conn = DbPool.getConnection();
-                mailboxIds = DbMailbox.listMailboxes(conn, this);
+                mailboxIds = new ConcurrentHashMap<String, Integer>(DbMailbox.listMailboxes(conn, this));
                 cache = createCache();
             } finally {
                 DbPool.quietClose(conn);
@@ -356,10 +363,7 @@ public class MailboxManager {
         if (accountId == null)
             throw new IllegalArgumentException();
 
-        Integer mailboxKey;
-        synchronized (this) {
-            mailboxKey = mailboxIds.get(accountId.toLowerCase());
-        }
+        Integer mailboxKey = mailboxIds.get(accountId.toLowerCase());
         if (mailboxKey != null) {
             if (DebugConfig.mockMultiserverInstall)
                 lookupAccountWithHostCheck(accountId, skipMailHostCheck);
@@ -370,9 +374,7 @@ public class MailboxManager {
 
         // auto-create the mailbox if this is the right host...
         Account account = lookupAccountWithHostCheck(accountId, skipMailHostCheck);
-        synchronized (this) {
-            mailboxKey = mailboxIds.get(accountId.toLowerCase());
-        }
+        mailboxKey = mailboxIds.get(accountId.toLowerCase());
         if (mailboxKey != null)
             return getMailboxById(mailboxKey, fetchMode, skipMailHostCheck);
         else
@@ -451,13 +453,12 @@ public class MailboxManager {
         long startTime = ZimbraPerf.STOPWATCH_MBOX_GET.start();
 
         Mailbox mbox = null;
-        synchronized (this) {
-            // check to see if the mailbox has already been cached
-            Object cached = retrieveFromCache(mailboxId, true);
-            if (cached instanceof Mailbox) {
-                ZimbraPerf.COUNTER_MBOX_CACHE.increment(100);
-                mbox = (Mailbox) cached;
-            }
+        // check to see if the mailbox has already been cached
+        Object cached = retrieveFromCache(mailboxId, true);
+        if (cached instanceof Mailbox) {
+            ZimbraPerf.COUNTER_MBOX_CACHE.increment(100);
+            ZimbraPerf.COUNTER_MBOX_CACHE_HIT.increment();
+            mbox = (Mailbox) cached;
         }
 
         if (fetchMode == FetchMode.ONLY_IF_CACHED && (mbox == null || !mbox.isOpen())) {
@@ -465,8 +466,11 @@ public class MailboxManager {
             return null;
         }
 
+        long loadStartTime = 0;
         if (mbox == null) { // not found in cache
             ZimbraPerf.COUNTER_MBOX_CACHE.increment(0);
+            ZimbraPerf.COUNTER_MBOX_CACHE_MISS.increment();
+            loadStartTime = ZimbraPerf.STOPWATCH_MBOX_LOAD.start();
             MailboxData data;
             DbConnection conn = DbPool.getConnection();
             try {
@@ -495,9 +499,11 @@ public class MailboxManager {
                     throw ServiceException.WRONG_HOST(account.getMailHost(), null);
             }
 
-            synchronized (this) {
+            Lock lock = cache.lockFor(mailboxId);
+            lock.lock();
+            try {
                 // avoid the race condition by re-checking the cache and using that data (if any)
-                Object cached = retrieveFromCache(mailboxId, false);
+                cached = retrieveFromCache(mailboxId, false);
                 if (cached instanceof Mailbox) {
                     mbox = (Mailbox) cached;
                 } else {
@@ -508,16 +514,21 @@ public class MailboxManager {
                         cacheMailbox(mbox);
                     }
                 }
+            } finally {
+                lock.unlock();
             }
         }
 
-        // now, make sure the mailbox is opened -- we do this after releasing MailboxManager lock so that filesystem IO
+        // now, make sure the mailbox is opened -- we do this after releasing the cache lock so that filesystem IO
         // and other longer operations don't block the system.
         if (mbox.open()) {
             // if TRUE, then the mailbox is actually opened, so we need to notify listeners of the mailbox being loaded
             notifyMailboxLoaded(mbox);
         }
 
+        if (loadStartTime != 0) {
+            ZimbraPerf.STOPWATCH_MBOX_LOAD.stop(loadStartTime);
+        }
         ZimbraPerf.STOPWATCH_MBOX_GET.stop(startTime);
 
         if (maintenanceLocks.containsKey(mbox.getAccountId()) && mbox.getMaintenance() == null) {
@@ -527,9 +538,7 @@ public class MailboxManager {
             MailboxMaintenance maint = null;
             synchronized (mbox) {
                 maint = mbox.beginMaintenance();
-                synchronized (this) {
-                    cache.put(mailboxId, maint);
-                }
+                cache.put(mailboxId, maint);
             }
             if (oldMaint.isNestedAllowed()) {
                 maint.setNestedAllowed(true);
@@ -543,7 +552,7 @@ public class MailboxManager {
     /** @return A list of *hard references* to all currently-loaded mailboxes which are not
      *     .   in MAINTENANCE mode.  Caller must be careful to not hang onto this list for
      *         very long or else mailboxes will not be purged. */
-    public synchronized List<Mailbox> getAllLoadedMailboxes() {
+    public List<Mailbox> getAllLoadedMailboxes() {
         List<Mailbox> mboxes = new ArrayList<Mailbox>(cache.size());
         for (Object o : cache.values()) {
             if (o instanceof Mailbox) {
@@ -561,7 +570,7 @@ public class MailboxManager {
     /**
      * Returns the number of hard references to currently-loaded mailboxes, either in MAINTENANCE mode or not.
      */
-    public synchronized int getCacheSize() {
+    public int getCacheSize() {
         int count = 0;
         for (Object o : cache.values()) {
             if (o instanceof Mailbox || o instanceof MailboxMaintenance) {
@@ -576,7 +585,7 @@ public class MailboxManager {
      * that one of the {@link Listener} APIs be called for this mailbox at some point in the future, if this mailbox is
      * ever accessed.
      */
-    public synchronized boolean isMailboxLoadedAndAvailable(int mailboxId) {
+    public boolean isMailboxLoadedAndAvailable(int mailboxId) {
         Object cached = cache.get(mailboxId);
         if (cached == null) {
             return false;
@@ -589,24 +598,22 @@ public class MailboxManager {
     }
 
     private Object retrieveFromCache(int mailboxId, boolean trackGC) throws MailServiceException {
-        synchronized (this) {
-            Object cached = cache.get(mailboxId, trackGC);
-            if (cached instanceof MailboxMaintenance) {
-                MailboxMaintenance maintenance = (MailboxMaintenance) cached;
-                if (!maintenance.canAccess()) {
-                    if (isMailboxLockedOut(maintenance.getAccountId())) {
-                        throw MailServiceException.MAINTENANCE(mailboxId, "mailbox locked out for maintenance");
-                    } else {
-                        throw MailServiceException.MAINTENANCE(mailboxId);
-                    }
-                }
-                if (maintenance.getMailbox() != null) {
-                    return maintenance.getMailbox();
+        Object cached = cache.get(mailboxId, trackGC);
+        if (cached instanceof MailboxMaintenance) {
+            MailboxMaintenance maintenance = (MailboxMaintenance) cached;
+            if (!maintenance.canAccess()) {
+                if (isMailboxLockedOut(maintenance.getAccountId())) {
+                    throw MailServiceException.MAINTENANCE(mailboxId, "mailbox locked out for maintenance");
+                } else {
+                    throw MailServiceException.MAINTENANCE(mailboxId);
                 }
             }
-            // if we've retrieved NULL or a Mailbox or an accessible lock, return it
-            return cached;
+            if (maintenance.getMailbox() != null) {
+                return maintenance.getMailbox();
+            }
         }
+        // if we've retrieved NULL or a Mailbox or an accessible lock, return it
+        return cached;
     }
 
     /**
@@ -620,7 +627,7 @@ public class MailboxManager {
         return new ExternalVirtualMailbox(data);
     }
 
-    protected synchronized void cacheAccount(String accountId, int mailboxId) {
+    protected void cacheAccount(String accountId, int mailboxId) {
         mailboxIds.put(accountId.toLowerCase(), Integer.valueOf(mailboxId));
     }
 
@@ -646,9 +653,7 @@ public class MailboxManager {
         mbox.lock.lock();
         try {
             MailboxMaintenance maintenance = mbox.beginMaintenance();
-            synchronized (this) {
-                cache.put(mailboxId, maintenance);
-            }
+            cache.put(mailboxId, maintenance);
             return maintenance;
         } finally {
             mbox.lock.release();
@@ -661,7 +666,9 @@ public class MailboxManager {
 
         Mailbox availableMailbox = null;
 
-        synchronized (this) {
+        Lock lock = cache.lockFor(maintenance.getMailboxId());
+        lock.lock();
+        try {
             Object obj = cache.get(maintenance.getMailboxId());
             if (obj != maintenance) {
                 ZimbraLog.mailbox.debug("maintenance ended with wrong object. passed %s; expected %s", maintenance, obj);
@@ -705,6 +712,8 @@ public class MailboxManager {
                 }
                 maintenance.markUnavailable();
             }
+        } finally {
+            lock.unlock();
         }
 
         if (availableMailbox != null)
@@ -717,9 +726,7 @@ public class MailboxManager {
      * @return
      */
     public int getMailboxCount() {
-        synchronized (this) {
-            return mailboxIds.size();
-        }
+        return mailboxIds.size();
     }
 
 
@@ -728,14 +735,12 @@ public class MailboxManager {
      *  not the same as the set of mailboxes for accounts whose
      *  <code>zimbraMailHost</code> LDAP attribute points to this server. */
     public int[] getMailboxIds() {
+        List<Integer> col = new ArrayList<Integer>(mailboxIds.values());
+        int[] ids = new int[col.size()];
         int i = 0;
-        synchronized (this) {
-            Collection<Integer> col = mailboxIds.values();
-            int[] mailboxIds = new int[col.size()];
-            for (int id : col)
-                mailboxIds[i++] = id;
-            return mailboxIds;
-        }
+        for (int id : col)
+            ids[i++] = id;
+        return ids;
     }
 
     public Set<Integer> getPurgePendingMailboxes(long time) throws ServiceException {
@@ -754,14 +759,7 @@ public class MailboxManager {
      *  the same as the set of accounts whose <code>zimbraMailHost</code> LDAP
      *  attribute points to this server.*/
     public String[] getAccountIds() {
-        int i = 0;
-        synchronized (this) {
-            Set<String> set = mailboxIds.keySet();
-            String[] accountIds = new String[set.size()];
-            for (String o : set)
-                accountIds[i++] = o;
-            return accountIds;
-        }
+        return mailboxIds.keySet().toArray(new String[0]);
     }
 
 
@@ -771,10 +769,7 @@ public class MailboxManager {
      * @return
      */
     public int lookupMailboxId(String accountId) {
-        Integer v;
-        synchronized (this) {
-            v = mailboxIds.get(accountId);
-        }
+        Integer v = accountId == null ? null : mailboxIds.get(accountId);
         return v != null ? v.intValue() : -1;
     }
 
@@ -789,16 +784,14 @@ public class MailboxManager {
      *        the database; a SQLException is encapsulated</ul> */
     public Map<String, Long> getMailboxSizes(List<NamedEntry> accounts) throws ServiceException {
         List<Integer> requested;
-        synchronized (this) {
-            if (accounts == null) {
-                requested = new ArrayList<Integer>(mailboxIds.values());
-            } else {
-                requested = new ArrayList<Integer>(accounts.size());
-                for (NamedEntry account : accounts) {
-                    Integer mailboxId = mailboxIds.get(account.getId());
-                    if (mailboxId != null)
-                        requested.add(mailboxId);
-                }
+        if (accounts == null) {
+            requested = new ArrayList<Integer>(mailboxIds.values());
+        } else {
+            requested = new ArrayList<Integer>(accounts.size());
+            for (NamedEntry account : accounts) {
+                Integer mailboxId = mailboxIds.get(account.getId());
+                if (mailboxId != null)
+                    requested.add(mailboxId);
             }
         }
 
@@ -950,10 +943,14 @@ public class MailboxManager {
 
     protected void markMailboxDeleted(Mailbox mailbox) {
         String accountId = mailbox.getAccountId().toLowerCase();
-        synchronized (this) {
+        Lock lock = cache.lockFor(mailbox.getId());
+        lock.lock();
+        try {
             maintenanceLocks.remove(accountId);
             mailboxIds.remove(accountId);
             cache.remove(mailbox.getId());
+        } finally {
+            lock.unlock();
         }
         notifyMailboxDeleted(accountId);
     }
@@ -962,10 +959,10 @@ public class MailboxManager {
         StringBuilder sb = new StringBuilder();
         sb.append("MAILBOX CACHE DUMPS\n");
         sb.append("----------------------------------------------------------------------\n");
-        synchronized (this) {
-            for (Map.Entry<String, Integer> entry : mailboxIds.entrySet())
-                sb.append("1) key=" + entry.getKey() + " (hash=" + entry.getKey().hashCode() + "); val=" + entry.getValue() + "\n");
-            for (Map.Entry<Integer, Object> entry : cache.entrySet())
+        for (Map.Entry<String, Integer> entry : mailboxIds.entrySet())
+            sb.append("1) key=" + entry.getKey() + " (hash=" + entry.getKey().hashCode() + "); val=" + entry.getValue() + "\n");
+        for (Map.Entry<Integer, Object> entry : cache.entrySet()) {
+            if (entry.getValue() != null)
                 sb.append("2) key=" + entry.getKey() + "; val=" + entry.getValue() + "(class= " + entry.getValue().getClass().getName() + ",hash=" + entry.getValue().hashCode() + ")");
         }
         sb.append("----------------------------------------------------------------------\n");
@@ -1020,37 +1017,78 @@ public class MailboxManager {
         }
     }
 
+    /**
+     * Two-tier mailbox cache.  The most recently used {@code hardSize} entries are held by hard reference; entries
+     * aged out of the hard tier are demoted to a soft tier where {@link Mailbox} objects are only held by
+     * {@link SoftReference}.
+     * <p>
+     * Both tiers are concurrent maps, so lookups never block.  Mutations of a given mailbox id are serialized on one
+     * of a fixed set of striped locks (see {@link #lockFor(int)}); callers that need to check-then-act on an entry
+     * should hold that lock across the compound operation.  Recency in the hard tier is approximated with a
+     * per-entry access timestamp rather than an access-ordered list, and demotion is done in a single pass by
+     * whichever thread pushes the hard tier over its limit.
+     */
     protected static class MailboxMap implements Map<Integer, Object> {
+        private static final int LOCK_STRIPES = 256;
+
         final int mHardSize;
-        final LinkedHashMap<Integer, Object> mHardMap;
-        final HashMap<Integer, Object> mSoftMap;
+        final ConcurrentHashMap<Integer, HardEntry> mHardMap;
+        final ConcurrentHashMap<Integer, Object> mSoftMap;
+        private final ReentrantLock[] mLocks;
+        // hard tier entries from least to most recently used; guarded by mLruLock
+        private final LinkedHashMap<Integer, HardEntry> mLru;
+        private final ReentrantLock mLruLock = new ReentrantLock();
+
+        private static final class HardEntry {
+            final Object value;
+
+            HardEntry(Object value) {
+                this.value = value;
+            }
+        }
 
-        @SuppressWarnings("serial") MailboxMap(int hardSize) {
+        MailboxMap(int hardSize) {
             hardSize = Math.max(hardSize, 0);
             mHardSize = hardSize;
-            mSoftMap = new HashMap<Integer, Object>();
-            mHardMap = new LinkedHashMap<Integer, Object>(mHardSize / 4, (float) .75, true) {
-                @Override protected boolean removeEldestEntry(Entry<Integer, Object> eldest) {
-                    if (size() <= mHardSize)
-                        return false;
-
-                    Object obj = eldest.getValue();
-                    if (obj instanceof Mailbox)
-                        obj = new SoftReference<Mailbox>((Mailbox) obj);
-                    mSoftMap.put(eldest.getKey(), obj);
-                    return true;
-                }
-            };
+            mSoftMap = new ConcurrentHashMap<Integer, Object>();
+            mHardMap = new ConcurrentHashMap<Integer, HardEntry>(Math.max(mHardSize / 4, 16));
+            mLru = new LinkedHashMap<Integer, HardEntry>(Math.max(mHardSize / 4, 16), 0.75f, true);
+            mLocks = new ReentrantLock[LOCK_STRIPES];
+            for (int i = 0; i < mLocks.length; i++) {
+                mLocks[i] = new ReentrantLock();
+            }
         }
 
         protected MailboxMap() {
             mHardSize = 0;
             mHardMap = null;
             mSoftMap = null;
+            mLru = null;
+            mLocks = null;
+        }
+
+        /**
+         * Returns the lock guarding mutations of the entry for the given mailbox id.  The lock is reentrant, and
+         * the mutators of this map acquire it themselves, so holding it while calling {@link #put} or
+         * {@link #remove} is allowed.
+         */
+        public Lock lockFor(int mailboxId) {
+            int h = mailboxId ^ (mailboxId >>> 16);
+            return mLocks[h & (mLocks.length - 1)];
+        }
+
+        private static Object dereference(Object obj) {
+            return obj instanceof SoftReference ? ((SoftReference<?>) obj).get() : obj;
         }
 
         @Override public void clear() {
-            mHardMap.clear();
+            mLruLock.lock();
+            try {
+                mHardMap.clear();
+                mLru.clear();
+            } finally {
+                mLruLock.unlock();
+            }
             mSoftMap.clear();
         }
 
@@ -1059,13 +1097,16 @@ public class MailboxManager {
         }
 
         @Override public boolean containsValue(Object value) {
-            return mHardMap.containsValue(value) || mSoftMap.containsValue(value);
+            return values().contains(value);
         }
 
         @Override public Set<Entry<Integer, Object>> entrySet() {
             Set<Entry<Integer, Object>> entries = new HashSet<Entry<Integer, Object>>(size());
-            if (mHardSize > 0)
-                entries.addAll(mHardMap.entrySet());
+            if (mHardSize > 0) {
+                for (Entry<Integer, HardEntry> entry : mHardMap.entrySet()) {
+                    entries.add(new SimpleImmutableEntry<Integer, Object>(entry.getKey(), entry.getValue().value));
+                }
+            }
             entries.addAll(mSoftMap.entrySet());
             return entries;
         }
@@ -1075,14 +1116,23 @@ public class MailboxManager {
         }
 
         public Object get(Object key, boolean trackGC) {
-            Object obj = mHardSize > 0 ? mHardMap.get(key) : null;
-            if (obj == null) {
-                obj = mSoftMap.get(key);
-                if (obj instanceof SoftReference) {
-                    obj = ((SoftReference<?>) obj).get();
-                    if (trackGC && obj == null)
-                        ZimbraLog.mailbox.debug("mailbox " + key + " has been GCed; reloading");
+            HardEntry hard = mHardSize > 0 ? mHardMap.get(key) : null;
+            if (hard != null) {
+                // best effort: a read that would have to wait for the lock leaves the order as it is
+                if (mLruLock.tryLock()) {
+                    try {
+                        mLru.get(key);
+                    } finally {
+                        mLruLock.unlock();
+                    }
                 }
+                return hard.value;
+            }
+            Object obj = mSoftMap.get(key);
+            if (obj instanceof SoftReference) {
+                obj = ((SoftReference<?>) obj).get();
+                if (trackGC && obj == null)
+                    ZimbraLog.mailbox.debug("mailbox " + key + " has been GCed; reloading");
             }
             return obj;
         }
@@ -1101,18 +1151,72 @@ public class MailboxManager {
 
         @Override public Object put(Integer key, Object value) {
             Object removed;
-            if (mHardSize > 0) {
-                removed = mHardMap.put(key, value);
-                if (removed == null)
-                    removed = mSoftMap.remove(key);
-            } else {
-                if (value instanceof Mailbox)
-                    value = new SoftReference<Object>(value);
-                removed = mSoftMap.put(key, value);
+            Lock lock = lockFor(key);
+            lock.lock();
+            try {
+                if (mHardSize > 0) {
+                    // insert before removing from the soft tier so lock-free readers never see a gap
+                    HardEntry hard = new HardEntry(value);
+                    HardEntry previous = mHardMap.put(key, hard);
+                    mLruLock.lock();
+                    try {
+                        mLru.put(key, hard);
+                    } finally {
+                        mLruLock.unlock();
+                    }
+                    Object softRemoved = mSoftMap.remove(key);
+                    removed = previous != null ? previous.value : softRemoved;
+                } else {
+                    if (value instanceof Mailbox)
+                        value = new SoftReference<Object>(value);
+                    removed = mSoftMap.put(key, value);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (mHardSize > 0 && mHardMap.size() > mHardSize) {
+                demote();
+            }
+            return dereference(removed);
+        }
+
+        /**
+         * Moves the least recently used entries from the hard tier to the soft tier until the hard tier is back at
+         * its limit.  Entries whose lock is currently held by another thread are skipped and will be reconsidered on
+         * the next pass.
+         */
+        private void demote() {
+            mLruLock.lock();
+            try {
+                int excess = mHardMap.size() - mHardSize;
+                Iterator<Entry<Integer, HardEntry>> it = mLru.entrySet().iterator();
+                while (excess > 0 && it.hasNext()) {
+                    Entry<Integer, HardEntry> candidate = it.next();
+                    Integer key = candidate.getKey();
+                    // never wait for an entry lock while holding mLruLock, mutators take them the other way round
+                    Lock lock = lockFor(key);
+                    if (!lock.tryLock()) {
+                        continue;
+                    }
+                    try {
+                        HardEntry hard = candidate.getValue();
+                        if (mHardMap.get(key) == hard) {
+                            Object obj = hard.value;
+                            if (obj instanceof Mailbox)
+                                obj = new SoftReference<Mailbox>((Mailbox) obj);
+                            // publish to the soft tier first so lock-free readers never see a gap
+                            mSoftMap.put(key, obj);
+                            mHardMap.remove(key, hard);
+                            excess--;
+                        }
+                        it.remove();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } finally {
+                mLruLock.unlock();
             }
-            if (removed instanceof SoftReference)
-                removed = ((SoftReference<?>) removed).get();
-            return removed;
         }
 
         @Override public void putAll(Map<? extends Integer, ? extends Object> t) {
@@ -1121,13 +1225,26 @@ public class MailboxManager {
         }
 
         @Override public Object remove(Object key) {
-            Object removed = mHardSize > 0 ? mHardMap.remove(key) : null;
-            if (removed == null) {
-                removed = mSoftMap.remove(key);
-                if (removed instanceof SoftReference)
-                    removed = ((SoftReference<?>) removed).get();
+            if (!(key instanceof Integer)) {
+                return null;
+            }
+            Lock lock = lockFor((Integer) key);
+            lock.lock();
+            try {
+                HardEntry hard = mHardSize > 0 ? mHardMap.remove(key) : null;
+                if (hard != null) {
+                    mLruLock.lock();
+                    try {
+                        mLru.remove(key);
+                    } finally {
+                        mLruLock.unlock();
+                    }
+                }
+                Object removed = mSoftMap.remove(key);
+                return hard != null ? hard.value : dereference(removed);
+            } finally {
+                lock.unlock();
             }
-            return removed;
         }
 
         @Override public int size() {
@@ -1136,18 +1253,23 @@ public class MailboxManager {
 
         @Override public Collection<Object> values() {
             List<Object> values = new ArrayList<Object>(size());
-            if (mHardSize > 0)
-                values.addAll(mHardMap.values());
+            if (mHardSize > 0) {
+                for (HardEntry hard : mHardMap.values()) {
+                    values.add(hard.value);
+                }
+            }
             for (Object o : mSoftMap.values()) {
-                if (o instanceof SoftReference)
-                    o = ((SoftReference<?>) o).get();
-                values.add(o);
+                values.add(dereference(o));
             }
             return values;
         }
 
         @Override public String toString() {
-            return "<" + mHardMap.toString() + ", " + mSoftMap.toString() + ">";
+            Map<Integer, Object> hard = new HashMap<Integer, Object>();
+            for (Entry<Integer, HardEntry> entry : mHardMap.entrySet()) {
+                hard.put(entry.getKey(), entry.getValue().value);
+            }
+            return "<" + hard.toString() + ", " + mSoftMap.toString() + ">";
         }
     }
 }
@@ -16,6 +16,12 @@ package com.zimbra.cs.mailbox;
  * ***** END LICENSE BLOCK *****
  */
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.memcached.MemcachedKey;
 import com.zimbra.common.util.memcached.MemcachedMap;
@@ -126,6 +132,29 @@ public class MemcachedItemCache {
         }
     }
     
+    /**
+     * Retrieves several items from memcached cache in one batch
+     * @param mbox
+     * @param itemIds
+     * @return the items that were present, by id
+     * @throws ServiceException
+     */
+    public Map<Integer, MailItem> get(Mailbox mbox, Collection<Integer> itemIds) throws ServiceException {
+        List<ItemCacheKey> keys = new ArrayList<ItemCacheKey>(itemIds.size());
+        for (int itemId : itemIds) {
+            keys.add(new ItemCacheKey(mbox, itemId));
+        }
+        Map<Integer, MailItem> items = new HashMap<Integer, MailItem>(itemIds.size() * 2);
+        for (Metadata meta : memcachedLookup.getMulti(keys).values()) {
+            if (meta != null) {
+                MailItem.UnderlyingData ud = new MailItem.UnderlyingData();
+                ud.deserialize(meta);
+                items.put(ud.id, MailItem.constructItem(mbox, ud, true));
+            }
+        }
+        return items;
+    }
+
     public MailItem get(Mailbox mbox, String uuid) throws ServiceException {
         ItemCacheUuidKey key = new ItemCacheUuidKey(mbox, uuid);
         Integer itemId = memcachedUuidLookup.get(key);
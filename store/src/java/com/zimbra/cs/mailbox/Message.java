@@ -42,6 +42,7 @@ import com.zimbra.common.mime.InternetAddress;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
+import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.common.zmime.ZMimeMessage;
@@ -51,6 +52,7 @@ import com.zimbra.cs.account.CalendarResource;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.Rights.User;
 import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.imap.ImapMessage;
 import com.zimbra.cs.index.IndexDocument;
 import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.mailbox.MailItem.CustomMetadata.CustomMetadataList;
@@ -208,6 +210,8 @@ public class Message extends MailItem {
     private String recipients;
     private String fragment;
     private String rawSubject;
+    private String imapEnvelope;
+    private String imapBodyStructure;
 
     private DraftInfo draftInfo;
     private ArrayList<CalendarItemInfo> calendarItemInfos;
@@ -253,6 +257,32 @@ public class Message extends MailItem {
         return Strings.nullToEmpty(fragment);
     }
 
+    /** Returns the message's IMAP {@code ENVELOPE} exactly as it is sent in
+     *  a FETCH response, or <tt>null</tt> if it hasn't been precomputed.
+     *
+     * @see ImapMessage#precomputeStructure(MimeMessage) */
+    public String getImapEnvelope() {
+        return imapEnvelope;
+    }
+
+    /** Returns the message's IMAP {@code BODYSTRUCTURE} exactly as it is
+     *  sent in a FETCH response, or <tt>null</tt> if it hasn't been
+     *  precomputed.
+     *
+     * @see ImapMessage#precomputeStructure(MimeMessage) */
+    public String getImapBodyStructure() {
+        return imapBodyStructure;
+    }
+
+    /** Stores the precomputed IMAP structures of a message that was added
+     *  without them.  As they are derived from the blob, the metadata is
+     *  rewritten without counting as a change to the item. */
+    void setImapStructure(Pair<String, String> structure) throws ServiceException {
+        imapEnvelope = structure.getFirst();
+        imapBodyStructure = structure.getSecond();
+        DbMailItem.saveDerivedMetadata(this, encodeMetadata());
+    }
+
     /**
      * Returns the normalized subject of the message.  This is done by taking the {@code Subject:} header and removing
      * prefixes (e.g. {@code "Re:"}) and suffixes (e.g. {@code "(fwd)"}) and the like.
@@ -592,7 +622,8 @@ public class Message extends MailItem {
         data.setFlags(flags & (Flag.FLAGS_MESSAGE | Flag.FLAGS_GENERIC));
         data.setTags(ntags);
         data.setSubject(pm.getNormalizedSubject());
-        data.metadata = encodeMetadata(DEFAULT_COLOR_RGB, 1, 1, extended, pm, pm.getFragment(acct.getLocale()), dinfo, null, null).toString();
+        data.metadata = encodeMetadata(DEFAULT_COLOR_RGB, 1, 1, extended, pm, pm.getFragment(acct.getLocale()),
+                ImapMessage.precomputeStructure(pm.getOriginalMessage()), dinfo, null, null).toString();
         data.unreadCount = unread ? 1 : 0;
         data.contentChanged(mbox);
 
@@ -1475,9 +1506,14 @@ public class Message extends MailItem {
             mData.size = newSize;
         }
 
+        // the IMAP structures are derived from the new content
+        Pair<String, String> imapStructure = ImapMessage.precomputeStructure(pm.getOriginalMessage());
+        imapEnvelope = imapStructure == null ? null : imapStructure.getFirst();
+        imapBodyStructure = imapStructure == null ? null : imapStructure.getSecond();
+
         // rewrite the DB row to reflect our new view
         saveData(new DbMailItem(mMailbox), encodeMetadata(mRGBColor, mMetaVersion, mVersion, mExtendedData, pm, fragment,
-                draftInfo, calendarItemInfos, calendarIntendedFor));
+                imapStructure, draftInfo, calendarItemInfos, calendarIntendedFor));
 
         if (parent instanceof VirtualConversation) {
             ((VirtualConversation) parent).recalculateMetadata(Collections.singletonList(this));
@@ -1521,6 +1557,8 @@ public class Message extends MailItem {
         sender = meta.get(Metadata.FN_SENDER, null);
         recipients = meta.get(Metadata.FN_RECIPIENTS, null);
         fragment = meta.get(Metadata.FN_FRAGMENT, null);
+        imapEnvelope = meta.get(Metadata.FN_IMAP_ENVELOPE, null);
+        imapBodyStructure = meta.get(Metadata.FN_IMAP_BODYSTRUCTURE, null);
 
         if (meta.containsKey(Metadata.FN_CALITEM_IDS)) {
             calendarItemInfos = new ArrayList<CalendarItemInfo>();
@@ -1552,19 +1590,22 @@ public class Message extends MailItem {
     @Override
     Metadata encodeMetadata(Metadata meta) {
         return encodeMetadata(meta, mRGBColor, mMetaVersion, mVersion, mExtendedData, sender, recipients, fragment,
-                mData.getSubject(), rawSubject, draftInfo, calendarItemInfos, calendarIntendedFor);
+                mData.getSubject(), rawSubject, imapEnvelope, imapBodyStructure, draftInfo, calendarItemInfos,
+                calendarIntendedFor);
     }
 
     private static Metadata encodeMetadata(Color color, int metaVersion, int version, CustomMetadataList extended, ParsedMessage pm,
-            String fragment, DraftInfo dinfo, List<CalendarItemInfo> calItemInfos, String calIntendedFor) {
+            String fragment, Pair<String, String> imapStructure, DraftInfo dinfo, List<CalendarItemInfo> calItemInfos,
+            String calIntendedFor) {
         return encodeMetadata(new Metadata(), color, metaVersion, version, extended, pm.getSender(), pm.getRecipients(),
-                fragment, pm.getNormalizedSubject(), pm.getSubject(), dinfo,
-                calItemInfos, calIntendedFor);
+                fragment, pm.getNormalizedSubject(), pm.getSubject(),
+                imapStructure == null ? null : imapStructure.getFirst(),
+                imapStructure == null ? null : imapStructure.getSecond(), dinfo, calItemInfos, calIntendedFor);
     }
 
     static Metadata encodeMetadata(Metadata meta, Color color, int metaVersion, int version, CustomMetadataList extended, String sender,
-            String recipients, String fragment, String subject, String rawSubj, DraftInfo dinfo,
-            List<CalendarItemInfo> calItemInfos, String calIntendedFor) {
+            String recipients, String fragment, String subject, String rawSubj, String imapEnvelope,
+            String imapBodyStructure, DraftInfo dinfo, List<CalendarItemInfo> calItemInfos, String calIntendedFor) {
         // try to figure out a simple way to make the raw subject from the normalized one
         String prefix = null;
         if (rawSubj == null || rawSubj.equals(subject)) {
@@ -1579,6 +1620,8 @@ public class Message extends MailItem {
         meta.put(Metadata.FN_FRAGMENT, fragment);
         meta.put(Metadata.FN_PREFIX, prefix);
         meta.put(Metadata.FN_RAW_SUBJ, rawSubj);
+        meta.put(Metadata.FN_IMAP_ENVELOPE, imapEnvelope);
+        meta.put(Metadata.FN_IMAP_BODYSTRUCTURE, imapBodyStructure);
 
         if (calItemInfos != null) {
             MetadataList mdList = new MetadataList();
@@ -19,13 +19,14 @@ package com.zimbra.cs.mailbox;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -54,13 +55,23 @@ public class MessageCache {
         long size = 0;
     }
 
-    /** Cache mapping message digest to the corresponding message structure. */
-    private static Map<String, CacheNode> sCache = new LinkedHashMap<String, CacheNode>(150, (float) 0.75, true);
-    /** Maximum number of items in {@link #sCache}. */
-    private static int sMaxCacheSize;
+    /** Cache mapping message digest to the corresponding message structure.  Lookups don't take a lock; recency
+     *  is recorded in striped buffers and the least recently used digests are evicted by whichever thread pushes
+     *  the cache over {@code zimbraMessageCacheSize}. */
+    private static final ConcurrentLinkedHashMap<String, CacheNode> sCache =
+        new ConcurrentLinkedHashMap.Builder<String, CacheNode>()
+            .maximumWeightedCapacity(0) // set by loadSettings()
+            .listener(new EvictionListener<String, CacheNode>() {
+                @Override
+                public void onEviction(String digest, CacheNode node) {
+                    sLog.debug("Pruning digest %s from the cache.", digest);
+                    sDataSize.addAndGet(-node.size);
+                    ZimbraPerf.COUNTER_MSG_CACHE_EVICTIONS.increment();
+                }
+            }).build();
     /** Number of bytes of message data stored in the cache.  This value includes only
      * messages that are read into memory, not streamed from disk. */
-    private volatile static long sDataSize = 0;
+    private static final AtomicLong sDataSize = new AtomicLong();
 
     static {
         try {
@@ -71,25 +82,22 @@ public class MessageCache {
     }
 
     public static void loadSettings() throws ServiceException {
-        sMaxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
-        ZimbraLog.cache.info("setting message cache size to " + sMaxCacheSize);
+        int maxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
+        ZimbraLog.cache.info("setting message cache size to " + maxCacheSize);
+        sCache.setCapacity(maxCacheSize);
     }
 
     /** Returns the number of messages in the cache. */
     public static int getSize() {
-        synchronized (sCache) {
-            return sCache.size();
-        }
+        return sCache.size();
     }
 
     public static boolean contains(String digest) {
-        synchronized (sCache) {
-            return sCache.containsKey(digest);
-        }
+        return sCache.containsKey(digest);
     }
 
     public static long getDataSize() {
-        return sDataSize;
+        return sDataSize.get();
     }
 
     /** Uncaches any data associated with the given item.  This must be done
@@ -124,12 +132,10 @@ public class MessageCache {
      *  stale data. */
     public static void purge(String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.remove(digest);
-                if (node != null) {
-                    sLog.debug("Purged digest %s from the message cache.", digest);
-                    sDataSize -= node.size;
-                }
+            CacheNode node = sCache.remove(digest);
+            if (node != null) {
+                sLog.debug("Purged digest %s from the message cache.", digest);
+                sDataSize.addAndGet(-node.size);
             }
         }
     }
@@ -157,12 +163,10 @@ public class MessageCache {
         int mboxId = item.getMailboxId();
         boolean isEncrypted = false;
 
-        synchronized (sCache) {
-            cnode = sCache.get(digest);
-            if (cnode == null) {
-                newNode = true;
-                cnode = new CacheNode();
-            }
+        cnode = sCache.get(digest);
+        if (cnode == null) {
+            newNode = true;
+            cnode = new CacheNode();
         }
 
         try {
@@ -177,7 +181,7 @@ public class MessageCache {
                         // Not the best place to increment the data size, but cacheItem()
                         // won't get called if we're expanding a message for an existing
                         // node.
-                        sDataSize += cnode.size;
+                        sDataSize.addAndGet(cnode.size);
                     }
                 } finally {
                     ByteUtil.closeStream(in);
@@ -286,7 +290,7 @@ public class MessageCache {
         expander.expand();
         cnode.expanded = expander.getExpanded();
         if (cnode.expanded != cnode.message) {
-            sDataSize += cnode.size;
+            sDataSize.addAndGet(cnode.size);
             cnode.size *= 2;
         }
     }
@@ -362,39 +366,26 @@ public class MessageCache {
 
     private static void cacheItem(String digest, CacheNode cnode) {
         sLog.debug("Caching MimeMessage for digest %s.", digest);
-        synchronized (sCache) {
-            sCache.put(digest, cnode);
-            // Cache data size was incremented in getMimeMessage().
-
-            // trim the cache if needed
-            if (sCache.size() > sMaxCacheSize) {
-                Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-                while (sCache.size() > sMaxCacheSize && it.hasNext()) {
-                    Map.Entry<String, CacheNode> entry = it.next();
-                    sLog.debug("Pruning digest %s from the cache.", entry.getKey());
-                    it.remove();
-                    sDataSize -= entry.getValue().size;
-                }
-            }
+        // Cache data size was incremented in getMimeMessage().  The cache trims itself if needed.
+        CacheNode old = sCache.put(digest, cnode);
+        if (old != null && old != cnode) {
+            // another thread loaded the same digest at the same time
+            sDataSize.addAndGet(-old.size);
         }
     }
 
     public static void removeDecryptedMessages(int mboxId) {
         sLog.debug("Start removing decrypted messages for mboxId=%d", mboxId);
-        synchronized (sCache) {
-            Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, CacheNode> entry = it.next();
-                CacheNode cacheNode = entry.getValue();
-                try {
-                    if (Mime.isEncrypted(cacheNode.message.getContentType())
-                        && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
-                        cacheNode.smimeAccessInfo.remove(mboxId);
-                    }
-                } catch (MessagingException e) {
-                    sLog.warn("MessagingException while checking content type for cache node with digest = %s",
-                        entry.getKey(), e);
+        for (Map.Entry<String, CacheNode> entry : sCache.entrySet()) {
+            CacheNode cacheNode = entry.getValue();
+            try {
+                if (Mime.isEncrypted(cacheNode.message.getContentType())
+                    && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
+                    cacheNode.smimeAccessInfo.remove(mboxId);
                 }
+            } catch (MessagingException e) {
+                sLog.warn("MessagingException while checking content type for cache node with digest = %s",
+                    entry.getKey(), e);
             }
         }
         sLog.debug("Removed decrypted messages for mboxId=%d", mboxId);
@@ -402,11 +393,9 @@ public class MessageCache {
 
     public static String getDecryptionError(int id, String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.get(digest);
-                if (node != null) {
-                    return node.smimeAccessInfo.get(id);
-                }
+            CacheNode node = sCache.getQuietly(digest);
+            if (node != null) {
+                return node.smimeAccessInfo.get(id);
             }
         }
         return null;
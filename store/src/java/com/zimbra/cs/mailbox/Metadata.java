@@ -17,6 +17,8 @@
 
 package com.zimbra.cs.mailbox;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -72,8 +74,10 @@ public final class Metadata {
     public static final String FN_FRAGMENT         = "f";
     public static final String FN_FIRST            = "f";
     public static final String FN_FIELDS           = "fld";
+    public static final String FN_IMAP_BODYSTRUCTURE = "i4bs";
     public static final String FN_DELETED          = "i4d";
     public static final String FN_DELETED_UNREAD   = "i4du";
+    public static final String FN_IMAP_ENVELOPE    = "i4env";
     public static final String FN_RECENT           = "i4l";
     public static final String FN_RECENT_CUTOFF    = "i4r";
     public static final String FN_REMOTE_ID        = "id";
@@ -125,7 +129,11 @@ public final class Metadata {
 
     private final Integer associatedItemId;
 
-    Map<Object, Object> map;
+    private Map<Object, Object> map;
+
+    /** Set instead of {@link #map} when read from the compact format, until the first change. */
+    private CompactMetadata.Reader reader;
+    private String encoded;
 
     public Metadata() {
         associatedItemId = null;
@@ -147,6 +155,15 @@ public final class Metadata {
             map = new HashMap<Object, Object>();
             return;
         }
+        if (CompactMetadata.isCompact(encoded)) {
+            try {
+                reader = new CompactMetadata.Reader(encoded);
+                this.encoded = encoded;
+                return;
+            } catch (CompactMetadata.CompactMetadataException e) {
+                throw MailServiceException.INVALID_METADATA(encoded, e);
+            }
+        }
         try {
             try {
                 map = (Map) BEncoding.decode(encoded);
@@ -156,7 +173,7 @@ public final class Metadata {
                 // treated at some point as if the bytes were ISO-8859-1 instead of UTF-8.  Try again with this reversed.
                 // If this works, the internal lengths will have gotten corrected, so there is a fair chance this has
                 // correctly identified what happened.
-                if (be.getCause() != null && be.getCause() instanceof NumberFormatException) {
+                if (be.getCause() instanceof NumberFormatException && hasLatin1Supplement(encoded)) {
                     String fixedUpEncoded = new String(encoded.getBytes(Charsets.ISO_8859_1), Charsets.UTF_8);
                     try {
                         map = (Map) BEncoding.decode(fixedUpEncoded);
@@ -183,28 +200,64 @@ public final class Metadata {
         }
     }
 
+    /**
+     * Returns the underlying map, first decoding all of the values if the metadata was read lazily.  Callers
+     * that may modify the map or its values must go through here.
+     */
+    Map<Object, Object> map() {
+        if (reader != null) {
+            map = reader.toMap();
+            reader = null;
+            encoded = null;
+        }
+        return map;
+    }
+
+    /** Returns a map of the current contents, without giving up the lazily read state. */
+    private Map<Object, Object> contents() {
+        return reader != null ? reader.toMap() : map;
+    }
+
+    private Object lookup(String key) {
+        return reader != null ? reader.get(key) : map.get(key);
+    }
+
     public boolean containsKey(String key) {
-        return map.containsKey(key);
+        return reader != null ? reader.containsKey(key) : map.containsKey(key);
     }
 
     public int size() {
-        return map.size();
+        return reader != null ? reader.size() : map.size();
     }
 
     public boolean isEmpty() {
-        return map.isEmpty();
+        return size() == 0;
+    }
+
+    /** Returns the top-level keys, without decoding any of the values. */
+    Collection<String> keys() {
+        if (reader != null) {
+            return reader.keys();
+        }
+        List<String> keys = new ArrayList<String>(map.size());
+        for (Object key : map.keySet()) {
+            if (key != null) {
+                keys.add(key.toString());
+            }
+        }
+        return keys;
     }
 
     public Metadata copy(Metadata source) {
         if (source != null) {
-            map.putAll(source.map);
+            map().putAll(source.contents());
         }
         return this;
     }
 
     public Map<String, ?> asMap()  {
         Map<String, Object> result = new HashMap<String, Object>();
-        for (Map.Entry<Object, Object> entry : map.entrySet()) {
+        for (Map.Entry<Object, Object> entry : contents().entrySet()) {
             Object key = entry.getKey();
             Object value = entry.getValue();
             if (key == null || value == null) {
@@ -221,48 +274,48 @@ public final class Metadata {
     }
 
     public Metadata remove(String key) {
-        map.remove(key);
+        map().remove(key);
         return this;
     }
 
     public Metadata put(String key, Object value) {
         if (key != null && value != null) {
-            map.put(key, value);
+            map().put(key, value);
         }
         return this;
     }
 
     public Metadata put(String key, long value) {
         if (key != null) {
-            map.put(key, Long.valueOf(value));
+            map().put(key, Long.valueOf(value));
         }
         return this;
     }
 
     public Metadata put(String key, double value) {
         if (key != null) {
-            map.put(key, new Double(value));
+            map().put(key, new Double(value));
         }
         return this;
     }
 
     public Metadata put(String key, boolean value) {
         if (key != null) {
-            map.put(key, new Boolean(value));
+            map().put(key, new Boolean(value));
         }
         return this;
     }
 
     public Metadata put(String key, Metadata value) {
         if (key != null && value != null) {
-            map.put(key, value.map);
+            map().put(key, value.map());
         }
         return this;
     }
 
     public Metadata put(String key, MetadataList value) {
         if (key != null && value != null) {
-            map.put(key, value.list);
+            map().put(key, value.list);
         }
         return this;
     }
@@ -284,7 +337,7 @@ public final class Metadata {
     }
 
     public String get(String key, String defaultValue) {
-        Object value = map.get(key);
+        Object value = lookup(key);
         return value == null ? defaultValue : value.toString();
     }
 
@@ -318,7 +371,7 @@ public final class Metadata {
     }
 
     public MetadataList getList(String key, boolean nullOK) throws ServiceException {
-        Object value = map.get(key);
+        Object value = lookup(key);
         if (nullOK && value == null) {
             return null;
         }
@@ -335,7 +388,7 @@ public final class Metadata {
     }
 
     public Metadata getMap(String key, boolean nullable) throws ServiceException {
-        Object value = map.get(key);
+        Object value = lookup(key);
         if (nullable && value == null) {
             return null;
         }
@@ -347,17 +400,50 @@ public final class Metadata {
         throw ServiceException.INVALID_REQUEST("invalid/missing value for attribute: " + key, null);
     }
 
+    /**
+     * UTF-8 misread as ISO-8859-1 always leaves characters between U+0080 and U+00FF, so without any there is no
+     * point re-decoding.
+     */
+    private static boolean hasLatin1Supplement(String encoded) {
+        for (int i = 0; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+            if (c >= '\u0080' && c <= '\u00ff') {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public String toString() {
+        if (CompactMetadata.isEnabled()) {
+            // unchanged since it was read, so the original encoding is still good
+            return reader != null ? encoded : CompactMetadata.encode(map);
+        }
+        return toLegacyString();
+    }
+
+    /**
+     * Returns the BEncoded form, with the legacy version key, regardless of {@code zimbra_metadata_compact_encoding}.
+     * For data leaving this server, which may be read by servers that don't know the compact format.
+     */
+    public String toLegacyString() {
         put(FN_MD_VERSION, LEGACY_METADATA_VERSION);
         String result = BEncoding.encode(map);
         map.remove(FN_MD_VERSION);
         return result;
     }
 
+    /**
+     * Converts encoded metadata to the BEncoded form if it is in the compact one.
+     */
+    public static String toLegacyString(String encoded) throws MailServiceException {
+        return CompactMetadata.isCompact(encoded) ? new Metadata(encoded).toLegacyString() : encoded;
+    }
+
     public String prettyPrint() {
         StringBuilder sb = new StringBuilder(2048);
-        prettyEncode(sb, map, 0);
+        prettyEncode(sb, contents(), 0);
         sb.setLength(sb.length() - 1);  // Remove the last newline.
         return sb.toString();
     }
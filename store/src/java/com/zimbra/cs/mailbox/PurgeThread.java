@@ -21,20 +21,34 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.KnownKey;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.stats.Counter;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.callback.CallbackUtil;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.Config;
 import com.zimbra.cs.util.Zimbra;
 
 /**
- * Iterates all the mailboxes in the system, purges them one at a time
- * and sleeps between purges for a time interval specified by
- * {@link Provisioning#A_zimbraMailPurgeSleepInterval}.
+ * Iterates all the mailboxes in the system and purges them, {@code purge_threads} at a time.  Each worker sleeps
+ * between purges for a time interval specified by {@link Provisioning#A_zimbraMailPurgeSleepInterval}.
+ * <p>
+ * Mailboxes with the most purgeable content, estimated from the size of their Trash and Junk folders, are purged
+ * first.  A mailbox that has more to purge than {@link Provisioning#A_zimbraMailPurgeBatchSize} per folder gets its
+ * next batch ahead of all the others.  Purging pauses while getting a database connection or delivering to an LMTP
+ * recipient takes longer than {@code purge_pause_db_conn_ms} or {@code purge_pause_lmtp_rcpt_ms} on average.
  *
  * @author bburtin
  */
@@ -43,7 +57,13 @@ extends Thread {
 
     private static volatile PurgeThread sPurgeThread = null;
     private static Object THREAD_CONTROL_LOCK = new Object();
-    private boolean mShutdownRequested = false;
+    private volatile boolean mShutdownRequested = false;
+    // mailboxes waiting to be purged in the current cycle
+    private final PriorityBlockingQueue<PurgeCandidate> mQueue = new PriorityBlockingQueue<PurgeCandidate>();
+    private final ThreadPoolExecutor mWorkers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(),
+            new ThreadFactoryBuilder().setNameFormat("MailboxPurge-%d").setDaemon(true).build());
+    private final Throttle mThrottle = new Throttle();
 
     private PurgeThread() {
         setName("MailboxPurge");
@@ -104,8 +124,16 @@ extends Thread {
     }
 
     /**
-     * Iterates all mailboxes, purging one at a time and sleeping
-     * between purges.
+     * Returns the number of mailboxes waiting to be purged in the current cycle.
+     */
+    public static int getBacklog() {
+        PurgeThread thread = sPurgeThread;
+        return thread != null ? thread.mQueue.size() : 0;
+    }
+
+    /**
+     * Queues all mailboxes to purge, hands them to the workers and waits
+     * for them to finish, then starts over.
      */
     @Override public void run() {
         // Sleep before doing work, to give the server time to warm up.  Also limits the amount
@@ -118,75 +146,31 @@ extends Thread {
         } catch (InterruptedException e) {
             ZimbraLog.purge.info("Shutting down purge thread.");
             sPurgeThread = null;
+            mWorkers.shutdown();
             return;
         }
 
         Set<Integer> purgePendingMailboxes = new HashSet<Integer>();
         while (true) {
-            List<Integer> mailboxIds = getMailboxIds();
-            boolean slept = false;
-
-            for (int i = 0; i < mailboxIds.size(); i++) {
-                int mailboxId = mailboxIds.get(i);
-                if (mShutdownRequested) {
-                    ZimbraLog.purge.info("Shutting down purge thread.");
-                    sPurgeThread = null;
-                    return;
-                }
-                ZimbraLog.addMboxToContext(mailboxId);
-
-                // Purge the next mailbox
-                boolean attemptedPurge = false;
-                try {
-                    MailboxManager mm = MailboxManager.getInstance();
-                    if (mm.isMailboxLoadedAndAvailable(mailboxId) || purgePendingMailboxes.contains(mailboxId)) {
-                        attemptedPurge = true;
-                        Mailbox mbox = mm.getMailboxById(mailboxId);
-                        Account account = mbox.getAccount();
-                        Provisioning prov = Provisioning.getInstance();
-                        if (!Provisioning.ACCOUNT_STATUS_MAINTENANCE.equals(account.getAccountStatus(prov)) &&
-                                !account.isIsExternalVirtualAccount()) {
-                            ZimbraLog.addAccountNameToContext(account.getName());
-                            boolean purgedAll = mbox.purgeMessages(null);
-                            if (!purgedAll) {
-                                ZimbraLog.purge.info("Not all messages were purged.  Scheduling mailbox to be purged again.");
-                                mailboxIds.add(mailboxId);
-                            }
-                            Config.setInt(Config.KEY_PURGE_LAST_MAILBOX_ID, mbox.getId());
-                        } else {
-                            ZimbraLog.purge.debug("Skipping mailbox %d because the account is in maintenance status or is an external virtual account.", mailboxId);
-                        }
-                    } else {
-                        ZimbraLog.purge.debug("Skipping mailbox %d because it is not loaded into memory.", mailboxId);
-                    }
-                } catch (ServiceException se) {
-                    if (ServiceException.WRONG_HOST.equals(se.getCode())) {
-                        if (ZimbraLog.purge.isDebugEnabled()) {
-                            ZimbraLog.purge.debug("not purging mailbox moved to other host ", se);
-                        } else {
-                            ZimbraLog.purge.info("not purging mailbox %d; account moved to another host", mailboxId);
-                        }
-                    } else {
-                        ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, se);
-                    }
-                } catch (OutOfMemoryError oome) {
-                    Zimbra.halt("Ran out of memory while purging mailboxes", oome);
-                } catch (Throwable t) {
-                    ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, t);
-                }
-
-                ZimbraLog.clearContext();
-                if (attemptedPurge) {
-                    // Sleep after every purge attempt.
-                    sleep();
-                    slept = true;
-                }
-           }
+            mQueue.addAll(getCandidates(purgePendingMailboxes));
+            boolean attemptedPurge = false;
+            try {
+                attemptedPurge = purgeQueued();
+            } catch (InterruptedException e) {
+                mShutdownRequested = true;
+            }
 
             // If nothing's getting purged, sleep to avoid a tight loop
-            if (!slept) {
+            if (!attemptedPurge && !mShutdownRequested) {
                 sleep();
             }
+            if (mShutdownRequested) {
+                ZimbraLog.purge.info("Shutting down purge thread.");
+                mQueue.clear();
+                mWorkers.shutdownNow();
+                sPurgeThread = null;
+                return;
+            }
 
             try {
                 long lastPurgeMaxDuration = Provisioning.getInstance().getLocalServer().getLastPurgeMaxDuration();
@@ -197,6 +181,104 @@ extends Thread {
         }
     }
 
+    /**
+     * Hands the queued mailboxes to up to {@code purge_threads} workers, most purgeable first, until the queue is
+     * empty and no worker is left that might queue the next batch of its mailbox.
+     *
+     * @return <tt>true</tt> if a purge was attempted
+     */
+    private boolean purgeQueued() throws InterruptedException {
+        final int threads = Math.max(1, LC.purge_threads.intValue());
+        final Semaphore idle = new Semaphore(threads);
+        boolean attemptedPurge = false;
+        while (!mShutdownRequested) {
+            idle.acquire();
+            PurgeCandidate candidate;
+            while (true) {
+                // workers queue the next batch of their mailbox before they become idle
+                boolean busy = idle.availablePermits() < threads - 1;
+                candidate = mQueue.poll(busy ? 1L : 0L, TimeUnit.SECONDS);
+                if (candidate != null || !busy) {
+                    break;
+                }
+            }
+            if (candidate == null) {
+                idle.release();
+                break;
+            }
+
+            attemptedPurge = true;
+            final PurgeCandidate next = candidate;
+            mWorkers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        purge(next);
+                    } finally {
+                        idle.release();
+                    }
+                }
+            });
+        }
+        return attemptedPurge;
+    }
+
+    /**
+     * Purges one mailbox and sleeps afterwards.  Runs on a worker.
+     */
+    private void purge(PurgeCandidate candidate) {
+        int mailboxId = candidate.mailboxId;
+        try {
+            mThrottle.await();
+        } catch (InterruptedException e) {
+            ZimbraLog.purge.debug("Purge worker was interrupted.");
+            return;
+        }
+        if (mShutdownRequested) {
+            return;
+        }
+        ZimbraLog.addMboxToContext(mailboxId);
+
+        long start = ZimbraPerf.STOPWATCH_PURGE.start();
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxById(mailboxId);
+            Account account = mbox.getAccount();
+            Provisioning prov = Provisioning.getInstance();
+            if (!Provisioning.ACCOUNT_STATUS_MAINTENANCE.equals(account.getAccountStatus(prov)) &&
+                    !account.isIsExternalVirtualAccount()) {
+                ZimbraLog.addAccountNameToContext(account.getName());
+                boolean purgedAll = mbox.purgeMessages(null);
+                if (!purgedAll) {
+                    ZimbraLog.purge.info("Not all messages were purged.  Scheduling mailbox to be purged again.");
+                    mQueue.add(new PurgeCandidate(mailboxId, Long.MAX_VALUE, candidate.order));
+                }
+                Config.setInt(Config.KEY_PURGE_LAST_MAILBOX_ID, mbox.getId());
+            } else {
+                ZimbraLog.purge.debug("Skipping mailbox %d because the account is in maintenance status or is an external virtual account.", mailboxId);
+            }
+        } catch (ServiceException se) {
+            if (ServiceException.WRONG_HOST.equals(se.getCode())) {
+                if (ZimbraLog.purge.isDebugEnabled()) {
+                    ZimbraLog.purge.debug("not purging mailbox moved to other host ", se);
+                } else {
+                    ZimbraLog.purge.info("not purging mailbox %d; account moved to another host", mailboxId);
+                }
+            } else {
+                ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, se);
+            }
+        } catch (OutOfMemoryError oome) {
+            Zimbra.halt("Ran out of memory while purging mailboxes", oome);
+        } catch (Throwable t) {
+            ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, t);
+        } finally {
+            ZimbraPerf.STOPWATCH_PURGE.stop(start);
+            ZimbraLog.clearContext();
+        }
+
+        // Sleep after every purge attempt.
+        sleep();
+    }
+
     /**
      * Sleeps for the time interval specified by {@link Provisioning#A_zimbraMailPurgeSleepInterval}.
      * If sleep is interrupted, sets {@link #mShutdownRequested} to <tt>true</tt>.
@@ -225,7 +307,7 @@ extends Thread {
      * Stores the sleep interval, so that the purge thread doesn't
      * die if there's a problem talking to LDAP.  See bug 32639.
      */
-    private static long sSleepInterval = 0;
+    private static volatile long sSleepInterval = 0;
 
     /**
      * Returns the current value of {@link Provisioning#A_zimbraMailPurgeSleepInterval},
@@ -236,6 +318,48 @@ extends Thread {
         return sSleepInterval;
     }
 
+    /**
+     * Returns the mailboxes to purge in this cycle: those that are loaded into memory,
+     * and those whose last purge is overdue.
+     */
+    private List<PurgeCandidate> getCandidates(Set<Integer> purgePendingMailboxes) {
+        MailboxManager mm;
+        try {
+            mm = MailboxManager.getInstance();
+        } catch (ServiceException e) {
+            ZimbraLog.purge.warn("Unable to get mailbox manager", e);
+            return Collections.emptyList();
+        }
+        List<Integer> mailboxIds = getMailboxIds();
+        List<PurgeCandidate> candidates = new ArrayList<PurgeCandidate>();
+        for (int i = 0; i < mailboxIds.size(); i++) {
+            int mailboxId = mailboxIds.get(i);
+            if (mm.isMailboxLoadedAndAvailable(mailboxId)) {
+                candidates.add(new PurgeCandidate(mailboxId, estimatePurgeableSize(mm, mailboxId), i));
+            } else if (purgePendingMailboxes.contains(mailboxId)) {
+                // not worth loading the mailbox just to size it up
+                candidates.add(new PurgeCandidate(mailboxId, 0L, i));
+            } else {
+                ZimbraLog.purge.debug("Skipping mailbox %d because it is not loaded into memory.", mailboxId);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Returns the size of Trash and Junk in bytes, where most of what is purged usually comes from.
+     */
+    private static long estimatePurgeableSize(MailboxManager mm, int mailboxId) {
+        try {
+            Mailbox mbox = mm.getMailboxById(mailboxId);
+            return mbox.getFolderById(null, Mailbox.ID_FOLDER_TRASH).getTotalSize() +
+                    mbox.getFolderById(null, Mailbox.ID_FOLDER_SPAM).getTotalSize();
+        } catch (ServiceException e) {
+            ZimbraLog.purge.debug("Unable to estimate purgeable size of mailbox %d", mailboxId, e);
+            return 0L;
+        }
+    }
+
     /**
      * Returns all the mailbox id's in purge order, starting with the one
      * after {@link Config#KEY_PURGE_LAST_MAILBOX_ID}.
@@ -261,4 +385,116 @@ extends Thread {
 
         return mailboxIds;
     }
+
+    /**
+     * A mailbox queued for purging, ordered by estimated purgeable size, largest first, then in
+     * {@link #getMailboxIds()} order.
+     */
+    @VisibleForTesting
+    static final class PurgeCandidate implements Comparable<PurgeCandidate> {
+        final int mailboxId;
+        final long estimate;
+        final int order;
+
+        PurgeCandidate(int mailboxId, long estimate, int order) {
+            this.mailboxId = mailboxId;
+            this.estimate = estimate;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(PurgeCandidate other) {
+            if (estimate != other.estimate) {
+                return estimate > other.estimate ? -1 : 1;
+            }
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+
+    /**
+     * Pauses purging while the server is busy, judged by the average time it recently took to get a database
+     * connection and to deliver to an LMTP recipient.
+     */
+    @VisibleForTesting
+    static final class Throttle {
+        private static final long SAMPLE_MILLIS = 5000L;
+        private static final long PAUSE_MILLIS = 5000L;
+
+        private final Latency dbConn;
+        private final Latency lmtpRcpt;
+        private long sampleTime = 0; // guarded by this
+        private boolean busy = false; // guarded by this
+
+        Throttle() {
+            this(ZimbraPerf.STOPWATCH_DB_CONN, ZimbraPerf.STOPWATCH_LMTP_RCPT);
+        }
+
+        @VisibleForTesting
+        Throttle(Counter dbConn, Counter lmtpRcpt) {
+            this.dbConn = new Latency(dbConn, LC.purge_pause_db_conn_ms);
+            this.lmtpRcpt = new Latency(lmtpRcpt, LC.purge_pause_lmtp_rcpt_ms);
+        }
+
+        /**
+         * Blocks until the server is no longer busy.
+         */
+        void await() throws InterruptedException {
+            if (!isBusy()) {
+                return;
+            }
+            ZimbraLog.purge.info("Pausing purge; average latency of getting a database connection %dms, " +
+                    "of LMTP delivery %dms", dbConn.average, lmtpRcpt.average);
+            long start = System.currentTimeMillis();
+            try {
+                do {
+                    Thread.sleep(PAUSE_MILLIS);
+                } while (isBusy());
+            } finally {
+                ZimbraPerf.COUNTER_PURGE_PAUSE.increment(System.currentTimeMillis() - start);
+            }
+            ZimbraLog.purge.info("Resuming purge");
+        }
+
+        @VisibleForTesting
+        synchronized boolean isBusy() {
+            long now = System.currentTimeMillis();
+            if (sampleTime == 0 || now - sampleTime >= SAMPLE_MILLIS) {
+                sampleTime = now;
+                // evaluate both, so that both averages are up to date
+                boolean dbConnBusy = dbConn.sample();
+                boolean lmtpRcptBusy = lmtpRcpt.sample();
+                busy = dbConnBusy || lmtpRcptBusy;
+            }
+            return busy;
+        }
+    }
+
+    /**
+     * Average of the latencies recorded by a {@link Counter} since it was last sampled.
+     */
+    private static final class Latency {
+        private final Counter counter;
+        private final KnownKey threshold;
+        private long count = 0;
+        private long total = 0;
+        volatile long average = 0;
+
+        Latency(Counter counter, KnownKey threshold) {
+            this.counter = counter;
+            this.threshold = threshold;
+        }
+
+        /**
+         * Updates the average, and returns <tt>true</tt> if it is over the threshold.
+         */
+        boolean sample() {
+            long newCount = counter.getCount();
+            long newTotal = counter.getTotal();
+            average = newCount > count ? (newTotal - total) / (newCount - count) : 0L;
+            count = newCount;
+            total = newTotal;
+            long max = threshold.longValue();
+            return max > 0 && average > max;
+        }
+    }
 }
@@ -0,0 +1,228 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Re-indexes many mailboxes, for example after an index format upgrade, without swamping the server.
+ * <p>
+ * Mailboxes are queued and re-indexed {@code zimbra_reindex_scheduler_mailboxes} at a time, each on one of the
+ * scheduler's own threads, so a long queue never runs into the limit of {@code zimbra_reindex_threads} that
+ * admin-initiated re-indexes are subject to.  Within a mailbox, items are fetched, their text extracted on the
+ * shared {@code zimbra_reindex_extract_threads} pool, and added to the index as a pipeline.  Scheduled re-indexes
+ * read at most {@code zimbra_reindex_max_bytes_per_second} of item content and pause while LMTP is delivering more
+ * than {@code zimbra_reindex_pause_delivery_rate} messages per second.
+ * <p>
+ * Progress of the mailboxes being re-indexed is reported by {@link MailboxIndex#getReIndexStatus()} as usual, and
+ * {@link MailboxIndex#cancelReIndex()} cancels one of them.
+ */
+public final class ReIndexScheduler {
+
+    private static final ReIndexScheduler INSTANCE = new ReIndexScheduler();
+
+    private final ThreadPoolExecutor executor;
+    // mailboxes that are queued or being re-indexed
+    private final Set<Integer> scheduled = Sets.newConcurrentHashSet();
+    private final Throttle throttle = new Throttle();
+
+    private ReIndexScheduler() {
+        int threads = Math.max(1, LC.zimbra_reindex_scheduler_mailboxes.intValue());
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("ReIndexScheduler-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static ReIndexScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues full re-indexes of the given mailboxes.  Mailboxes that are already queued are skipped.
+     *
+     * @return number of mailboxes added to the queue
+     */
+    public int schedule(Collection<Integer> mailboxIds) {
+        resize();
+        int added = 0;
+        for (Integer mboxId : mailboxIds) {
+            if (scheduled.add(mboxId)) {
+                executor.execute(new ScheduledReIndex(mboxId));
+                added++;
+            }
+        }
+        ZimbraLog.index.info("Scheduled re-index of %d mailboxes, %d queued", added, getQueuedCount());
+        return added;
+    }
+
+    private final class ScheduledReIndex implements Runnable {
+        private final int mboxId;
+
+        ScheduledReIndex(int mboxId) {
+            this.mboxId = mboxId;
+        }
+
+        @Override
+        public void run() {
+            try {
+                reIndex(mboxId);
+            } finally {
+                scheduled.remove(mboxId);
+            }
+        }
+    }
+
+    private void reIndex(int mboxId) {
+        Mailbox mbox;
+        try {
+            mbox = MailboxManager.getInstance().getMailboxById(mboxId);
+        } catch (ServiceException e) {
+            ZimbraLog.index.warn("Skipping scheduled re-index of mailbox %d", mboxId, e);
+            return;
+        }
+        try {
+            mbox.index.reIndexNow(throttle);
+        } catch (ServiceException e) {
+            ZimbraLog.index.warn("Skipping scheduled re-index of mailbox %d: %s", mboxId, e.getMessage());
+        }
+    }
+
+    /**
+     * Removes all mailboxes from the queue.  Re-indexes that are already running carry on; cancel them with
+     * {@link MailboxIndex#cancelReIndex()}.
+     *
+     * @return number of mailboxes removed from the queue
+     */
+    public int clear() {
+        List<Runnable> queued = new ArrayList<Runnable>();
+        executor.getQueue().drainTo(queued);
+        for (Runnable task : queued) {
+            scheduled.remove(((ScheduledReIndex) task).mboxId);
+        }
+        return queued.size();
+    }
+
+    /** Returns the number of mailboxes waiting for their re-index to start. */
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /** Returns true if the mailbox is queued or being re-indexed by this scheduler. */
+    public boolean isScheduled(int mboxId) {
+        return scheduled.contains(mboxId);
+    }
+
+    private void resize() {
+        int threads = Math.max(1, LC.zimbra_reindex_scheduler_mailboxes.intValue());
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else if (threads < executor.getMaximumPoolSize()) {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * IO budget and delivery load check shared by all scheduled re-indexes.
+     */
+    static final class Throttle {
+        private static final long SAMPLE_MILLIS = 1000L;
+        private static final long PAUSE_MILLIS = 5000L;
+
+        private final RateLimiter bytesLimiter = RateLimiter.create(Double.MAX_VALUE);
+        private long bytesPerSecond = 0; // guarded by this
+        private long sampleTime = 0; // guarded by this
+        private long sampleDelivered = 0; // guarded by this
+        private double deliveryRate = 0.0; // guarded by this
+
+        /**
+         * Blocks until the given number of bytes fits in the IO budget and delivery load is below the threshold.
+         *
+         * @throws ServiceException {@link ServiceException#INTERRUPTED} if the re-index is cancelled while waiting
+         */
+        void acquire(long bytes, MailboxIndex.ReIndexStatus status) throws ServiceException {
+            boolean paused = false;
+            while (isDeliveryBusy()) {
+                if (!paused) {
+                    ZimbraLog.index.info("Pausing re-index while delivering %.1f messages/sec", getDeliveryRate());
+                    paused = true;
+                }
+                if (status.isCancelled()) {
+                    throw ServiceException.INTERRUPTED("cancelled");
+                }
+                try {
+                    Thread.sleep(PAUSE_MILLIS);
+                } catch (InterruptedException e) {
+                    throw ServiceException.INTERRUPTED("interrupted while paused");
+                }
+            }
+            if (paused) {
+                ZimbraLog.index.info("Resuming re-index");
+            }
+
+            if (bytes > 0 && updateBytesPerSecond() > 0) {
+                bytesLimiter.acquire((int) Math.min(bytes, Integer.MAX_VALUE));
+            }
+        }
+
+        private synchronized long updateBytesPerSecond() {
+            long value = LC.zimbra_reindex_max_bytes_per_second.longValue();
+            if (value != bytesPerSecond) {
+                bytesPerSecond = value;
+                bytesLimiter.setRate(value > 0 ? value : Double.MAX_VALUE);
+            }
+            return value;
+        }
+
+        private boolean isDeliveryBusy() {
+            int threshold = LC.zimbra_reindex_pause_delivery_rate.intValue();
+            return threshold > 0 && getDeliveryRate() > threshold;
+        }
+
+        @VisibleForTesting
+        synchronized double getDeliveryRate() {
+            long now = System.currentTimeMillis();
+            long delivered = ZimbraPerf.COUNTER_LMTP_DLVD_MSGS.getTotal();
+            if (sampleTime == 0) {
+                sampleTime = now;
+                sampleDelivered = delivered;
+            } else if (now - sampleTime >= SAMPLE_MILLIS) {
+                deliveryRate = Math.max(0L, delivered - sampleDelivered) * 1000.0 / (now - sampleTime);
+                sampleTime = now;
+                sampleDelivered = delivered;
+            }
+            return deliveryRate;
+        }
+    }
+}
@@ -17,11 +17,13 @@
 
 package com.zimbra.cs.mailbox.calendar.cache;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -496,9 +498,47 @@ public class CalSummaryCache {
         public boolean allowPrivateAccess;  // whether caller has permission to view private data
     }
 
+    /**
+     * Looks up the memcached summaries of many calendar folders in one batch, typically those of all the calendars
+     * in a calendar view.  Pass the result to getCalendarSummary for each folder, so that it doesn't look them up
+     * one at a time.  No permission check is done here; getCalendarSummary does it as usual.
+     *
+     * @param folderIds calendar folder ids by account id
+     * @return summaries that cover the range, or null, by folder; null if the calendar cache is disabled
+     */
+    public Map<CalSummaryKey, CalendarData> prefetchCalendarSummaries(Map<String, List<Integer>> folderIds,
+            long rangeStart, long rangeEnd) {
+        if (!LC.calendar_cache_enabled.booleanValue() || rangeStart > rangeEnd)
+            return null;
+        List<CalSummaryKey> keys = new ArrayList<CalSummaryKey>();
+        for (Map.Entry<String, List<Integer>> entry : folderIds.entrySet()) {
+            for (int folderId : entry.getValue()) {
+                keys.add(new CalSummaryKey(entry.getKey(), folderId));
+            }
+        }
+        if (keys.size() < 2)
+            return null;
+        try {
+            return mMemcachedCache.getForRange(keys, rangeStart, rangeEnd);
+        } catch (ServiceException e) {
+            ZimbraLog.calendar.warn("Unable to prefetch calendar summaries from memcached", e);
+            return null;
+        }
+    }
+
     // get summary for all appts/tasks in a calendar folder
     public CalendarDataResult getCalendarSummary(OperationContext octxt, String targetAcctId, int folderId,
             MailItem.Type type, long rangeStart, long rangeEnd, boolean computeSubRange) throws ServiceException {
+        return getCalendarSummary(octxt, targetAcctId, folderId, type, rangeStart, rangeEnd, computeSubRange, null);
+    }
+
+    /**
+     * Same as the other getCalendarSummary, except that memcached isn't queried for folders whose summary was
+     * looked up by prefetchCalendarSummaries.
+     */
+    public CalendarDataResult getCalendarSummary(OperationContext octxt, String targetAcctId, int folderId,
+            MailItem.Type type, long rangeStart, long rangeEnd, boolean computeSubRange,
+            Map<CalSummaryKey, CalendarData> prefetched) throws ServiceException {
         if (rangeStart > rangeEnd)
             throw ServiceException.INVALID_REQUEST("End time must be after Start time", null);
 
@@ -545,7 +585,11 @@ public class CalSummaryCache {
 
         // Look up from memcached.
         CalSummaryKey key = new CalSummaryKey(targetAcctId, folderId);
-        CalendarData calData = mMemcachedCache.getForRange(key, rangeStart, rangeEnd);
+        CalendarData calData;
+        if (prefetched != null && prefetched.containsKey(key))
+            calData = prefetched.get(key);
+        else
+            calData = mMemcachedCache.getForRange(key, rangeStart, rangeEnd);
         if (calData != null) {
             ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(1);
             ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(1);
@@ -19,6 +19,8 @@ package com.zimbra.cs.mailbox.calendar.cache;
 
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -89,6 +91,24 @@ public class CalSummaryMemcachedCache {
             return null;
     }
 
+    /**
+     * Looks up the summaries of several calendar folders in one batch.  The returned map has an entry for every
+     * key, whose value is null if no cached summary covers the range.
+     */
+    Map<CalSummaryKey, CalendarData> getForRange(Collection<CalSummaryKey> keys, long rangeStart, long rangeEnd)
+    throws ServiceException {
+        Map<CalSummaryKey, CalendarData> found = mMemcachedLookup.getMulti(keys);
+        Map<CalSummaryKey, CalendarData> result = new HashMap<CalSummaryKey, CalendarData>(found.size() * 2);
+        for (Map.Entry<CalSummaryKey, CalendarData> entry : found.entrySet()) {
+            CalendarData calData = entry.getValue();
+            if (calData != null && rangeStart >= calData.getRangeStart() && rangeEnd <= calData.getRangeEnd())
+                result.put(entry.getKey(), calData.getSubRange(rangeStart, rangeEnd));
+            else
+                result.put(entry.getKey(), null);
+        }
+        return result;
+    }
+
     public void put(CalSummaryKey key, CalendarData calData) throws ServiceException {
         mMemcachedLookup.put(key, calData);
     }
@@ -0,0 +1,304 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.lock;
+
+import java.util.Collection;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreV2;
+import org.apache.curator.framework.recipes.locks.Lease;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.Zimbra;
+import com.zimbra.cs.zookeeper.CuratorManager;
+import com.zimbra.cs.zookeeper.WriterIntent;
+
+/**
+ * Cluster-wide shared/exclusive lock on a mailbox, used by {@code MailboxLock} in always-on mode.
+ * <p>
+ * Shared mode is a lease from a ZooKeeper semaphore with {@code zimbra_mailbox_distributed_lock_max_readers} leases;
+ * exclusive mode takes the writer mutex and then every lease, so it waits for all readers to drain.  Writers are
+ * serialized on the mutex so two writers can never deadlock holding partial lease sets.
+ * <p>
+ * A node holds at most one read lease per mailbox: every local reader shares it, and it is kept for
+ * {@code zimbra_mailbox_distributed_read_lease_linger_ms} after the last local reader leaves so that back-to-back
+ * reads skip the ZooKeeper round trip.  A local writer drops the cached lease before asking for the exclusive lock.
+ * Writers waiting on any node register with {@link WriterIntent}; while one is waiting, the cached lease is neither
+ * shared with new local readers nor kept lingering, so a node with a steady stream of readers can't starve writers.
+ * New readers wait for the local ones to drain and then queue for a fresh lease behind the writer.
+ * <p>
+ * When {@code zimbra_mailbox_distributed_lock_readwrite} is false every acquisition takes the writer mutex, which is
+ * the pre-existing exclusive behavior.  All nodes in a cluster must use the same mode.
+ * <p>
+ * Callers must not request the exclusive lock while a shared lock is held on this node; {@code MailboxLock} only
+ * acquires the distributed lock after the local lock, which already guarantees that.
+ */
+public final class DistributedMailboxLock {
+    private final int mailboxId;
+    private final InterProcessSemaphoreMutex writerMutex;
+    private final InterProcessSemaphoreV2 leases;
+    private final WriterIntent writers;
+    private final int maxLeases;
+    private final long lingerMillis;
+
+    /** guards the cached read lease; never held by the timer thread while blocking on ZooKeeper */
+    private final ReentrantLock stateLock = new ReentrantLock();
+    /** signalled when the last local reader leaves */
+    private final Condition readersDrained = stateLock.newCondition();
+    private Lease readLease;
+    private long readLeaseAcquired;
+    private int localReaders;
+    private TimerTask lingerTask;
+    /** bumped whenever a pending linger is superseded, so stale timer tasks can tell they are stale */
+    private volatile long lingerGeneration;
+    private Collection<Lease> writeLeases;
+    private long writeAcquired;
+
+    public DistributedMailboxLock(CuratorManager curator, String id, int mailboxId) {
+        this(mailboxId, curator.createLock(id),
+                LC.zimbra_mailbox_distributed_lock_readwrite.booleanValue() ?
+                        curator.createSemaphore(id, LC.zimbra_mailbox_distributed_lock_max_readers.intValue()) : null,
+                LC.zimbra_mailbox_distributed_lock_readwrite.booleanValue() ? curator.createWriterIntent(id) : null,
+                LC.zimbra_mailbox_distributed_lock_max_readers.intValue(),
+                LC.zimbra_mailbox_distributed_read_lease_linger_ms.longValue());
+    }
+
+    @VisibleForTesting
+    DistributedMailboxLock(int mailboxId, InterProcessSemaphoreMutex writerMutex, InterProcessSemaphoreV2 leases,
+            WriterIntent writers, int maxLeases, long lingerMillis) {
+        this.mailboxId = mailboxId;
+        this.writerMutex = writerMutex;
+        this.leases = leases;
+        this.writers = writers;
+        this.maxLeases = maxLeases;
+        this.lingerMillis = lingerMillis;
+    }
+
+    public boolean isReadWrite() {
+        return leases != null;
+    }
+
+    /**
+     * Acquires the lock in shared or exclusive mode.
+     *
+     * @return false if the lock could not be acquired within the timeout
+     * @throws Exception on ZooKeeper errors
+     */
+    public boolean acquire(boolean write, long timeout, TimeUnit unit) throws Exception {
+        if (!isReadWrite() || write) {
+            return acquireExclusive(timeout, unit);
+        } else {
+            return acquireShared(timeout, unit);
+        }
+    }
+
+    public void release(boolean write) throws Exception {
+        if (!isReadWrite() || write) {
+            releaseExclusive();
+        } else {
+            releaseShared();
+        }
+    }
+
+    private boolean acquireShared(long timeout, TimeUnit unit) throws Exception {
+        long start = System.currentTimeMillis();
+        long deadline = start + unit.toMillis(timeout);
+        stateLock.lock();
+        try {
+            cancelLinger();
+            if (readLease != null && writers.isWriterWaiting()) {
+                // let the writer in: wait for the local readers to leave, then queue for a new lease behind it
+                while (localReaders > 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0 || !readersDrained.await(remaining, TimeUnit.MILLISECONDS)) {
+                        if (localReaders > 0) {
+                            addStat("read_wait", start);
+                            return false;
+                        }
+                    }
+                }
+                returnReadLease();
+            }
+            if (readLease != null) {
+                localReaders++;
+                ZimbraPerf.DLOCK_TRACKER.addStat("read_cached", start);
+                return true;
+            }
+            Lease lease = leases.acquire(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            addStat("read_wait", start);
+            if (lease == null) {
+                return false;
+            }
+            readLease = lease;
+            readLeaseAcquired = System.currentTimeMillis();
+            localReaders = 1;
+            return true;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    private void releaseShared() throws Exception {
+        stateLock.lock();
+        try {
+            if (localReaders <= 0) {
+                ZimbraLog.mailbox.warn("release of distributed read lock for mailbox %d when not held", mailboxId);
+                return;
+            }
+            if (--localReaders > 0) {
+                return;
+            }
+            readersDrained.signalAll();
+            if (lingerMillis <= 0 || writers.isWriterWaiting()) {
+                returnReadLease();
+            } else {
+                lingerTask = new LingerTask(lingerGeneration);
+                Zimbra.sTimer.schedule(lingerTask, lingerMillis);
+            }
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    private boolean acquireExclusive(long timeout, TimeUnit unit) throws Exception {
+        long start = System.currentTimeMillis();
+        long deadline = start + unit.toMillis(timeout);
+        stateLock.lock();
+        try {
+            // a cached read lease on this node would make us wait on ourselves
+            cancelLinger();
+            if (localReaders > 0) {
+                throw new IllegalStateException("exclusive distributed lock requested while shared lock is held");
+            }
+            returnReadLease();
+        } finally {
+            stateLock.unlock();
+        }
+
+        // don't hold the state lock while waiting on ZooKeeper; in exclusive-only mode several local readers may be
+        // queued here at once
+        String intent = isReadWrite() ? writers.announce() : null;
+        boolean acquired;
+        try {
+            acquired = writerMutex.acquire(timeout, unit);
+            if (acquired && isReadWrite()) {
+                Collection<Lease> all = null;
+                try {
+                    all = leases.acquire(maxLeases, Math.max(deadline - System.currentTimeMillis(), 0),
+                            TimeUnit.MILLISECONDS);
+                } finally {
+                    if (all == null) {
+                        writerMutex.release();
+                    }
+                }
+                writeLeases = all;
+                acquired = all != null;
+            }
+        } finally {
+            if (intent != null) {
+                writers.withdraw(intent);
+            }
+        }
+        addStat("write_wait", start);
+        if (acquired) {
+            writeAcquired = System.currentTimeMillis();
+        }
+        return acquired;
+    }
+
+    private void releaseExclusive() throws Exception {
+        long acquired = writeAcquired;
+        if (writeLeases != null) {
+            leases.returnAll(writeLeases);
+            writeLeases = null;
+        }
+        writerMutex.release();
+        addStat("write_hold", acquired);
+    }
+
+    /** Caller must hold {@link #stateLock}. */
+    private void returnReadLease() {
+        if (readLease != null) {
+            leases.returnLease(readLease);
+            readLease = null;
+            addStat("read_hold", readLeaseAcquired);
+        }
+    }
+
+    /** Caller must hold {@link #stateLock}. */
+    private void cancelLinger() {
+        lingerGeneration++;
+        if (lingerTask != null) {
+            lingerTask.cancel();
+            lingerTask = null;
+        }
+    }
+
+    /** Records a wait or hold time both across all mailboxes and for this one. */
+    private void addStat(String name, long start) {
+        ZimbraPerf.DLOCK_TRACKER.addStat(name, start);
+        ZimbraPerf.DLOCK_TRACKER.addStat(mailboxId + "_" + name, start);
+    }
+
+    @VisibleForTesting
+    boolean hasCachedReadLease() {
+        stateLock.lock();
+        try {
+            return readLease != null;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /** Returns the node's cached read lease once it has been idle for the linger period. */
+    private final class LingerTask extends TimerTask {
+        private final long generation;
+
+        LingerTask(long generation) {
+            this.generation = generation;
+        }
+
+        @Override
+        public void run() {
+            if (generation != lingerGeneration) {
+                return;
+            }
+            // never block the shared timer thread; try again shortly if the state is busy
+            if (!stateLock.tryLock()) {
+                Zimbra.sTimer.schedule(new LingerTask(generation), Math.max(lingerMillis / 4, 10));
+                return;
+            }
+            try {
+                if (generation == lingerGeneration && localReaders == 0) {
+                    lingerTask = null;
+                    returnReadLease();
+                }
+            } catch (Exception e) {
+                ZimbraLog.mailbox.warn("error while returning distributed read lease for mailbox %d", mailboxId, e);
+            } finally {
+                stateLock.unlock();
+            }
+        }
+    }
+}
@@ -32,6 +32,7 @@ public final class MemcachedKeyPrefix {
     public static final String EFFECTIVE_FOLDER_ACL = "zmEffFolderACL" + DELIMITER;
 
     public static final String MBOX_FOLDERS_TAGS    = "zmFldrsTags" + DELIMITER;
+    public static final String MBOX_FOLDERS_TAGS_CHANGES = "zmFldrsTagsChg" + DELIMITER;
 
     public static final String MBOX_MAILITEM        = "zmMailItem" + DELIMITER;
 
@@ -33,6 +33,13 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.zip.GZIPInputStream;
 
 import javax.mail.Address;
@@ -53,6 +60,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.calendar.ZCalendar.ICalTok;
 import com.zimbra.common.calendar.ZCalendar.ZCalendarBuilder;
 import com.zimbra.common.calendar.ZCalendar.ZVCalendar;
@@ -86,6 +94,7 @@ import com.zimbra.cs.mailbox.Flag;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.Threader;
 import com.zimbra.cs.object.ObjectHandlerException;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.StoreManager;
@@ -107,6 +116,15 @@ public final class ParsedMessage {
     private static final MailDateFormat FORMAT = new MailDateFormat();
     public static final long DATE_HEADER = -2;
     public static final long DATE_UNKNOWN = -1;
+    // shared by all messages for extracting the text of their parts in parallel
+    private static final int EXTRACT_THREADS = LC.zimbra_mime_extract_threads.intValue();
+    private static final ThreadPoolExecutor EXTRACT_EXECUTOR = EXTRACT_THREADS > 0 ?
+            new ThreadPoolExecutor(EXTRACT_THREADS, EXTRACT_THREADS, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setNameFormat("MimeExtract-%d").setDaemon(true).build()) : null;
+    // Extractions that ran over their budget keep their thread until they return, so the pool gets one more thread
+    // for each of them, up to twice its size.  Guarded by EXTRACT_EXECUTOR.
+    private static int abandonedExtractions = 0;
 
     private MimeMessage mimeMessage;
     private MimeMessage expandedMessage;
@@ -374,9 +392,10 @@ public final class ParsedMessage {
 
     /**
      * Analyze and extract text from all the "body" (non-attachment) parts of the message.
-     * This step is required to properly generate the message fragment.
+     * This step is required to properly generate the message fragment, and callers about to
+     * add the message to a mailbox should run it before taking the mailbox lock.
      */
-    private void analyzeBodyParts() throws ServiceException {
+    public void analyzeBodyParts() throws ServiceException {
         if (analyzedBodyParts) {
             return;
         }
@@ -392,18 +411,21 @@ public final class ParsedMessage {
             Set<MPartInfo> mpiBodies = Mime.getBody(messageParts, false);
 
             // extract text from the "body" parts
-            StringBuilder body = new StringBuilder();
+            List<MPartInfo> bodyParts = new ArrayList<MPartInfo>(mpiBodies.size());
             for (MPartInfo mpi : messageParts) {
                 if (mpiBodies.contains(mpi)) {
-                    String toplevelText = analyzePart(true, mpi);
-                    if (toplevelText.length() > 0) {
-                        appendToContent(body, toplevelText);
-                    }
+                    bodyParts.add(mpi);
                 }
                 if (ENCRYPTED_PART_TYPES.contains(mpi.mContentType)) {
                     encrypted = true;
                 }
             }
+            StringBuilder body = new StringBuilder();
+            for (String toplevelText : analyzeParts(true, bodyParts)) {
+                if (toplevelText.length() > 0) {
+                    appendToContent(body, toplevelText);
+                }
+            }
 
             // calculate the fragment -- requires body content
             bodyContent = body.toString().trim();
@@ -434,16 +456,16 @@ public final class ParsedMessage {
             Set<MPartInfo> mpiBodies = Mime.getBody(messageParts, false);
 
             // extract text from the "non-body" parts
+            List<MPartInfo> nonBodyParts = new ArrayList<MPartInfo>(messageParts.size());
+            for (MPartInfo mpi : messageParts) {
+                if (!mpiBodies.contains(mpi)) {
+                    nonBodyParts.add(mpi);
+                }
+            }
             StringBuilder fullContent = new StringBuilder(bodyContent);
-            {
-                for (MPartInfo mpi : messageParts) {
-                    boolean isMainBody = mpiBodies.contains(mpi);
-                    if (!isMainBody) {
-                        String toplevelText = analyzePart(isMainBody, mpi);
-                        if (toplevelText.length() > 0) {
-                            appendToContent(fullContent, toplevelText);
-                        }
-                    }
+            for (String toplevelText : analyzeParts(false, nonBodyParts)) {
+                if (toplevelText.length() > 0) {
+                    appendToContent(fullContent, toplevelText);
                 }
             }
 
@@ -1094,82 +1116,274 @@ public final class ParsedMessage {
     }
 
     /**
-     * @return Extracted toplevel text (any text that should go into the toplevel indexed document)
+     * Extracts text from the given parts and adds their index data to this message in part order.  If there is more
+     * than one part, extraction runs on {@link #EXTRACT_EXECUTOR}, all parts at once, and a part that takes longer
+     * than {@code zimbra_mime_extract_part_timeout} once started is left out of the index rather than holding up
+     * delivery.  A part still queued when its budget would have run out is extracted by the calling thread instead.
+     *
+     * @return Extracted toplevel text of each part (any text that should go into the toplevel indexed document)
+     */
+    private List<String> analyzeParts(boolean isMainBody, List<MPartInfo> parts)
+            throws MessagingException, ServiceException {
+        List<PartExtraction> extractions = new ArrayList<PartExtraction>(parts.size());
+        for (MPartInfo mpi : parts) {
+            // ignore multipart "container" parts
+            if (!mpi.isMultipart()) {
+                Mime.repairTransferEncoding(mpi.getMimePart());
+                extractions.add(new PartExtraction(mpi, isMainBody, acceptsCalendar(mpi)));
+            }
+        }
+
+        List<String> texts = new ArrayList<String>(extractions.size());
+        if (EXTRACT_EXECUTOR == null || extractions.size() < 2) {
+            for (PartExtraction extraction : extractions) {
+                texts.add(addPartExtraction(extraction.call()));
+            }
+            return texts;
+        }
+
+        long submitted = System.nanoTime();
+        List<FutureTask<PartExtraction>> futures = new ArrayList<FutureTask<PartExtraction>>(extractions.size());
+        try {
+            for (PartExtraction extraction : extractions) {
+                FutureTask<PartExtraction> future = new FutureTask<PartExtraction>(extraction);
+                futures.add(future);
+                EXTRACT_EXECUTOR.execute(future);
+            }
+            long budget = TimeUnit.MILLISECONDS.toNanos(LC.zimbra_mime_extract_part_timeout.longValue());
+            for (int i = 0; i < extractions.size(); i++) {
+                PartExtraction extraction = extractions.get(i);
+                if (awaitPartExtraction(extraction, futures.get(i), submitted, budget)) {
+                    texts.add(addPartExtraction(extraction));
+                } else {
+                    handleExtractionTimeout(extraction.mpi);
+                    texts.add("");
+                }
+            }
+            return texts;
+        } catch (InterruptedException e) {
+            throw ServiceException.INTERRUPTED("interrupted while extracting text from message parts");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            } else if (cause instanceof MessagingException) {
+                throw (MessagingException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ServiceException.FAILURE("failed to extract text from message parts", cause);
+        } finally {
+            // parts over budget are abandoned rather than interrupted, as an interrupt would close the shared
+            // file channels the extraction may be reading from
+            for (FutureTask<PartExtraction> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Waits for an extraction to finish within its budget, which starts when the extraction does.  An extraction that
+     * hasn't started within its budget after being submitted, because the pool is busy, runs on the calling thread.
+     *
+     * @return FALSE if the extraction ran over its budget
      */
-    private String analyzePart(boolean isMainBody, MPartInfo mpi) throws MessagingException, ServiceException {
+    private static boolean awaitPartExtraction(PartExtraction extraction, FutureTask<PartExtraction> future,
+            long submitted, long budget) throws InterruptedException, ExecutionException {
+        if (budget <= 0) {
+            future.get();
+            return true;
+        }
+        while (true) {
+            long started = extraction.started;
+            long remaining = (started != 0 ? started : submitted) + budget - System.nanoTime();
+            if (started == 0 && remaining <= 0) {
+                // does nothing if a pool thread picked it up in the meantime
+                future.run();
+                remaining = TimeUnit.MILLISECONDS.toNanos(1);
+            }
+            try {
+                future.get(remaining, TimeUnit.NANOSECONDS);
+                return true;
+            } catch (TimeoutException e) {
+                if (started != 0 && extraction.started == started && extraction.abandon()) {
+                    return false;
+                }
+                // it started while we were waiting, or it has just finished
+            }
+        }
+    }
 
-        boolean ignoreCalendar;
-        if (calendarPartInfo == null) {
-            ignoreCalendar = isBouncedCalendar(mpi);
+    private static void resizeExtractExecutor() {
+        assert Thread.holdsLock(EXTRACT_EXECUTOR);
+        int size = EXTRACT_THREADS + abandonedExtractions;
+        if (size > EXTRACT_EXECUTOR.getMaximumPoolSize()) {
+            EXTRACT_EXECUTOR.setMaximumPoolSize(size);
+            EXTRACT_EXECUTOR.setCorePoolSize(size);
         } else {
-            ignoreCalendar = true;
+            EXTRACT_EXECUTOR.setCorePoolSize(size);
+            EXTRACT_EXECUTOR.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Decides up front whether a part may supply the message's {@link CalendarPartInfo}; when several of the parts
+     * being extracted together do, the first one in part order wins.
+     */
+    private boolean acceptsCalendar(MPartInfo mpi) throws MessagingException {
+        if (calendarPartInfo != null || isBouncedCalendar(mpi)) {
+            return false;
         }
         String methodParam = (new ContentType(mpi.getMimePart().getContentType())).getParameter("method");
-        if (methodParam == null && !LC.calendar_allow_invite_without_method.booleanValue()) {
-            ignoreCalendar = true;
+        return methodParam != null || LC.calendar_allow_invite_without_method.booleanValue();
+    }
+
+    /**
+     * Adds the results of an extraction to this message.  Runs on the analyzing thread, in part order.
+     *
+     * @return Extracted toplevel text (any text that should go into the toplevel indexed document)
+     */
+    private String addPartExtraction(PartExtraction extraction) {
+        MPartInfo mpi = extraction.mpi;
+        // remember the first iCalendar attachment
+        if (extraction.calendar != null && calendarPartInfo == null) {
+            setCalendarPartInfo(mpi, extraction.calendar);
+        }
+        if (extraction.document != null) {
+            if (!Strings.isNullOrEmpty(extraction.filename)) {
+                filenames.add(extraction.filename);
+            }
+            luceneDocuments.add(setLuceneHeadersFromContainer(extraction.document));
         }
-        String toRet = "";
-        try {
-            // ignore multipart "container" parts
-            if (mpi.isMultipart()) {
-                return toRet;
+        if (extraction.error != null) {
+            handleParseError(mpi, extraction.error);
+        }
+        return extraction.text;
+    }
+
+    /**
+     * Text, index document and calendar extracted from one MIME part.  Extraction only reads the part and the
+     * analysis settings of the message, so that it can run on any thread; {@link #addPartExtraction} adds the
+     * results to the message.
+     */
+    private final class PartExtraction implements Callable<PartExtraction> {
+        final MPartInfo mpi;
+        private final boolean isMainBody;
+        private final boolean acceptsCalendar;
+        volatile long started;
+        // guarded by EXTRACT_EXECUTOR
+        private boolean done;
+        private boolean replaced;
+        String text = "";
+        IndexDocument document;
+        String filename;
+        ZVCalendar calendar;
+        Throwable error;
+
+        PartExtraction(MPartInfo mpi, boolean isMainBody, boolean acceptsCalendar) {
+            this.mpi = mpi;
+            this.isMainBody = isMainBody;
+            this.acceptsCalendar = acceptsCalendar;
+        }
+
+        @Override
+        public PartExtraction call() throws MessagingException, ServiceException {
+            started = System.nanoTime();
+            try {
+                extract();
+            } catch (MimeHandlerException e) {
+                error = e;
+            } catch (ObjectHandlerException e) {
+                error = e;
+            } finally {
+                if (EXTRACT_EXECUTOR != null) {
+                    synchronized (EXTRACT_EXECUTOR) {
+                        done = true;
+                        if (replaced) {
+                            // give back the thread the pool got while this was running over its budget
+                            abandonedExtractions--;
+                            resizeExtractExecutor();
+                        }
+                    }
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Gives up on an extraction that ran over its budget, and lets the pool start another thread in its place.
+         *
+         * @return FALSE if it finished in the meantime
+         */
+        boolean abandon() {
+            synchronized (EXTRACT_EXECUTOR) {
+                if (done) {
+                    return false;
+                }
+                if (abandonedExtractions < EXTRACT_THREADS) {
+                    abandonedExtractions++;
+                    replaced = true;
+                    resizeExtractExecutor();
+                }
+                return true;
             }
+        }
+
+        private void extract() throws MessagingException, ServiceException, MimeHandlerException,
+                ObjectHandlerException {
             String ctype = mpi.getContentType();
             MimeHandler handler = MimeHandlerManager.getMimeHandler(ctype, mpi.getFilename());
             assert(handler != null);
             handler.setDefaultCharset(defaultCharset);
 
-            Mime.repairTransferEncoding(mpi.getMimePart());
-
             if (handler.isIndexingEnabled()) {
-                handler.init(mpi.getMimePart().getDataHandler().getDataSource());
-                handler.setPartName(mpi.getPartName());
-                handler.setFilename(mpi.getFilename());
-                handler.setSize(mpi.getSize());
-
-                // remember the first iCalendar attachment
-                if (!ignoreCalendar && calendarPartInfo == null) {
-                    ZVCalendar cal = handler.getICalendar();
-                    if (cal != null) {
-                        setCalendarPartInfo(mpi, cal);
-                    }
-                }
+                long start = System.currentTimeMillis();
+                try {
+                    handler.init(mpi.getMimePart().getDataHandler().getDataSource());
+                    handler.setPartName(mpi.getPartName());
+                    handler.setFilename(mpi.getFilename());
+                    handler.setSize(mpi.getSize());
 
-                // In some cases we want to add ALL TEXT from EVERY PART to the toplevel
-                // body content. This is necessary for queries with multiple words -- where
-                // one word is in the body and one is in a sub-attachment.
-                //
-                // We don't always want to do this, for example if attachment indexing is disabled
-                // and this is an attachment handler, we don't want to add this text to the toplevel
-                // document.
-                //
-                // We index this content in the toplevel if it is:
-                //     - the 'main body' and a local mime handler
-                //     - the 'main body' and IndexAttachments was set in the constructor
-                //     - IndexAttachments was set and !disableIndexingAttachmentsTogether
-                if ((isMainBody && (!handler.runsExternally() || indexAttachments)) ||
-                            (indexAttachments && !DebugConfig.disableIndexingAttachmentsTogether)) {
-                    toRet = handler.getContent();
-                }
+                    if (acceptsCalendar) {
+                        calendar = handler.getICalendar();
+                    }
 
-                if (indexAttachments && !DebugConfig.disableIndexingAttachmentsSeparately) {
-                    // Each non-text MIME part is also indexed as a separate
-                    // Lucene document.  This is necessary so that we can tell the
-                    // client what parts match if a search matched a particular
-                    // part.
-                    IndexDocument doc = new IndexDocument(handler.getDocument());
+                    // In some cases we want to add ALL TEXT from EVERY PART to the toplevel
+                    // body content. This is necessary for queries with multiple words -- where
+                    // one word is in the body and one is in a sub-attachment.
+                    //
+                    // We don't always want to do this, for example if attachment indexing is disabled
+                    // and this is an attachment handler, we don't want to add this text to the toplevel
+                    // document.
+                    //
+                    // We index this content in the toplevel if it is:
+                    //     - the 'main body' and a local mime handler
+                    //     - the 'main body' and IndexAttachments was set in the constructor
+                    //     - IndexAttachments was set and !disableIndexingAttachmentsTogether
+                    if ((isMainBody && (!handler.runsExternally() || indexAttachments)) ||
+                                (indexAttachments && !DebugConfig.disableIndexingAttachmentsTogether)) {
+                        text = handler.getContent();
+                    }
 
-                    String filename = handler.getFilename();
-                    if (!Strings.isNullOrEmpty(filename)) {
-                        filenames.add(filename);
+                    if (indexAttachments && !DebugConfig.disableIndexingAttachmentsSeparately) {
+                        // Each non-text MIME part is also indexed as a separate
+                        // Lucene document.  This is necessary so that we can tell the
+                        // client what parts match if a search matched a particular
+                        // part.
+                        IndexDocument doc = new IndexDocument(handler.getDocument());
+                        doc.addSortSize(mpi.getMimePart().getSize());
+                        filename = handler.getFilename();
+                        document = doc;
                     }
-                    doc.addSortSize(mpi.getMimePart().getSize());
-                    luceneDocuments.add(setLuceneHeadersFromContainer(doc));
+                } finally {
+                    ZimbraPerf.MIME_TRACKER.addStat(handler.getClass().getSimpleName(), start);
                 }
             }
 
             // make sure we've got the text/calendar handler installed
-            if (!ignoreCalendar && calendarPartInfo == null && ctype.equals(MimeConstants.CT_TEXT_CALENDAR)) {
+            if (acceptsCalendar && calendar == null && ctype.equals(MimeConstants.CT_TEXT_CALENDAR)) {
                 if (handler.isIndexingEnabled()) {
                     ZimbraLog.index.warn("TextCalendarHandler not correctly installed");
                 }
@@ -1180,22 +1394,14 @@ public final class ParsedMessage {
                         charset = MimeConstants.P_CHARSET_DEFAULT;
                     }
                     is = mpi.getMimePart().getInputStream();
-                    ZVCalendar cal = ZCalendarBuilder.build(is, charset);
-                    if (cal != null) {
-                        setCalendarPartInfo(mpi, cal);
-                    }
+                    calendar = ZCalendarBuilder.build(is, charset);
                 } catch (IOException ioe) {
                     ZimbraLog.index.warn("error reading text/calendar mime part", ioe);
                 } finally {
                     ByteUtil.closeStream(is);
                 }
             }
-        } catch (MimeHandlerException e) {
-            handleParseError(mpi, e);
-        } catch (ObjectHandlerException e) {
-            handleParseError(mpi, e);
         }
-        return toRet;
     }
 
     /**
@@ -1212,7 +1418,23 @@ public final class ParsedMessage {
         if (ConversionException.isTemporaryCauseOf(error)) {
             temporaryAnalysisFailure = true;
         }
+        addPartNotIndexed(mpi);
+    }
+
+    /**
+     * Log that extraction of a part ran over its budget and index minimum information.
+     */
+    private void handleExtractionTimeout(MPartInfo mpi) {
+        numParseErrors++;
+        ZimbraPerf.COUNTER_MIME_EXTRACT_TIMEOUTS.increment();
+
+        LOG.warn("Text extraction timed out after %dms; part=%s filename=%s content-type=%s message-id=%s",
+                LC.zimbra_mime_extract_part_timeout.longValue(), mpi.getPartName(), mpi.getFilename(),
+                mpi.getContentType(), getMessageID());
+        addPartNotIndexed(mpi);
+    }
 
+    private void addPartNotIndexed(MPartInfo mpi) {
         if (!Strings.isNullOrEmpty(mpi.getFilename())) {
             filenames.add(mpi.getFilename());
         }
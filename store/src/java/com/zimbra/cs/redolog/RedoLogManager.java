@@ -30,6 +30,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
@@ -166,7 +167,7 @@ public class RedoLogManager {
     public LogWriter createLogWriter(RedoLogManager redoMgr,
                                         File logfile,
                                         long fsyncIntervalMS) {
-        return new FileLogWriter(redoMgr, logfile, fsyncIntervalMS);
+        return new FileLogWriter(redoMgr, logfile, fsyncIntervalMS, LC.zimbra_redolog_group_commit.booleanValue());
     }
 
     private void setInCrashRecovery(boolean b) {
@@ -198,6 +199,7 @@ public class RedoLogManager {
             signalFatalError(e);
         }
 
+        long recoveryStart = System.currentTimeMillis();
         setInCrashRecovery(true);
 
         // Recover from crash during rollover.  We do this even when
@@ -232,7 +234,8 @@ public class RedoLogManager {
                 ZimbraLog.redolog.fatal("Exception during crash recovery");
                 signalFatalError(e);
             }
-            ZimbraLog.redolog.info("Finished pre-startup crash recovery");
+            ZimbraLog.redolog.info("Finished pre-startup crash recovery in %dms",
+                    System.currentTimeMillis() - recoveryStart);
             mRecoveryMode = false;
         }
 
@@ -276,6 +279,10 @@ public class RedoLogManager {
                 psrThread.start();
             }
         }
+        if (mSupportsCrashRecovery) {
+            ZimbraLog.redolog.info("Redo log ready %dms after crash recovery began (%d transactions recovered)",
+                    System.currentTimeMillis() - recoveryStart, numRecoveredOps);
+        }
     }
 
     private class PostStartupCrashRecoveryThread extends Thread {
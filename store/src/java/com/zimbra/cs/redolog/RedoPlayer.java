@@ -30,6 +30,7 @@ import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.redolog.logger.FileLogReader;
@@ -381,7 +382,7 @@ public class RedoPlayer {
      * @return number of operations redone (regardless of their success)
      * @throws Exception
      */
-    public int runCrashRecovery(RedoLogManager redoLogMgr,
+    public int runCrashRecovery(final RedoLogManager redoLogMgr,
             List<RedoableOp> postStartupRecoveryOps)
     throws Exception {
         File redoLog = redoLogMgr.getLogFile();
@@ -404,6 +405,7 @@ public class RedoPlayer {
         // scanLog can truncate the current redo.log if it finds junk data at the end
         // from the previous crash.  Close log writer before scanning and reopen after
         // so we don't accidentally undo the truncation on the next write to the log.
+        long scanStart = System.currentTimeMillis();
         LogWriter logWriter = redoLogMgr.getLogWriter();
         logWriter.close();
         scanLog(redoLog, false, null, Long.MIN_VALUE, Long.MAX_VALUE, lookBackTstamp);
@@ -413,53 +415,98 @@ public class RedoPlayer {
         synchronized (mOpsMapGuard) {
             numOps = mOpsMap.size();
         }
+        ZimbraLog.redolog.info("Scanned %s for uncommitted transactions in %dms", redoLog.getName(),
+                System.currentTimeMillis() - scanStart);
         if (numOps == 0) {
             ZimbraLog.redolog.info("No uncommitted transactions to redo");
             return 0;
         }
 
-        synchronized (mOpsMapGuard) {
-            Set entrySet = mOpsMap.entrySet();
-            ZimbraLog.redolog.info("Redoing " + numOps + " uncommitted transactions");
-            for (Iterator it = entrySet.iterator(); it.hasNext(); ) {
-                Map.Entry entry = (Entry) it.next();
-                RedoableOp op = (RedoableOp) entry.getValue();
-                if (op == null)
-                    continue;
-
-                if (op.deferCrashRecovery()) {
-                    ZimbraLog.redolog.info("Deferring crash recovery to after startup: " + op);
-                    postStartupRecoveryOps.add(op);
-                    continue;
+        int numThreads = LC.zimbra_redolog_crash_recovery_threads.intValue();
+        ReplayQueue replayQueue = null;
+        if (numThreads > 1) {
+            // Ops on different mailboxes are independent, so redo them in parallel.  Ops on the same mailbox are
+            // still redone in log order, and an op that isn't tied to one mailbox waits for everything before it.
+            replayQueue = new ReplayQueue("RedoRecovery", numThreads, 0, new ReplayQueue.Player() {
+                @Override
+                public void play(RedoableOp op) {
+                    recoverOp(redoLogMgr, op);
                 }
+            });
+        }
+        long start = System.currentTimeMillis();
+        int numDeferred = 0;
+        try {
+            synchronized (mOpsMapGuard) {
+                Set entrySet = mOpsMap.entrySet();
+                ZimbraLog.redolog.info("Redoing " + numOps + " uncommitted transactions");
+                for (Iterator it = entrySet.iterator(); it.hasNext(); ) {
+                    Map.Entry entry = (Entry) it.next();
+                    RedoableOp op = (RedoableOp) entry.getValue();
+                    if (op == null)
+                        continue;
+
+                    if (op.deferCrashRecovery()) {
+                        ZimbraLog.redolog.info("Deferring crash recovery to after startup: " + op);
+                        postStartupRecoveryOps.add(op);
+                        numDeferred++;
+                        continue;
+                    }
 
-                if (ZimbraLog.redolog.isInfoEnabled())
-                    ZimbraLog.redolog.info("REDOING: " + op);
-
-                boolean success = false;
-                try {
-                    op.redo();
-                    success = true;
-                } catch (Exception e) {
-                    ZimbraLog.redolog.error("Redo failed for [" + op + "]." +
-                            "  Backend state of affected item is indeterminate." +
-                            "  Marking operation as aborted and moving on.", e);
-                } finally {
-                    if (success) {
-                        CommitTxn commit = new CommitTxn(op);
-                        redoLogMgr.logOnly(commit, true);
+                    if (replayQueue != null) {
+                        replayQueue.submit(op);
                     } else {
-                        AbortTxn abort = new AbortTxn(op);
-                        redoLogMgr.logOnly(abort, true);
+                        recoverOp(redoLogMgr, op);
                     }
                 }
+                if (replayQueue != null) {
+                    replayQueue.drain();
+                }
+                mOpsMap.clear();
+            }
+        } finally {
+            if (replayQueue != null) {
+                replayQueue.shutdown();
             }
-            mOpsMap.clear();
         }
 
+        long elapsed = System.currentTimeMillis() - start;
+        int numRedone = numOps - numDeferred;
+        ZimbraLog.redolog.info("Redid %d uncommitted transactions%s in %dms (%d/sec) using %d thread(s); %d deferred",
+                numRedone, replayQueue != null ? " for " + replayQueue.getMailboxCount() + " mailboxes" : "",
+                elapsed, elapsed > 0 ? numRedone * 1000L / elapsed : numRedone, Math.max(numThreads, 1),
+                numDeferred);
+
         return numOps;
     }
 
+    /**
+     * Redoes an op left uncommitted by a crash, then logs its commit, or its abort if the redo failed.  Called
+     * concurrently for ops on different mailboxes.
+     */
+    private void recoverOp(RedoLogManager redoLogMgr, RedoableOp op) {
+        if (ZimbraLog.redolog.isInfoEnabled())
+            ZimbraLog.redolog.info("REDOING: " + op);
+
+        boolean success = false;
+        try {
+            op.redo();
+            success = true;
+        } catch (Exception e) {
+            ZimbraLog.redolog.error("Redo failed for [" + op + "]." +
+                    "  Backend state of affected item is indeterminate." +
+                    "  Marking operation as aborted and moving on.", e);
+        } finally {
+            if (success) {
+                CommitTxn commit = new CommitTxn(op);
+                redoLogMgr.logOnly(commit, true);
+            } else {
+                AbortTxn abort = new AbortTxn(op);
+                redoLogMgr.logOnly(abort, true);
+            }
+        }
+    }
+
     /**
      * Returns a copy of the pending ops map.
      * @return
@@ -0,0 +1,211 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.util.KeyedSerialExecutor;
+
+/**
+ * Replays redo ops on a pool of threads, partitioned by mailbox.  Ops for the same mailbox are played one at a
+ * time in the order they were submitted, while ops for different mailboxes are played concurrently.  An op that
+ * isn't tied to a single mailbox ({@link RedoableOp#MAILBOX_ID_ALL} or {@link RedoableOp#UNKNOWN_ID}) is a barrier:
+ * it waits for every op submitted before it, and is played on the submitting thread before submit returns.
+ * <p>
+ * If the {@link Player} throws, replay stops: ops still queued are dropped, and the next call to {@link #submit}
+ * or {@link #drain} throws.
+ */
+public final class ReplayQueue {
+
+    public interface Player {
+        void play(RedoableOp op) throws Exception;
+    }
+
+    // ops a worker plays for one mailbox before letting other mailboxes have the thread
+    private static final int BATCH_SIZE = 64;
+
+    private final Player player;
+    private final ExecutorService workers;
+    private final Semaphore capacity;
+    // ops waiting to be played or playing, by mailbox
+    private final KeyedSerialExecutor<Integer, RedoableOp> pending;
+    private final Set<Integer> mailboxes = new HashSet<Integer>();
+    private int outstanding = 0;
+    private int played = 0;
+    private Throwable error;
+
+    /**
+     * @param name prefix of the worker thread names
+     * @param numThreads number of worker threads
+     * @param queueCapacity maximum number of ops waiting to be played before {@link #submit} blocks, or 0 for no
+     *        limit
+     * @param player plays each op
+     */
+    public ReplayQueue(String name, int numThreads, int queueCapacity, Player player) {
+        this.player = player;
+        workers = Executors.newFixedThreadPool(Math.max(numThreads, 1),
+                new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build());
+        capacity = queueCapacity > 0 ? new Semaphore(queueCapacity) : null;
+        pending = new KeyedSerialExecutor<Integer, RedoableOp>(workers, BATCH_SIZE,
+                new KeyedSerialExecutor.Handler<Integer, RedoableOp>() {
+            @Override
+            public void handle(Integer mboxId, List<RedoableOp> ops) {
+                for (RedoableOp op : ops) {
+                    play(op);
+                }
+            }
+
+            @Override
+            public void rejected(Integer mboxId, List<RedoableOp> ops) {
+                // shut down; drop what's left
+                failed(new IllegalStateException("replay queue shut down"));
+                release(ops.size());
+                synchronized (ReplayQueue.this) {
+                    outstanding -= ops.size();
+                    ReplayQueue.this.notifyAll();
+                }
+            }
+        });
+    }
+
+    public void submit(RedoableOp op) throws ServiceException {
+        int mboxId = op.getMailboxId();
+        if (mboxId == RedoableOp.MAILBOX_ID_ALL || mboxId == RedoableOp.UNKNOWN_ID) {
+            drain();
+            try {
+                player.play(op);
+            } catch (Throwable t) {
+                failed(t);
+            }
+            synchronized (this) {
+                played++;
+                checkError();
+            }
+            return;
+        }
+
+        if (capacity != null) {
+            capacity.acquireUninterruptibly();
+        }
+        synchronized (this) {
+            if (error != null) {
+                release(1);
+                checkError();
+            }
+            outstanding++;
+            mailboxes.add(mboxId);
+        }
+        pending.submit(mboxId, op);
+    }
+
+    /**
+     * Waits until every op submitted so far has been played.
+     *
+     * @throws ServiceException if playing any of them failed
+     */
+    public synchronized void drain() throws ServiceException {
+        boolean interrupted = false;
+        while (outstanding > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        checkError();
+    }
+
+    /** Stops the worker threads, dropping any ops that haven't been played yet. */
+    public void shutdown() {
+        synchronized (this) {
+            if (error == null && outstanding > 0) {
+                error = new IllegalStateException("replay queue shut down");
+            }
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Returns the number of ops played so far, including the ones that failed. */
+    public synchronized int getPlayedCount() {
+        return played;
+    }
+
+    /** Returns the number of distinct mailboxes ops were submitted for, not counting barrier ops. */
+    public synchronized int getMailboxCount() {
+        return mailboxes.size();
+    }
+
+    private synchronized void failed(Throwable t) {
+        if (error == null) {
+            error = t;
+        }
+    }
+
+    private void checkError() throws ServiceException {
+        assert Thread.holdsLock(this);
+        if (error != null) {
+            throw ServiceException.FAILURE("Redo playback stopped due to an earlier error: " + error.getMessage(),
+                    error);
+        }
+    }
+
+    private void release(int count) {
+        if (capacity != null) {
+            capacity.release(count);
+        }
+    }
+
+    private void play(RedoableOp op) {
+        boolean skip;
+        synchronized (this) {
+            skip = error != null;
+        }
+        if (!skip) {
+            try {
+                player.play(op);
+            } catch (Throwable t) {
+                failed(t);
+            }
+        }
+        release(1);
+        synchronized (this) {
+            if (!skip) {
+                played++;
+            }
+            if (--outstanding == 0) {
+                notifyAll();
+            }
+        }
+    }
+}
@@ -24,7 +24,9 @@
 package com.zimbra.cs.redolog.logger;
 
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
@@ -35,16 +37,23 @@ import com.zimbra.cs.redolog.RedoLogManager;
 import com.zimbra.cs.redolog.RolloverManager;
 import com.zimbra.cs.redolog.op.CommitTxn;
 import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.Zimbra;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @author jhahm
@@ -87,6 +96,10 @@ public class FileLogWriter implements LogWriter {
 
     private FsyncThread mFsyncer;   // fsync thread
 
+    // group commit mode: log() queues the record and a single writer thread appends and fsyncs whole batches
+    private final boolean mGroupCommit;
+    private volatile GroupCommitThread mGroupCommitter;
+
     private int mLogSeq;            // last item logged
     private int mFsyncSeq;          // last item fsynced
 
@@ -99,7 +112,19 @@ public class FileLogWriter implements LogWriter {
     public FileLogWriter(RedoLogManager redoLogMgr,
                          File logfile,
                          long fsyncIntervalMS) {
+        this(redoLogMgr, logfile, fsyncIntervalMS, false);
+    }
+
+    /**
+     * @param groupCommit if true, logging threads never write to the file themselves; see
+     *                    {@link #log(RedoableOp, InputStream, boolean)}.  fsyncIntervalMS is ignored in this mode.
+     */
+    public FileLogWriter(RedoLogManager redoLogMgr,
+                         File logfile,
+                         long fsyncIntervalMS,
+                         boolean groupCommit) {
         mRedoLogMgr = redoLogMgr;
+        mGroupCommit = groupCommit;
 
         mHeader = new FileHeader(sServerId);
         mFile = logfile;
@@ -216,7 +241,9 @@ public class FileLogWriter implements LogWriter {
             mLogSeq = mFsyncSeq = 0;
         }
 
-        if (mFsyncIntervalMS > 0)
+        if (mGroupCommit)
+            startGroupCommitThread();
+        else if (mFsyncIntervalMS > 0)
             startFsyncThread();
     }
 
@@ -225,6 +252,7 @@ public class FileLogWriter implements LogWriter {
      */
     @Override public synchronized void close() throws IOException {
         stopFsyncThread();
+        stopGroupCommitThread();
 
         synchronized (mLock) {
             if (mRAF != null) {
@@ -268,8 +296,20 @@ public class FileLogWriter implements LogWriter {
      * Fsync is required, but the sleep interval for fsync thread is 0.  We
      * special case this condition to mean fsync should be done by the calling
      * thread.
+     *
+     * In group commit mode none of the above applies.  The record is queued
+     * without taking the writer lock, and the group commit thread appends
+     * everything queued so far with a single write and fsyncs it as soon as
+     * the previous fsync completes.  A synchronous caller waits for the fsync
+     * of its own batch; an asynchronous caller returns right after queueing,
+     * and its record is fsynced with the same batch all the same.
      */
     @Override public void log(RedoableOp op, InputStream data, boolean synchronous) throws IOException {
+        if (mGroupCommit) {
+            logGroupCommit(op, data, synchronous);
+            return;
+        }
+
         int seq;
         boolean sameMboxAsLastOp = false;
 
@@ -302,17 +342,11 @@ public class FileLogWriter implements LogWriter {
 
             // We do this with log writer lock held, so the commits and any
             // callbacks made on their behalf are truly in the correct order.
-            if (op instanceof CommitTxn) {
-                CommitTxn cmt = (CommitTxn) op;
-                RedoCommitCallback cb = cmt.getCallback();
-                if (cb != null) {
-                    long redoSeq = mRedoLogMgr.getRolloverManager().getCurrentSequence();
-                    CommitId cid = new CommitId(redoSeq, (CommitTxn) op);
-                    Notif notif = new Notif(cb, cid);
-                    // We queue it instead making the callback right away.
-                    // Call it only after the commit record has been fsynced.
-                    mCommitNotifyQueue.push(notif);
-                }
+            Notif notif = getCommitNotif(op);
+            if (notif != null) {
+                // We queue it instead making the callback right away.
+                // Call it only after the commit record has been fsynced.
+                mCommitNotifyQueue.push(notif);
             }
 
             mLastLogTime = System.currentTimeMillis();
@@ -356,8 +390,46 @@ public class FileLogWriter implements LogWriter {
 
     private int mLastOpMboxId;
 
+    private Notif getCommitNotif(RedoableOp op) {
+        if (op instanceof CommitTxn) {
+            CommitTxn cmt = (CommitTxn) op;
+            RedoCommitCallback cb = cmt.getCallback();
+            if (cb != null) {
+                long redoSeq = mRedoLogMgr.getRolloverManager().getCurrentSequence();
+                return new Notif(cb, new CommitId(redoSeq, cmt));
+            }
+        }
+        return null;
+    }
+
+    private void logGroupCommit(RedoableOp op, InputStream data, boolean synchronous) throws IOException {
+        GroupCommitThread committer = mGroupCommitter;
+        if (committer == null)
+            throw new IOException("Redolog file closed");
+
+        byte[] bytes;
+        try {
+            bytes = ByteUtil.getContent(data, 1024);
+        } finally {
+            data.close();
+        }
+        // The queue order is the log order, so commit callbacks still run in commit order.
+        PendingWrite write = new PendingWrite(op.getTimestamp(), bytes, synchronous, getCommitNotif(op));
+        committer.enqueue(write);
+        if (synchronous)
+            write.await();
+    }
+
     @Override public void flush() throws IOException {
-        fsync();
+        GroupCommitThread committer = mGroupCommitter;
+        if (committer != null) {
+            // an empty synchronous entry forces an fsync of everything queued before it
+            PendingWrite barrier = new PendingWrite(0, null, true, null);
+            committer.enqueue(barrier);
+            barrier.await();
+        } else {
+            fsync();
+        }
     }
 
     private boolean mNoStat;
@@ -436,7 +508,7 @@ public class FileLogWriter implements LogWriter {
     }
 
     private synchronized void startFsyncThread() {
-        if (mFsyncer == null && mFsyncIntervalMS > 0) {
+        if (mFsyncer == null && mFsyncIntervalMS > 0 && !mGroupCommit) {
             mFsyncer = new FsyncThread(mFsyncIntervalMS);
             mFsyncer.start();
         }
@@ -449,6 +521,86 @@ public class FileLogWriter implements LogWriter {
         }
     }
 
+    private synchronized void startGroupCommitThread() {
+        if (mGroupCommitter == null) {
+            GroupCommitThread committer = new GroupCommitThread(LC.zimbra_redolog_group_commit_max_batch.intValue());
+            committer.start();
+            mGroupCommitter = committer;
+        }
+    }
+
+    private synchronized void stopGroupCommitThread() {
+        GroupCommitThread committer = mGroupCommitter;
+        if (committer != null) {
+            mGroupCommitter = null;
+            committer.stopThread();
+        }
+    }
+
+    /**
+     * Appends a batch with one gathering write, then fsyncs it and runs its commit callbacks.  Every batch is fsynced,
+     * not just those with a synchronous entry: commits are logged asynchronously, and the last one before a quiet
+     * period would otherwise stay unsynced, with its callbacks not run, until the next synchronous write.  Only called
+     * from the group commit thread, so the file position only moves here while that thread is running.
+     */
+    private void writeBatch(List<PendingWrite> batch) throws IOException {
+        FileChannel channel;
+        int seq;
+        synchronized (mLock) {
+            if (mRAF == null)
+                throw new IOException("Redolog file closed");
+            channel = mRAF.getChannel();
+
+            ByteBuffer[] bufs = new ByteBuffer[batch.size()];
+            int count = 0;
+            long len = 0;
+            for (PendingWrite write : batch) {
+                if (write.data == null)
+                    continue;
+                mLastOpTstamp = Math.max(write.tstamp, mLastOpTstamp);
+                if (mFirstOpTstamp == 0) {
+                    mFirstOpTstamp = write.tstamp;
+                    mHeader.setFirstOpTstamp(mFirstOpTstamp);
+                    mHeader.setLastOpTstamp(mLastOpTstamp);
+                    long pos = mRAF.getFilePointer();
+                    mHeader.write(mRAF);
+                    mRAF.seek(pos);
+                }
+                bufs[count++] = ByteBuffer.wrap(write.data);
+                len += write.data.length;
+            }
+
+            if (count > 0) {
+                long remaining = len;
+                while (remaining > 0) {
+                    remaining -= channel.write(bufs, 0, count);
+                }
+                mFileSize += len;
+                mLogSeq += count;
+                mLogCount += count;
+                mLastLogTime = System.currentTimeMillis();
+                ZimbraPerf.COUNTER_REDO_BATCH.increment(count);
+            }
+
+            // only after the records are in the file, since a full queue forces an fsync
+            for (PendingWrite write : batch) {
+                if (write.notif != null)
+                    mCommitNotifyQueue.push(write.notif);
+            }
+            seq = mLogSeq;
+            if (!mFsyncDisabled)
+                mFsyncCount++;
+        }
+
+        // The writer lock is not held during the fsync, so getSize() and friends never wait on the disk.
+        if (!mFsyncDisabled)
+            channel.force(false);
+        synchronized (mLock) {
+            mFsyncSeq = Math.max(mFsyncSeq, seq);
+        }
+        mCommitNotifyQueue.flush(false);
+    }
+
     // do fsync if there are items logged since last fsync
     private void fsync() throws IOException {
         boolean fsyncNeeded = false;
@@ -564,6 +716,133 @@ public class FileLogWriter implements LogWriter {
     }
 
 
+    // A record queued for the group commit thread.  A null data array is a flush barrier.
+    private static class PendingWrite {
+        final long tstamp;
+        final byte[] data;
+        final boolean synchronous;
+        final Notif notif;
+        final long queuedAt = System.currentTimeMillis();
+        private boolean mDone;
+        private IOException mError;
+
+        PendingWrite(long tstamp, byte[] data, boolean synchronous, Notif notif) {
+            this.tstamp = tstamp;
+            this.data = data;
+            this.synchronous = synchronous;
+            this.notif = notif;
+        }
+
+        synchronized void complete(IOException error) {
+            mDone = true;
+            mError = error;
+            notifyAll();
+        }
+
+        // Waits until the batch containing this record has been written and fsynced.
+        synchronized void await() throws IOException {
+            boolean interrupted = false;
+            while (!mDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (mError != null)
+                throw new IOException("Redolog group commit failed", mError);
+        }
+    }
+
+    // Single writer for group commit mode.  Logging threads add to a lock-free queue and
+    // unpark this thread, which drains whatever has accumulated into one batch, writes and
+    // fsyncs it, then goes straight on to the next batch.  Under load the batch grows with
+    // the time taken by the previous fsync, without any fixed sleep interval.
+    private class GroupCommitThread extends Thread {
+        private final ConcurrentLinkedQueue<PendingWrite> mQueue = new ConcurrentLinkedQueue<PendingWrite>();
+        private final int mMaxBatch;
+        private volatile boolean mRunning;
+
+        public GroupCommitThread(int maxBatch) {
+            super("FileLogWriter.GroupCommitThread-"+System.currentTimeMillis());
+            mMaxBatch = Math.max(maxBatch, 1);
+            mRunning = true;
+            setDaemon(true);
+        }
+
+        public void enqueue(PendingWrite write) {
+            mQueue.add(write);
+            LockSupport.unpark(this);
+            if (!mRunning) {
+                // raced with stopThread(); don't leave the caller waiting forever
+                failPending();
+            }
+        }
+
+        @Override public void run() {
+            ZimbraLog.redolog.info("Starting group commit thread with max batch %d", mMaxBatch);
+            List<PendingWrite> batch = new ArrayList<PendingWrite>(mMaxBatch);
+            while (true) {
+                PendingWrite write;
+                while (batch.size() < mMaxBatch && (write = mQueue.poll()) != null) {
+                    batch.add(write);
+                }
+                if (batch.isEmpty()) {
+                    if (!mRunning)
+                        break;
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                IOException error = null;
+                try {
+                    writeBatch(batch);
+                } catch (IOException e) {
+                    error = e;
+                }
+                for (PendingWrite pending : batch) {
+                    pending.complete(error);
+                    if (pending.synchronous && pending.data != null)
+                        ZimbraPerf.STOPWATCH_REDO_COMMIT.stop(pending.queuedAt);
+                }
+                batch.clear();
+
+                if (error != null && mRunning) {
+                    String message = "Error while writing " + mFile.getAbsolutePath() + "; Aborting.";
+                    Zimbra.halt(message, error);
+                }
+            }
+            ZimbraLog.redolog.info("group commit thread exiting");
+        }
+
+        private void failPending() {
+            IOException error = new IOException("Redolog file closed");
+            PendingWrite write;
+            while ((write = mQueue.poll()) != null) {
+                write.complete(error);
+            }
+        }
+
+        // Stop the thread once everything queued so far has been written.  Wait until the thread really stops.
+        public void stopThread() {
+            mRunning = false;
+            LockSupport.unpark(this);
+            try {
+                while (isAlive()) {
+                    ZimbraLog.redolog.info("waiting for %s to finish.", getName());
+                    join(Constants.MILLIS_PER_MINUTE);
+                }
+                ZimbraLog.redolog.info("%s finished", getName());
+            } catch (InterruptedException e) {
+                ZimbraLog.redolog.warn("InterruptedException while stopping GroupCommitThread", e);
+            }
+            failPending();
+        }
+    }
+
+
     // Commit callback handling
 
     private static class Notif {
@@ -19,13 +19,20 @@ package com.zimbra.cs.server;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.DefaultFileRegion;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.ssl.SslFilter;
 
 import com.google.common.base.Charsets;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.security.sasl.SaslFilter;
+import com.zimbra.cs.util.IOUtil;
 
 public final class NioOutputStream extends OutputStream {
     private final IoSession session;
@@ -79,6 +86,32 @@ public final class NioOutputStream extends OutputStream {
         buf.put((byte) b);
     }
 
+    /**
+     * Returns whether file regions can be written to the session as they are, which is not the case once TLS or a
+     * SASL security layer has to transform the bytes on their way out.
+     */
+    public boolean isFileRegionSupported() {
+        IoFilterChain chain = session.getFilterChain();
+        return chain.get(SslFilter.class) == null && chain.get(SaslFilter.class) == null;
+    }
+
+    /**
+     * Writes {@code count} bytes of {@code channel} starting at {@code position}, after anything already buffered.
+     * The bytes are sent by the I/O processor straight from the file, without being copied into a buffer.  The
+     * channel is closed once the region has been written or the write has failed.
+     *
+     * @see #isFileRegionSupported()
+     */
+    public synchronized void write(final FileChannel channel, long position, long count) throws IOException {
+        flush();
+        writeToSession(new DefaultFileRegion(channel, position, count), new IoFutureListener<WriteFuture>() {
+            @Override
+            public void operationComplete(WriteFuture future) {
+                IOUtil.closeQuietly(channel);
+            }
+        });
+    }
+
     @Override
     public synchronized void flush() throws IOException {
         if (buf.position() > 0) {
@@ -89,8 +122,15 @@ public final class NioOutputStream extends OutputStream {
     }
 
     private synchronized void writeToSession(Object output) throws IOException {
+        writeToSession(output, null);
+    }
+
+    private synchronized void writeToSession(Object output, IoFutureListener<WriteFuture> listener) throws IOException {
         long writeBytes = session.getScheduledWriteBytes();
         WriteFuture future = session.write(output);
+        if (listener != null) {
+            future.addListener(listener);
+        }
         if (writeBytes > maxScheduledBytes) {
             ZimbraLog.nio.debug("IOSession has %d scheduled write bytes; waiting for buffer to catch up", writeBytes);
             long start = System.currentTimeMillis();
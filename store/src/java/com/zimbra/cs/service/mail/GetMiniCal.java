@@ -55,6 +55,7 @@ import com.zimbra.cs.mailbox.calendar.IcalXmlStrMap;
 import com.zimbra.cs.mailbox.calendar.Util;
 import com.zimbra.cs.mailbox.calendar.cache.CalSummaryCache;
 import com.zimbra.cs.mailbox.calendar.cache.CalSummaryCache.CalendarDataResult;
+import com.zimbra.cs.mailbox.calendar.cache.CalSummaryKey;
 import com.zimbra.cs.mailbox.calendar.cache.CalendarCacheManager;
 import com.zimbra.cs.mailbox.calendar.cache.CalendarData;
 import com.zimbra.cs.mailbox.calendar.cache.CalendarItemData;
@@ -123,6 +124,13 @@ public class GetMiniCal extends CalendarRequest {
         if (LC.calendar_cache_enabled.booleanValue()) {
             CalSummaryCache calCache = CalendarCacheManager.getInstance().getSummaryCache();
             Calendar cal = new GregorianCalendar(tz);
+            // look up the cached summaries of all folders in one batch rather than one by one
+            Map<String, List<Integer>> allFolders = new HashMap<String, List<Integer>>();
+            for (Map<String, List<Integer>> accountFolders : groupedByServer.values()) {
+                allFolders.putAll(accountFolders);
+            }
+            Map<CalSummaryKey, CalendarData> prefetched =
+                calCache.prefetchCalendarSummaries(allFolders, rangeStart, rangeEnd);
             for (Iterator<Map.Entry<Server, Map<String, List<Integer>>>> serverIter = groupedByServer.entrySet().iterator();
                  serverIter.hasNext(); ) {
                 Map.Entry<Server, Map<String, List<Integer>>> serverMapEntry = serverIter.next();
@@ -138,7 +146,7 @@ public class GetMiniCal extends CalendarRequest {
                         int folderId = iterFolderId.next();
                         try {
                             CalendarDataResult result = calCache.getCalendarSummary(octxt, acctId, folderId,
-                                    MailItem.Type.APPOINTMENT, rangeStart, rangeEnd, true);
+                                    MailItem.Type.APPOINTMENT, rangeStart, rangeEnd, true, prefetched);
                             if (result != null) {
                                 // Found data in cache.
                                 iterFolderId.remove();
@@ -58,6 +58,7 @@ import com.zimbra.cs.mailbox.OperationContext;
 import com.zimbra.cs.mailbox.calendar.cache.CacheToXML;
 import com.zimbra.cs.mailbox.calendar.cache.CalSummaryCache;
 import com.zimbra.cs.mailbox.calendar.cache.CalSummaryCache.CalendarDataResult;
+import com.zimbra.cs.mailbox.calendar.cache.CalSummaryKey;
 import com.zimbra.cs.mailbox.calendar.cache.CalendarCacheManager;
 import com.zimbra.cs.mailbox.calendar.cache.CalendarData;
 import com.zimbra.cs.mailbox.calendar.cache.CalendarItemData;
@@ -294,6 +295,13 @@ public class Search extends MailDocumentHandler  {
             CalSummaryCache calCache = CalendarCacheManager.getInstance().getSummaryCache();
             long rangeStart = params.getCalItemExpandStart();
             long rangeEnd = params.getCalItemExpandEnd();
+            // look up the cached summaries of all folders in one batch rather than one by one
+            Map<String, List<Integer>> allFolders = new HashMap<String, List<Integer>>();
+            for (Map<String, List<Integer>> accountFolders : groupedByServer.values()) {
+                allFolders.putAll(accountFolders);
+            }
+            Map<CalSummaryKey, CalendarData> prefetched =
+                calCache.prefetchCalendarSummaries(allFolders, rangeStart, rangeEnd);
             for (Iterator<Map.Entry<Server, Map<String, List<Integer>>>> serverIter = groupedByServer.entrySet().iterator();
                  serverIter.hasNext(); ) {
                 Map.Entry<Server, Map<String, List<Integer>>> serverMapEntry = serverIter.next();
@@ -312,7 +320,7 @@ public class Search extends MailDocumentHandler  {
                         int folderId = iterFolderId.next();
                         try {
                             CalendarDataResult result = calCache.getCalendarSummary(octxt, acctId, folderId, type,
-                                    rangeStart, rangeEnd, true);
+                                    rangeStart, rangeEnd, true, prefetched);
                             if (result != null) {
                                 // Found data in cache.
                                 iterFolderId.remove();
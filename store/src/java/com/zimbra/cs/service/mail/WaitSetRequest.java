@@ -47,6 +47,7 @@ import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.service.admin.AdminServiceException;
 import com.zimbra.cs.service.util.SyncToken;
 import com.zimbra.cs.servlet.continuation.ResumeContinuationListener;
+import com.zimbra.cs.session.AccountChangeSummary;
 import com.zimbra.cs.session.PendingModifications;
 import com.zimbra.cs.session.WaitSetAccount;
 import com.zimbra.cs.session.WaitSetCallback;
@@ -289,6 +290,9 @@ public class WaitSetRequest extends MailDocumentHandler {
             resp.setSeqNo(cb.seqNo);
             for (String signalledAccount : cb.signalledAccounts) {
                 WaitSetSession signalledSession = cb.signalledSessions.get(signalledAccount);
+                AccountChangeSummary summary = cb.changeSummaries.get(signalledAccount);
+                // -1 if the waitset hasn't recorded a change id for the account
+                int summaryChangeId = summary != null ? summary.getChangeId() : -1;
                 int lastChangeId = 0;
                 Set<Integer> folderInterests = null;
                 if (signalledSession != null) {
@@ -296,6 +300,9 @@ public class WaitSetRequest extends MailDocumentHandler {
                     if(signalledSession.getMailbox() != null) {
                         lastChangeId = signalledSession.getMailbox().getLastChangeID();
                     }
+                } else if (summaryChangeId >= 0) {
+                    // the waitset kept the change id, no need to load the mailbox
+                    lastChangeId = summaryChangeId;
                 } else {
                     Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(signalledAccount,
                             false);
@@ -0,0 +1,103 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.session;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * What a waitset has to report about one account: the highest change id committed to its mailbox and the folders
+ * those changes touched.  Waitsets that watch every account keep one of these per signalled account instead of the
+ * full {@link PendingModifications}.
+ */
+public final class AccountChangeSummary {
+    // rough per-entry overheads, for the memory footprint stat
+    private static final int BASE_SIZE = 160;
+    private static final int FOLDER_SIZE = 48;
+
+    private final String accountId;
+    private final long created = System.currentTimeMillis();
+    private int changeId = -1;
+    private final Set<Integer> folderIds = new HashSet<Integer>();
+    private boolean closed = false;
+
+    AccountChangeSummary(String accountId) {
+        this.accountId = accountId;
+    }
+
+    public String getAccountId() {
+        return accountId;
+    }
+
+    /** Returns the highest change id recorded, or -1 if none was. */
+    public synchronized int getChangeId() {
+        return changeId;
+    }
+
+    public synchronized Set<Integer> getFolderIds() {
+        return new HashSet<Integer>(folderIds);
+    }
+
+    /** Returns when the first change in this summary was recorded. */
+    long getCreated() {
+        return created;
+    }
+
+    /**
+     * Records a committed change.
+     *
+     * @return false if the summary has been closed and the change must be recorded in a new one
+     */
+    synchronized boolean add(int changeId, Collection<Integer> changedFolderIds) {
+        if (closed) {
+            return false;
+        }
+        this.changeId = Math.max(this.changeId, changeId);
+        if (changedFolderIds != null) {
+            folderIds.addAll(changedFolderIds);
+        }
+        return true;
+    }
+
+    /** Folds another summary for the same account into this one. */
+    synchronized void add(AccountChangeSummary other) {
+        assert accountId.equals(other.accountId);
+        synchronized (other) {
+            changeId = Math.max(changeId, other.changeId);
+            folderIds.addAll(other.folderIds);
+        }
+    }
+
+    /** Stops this summary from taking any more changes, so it can be handed off. */
+    synchronized void close() {
+        closed = true;
+    }
+
+    /** Returns an estimate of the number of bytes this summary holds on to. */
+    synchronized int estimateSize() {
+        return BASE_SIZE + folderIds.size() * FOLDER_SIZE;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return MoreObjects.toStringHelper(this).add("account", accountId).add("changeId", changeId)
+                .add("folders", folderIds).toString();
+    }
+}
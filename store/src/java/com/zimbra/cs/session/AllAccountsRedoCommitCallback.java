@@ -16,6 +16,8 @@
  */
 package com.zimbra.cs.session;
 
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.Set;
 
 import com.zimbra.cs.mailbox.MailItem;
@@ -30,21 +32,32 @@ import com.zimbra.cs.redolog.RedoCommitCallback;
 public class AllAccountsRedoCommitCallback implements RedoCommitCallback {
     private final String accountId;
     private final Set<MailItem.Type> changeTypes;
+    private final int changeId;
+    private final Set<Integer> folderIds;
 
-    private AllAccountsRedoCommitCallback(String accountId, Set<MailItem.Type> types) {
+    private AllAccountsRedoCommitCallback(String accountId, Set<MailItem.Type> types, int changeId,
+            Set<Integer> folderIds) {
         this.accountId = accountId;
         changeTypes = types;
+        this.changeId = changeId;
+        this.folderIds = folderIds;
     }
 
     @Override
     public void callback(CommitId cid) {
-        AllAccountsWaitSet.mailboxChangeCommitted(cid.encodeToString(), accountId, changeTypes);
+        AllAccountsWaitSet.mailboxChangeCommitted(cid.encodeToString(), accountId, changeTypes, changeId, folderIds);
     }
 
-    public static final AllAccountsRedoCommitCallback getRedoCallbackIfNecessary(String accountId,
-            Set<MailItem.Type> types) {
-        if (AllAccountsWaitSet.isCallbackNecessary(types)) {
-            return new AllAccountsRedoCommitCallback(accountId, types);
+    /**
+     * @param changeId the change id of the transaction being committed
+     * @param dirty the transaction's changes
+     */
+    public static final AllAccountsRedoCommitCallback getRedoCallbackIfNecessary(String accountId, int changeId,
+            PendingModifications<?> dirty) {
+        if (AllAccountsWaitSet.isCallbackNecessary(dirty.changedTypes)) {
+            // copy, the transaction's changes are reset once it's done
+            return new AllAccountsRedoCommitCallback(accountId, EnumSet.copyOf(dirty.changedTypes), changeId,
+                    new HashSet<Integer>(dirty.getAllChangedFolders()));
         }
         return null;
     }
@@ -25,7 +25,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
@@ -35,11 +42,16 @@ import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.redolog.CommitId;
 import com.zimbra.cs.redolog.RedoLogManager;
 import com.zimbra.cs.redolog.RedoLogProvider;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.soap.admin.type.BufferedCommitInfo;
 import com.zimbra.soap.admin.type.WaitSetInfo;
 
 /**
  * An implementation of IWaitSet that listens across all accounts on the server
+ * <p>
+ * Committing threads never take the waitset's monitor.  They record a compact {@link AccountChangeSummary} per
+ * account in a concurrent map, and, if a request is waiting, schedule a flush that hands whatever has accumulated
+ * to it in one batch (see {@code zimbra_waitset_all_accounts_batch_delay_ms}).
  * @deprecated this API is not being used by any known clients
  */
 @Deprecated
@@ -48,23 +60,62 @@ public final class AllAccountsWaitSet extends WaitSetBase {
     private static Map<AllAccountsWaitSet, String> sAllAccountsWaitSets = new ConcurrentHashMap<AllAccountsWaitSet, String>();
     private static volatile Set<MailItem.Type> interestTypes = EnumSet.noneOf(MailItem.Type.class);
 
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("WaitSetFlush-%d").setDaemon(true).build());
+
     /** If non-null, then we're buffering the commits during creation */
-    private List<Pair<String/*AccountId*/, String/*CommitId*/>> mBufferedCommits;
+    private volatile List<Pair<String/*AccountId*/, String/*CommitId*/>> mBufferedCommits;
 
     private String mCbSeqNo; // seqno returned by the most recent callback
     private String mCurrentSeqNo;
     private String mNextSeqNo; // set to the commitId of the most recently signalled event....we use this to update mCurrentSeqNo when we send data..
+    private long mOldestUnsent = Long.MAX_VALUE; // when the oldest signalled change not yet sent was committed
+
+    /** changes committed since the last flush, added to without holding the waitset's monitor */
+    private final ConcurrentMap<String /*accountId*/, AccountChangeSummary> mIncoming =
+            new ConcurrentHashMap<String, AccountChangeSummary>(256, 0.75f, 64);
+    /** commitId of the most recent change added to mIncoming */
+    private volatile String mIncomingSeqNo;
+    /** whether committers should schedule a flush; only changed while holding the monitor */
+    private volatile boolean mWaiting = false;
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+    private final Runnable mFlusher = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
 
     /** Callback from the Mailbox object when a transaction has completed in some Mailbox */
     public static final void mailboxChangeCommitted(String commitIdStr, String accountId,
-            Set<MailItem.Type> changedTypes) {
+            Set<MailItem.Type> changedTypes, int changeId, Set<Integer> changedFolderIds) {
         if (!Collections.disjoint(changedTypes, interestTypes)) {
             for (AllAccountsWaitSet ws : sAllAccountsWaitSets.keySet()) {
-                ws.onMailboxChangeCommitted(commitIdStr, accountId, changedTypes);
+                ws.onMailboxChangeCommitted(commitIdStr, accountId, changedTypes, changeId, changedFolderIds);
             }
         }
     }
 
+    /** Returns the number of accounts with changes not yet handed to a request, across all waitsets. */
+    public static int getPendingAccountCount() {
+        int count = 0;
+        for (AllAccountsWaitSet ws : sAllAccountsWaitSets.keySet()) {
+            count += ws.mIncoming.size();
+        }
+        return count;
+    }
+
+    /** Returns an estimate of the memory held by changes not yet handed to a request, across all waitsets. */
+    public static long getPendingSize() {
+        long size = 0;
+        for (AllAccountsWaitSet ws : sAllAccountsWaitSets.keySet()) {
+            for (AccountChangeSummary summary : ws.mIncoming.values()) {
+                size += summary.estimateSize();
+            }
+        }
+        return size;
+    }
+
     public static final boolean isCallbackNecessary(Set<MailItem.Type> types) {
         return !Collections.disjoint(types, interestTypes);
     }
@@ -143,21 +194,119 @@ public final class AllAccountsWaitSet extends WaitSetBase {
         // figure out if there is already data here
         mCb = cb;
         mCbSeqNo = lastKnownSeqNo;
-        trySendData();
+        // set before draining, so that a change that misses this drain schedules a flush
+        mWaiting = true;
+        sendData();
 
         return new ArrayList<WaitSetError>();
     }
 
-    private synchronized void onMailboxChangeCommitted(String commitIdStr, String accountId,
-            Set<MailItem.Type> changedTypes) {
-        if (!Collections.disjoint(changedTypes, defaultInterest)) {
-            if (mBufferedCommits != null) {
-                mBufferedCommits.add(new Pair<String/*acctId*/, String/*commitId*/>(accountId, commitIdStr));
+    private void onMailboxChangeCommitted(String commitIdStr, String accountId,
+            Set<MailItem.Type> changedTypes, int changeId, Set<Integer> changedFolderIds) {
+        if (Collections.disjoint(changedTypes, defaultInterest)) {
+            return;
+        }
+        if (mBufferedCommits != null) {
+            synchronized (this) {
+                if (mBufferedCommits != null) {
+                    mBufferedCommits.add(new Pair<String/*acctId*/, String/*commitId*/>(accountId, commitIdStr));
+                    return;
+                }
+            }
+        }
+
+        while (true) {
+            AccountChangeSummary summary = mIncoming.get(accountId);
+            if (summary == null) {
+                summary = new AccountChangeSummary(accountId);
+                AccountChangeSummary existing = mIncoming.putIfAbsent(accountId, summary);
+                if (existing != null) {
+                    summary = existing;
+                }
+            }
+            if (summary.add(changeId, changedFolderIds)) {
+                break;
+            }
+            // a flush took that summary; it's gone from the map, so the next pass starts a new one
+        }
+        // published after the summary, so a flush that sees this commitId also sees the change
+        mIncomingSeqNo = commitIdStr;
+
+        if (mWaiting && mFlushScheduled.compareAndSet(false, true)) {
+            long delay = LC.zimbra_waitset_all_accounts_batch_delay_ms.longValue();
+            try {
+                if (delay > 0) {
+                    FLUSHER.schedule(mFlusher, delay, TimeUnit.MILLISECONDS);
+                } else {
+                    FLUSHER.execute(mFlusher);
+                }
+            } catch (RuntimeException e) {
+                mFlushScheduled.set(false);
+                ZimbraLog.session.warn("unable to schedule waitset flush", e);
+            }
+        }
+    }
+
+    private void flush() {
+        mFlushScheduled.set(false);
+        synchronized (this) {
+            sendData();
+            // nobody to hand changes to until the next doWait, which drains on its own
+            mWaiting = mCb != null;
+        }
+    }
+
+    /**
+     * Moves the changes committed since the last drain into the signalled set, and hands them to the waiting
+     * request, if any.
+     */
+    private void sendData() {
+        assert Thread.holdsLock(this);
+        drainIncoming();
+        if (mCb == null || mCurrentSignalledAccounts.isEmpty()) {
+            trySendData();
+            return;
+        }
+        int accounts = mCurrentSignalledAccounts.size();
+        trySendData();
+        if (mCb == null) {
+            ZimbraPerf.COUNTER_WAITSET_BATCH.increment(accounts);
+            if (mOldestUnsent != Long.MAX_VALUE) {
+                ZimbraPerf.STOPWATCH_WAITSET_DELIVERY.stop(mOldestUnsent);
+            }
+            mOldestUnsent = Long.MAX_VALUE;
+        }
+    }
+
+    /** Moves the changes committed since the last drain into the signalled set. */
+    private void drainIncoming() {
+        assert Thread.holdsLock(this);
+        // read the commitId before draining: every change it covers is already in mIncoming
+        String seqNo = mIncomingSeqNo;
+        long oldest = Long.MAX_VALUE;
+        for (String accountId : mIncoming.keySet()) {
+            AccountChangeSummary summary = mIncoming.remove(accountId);
+            if (summary == null) {
+                continue;
+            }
+            summary.close();
+            oldest = Math.min(oldest, summary.getCreated());
+            mCurrentSignalledAccounts.add(accountId);
+            AccountChangeSummary current = currentChangeSummaries.get(accountId);
+            if (current == null) {
+                currentChangeSummaries.put(accountId, summary);
             } else {
-                mNextSeqNo = commitIdStr;
-                mCurrentSignalledAccounts.add(accountId);
-                trySendData();
+                current.add(summary);
+            }
+        }
+        if (oldest != Long.MAX_VALUE) {
+            if (seqNo != null) {
+                mNextSeqNo = seqNo;
+            } else if (mNextSeqNo == null) {
+                // the only changes drained haven't published their commitId yet
+                mNextSeqNo = mCurrentSeqNo;
             }
+            mOldestUnsent = Math.min(mOldestUnsent, oldest);
         }
     }
 
@@ -216,8 +365,8 @@ public final class AllAccountsWaitSet extends WaitSetBase {
             // no more buffering!
             mBufferedCommits = null;
 
-            if (mCurrentSignalledAccounts.size() > 0) {
-                trySendData();
+            if (mCurrentSignalledAccounts.size() > 0 || !mIncoming.isEmpty()) {
+                sendData();
             }
         }
     }
@@ -260,11 +409,13 @@ public final class AllAccountsWaitSet extends WaitSetBase {
         mSentSignalledSessions.clear();
         mSentSignalledAccounts.clear();
         mCurrentSignalledAccounts.clear();
+        mIncoming.clear();
         return null;
     }
 
     @Override
     public synchronized WaitSetInfo handleQuery() {
+        drainIncoming();
         WaitSetInfo info = super.handleQuery();
         info.setCbSeqNo(mCbSeqNo);
         info.setCurrentSeqNo(mCurrentSeqNo);
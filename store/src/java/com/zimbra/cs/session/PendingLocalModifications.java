@@ -43,8 +43,9 @@ public final class PendingLocalModifications extends PendingModifications<MailIt
     public PendingLocalModifications() {
     }
 
+    /** Adds the changes in {@code other} to this set, as if they had been made after the ones already here. */
     @Override
-    PendingModifications<MailItem> add(PendingModifications<MailItem> other) {
+    public PendingModifications<MailItem> add(PendingModifications<MailItem> other) {
         changedTypes.addAll(other.changedTypes);
         addChangedParentFolderIds(other.getChangedParentFolders());
 
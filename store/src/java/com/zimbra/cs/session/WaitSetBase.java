@@ -53,11 +53,13 @@ public abstract class WaitSetBase implements IWaitSet {
     protected HashSet<String /*accountId*/> mCurrentSignalledAccounts = Sets.newHashSet();
     protected HashSet<WaitSetSession> mCurrentSignalledSessions = Sets.newHashSet();
     protected Map<String /*accountId*/, PendingModifications> currentPendingModifications = Maps.newHashMap();
+    protected Map<String /*accountId*/, AccountChangeSummary> currentChangeSummaries = Maps.newHashMap();
 
     /** this is the signalled set data that we've already sent, it just hasn't been acked yet */
     protected HashSet<String /*accountId*/> mSentSignalledAccounts = Sets.newHashSet();
     protected HashSet<WaitSetSession /*accountId*/> mSentSignalledSessions = Sets.newHashSet();
     protected Map<String /*accountId*/, PendingModifications> sentPendingModifications = Maps.newHashMap();
+    protected Map<String /*accountId*/, AccountChangeSummary> sentChangeSummaries = Maps.newHashMap();
 
     abstract protected Map<String, WaitSetAccount> destroy();
     abstract protected int countSessions();
@@ -143,6 +145,7 @@ public abstract class WaitSetBase implements IWaitSet {
             mSentSignalledAccounts.clear();
             mSentSignalledSessions.clear();
             sentPendingModifications.clear();
+            sentChangeSummaries.clear();
             mSentErrors.clear();
         }
 
@@ -176,6 +179,9 @@ public abstract class WaitSetBase implements IWaitSet {
                 Map<String, PendingModifications> tempNotifications = currentPendingModifications;
                 currentPendingModifications = sentPendingModifications;
                 sentPendingModifications = tempNotifications;
+                Map<String, AccountChangeSummary> tempSummaries = currentChangeSummaries;
+                currentChangeSummaries = sentChangeSummaries;
+                sentChangeSummaries = tempSummaries;
             } else {
                 ZimbraLog.session.trace("WaitSetBase.trySendData 2b");
                 assert(!cbIsCurrent);
@@ -185,6 +191,15 @@ public abstract class WaitSetBase implements IWaitSet {
                 mCurrentSignalledSessions.clear();
                 sentPendingModifications.putAll(currentPendingModifications);
                 currentPendingModifications.clear();
+                for (AccountChangeSummary summary : currentChangeSummaries.values()) {
+                    AccountChangeSummary sent = sentChangeSummaries.get(summary.getAccountId());
+                    if (sent == null) {
+                        sentChangeSummaries.put(summary.getAccountId(), summary);
+                    } else {
+                        sent.add(summary);
+                    }
+                }
+                currentChangeSummaries.clear();
             }
 
             // error list
@@ -193,7 +208,10 @@ public abstract class WaitSetBase implements IWaitSet {
 
             assert(mSentSignalledAccounts.size() > 0 || mSentErrors.size() > 0);
             ZimbraLog.session.trace("WaitSetBase.trySendData 3");
-            mCb.dataReady(this, toNextSeqNo(), false, mSentErrors, mSentSignalledSessions, mSentSignalledAccounts, sentPendingModifications);
+            @SuppressWarnings({ "rawtypes", "unchecked" })
+            Map<String, PendingModifications<?>> pms = (Map) sentPendingModifications;
+            mCb.dataReady(this, toNextSeqNo(), false, mSentErrors, mSentSignalledSessions, mSentSignalledAccounts,
+                    pms, sentChangeSummaries);
             mCb = null;
             mLastAccessedTime = System.currentTimeMillis();
         }
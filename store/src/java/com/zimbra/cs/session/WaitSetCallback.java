@@ -36,6 +36,7 @@ public class WaitSetCallback {
     public HashMap<String /* accountId */, WaitSetSession> signalledSessions;
     public Set<String> signalledAccounts;
     public Map<String /*accountId*/, PendingModifications> pendingModifications;
+    public Map<String /*accountId*/, AccountChangeSummary> changeSummaries;
     public IWaitSet waitSet;
     public String seqNo;
     public IWaitSet ws;
@@ -45,6 +46,15 @@ public class WaitSetCallback {
 
     public void dataReady(IWaitSet wset, String seqNum, boolean setCanceled, List<WaitSetError> inErrors,
             Set<WaitSetSession> signalledSessions, Set<String> signalledAccounts, Map<String /*accountId*/, PendingModifications> pms) {
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        Map<String, PendingModifications<?>> mods = (Map) pms;
+        dataReady(wset, seqNum, setCanceled, inErrors, signalledSessions, signalledAccounts, mods, null);
+    }
+
+    public void dataReady(IWaitSet wset, String seqNum, boolean setCanceled, List<WaitSetError> inErrors,
+            Set<WaitSetSession> signalledSessions, Set<String> signalledAccounts,
+            Map<String /*accountId*/, PendingModifications<?>> pms,
+            Map<String /*accountId*/, AccountChangeSummary> summaries) {
         boolean trace = ZimbraLog.session.isTraceEnabled();
         synchronized(this) {
             if (inErrors != null && inErrors.size() > 0) {
@@ -69,6 +79,12 @@ public class WaitSetCallback {
             } else {
                 this.pendingModifications = Maps.newHashMapWithExpectedSize(0);
             }
+            if (summaries != null) {
+                this.changeSummaries = Maps.newHashMapWithExpectedSize(summaries.size());
+                this.changeSummaries.putAll(summaries);
+            } else {
+                this.changeSummaries = Maps.newHashMapWithExpectedSize(0);
+            }
             this.seqNo = seqNum;
             this.completed = true;
             if (completedLatch != null) {
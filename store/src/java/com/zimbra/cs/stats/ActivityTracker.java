@@ -22,22 +22,34 @@ import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.zimbra.common.stats.Counter;
+import com.zimbra.common.stats.Histogram;
 import com.zimbra.common.stats.StatsDumperDataSource;
+import com.zimbra.common.stats.StopWatch;
 
 
 /**
  * ActivityTrackers get their own output file (e.g. soap.csv) and track a set of "commands" and their "total elapsed time" 
- * for each counter stat period, one on a line.
+ * for each counter stat period, one on a line.  Optionally also reports the 99th and 99.9th percentile of the elapsed
+ * times of each command.
  */
 public class ActivityTracker
 implements StatsDumperDataSource {
 
     private String mFilename;
+    private final boolean mTrackPercentiles;
     private ConcurrentHashMap<String, Counter> mCounterMap =
         new ConcurrentHashMap<String, Counter>();
     
     public ActivityTracker(String filename) {
+        this(filename, false);
+    }
+
+    /**
+     * @param trackPercentiles if <tt>true</tt>, adds <tt>exec_ms_p99</tt> and <tt>exec_ms_p999</tt> columns
+     */
+    public ActivityTracker(String filename, boolean trackPercentiles) {
         mFilename = filename;
+        mTrackPercentiles = trackPercentiles;
     }
     
     public void addStat(String commandName, long startTime) {
@@ -48,7 +60,7 @@ implements StatsDumperDataSource {
     private Counter getCounter(String commandName) {
         Counter counter = mCounterMap.get(commandName);
         if (counter == null) {
-            counter = new Counter();
+            counter = mTrackPercentiles ? new StopWatch(true) : new Counter();
             
             Counter previousCounter = mCounterMap.putIfAbsent(commandName, counter);
             if (previousCounter != null) {
@@ -75,8 +87,15 @@ implements StatsDumperDataSource {
                 // during a race condition.
                 long count = counter.getCount();
                 long avg = (long) counter.getAverage();
-                counter.reset();
-                dataLines.add(String.format("%s,%d,%d", command, count, avg)); 
+                if (mTrackPercentiles) {
+                    Histogram.Snapshot snapshot = ((StopWatch) counter).getHistogram().snapshot();
+                    counter.reset();
+                    dataLines.add(String.format("%s,%d,%d,%d,%d", command, count, avg,
+                            snapshot.getValueAtPercentile(99.0), snapshot.getValueAtPercentile(99.9)));
+                } else {
+                    counter.reset();
+                    dataLines.add(String.format("%s,%d,%d", command, count, avg));
+                }
             }
         }
         return dataLines;
@@ -87,6 +106,9 @@ implements StatsDumperDataSource {
     }
 
     public String getHeader() {
+        if (mTrackPercentiles) {
+            return "command,exec_count,exec_ms_avg,exec_ms_p99,exec_ms_p999";
+        }
         return "command,exec_count,exec_ms_avg";
     }
 
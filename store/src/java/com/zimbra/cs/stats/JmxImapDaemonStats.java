@@ -36,6 +36,16 @@ public class JmxImapDaemonStats implements JmxImapDaemonStatsMBean {
         return (long) imapDeltaCalc.getRealtimeAverage();
     }
 
+    @Override
+    public long getImapResponseMsP99() {
+        return imapDeltaCalc.getRealtimePercentile(99.0);
+    }
+
+    @Override
+    public long getImapResponseMsP999() {
+        return imapDeltaCalc.getRealtimePercentile(99.9);
+    }
+
     @Override
     public void reset() {
         imapDeltaCalc.reset();
@@ -20,4 +20,6 @@ package com.zimbra.cs.stats;
 public interface JmxImapDaemonStatsMBean extends JmxStatsMBeanBase {
     long getImapRequests();
     long getImapResponseMs();
+    long getImapResponseMsP99();
+    long getImapResponseMsP999();
 }
@@ -33,6 +33,7 @@ public class JmxServerStats implements JmxServerStatsMBean {
     private DeltaCalculator mItemCache = new DeltaCalculator(ZimbraPerf.COUNTER_MBOX_ITEM_CACHE);
     private DeltaCalculator mMailboxCache = new DeltaCalculator(ZimbraPerf.COUNTER_MBOX_CACHE);
     private DeltaCalculator mMessageCache = new DeltaCalculator(ZimbraPerf.COUNTER_MBOX_MSG_CACHE);
+    private DeltaCalculator mMailboxLoad = new DeltaCalculator(ZimbraPerf.STOPWATCH_MBOX_LOAD);
     
     private DeltaCalculator mAddMessage = new DeltaCalculator(ZimbraPerf.STOPWATCH_MBOX_ADD_MSG);
     private DeltaCalculator mImap = new DeltaCalculator(ZimbraPerf.STOPWATCH_IMAP);
@@ -50,6 +51,7 @@ public class JmxServerStats implements JmxServerStatsMBean {
         accumulators.add(mItemCache);
         accumulators.add(mMailboxCache);
         accumulators.add(mMessageCache);
+        accumulators.add(mMailboxLoad);
         
         accumulators.add(mAddMessage);
         accumulators.add(mImap);
@@ -68,6 +70,10 @@ public class JmxServerStats implements JmxServerStatsMBean {
         return (long) mDbConn.getRealtimeAverage();
     }
 
+    public long getDatabaseConnectionGetMsP99() {
+        return mDbConn.getRealtimePercentile(99.0);
+    }
+
     public long getDatabaseConnectionsInUse() {
         return DbPool.getSize();
     }
@@ -116,6 +122,22 @@ public class JmxServerStats implements JmxServerStatsMBean {
         return ZimbraPerf.getMailboxCacheSize();
     }
 
+    public long getMailboxCacheHits() {
+        return ZimbraPerf.COUNTER_MBOX_CACHE_HIT.getCount();
+    }
+
+    public long getMailboxCacheMisses() {
+        return ZimbraPerf.COUNTER_MBOX_CACHE_MISS.getCount();
+    }
+
+    public long getMailboxLoads() {
+        return ZimbraPerf.STOPWATCH_MBOX_LOAD.getCount();
+    }
+
+    public long getMailboxLoadMs() {
+        return (long) mMailboxLoad.getRealtimeAverage();
+    }
+
     public long getMailboxGets() {
         return ZimbraPerf.STOPWATCH_MBOX_GET.getCount();
     }
@@ -128,6 +150,14 @@ public class JmxServerStats implements JmxServerStatsMBean {
         return (long) mAddMessage.getRealtimeAverage();
     }
 
+    public long getMessageAddMsP99() {
+        return mAddMessage.getRealtimePercentile(99.0);
+    }
+
+    public long getMessageAddMsP999() {
+        return mAddMessage.getRealtimePercentile(99.9);
+    }
+
     public long getMessageCacheSize() {
         return MessageCache.getSize();
     }
@@ -148,6 +178,14 @@ public class JmxServerStats implements JmxServerStatsMBean {
         return (long) mSoap.getRealtimeAverage();
     }
 
+    public long getSoapResponseMsP99() {
+        return mSoap.getRealtimePercentile(99.0);
+    }
+
+    public long getSoapResponseMsP999() {
+        return mSoap.getRealtimePercentile(99.9);
+    }
+
     public long getBlobInputStreamReads() {
         return ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_READ.getCount();
     }
@@ -160,6 +198,14 @@ public class JmxServerStats implements JmxServerStatsMBean {
         return (long) mImap.getRealtimeAverage();
     }
 
+    public long getImapResponseMsP99() {
+        return mImap.getRealtimePercentile(99.0);
+    }
+
+    public long getImapResponseMsP999() {
+        return mImap.getRealtimePercentile(99.9);
+    }
+
     public long getPopRequests() {
         return ZimbraPerf.STOPWATCH_POP.getCount();
     }
@@ -167,6 +213,14 @@ public class JmxServerStats implements JmxServerStatsMBean {
     public long getPopResponseMs() {
         return (long) mPop.getRealtimeAverage();
     }
+
+    public long getPopResponseMsP99() {
+        return mPop.getRealtimePercentile(99.0);
+    }
+
+    public long getPopResponseMsP999() {
+        return mPop.getRealtimePercentile(99.9);
+    }
     
     public void reset() {
         for (Accumulator accum : mAccumulators) {
@@ -23,9 +23,12 @@ public interface JmxServerStatsMBean extends JmxStatsMBeanBase
     long getBlobInputStreamSeekRate();
     long getDatabaseConnectionGets();
     long getDatabaseConnectionGetMs();
+    long getDatabaseConnectionGetMsP99();
     long getDatabaseConnectionsInUse();
     long getImapRequests();
     long getImapResponseMs();
+    long getImapResponseMsP99();
+    long getImapResponseMsP999();
     long getItemCacheHitRate();
     long getLdapDirectoryContextGetMs();
     long getLdapDirectoryContextGets();
@@ -35,15 +38,25 @@ public interface JmxServerStatsMBean extends JmxStatsMBeanBase
     long getLmtpReceivedMessages();
     long getLmtpRecipients();
     long getMailboxCacheHitRate();
+    long getMailboxCacheHits();
+    long getMailboxCacheMisses();
     long getMailboxCacheSize();
     long getMailboxGetMs();
     long getMailboxGets();
+    long getMailboxLoadMs();
+    long getMailboxLoads();
     long getMessageAddMs();
+    long getMessageAddMsP99();
+    long getMessageAddMsP999();
     long getMessageCacheSize();
     long getMessageCacheHitRate();
     long getMessagesAdded();
     long getPopRequests();
     long getPopResponseMs();
+    long getPopResponseMsP99();
+    long getPopResponseMsP999();
     long getSoapRequests();
     long getSoapResponseMs();
+    long getSoapResponseMsP99();
+    long getSoapResponseMsP999();
 }
@@ -24,17 +24,32 @@ import com.zimbra.common.stats.RealtimeStatsCallback;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.PermissionCache;
 import com.zimbra.cs.account.ldap.LdapProv;
+import com.zimbra.cs.mailbox.ChangeNotificationDispatcher;
+import com.zimbra.cs.mailbox.ItemCache;
 import com.zimbra.cs.mailbox.MessageCache;
+import com.zimbra.cs.mailbox.PurgeThread;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.FileDescriptorCache;
 
 
 public class ServerStatsCallback implements RealtimeStatsCallback {
 
+    // fully qualified so that the import doesn't need the deprecation warning suppressed too
+    @SuppressWarnings("deprecation")
+    private static void putWaitSetStats(Map<String, Object> data) {
+        data.put(ZimbraPerf.RTS_WAITSET_PENDING, com.zimbra.cs.session.AllAccountsWaitSet.getPendingAccountCount());
+        data.put(ZimbraPerf.RTS_WAITSET_PENDING_SIZE, com.zimbra.cs.session.AllAccountsWaitSet.getPendingSize());
+    }
+
     public Map<String, Object> getStatData() {
         Map<String, Object> data = new HashMap<String, Object>();
         data.put(ZimbraPerf.RTS_MBOX_CACHE_SIZE, ZimbraPerf.getMailboxCacheSize());
         data.put(ZimbraPerf.RTS_MSG_CACHE_SIZE, MessageCache.getSize());
+        data.put(ZimbraPerf.RTS_MSG_CACHE_DATA_SIZE, MessageCache.getDataSize());
+        data.put(ZimbraPerf.RTS_ITEM_CACHE_DATA_SIZE, ItemCache.getTotalBytes());
+        data.put(ZimbraPerf.RTS_PURGE_BACKLOG, PurgeThread.getBacklog());
+        data.put(ZimbraPerf.RTS_NOTIFY_PENDING, ChangeNotificationDispatcher.getPendingCount());
+        putWaitSetStats(data);
         
         FileDescriptorCache fdc = BlobInputStream.getFileDescriptorCache();
         data.put(ZimbraPerf.RTS_FD_CACHE_SIZE, fdc.getSize());
@@ -112,6 +112,24 @@ public class ZimbraPerf {
     @Description("Number of message structures cached in memory")
     public static final String RTS_MSG_CACHE_SIZE = "msg_cache_size";
 
+    @Description("Number of bytes of message data held in memory by the message cache")
+    public static final String RTS_MSG_CACHE_DATA_SIZE = "msg_cache_data_size";
+
+    @Description("Estimated number of bytes held in memory by the item caches of all loaded mailboxes")
+    public static final String RTS_ITEM_CACHE_DATA_SIZE = "item_cache_data_size";
+
+    @Description("Number of mailboxes waiting to be purged in the current purge cycle")
+    public static final String RTS_PURGE_BACKLOG = "purge_backlog";
+
+    @Description("Number of mailbox change notifications waiting to be delivered to sessions and listeners")
+    public static final String RTS_NOTIFY_PENDING = "notify_pending";
+
+    @Description("Number of accounts with changes not yet handed to an all-accounts waitset request")
+    public static final String RTS_WAITSET_PENDING = "waitset_pending";
+
+    @Description("Estimated number of bytes held by changes not yet handed to an all-accounts waitset request")
+    public static final String RTS_WAITSET_PENDING_SIZE = "waitset_pending_size";
+
     @Description("Number of open file descriptors that reference message content")
     public static final String RTS_FD_CACHE_SIZE = "fd_cache_size";
 
@@ -177,16 +195,37 @@ public class ZimbraPerf {
     public static final Counter COUNTER_LMTP_RCVD_RCPT = new Counter();
     public static final Counter COUNTER_LMTP_DLVD_MSGS = new Counter();
     public static final Counter COUNTER_LMTP_DLVD_BYTES = new Counter();
-    public static final StopWatch STOPWATCH_DB_CONN = new StopWatch();
+    public static final Counter COUNTER_LMTP_FANOUT = new Counter();           // Threads per multi-recipient delivery
+    public static final StopWatch STOPWATCH_LMTP_RCPT = new StopWatch(true);   // Per-recipient LMTP delivery latency
+    public static final StopWatch STOPWATCH_DB_CONN = new StopWatch(true);
     public static final StopWatch STOPWATCH_LDAP_DC = new StopWatch();
-    public static final StopWatch STOPWATCH_MBOX_ADD_MSG = new StopWatch();
+    public static final StopWatch STOPWATCH_MBOX_ADD_MSG = new StopWatch(true);
     public static final StopWatch STOPWATCH_MBOX_GET = new StopWatch();         // Mailbox accessor response time
     public static final Counter COUNTER_MBOX_CACHE = new Counter();           // Mailbox cache hit rate
+    public static final Counter COUNTER_MBOX_CACHE_HIT = new Counter();
+    public static final Counter COUNTER_MBOX_CACHE_MISS = new Counter();
+    public static final StopWatch STOPWATCH_MBOX_LOAD = new StopWatch();        // Mailbox load time on cache miss
+    public static final StopWatch STOPWATCH_MBOX_FOLDERS_TAGS_LOAD = new StopWatch(); // Folder and tag cache load time
+    public static final Counter COUNTER_MBOX_FOLDERS_TAGS_DELTA = new Counter(); // Folders and tags read on top of a snapshot
+    public static final StopWatch STOPWATCH_PURGE = new StopWatch();           // Mailbox purge time
+    public static final Counter COUNTER_PURGE_PAUSE = new Counter();           // Time purging paused for server load
+    public static final Counter COUNTER_NOTIFY_BATCH = new Counter();          // Change notifications per delivered batch
+    public static final StopWatch STOPWATCH_NOTIFY = new StopWatch();          // Delivery time of a notification batch
+    public static final Counter COUNTER_NOTIFY_WAIT = new Counter();           // Time committers waited for delivery
+    public static final Counter COUNTER_WAITSET_BATCH = new Counter();         // Accounts per all-accounts waitset batch
+    public static final StopWatch STOPWATCH_WAITSET_DELIVERY = new StopWatch(); // Commit to waitset delivery latency
+    public static final Counter COUNTER_REDO_BATCH = new Counter();            // Records per redo log group commit batch
+    public static final StopWatch STOPWATCH_REDO_COMMIT = new StopWatch(true); // Redo log group commit latency
     public static final Counter COUNTER_MBOX_MSG_CACHE = new Counter();
+    public static final Counter COUNTER_MSG_CACHE_EVICTIONS = new Counter();
+    public static final Counter COUNTER_FD_CACHE_EVICTIONS = new Counter();
+    public static final Counter COUNTER_MIME_EXTRACT_TIMEOUTS = new Counter(); // MIME parts left unindexed over budget
     public static final Counter COUNTER_MBOX_ITEM_CACHE = new Counter();
-    public static final StopWatch STOPWATCH_SOAP = new StopWatch();
-    public static final StopWatch STOPWATCH_IMAP = new StopWatch();
-    public static final StopWatch STOPWATCH_POP = new StopWatch();
+    public static final StopWatch STOPWATCH_SOAP = new StopWatch(true);
+    public static final StopWatch STOPWATCH_IMAP = new StopWatch(true);
+    public static final Counter COUNTER_IMAP_ZERO_COPY_BYTES = new Counter(); // FETCH bytes sent as file regions
+    public static final Counter COUNTER_IMAP_STRUCTURE_CACHE = new Counter(); // stored ENVELOPE/BODYSTRUCTURE hit rate
+    public static final StopWatch STOPWATCH_POP = new StopWatch(true);
     public static final Counter COUNTER_IDX_WRT = new Counter();
     public static final Counter COUNTER_IDX_WRT_OPENED = new Counter();
     public static final Counter COUNTER_IDX_WRT_OPENED_CACHE_HIT = new Counter();
@@ -195,17 +234,20 @@ public class ZimbraPerf {
     public static final Counter COUNTER_CALENDAR_CACHE_LRU_SIZE = new Counter();
     public static final Counter COUNTER_IDX_BYTES_WRITTEN = new Counter();
     public static final Counter COUNTER_IDX_BYTES_READ = new Counter();
+    public static final StopWatch STOPWATCH_INDEX_REOPEN = new StopWatch();    // Lucene searcher refresh after commit
     public static final Counter COUNTER_BLOB_INPUT_STREAM_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_SEEK_RATE = new Counter();
     public static final StopWatch STOPWATCH_EWS = new StopWatch();
 
-    public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv");
-    public static final ActivityTracker IMAP_TRACKER = new ActivityTracker("imap.csv");
-    public static final ActivityTracker IMAPD_TRACKER = new ActivityTracker("imapd.csv");
-    public static final ActivityTracker POP_TRACKER = new ActivityTracker("pop3.csv");
+    public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv", true);
+    public static final ActivityTracker IMAP_TRACKER = new ActivityTracker("imap.csv", true);
+    public static final ActivityTracker IMAPD_TRACKER = new ActivityTracker("imapd.csv", true);
+    public static final ActivityTracker POP_TRACKER = new ActivityTracker("pop3.csv", true);
     public static final ActivityTracker LDAP_TRACKER = new ActivityTracker("ldap.csv");
     public static final ActivityTracker SYNC_TRACKER = new ActivityTracker("sync.csv");
     public static final ActivityTracker SQL_TRACKER  = new ActivityTracker("sql.csv");
+    public static final ActivityTracker DLOCK_TRACKER = new ActivityTracker("dlock.csv");
+    public static final ActivityTracker MIME_TRACKER = new ActivityTracker("mime.csv", true); // per MimeHandler
 
     private static int mailboxCacheSize;
     private static long mailboxCacheSizeTimestamp = 0;
@@ -219,7 +261,8 @@ public class ZimbraPerf {
             RTS_POP_CONN, RTS_POP_THREADS, RTS_POP_SSL_CONN, RTS_POP_SSL_THREADS,
             RTS_IMAP_CONN, RTS_IMAP_THREADS, RTS_IMAP_SSL_CONN, RTS_IMAP_SSL_THREADS,
             RTS_HTTP_IDLE_THREADS, RTS_HTTP_THREADS, RTS_SOAP_SESSIONS,
-            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE,
+            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE, RTS_MSG_CACHE_DATA_SIZE, RTS_ITEM_CACHE_DATA_SIZE,
+            RTS_PURGE_BACKLOG, RTS_NOTIFY_PENDING, RTS_WAITSET_PENDING, RTS_WAITSET_PENDING_SIZE,
             RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE,
             RTS_ACL_CACHE_HIT_RATE,
             RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE,
@@ -252,12 +295,36 @@ public class ZimbraPerf {
     @Description("Number of bytes of data delivered to mailboxes as a result of LMTP delivery")
     private static final String DC_LMTP_DLVD_BYTES = "lmtp_dlvd_bytes";
 
+    @Description("Number of multi-recipient LMTP deliveries")
+    private static final String DC_LMTP_FANOUT_COUNT = "lmtp_fanout_count";
+
+    @Description("Average number of threads delivering a multi-recipient LMTP message")
+    private static final String DC_LMTP_FANOUT_AVG = "lmtp_fanout_avg";
+
+    @Description("Number of local LMTP recipients delivered to")
+    private static final String DC_LMTP_RCPT_COUNT = "lmtp_rcpt_count";
+
+    @Description("Average time in milliseconds to deliver to one local LMTP recipient")
+    private static final String DC_LMTP_RCPT_MS_AVG = "lmtp_rcpt_ms_avg";
+
+    @Description("99th percentile latency (ms) of delivering to one local LMTP recipient")
+    private static final String DC_LMTP_RCPT_MS_P99 = "lmtp_rcpt_ms_p99";
+
+    @Description("99.9th percentile latency (ms) of delivering to one local LMTP recipient")
+    private static final String DC_LMTP_RCPT_MS_P999 = "lmtp_rcpt_ms_p999";
+
     @Description("Number of times that the server got a database connection from the pool")
     private static final String DC_DB_CONN_COUNT = "db_conn_count";
 
     @Description("Average latency (ms) of getting a database connection from the pool")
     private static final String DC_DB_CONN_MS_AVG = "db_conn_ms_avg";
 
+    @Description("99th percentile latency (ms) of getting a database connection from the pool")
+    private static final String DC_DB_CONN_MS_P99 = "db_conn_ms_p99";
+
+    @Description("99.9th percentile latency (ms) of getting a database connection from the pool")
+    private static final String DC_DB_CONN_MS_P999 = "db_conn_ms_p999";
+
     @Description("Number of times that the server got an LDAP directory context")
     private static final String DC_LDAP_DC_COUNT = "ldap_dc_count";
 
@@ -270,6 +337,12 @@ public class ZimbraPerf {
     @Description("Average latency (ms) of adding a message to a mailbox")
     private static final String DC_MBOX_ADD_MSG_MS_AVG = "mbox_add_msg_ms_avg";
 
+    @Description("99th percentile latency (ms) of adding a message to a mailbox")
+    private static final String DC_MBOX_ADD_MSG_MS_P99 = "mbox_add_msg_ms_p99";
+
+    @Description("99.9th percentile latency (ms) of adding a message to a mailbox")
+    private static final String DC_MBOX_ADD_MSG_MS_P999 = "mbox_add_msg_ms_p999";
+
     @Description("Number of times that the server got a mailbox from the cache")
     private static final String DC_MBOX_GET_COUNT = "mbox_get_count";
 
@@ -279,9 +352,90 @@ public class ZimbraPerf {
     @Description("Mailbox cache hit rate")
     private static final String DC_MBOX_CACHE = "mbox_cache";
 
+    @Description("Number of mailbox lookups that were served from the mailbox cache")
+    private static final String DC_MBOX_CACHE_HIT = "mbox_cache_hit";
+
+    @Description("Number of mailbox lookups that missed the mailbox cache")
+    private static final String DC_MBOX_CACHE_MISS = "mbox_cache_miss";
+
+    @Description("Number of mailboxes loaded from the database after a cache miss")
+    private static final String DC_MBOX_LOAD_COUNT = "mbox_load_count";
+
+    @Description("Average latency (ms) of loading a mailbox after a cache miss")
+    private static final String DC_MBOX_LOAD_MS_AVG = "mbox_load_ms_avg";
+
+    @Description("Number of times the folders and tags of a mailbox were loaded")
+    private static final String DC_MBOX_FOLDERS_TAGS_LOAD_COUNT = "mbox_folders_tags_load_count";
+
+    @Description("Average latency (ms) of loading the folders and tags of a mailbox")
+    private static final String DC_MBOX_FOLDERS_TAGS_LOAD_MS_AVG = "mbox_folders_tags_load_ms_avg";
+
+    @Description("Number of folder and tag loads that brought a cached snapshot up to date")
+    private static final String DC_MBOX_FOLDERS_TAGS_DELTA_COUNT = "mbox_folders_tags_delta_count";
+
+    @Description("Average number of folders and tags read from the database on top of a cached snapshot")
+    private static final String DC_MBOX_FOLDERS_TAGS_DELTA_AVG = "mbox_folders_tags_delta_avg";
+
+    @Description("Number of mailboxes purged")
+    private static final String DC_PURGE_COUNT = "purge_count";
+
+    @Description("Average time (ms) of purging a mailbox")
+    private static final String DC_PURGE_MS_AVG = "purge_ms_avg";
+
+    @Description("Time (ms) purging paused because database connection or LMTP delivery latency was high")
+    private static final String DC_PURGE_PAUSE_MS = "purge_pause_ms";
+
+    @Description("Number of batches of mailbox change notifications delivered")
+    private static final String DC_NOTIFY_BATCH_COUNT = "notify_batch_count";
+
+    @Description("Average number of mailbox change notifications delivered in a batch")
+    private static final String DC_NOTIFY_BATCH_SIZE_AVG = "notify_batch_size_avg";
+
+    @Description("Average time (ms) of delivering a batch of mailbox change notifications")
+    private static final String DC_NOTIFY_MS_AVG = "notify_ms_avg";
+
+    @Description("Time (ms) threads waited, after committing a mailbox change, for its notifications to be delivered")
+    private static final String DC_NOTIFY_WAIT_MS = "notify_wait_ms";
+
+    @Description("Number of batches of account changes handed to all-accounts waitset requests")
+    private static final String DC_WAITSET_BATCH_COUNT = "waitset_batch_count";
+
+    @Description("Average number of accounts in a batch handed to an all-accounts waitset request")
+    private static final String DC_WAITSET_BATCH_SIZE_AVG = "waitset_batch_size_avg";
+
+    @Description("Average time (ms) from committing the oldest change in a batch to handing the batch to a waitset request")
+    private static final String DC_WAITSET_DELIVERY_MS_AVG = "waitset_delivery_ms_avg";
+
+    @Description("Number of batches written by the redo log group commit thread")
+    private static final String DC_REDO_BATCH_COUNT = "redo_batch_count";
+
+    @Description("Average number of records per redo log group commit batch")
+    private static final String DC_REDO_BATCH_SIZE_AVG = "redo_batch_size_avg";
+
+    @Description("Number of synchronous redo log records committed by the group commit thread")
+    private static final String DC_REDO_COMMIT_COUNT = "redo_commit_count";
+
+    @Description("Average latency (ms) from queueing a synchronous redo log record until it is fsynced")
+    private static final String DC_REDO_COMMIT_MS_AVG = "redo_commit_ms_avg";
+
+    @Description("99th percentile latency (ms) of committing a synchronous redo log record")
+    private static final String DC_REDO_COMMIT_MS_P99 = "redo_commit_ms_p99";
+
+    @Description("99.9th percentile latency (ms) of committing a synchronous redo log record")
+    private static final String DC_REDO_COMMIT_MS_P999 = "redo_commit_ms_p999";
+
     @Description("Message cache hit rate")
     private static final String DC_MBOX_MSG_CACHE = "mbox_msg_cache";
 
+    @Description("Number of messages evicted from the message cache")
+    private static final String DC_MSG_CACHE_EVICTIONS = "msg_cache_evictions";
+
+    @Description("Number of file descriptors evicted from the file descriptor cache")
+    private static final String DC_FD_CACHE_EVICTIONS = "fd_cache_evictions";
+
+    @Description("Number of MIME parts left out of the index because text extraction ran over its time budget")
+    private static final String DC_MIME_EXTRACT_TIMEOUTS = "mime_extract_timeouts";
+
     @Description("Item cache hit rate")
     private static final String DC_MBOX_ITEM_CACHE = "mbox_item_cache";
 
@@ -291,18 +445,42 @@ public class ZimbraPerf {
     @Description("Average processing time (ms) of SOAP requests")
     private static final String DC_SOAP_MS_AVG = "soap_ms_avg";
 
+    @Description("99th percentile latency (ms) of processing a SOAP request")
+    private static final String DC_SOAP_MS_P99 = "soap_ms_p99";
+
+    @Description("99.9th percentile latency (ms) of processing a SOAP request")
+    private static final String DC_SOAP_MS_P999 = "soap_ms_p999";
+
     @Description("Number of IMAP requests received")
     private static final String DC_IMAP_COUNT = "imap_count";
 
     @Description("Average processing time (ms) of IMAP requests")
     private static final String DC_IMAP_MS_AVG = "imap_ms_avg";
 
+    @Description("99th percentile latency (ms) of processing an IMAP request")
+    private static final String DC_IMAP_MS_P99 = "imap_ms_p99";
+
+    @Description("99.9th percentile latency (ms) of processing an IMAP request")
+    private static final String DC_IMAP_MS_P999 = "imap_ms_p999";
+
+    @Description("Number of message bytes sent by IMAP FETCH straight from blob files, without copying")
+    private static final String DC_IMAP_ZERO_COPY_BYTES = "imap_zero_copy_bytes";
+
+    @Description("Hit rate of the ENVELOPE and BODYSTRUCTURE stored with messages for IMAP FETCH")
+    private static final String DC_IMAP_STRUCTURE_CACHE = "imap_structure_cache";
+
     @Description("Number of POP3 requests received")
     private static final String DC_POP_COUNT = "pop_count";
 
     @Description("Average processing time (ms) of POP3 requests")
     private static final String DC_POP_MS_AVG = "pop_ms_avg";
 
+    @Description("99th percentile latency (ms) of processing a POP3 request")
+    private static final String DC_POP_MS_P99 = "pop_ms_p99";
+
+    @Description("99.9th percentile latency (ms) of processing a POP3 request")
+    private static final String DC_POP_MS_P999 = "pop_ms_p999";
+
     @Description("Number of times that the file descriptor cache read message data from disk")
     private static final String DC_BIS_READ = "bis_read";
 
@@ -330,6 +508,12 @@ public class ZimbraPerf {
     @Description("Average of idx_bytes_read")
     private static final String DC_IDX_BYTES_READ_AVG = "idx_bytes_read_avg";
 
+    @Description("Number of times a cached Lucene searcher was refreshed after an index commit")
+    private static final String DC_IDX_REOPEN_COUNT = "idx_reopen_count";
+
+    @Description("Average time (ms) to refresh a cached Lucene searcher after an index commit")
+    private static final String DC_IDX_REOPEN_MS_AVG = "idx_reopen_ms_avg";
+
     @Description("Hit rate of calendar summary cache, counting cache hit from both memory and file")
     private static final String DC_CALCACHE_HIT = "calcache_hit";
 
@@ -469,23 +653,70 @@ public class ZimbraPerf {
                             new DeltaCalculator(COUNTER_LMTP_RCVD_RCPT).setTotalName(DC_LMTP_RCVD_RCPT),
                             new DeltaCalculator(COUNTER_LMTP_DLVD_MSGS).setTotalName(DC_LMTP_DLVD_MSGS),
                             new DeltaCalculator(COUNTER_LMTP_DLVD_BYTES).setTotalName(DC_LMTP_DLVD_BYTES),
+                            new DeltaCalculator(COUNTER_LMTP_FANOUT).setCountName(DC_LMTP_FANOUT_COUNT)
+                                    .setAverageName(DC_LMTP_FANOUT_AVG),
+                            new DeltaCalculator(STOPWATCH_LMTP_RCPT).setCountName(DC_LMTP_RCPT_COUNT)
+                                    .setAverageName(DC_LMTP_RCPT_MS_AVG)
+                                    .setPercentileName(99.0, DC_LMTP_RCPT_MS_P99)
+                                    .setPercentileName(99.9, DC_LMTP_RCPT_MS_P999),
                             new DeltaCalculator(STOPWATCH_DB_CONN).setCountName(DC_DB_CONN_COUNT)
-                                    .setAverageName(DC_DB_CONN_MS_AVG),
+                                    .setAverageName(DC_DB_CONN_MS_AVG)
+                                    .setPercentileName(99.0, DC_DB_CONN_MS_P99)
+                                    .setPercentileName(99.9, DC_DB_CONN_MS_P999),
                             new DeltaCalculator(STOPWATCH_LDAP_DC).setCountName(DC_LDAP_DC_COUNT)
                                     .setAverageName(DC_LDAP_DC_MS_AVG),
                             new DeltaCalculator(STOPWATCH_MBOX_ADD_MSG).setCountName(DC_MBOX_ADD_MSG_COUNT)
-                                    .setAverageName(DC_MBOX_ADD_MSG_MS_AVG),
+                                    .setAverageName(DC_MBOX_ADD_MSG_MS_AVG)
+                                    .setPercentileName(99.0, DC_MBOX_ADD_MSG_MS_P99)
+                                    .setPercentileName(99.9, DC_MBOX_ADD_MSG_MS_P999),
                             new DeltaCalculator(STOPWATCH_MBOX_GET).setCountName(DC_MBOX_GET_COUNT)
                                     .setAverageName(DC_MBOX_GET_MS_AVG),
                             new DeltaCalculator(COUNTER_MBOX_CACHE).setAverageName(DC_MBOX_CACHE),
+                            new DeltaCalculator(COUNTER_MBOX_CACHE_HIT).setTotalName(DC_MBOX_CACHE_HIT),
+                            new DeltaCalculator(COUNTER_MBOX_CACHE_MISS).setTotalName(DC_MBOX_CACHE_MISS),
+                            new DeltaCalculator(STOPWATCH_MBOX_LOAD).setCountName(DC_MBOX_LOAD_COUNT)
+                                    .setAverageName(DC_MBOX_LOAD_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_MBOX_FOLDERS_TAGS_LOAD)
+                                    .setCountName(DC_MBOX_FOLDERS_TAGS_LOAD_COUNT)
+                                    .setAverageName(DC_MBOX_FOLDERS_TAGS_LOAD_MS_AVG),
+                            new DeltaCalculator(COUNTER_MBOX_FOLDERS_TAGS_DELTA)
+                                    .setCountName(DC_MBOX_FOLDERS_TAGS_DELTA_COUNT)
+                                    .setAverageName(DC_MBOX_FOLDERS_TAGS_DELTA_AVG),
+                            new DeltaCalculator(STOPWATCH_PURGE).setCountName(DC_PURGE_COUNT)
+                                    .setAverageName(DC_PURGE_MS_AVG),
+                            new DeltaCalculator(COUNTER_PURGE_PAUSE).setTotalName(DC_PURGE_PAUSE_MS),
+                            new DeltaCalculator(COUNTER_NOTIFY_BATCH).setCountName(DC_NOTIFY_BATCH_COUNT)
+                                    .setAverageName(DC_NOTIFY_BATCH_SIZE_AVG),
+                            new DeltaCalculator(STOPWATCH_NOTIFY).setAverageName(DC_NOTIFY_MS_AVG),
+                            new DeltaCalculator(COUNTER_NOTIFY_WAIT).setTotalName(DC_NOTIFY_WAIT_MS),
+                            new DeltaCalculator(COUNTER_WAITSET_BATCH).setCountName(DC_WAITSET_BATCH_COUNT)
+                                    .setAverageName(DC_WAITSET_BATCH_SIZE_AVG),
+                            new DeltaCalculator(STOPWATCH_WAITSET_DELIVERY).setAverageName(DC_WAITSET_DELIVERY_MS_AVG),
+                            new DeltaCalculator(COUNTER_REDO_BATCH).setCountName(DC_REDO_BATCH_COUNT)
+                                    .setAverageName(DC_REDO_BATCH_SIZE_AVG),
+                            new DeltaCalculator(STOPWATCH_REDO_COMMIT).setCountName(DC_REDO_COMMIT_COUNT)
+                                    .setAverageName(DC_REDO_COMMIT_MS_AVG)
+                                    .setPercentileName(99.0, DC_REDO_COMMIT_MS_P99)
+                                    .setPercentileName(99.9, DC_REDO_COMMIT_MS_P999),
                             new DeltaCalculator(COUNTER_MBOX_MSG_CACHE).setAverageName(DC_MBOX_MSG_CACHE),
+                            new DeltaCalculator(COUNTER_MSG_CACHE_EVICTIONS).setTotalName(DC_MSG_CACHE_EVICTIONS),
+                            new DeltaCalculator(COUNTER_FD_CACHE_EVICTIONS).setTotalName(DC_FD_CACHE_EVICTIONS),
+                            new DeltaCalculator(COUNTER_MIME_EXTRACT_TIMEOUTS).setTotalName(DC_MIME_EXTRACT_TIMEOUTS),
                             new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setAverageName(DC_MBOX_ITEM_CACHE),
                             new DeltaCalculator(STOPWATCH_SOAP).setCountName(DC_SOAP_COUNT)
-                                    .setAverageName(DC_SOAP_MS_AVG),
+                                    .setAverageName(DC_SOAP_MS_AVG)
+                                    .setPercentileName(99.0, DC_SOAP_MS_P99)
+                                    .setPercentileName(99.9, DC_SOAP_MS_P999),
                             new DeltaCalculator(STOPWATCH_IMAP).setCountName(DC_IMAP_COUNT)
-                                    .setAverageName(DC_IMAP_MS_AVG),
+                                    .setAverageName(DC_IMAP_MS_AVG)
+                                    .setPercentileName(99.0, DC_IMAP_MS_P99)
+                                    .setPercentileName(99.9, DC_IMAP_MS_P999),
+                            new DeltaCalculator(COUNTER_IMAP_ZERO_COPY_BYTES).setTotalName(DC_IMAP_ZERO_COPY_BYTES),
+                            new DeltaCalculator(COUNTER_IMAP_STRUCTURE_CACHE).setAverageName(DC_IMAP_STRUCTURE_CACHE),
                             new DeltaCalculator(STOPWATCH_POP).setCountName(DC_POP_COUNT)
-                                    .setAverageName(DC_POP_MS_AVG),
+                                    .setAverageName(DC_POP_MS_AVG)
+                                    .setPercentileName(99.0, DC_POP_MS_P99)
+                                    .setPercentileName(99.9, DC_POP_MS_P999),
                             new DeltaCalculator(COUNTER_IDX_WRT).setAverageName(DC_IDX_WRT_AVG),
                             new DeltaCalculator(COUNTER_IDX_WRT_OPENED).setTotalName(DC_IDX_WRT_OPENED),
                             new DeltaCalculator(COUNTER_IDX_WRT_OPENED_CACHE_HIT)
@@ -500,6 +731,8 @@ public class ZimbraPerf {
                                     .setAverageName(DC_IDX_BYTES_WRITTTEN_AVG),
                             new DeltaCalculator(COUNTER_IDX_BYTES_READ)
                                     .setTotalName(DC_IDX_BYTES_READ).setAverageName(DC_IDX_BYTES_READ_AVG),
+                            new DeltaCalculator(STOPWATCH_INDEX_REOPEN).setCountName(DC_IDX_REOPEN_COUNT)
+                                    .setAverageName(DC_IDX_REOPEN_MS_AVG),
                             new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_READ).setTotalName(DC_BIS_READ),
                             new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_SEEK_RATE)
                                     .setAverageName(DC_BIS_SEEK_RATE),
@@ -512,7 +745,9 @@ public class ZimbraPerf {
             sAccumulators = new CopyOnWriteArrayList<Accumulator>(
                     new Accumulator[] {
                             new DeltaCalculator(STOPWATCH_IMAP)
-                                    .setCountName(DC_IMAP_COUNT).setAverageName(DC_IMAP_MS_AVG),
+                                    .setCountName(DC_IMAP_COUNT).setAverageName(DC_IMAP_MS_AVG)
+                                    .setPercentileName(99.0, DC_IMAP_MS_P99)
+                                    .setPercentileName(99.9, DC_IMAP_MS_P999),
                             realtimeStats
                     }
                 );
@@ -552,6 +787,8 @@ public class ZimbraPerf {
         try {
             jmxServer.registerMBean(jmxServerStats,
                     new ObjectName("ZimbraCollaborationSuite:type=ServerStats"));
+            jmxServer.registerMBean(new JmxItemCacheStats(),
+                    new ObjectName("ZimbraCollaborationSuite:type=ItemCacheStats"));
         } catch (Exception e) {
             ZimbraLog.perf.warn("Unable to register JMX interface.", e);
         }
@@ -562,6 +799,8 @@ public class ZimbraPerf {
         StatsDumper.schedule(LDAP_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SYNC_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SQL_TRACKER, CSV_DUMP_FREQUENCY);
+        StatsDumper.schedule(DLOCK_TRACKER, CSV_DUMP_FREQUENCY);
+        StatsDumper.schedule(MIME_TRACKER, CSV_DUMP_FREQUENCY);
         ThreadStats threadStats = new ThreadStats("threads.csv");
         StatsDumper.schedule(threadStats, CSV_DUMP_FREQUENCY);
     }
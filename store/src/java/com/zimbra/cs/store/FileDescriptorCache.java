@@ -24,11 +24,11 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.util.FileCache;
@@ -38,22 +38,26 @@ import com.zimbra.common.util.LogFactory;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
  * Caches file descriptors to blobs in the mail store.  If the blob is compressed,
  * uses a {@link FileCache} to access the uncompressed data.  Cache entries
  * that reference uncompressed blobs keep the file descriptor open until {@link #remove}
  * is called or the cache entry is aged out.
+ * <p>
+ * Entries are kept in a {@link ConcurrentLinkedHashMap} weighted by open file descriptors, so lookups don't
+ * serialize on a single monitor.  Recency is recorded in striped buffers and least recently used entries are
+ * evicted by whichever thread goes over the limit.
  */
 public class FileDescriptorCache
 {
     private static final Log sLog = LogFactory.getLog(FileDescriptorCache.class);
 
-    // Create the file cache with default LinkedHashMap values, but sorted by last access time.
-    private final LinkedHashMap<String, SharedFile> mCache = new LinkedHashMap<String, SharedFile>(16, 0.75f, true);
+    // Sorted by last access time, each entry holding one file descriptor.
+    private final ConcurrentLinkedHashMap<String, SharedFile> mCache;
     // Create a concurrent list for the SharedFies for which the mapping has been removed but is still in use by some threads.
     private final List<SharedFileInfo> mInactiveCache = Collections.synchronizedList(new ArrayList<SharedFileInfo>());
-    private int mMaxSize = 1000;
     private final FileCache<String> mUncompressedFileCache;
     private final Counter mHitRate = new Counter();
 
@@ -69,15 +73,25 @@ public class FileDescriptorCache
 
     public FileDescriptorCache(FileCache<String> uncompressedCache) {
         mUncompressedFileCache = uncompressedCache;
+        mCache = new ConcurrentLinkedHashMap.Builder<String, SharedFile>()
+            .maximumWeightedCapacity(1000)
+            .listener(new EvictionListener<String, SharedFile>() {
+                @Override
+                public void onEviction(String path, SharedFile file) {
+                    ZimbraPerf.COUNTER_FD_CACHE_EVICTIONS.increment();
+                    closeOrDefer(file, path);
+                    // Close if there are any SharedFiles in the inactive cache.
+                    quietCloseInactiveCache();
+                }
+            }).build();
     }
 
-    public synchronized FileDescriptorCache setMaxSize(int maxSize) {
+    public FileDescriptorCache setMaxSize(int maxSize) {
         if (maxSize < 0)
             throw new IllegalArgumentException("maxSize value of " + maxSize + " is invalid (must be at least 0)");
 
-        mMaxSize = maxSize;
         mHitRate.reset(); // Recalculate hit rate based on the new size.
-        pruneIfNecessary();
+        mCache.setCapacity(maxSize);
         return this;
     }
 
@@ -97,13 +111,12 @@ public class FileDescriptorCache
      * Closes all file descriptors, clears the cache, and removes any files from
      * the uncompressed cache.
      */
-    public synchronized void shutdown() {
-        Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-        while (iEntries.hasNext()) {
-            Map.Entry<String, SharedFile> entry = iEntries.next();
-            String path = entry.getKey();
-            SharedFile file = entry.getValue();
-            iEntries.remove();
+    public void shutdown() {
+        for (String path : mCache.keySet()) {
+            SharedFile file = mCache.remove(path);
+            if (file == null) {
+                continue;
+            }
             try {
                 boolean success = close(file, path);
                 if (!success)
@@ -136,9 +149,7 @@ public class FileDescriptorCache
     }
 
     boolean contains(String path) {
-        synchronized (this) {
-            return mCache.containsKey(path);
-        }
+        return mCache.containsKey(path);
     }
 
     /**
@@ -146,11 +157,7 @@ public class FileDescriptorCache
      * increments the number of readers for the <tt>SharedFile</tt>.
      */
     private SharedFile getSharedFile(String path, long rawSize) throws IOException {
-        SharedFile sharedFile = null;
-
-        synchronized (this) {
-            sharedFile = mCache.get(path);
-        }
+        SharedFile sharedFile = mCache.get(path);
         if (sharedFile != null) {
             sLog.debug("Found existing file descriptor for %s, rawSize=%d.", path, rawSize);
             sharedFile.aboutToRead();
@@ -182,18 +189,18 @@ public class FileDescriptorCache
             sharedFile = new SharedFile(file);
         }
 
-        synchronized (this) {
-            if (mCache.containsKey(path)) {
-                sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
-                sharedFile.close();
-                sharedFile = mCache.get(path);
-            } else {
-                sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
-                mCache.put(path, sharedFile);
-            }
-        }
+        // Count ourselves as a reader before publishing, so that an immediate eviction can't close it under us.
         sharedFile.aboutToRead();
-        pruneIfNecessary();
+        SharedFile existing = mCache.putIfAbsent(path, sharedFile);
+        if (existing != null) {
+            sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
+            sharedFile.doneReading();
+            sharedFile.close();
+            sharedFile = existing;
+            sharedFile.aboutToRead();
+        } else {
+            sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
+        }
 
         return sharedFile;
     }
@@ -203,11 +210,7 @@ public class FileDescriptorCache
      * descriptor is not in the cache.
      */
     public void remove(String path) throws IOException {
-        SharedFile file = null;
-
-        synchronized (this) {
-            file = mCache.remove(path);
-        }
+        SharedFile file = mCache.remove(path);
 
         if (file != null) {
             boolean success = close(file, path);
@@ -233,12 +236,10 @@ public class FileDescriptorCache
             if (file.getNumReaders() == 0) {
                 file.close();
                 if (mUncompressedFileCache != null) {
-                    synchronized (this) {
-                        if (!mCache.containsKey(path)) {
-                            mUncompressedFileCache.remove(path);
-                        } else {
-                            sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.");
-                        }
+                    if (!mCache.containsKey(path)) {
+                        mUncompressedFileCache.remove(path);
+                    } else {
+                        sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.", path);
                     }
                 }
                 return true;
@@ -265,42 +266,26 @@ public class FileDescriptorCache
         }
     }
 
-    public synchronized int getSize() {
+    /**
+     * Closes an evicted file, or leaves it for {@link #quietCloseInactiveCache} if another thread is still
+     * reading it.
+     */
+    private void closeOrDefer(SharedFile file, String path) {
+        try {
+            boolean success = close(file, path);
+            if (!success) {
+                mInactiveCache.add(new SharedFileInfo(path, file));
+            }
+        } catch (IOException e) {
+            ZimbraLog.store.warn("Unable to close file descriptor for " + path, e);
+        }
+    }
+
+    public int getSize() {
         return mCache.size();
     }
 
     public double getHitRate() {
         return mHitRate.getAverage();
     }
-
-    private void pruneIfNecessary() {
-         if (getSize() <= mMaxSize)
-            return;
-
-        List<Map.Entry<String, SharedFile>> removeList = new ArrayList<Map.Entry<String, SharedFile>>();
-
-        synchronized (this) {
-            Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-            while (iEntries.hasNext() && mCache.size() > mMaxSize) {
-                Map.Entry<String, SharedFile> mapEntry = iEntries.next();
-                iEntries.remove();
-                removeList.add(mapEntry);
-            }
-        }
-        for (Map.Entry<String, SharedFile> mapEntry : removeList) {
-            String path = mapEntry.getKey();
-            SharedFile file = mapEntry.getValue();
-            try {
-                boolean success = close(file, path);
-                if (!success) {
-                    mInactiveCache.add(new SharedFileInfo(path, file));
-                }
-            } catch (IOException e) {
-                ZimbraLog.store.warn("Unable to close file descriptor for " + path, e);
-            }
-        }
-
-        // Close if there are any SharedFiles in the inactive cache.
-        quietCloseInactiveCache();
-    }
 }
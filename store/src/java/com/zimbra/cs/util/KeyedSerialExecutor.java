@@ -0,0 +1,229 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs work for many keys on a shared {@link Executor}, one batch at a time per key and in submission order.  Work for
+ * different keys runs in parallel, and a key with a lot of work queued goes to the back of the line after every batch,
+ * so it can't keep a thread to itself while other keys wait.
+ *
+ * @param <K> the key work is serialized on, e.g. an account or a session
+ * @param <T> the items of work
+ */
+public final class KeyedSerialExecutor<K, T> {
+
+    public interface Handler<K, T> {
+        /**
+         * Processes the next batch of items queued for a key.  Never called concurrently for the same key.  Items are
+         * considered done when this returns or throws.
+         */
+        void handle(K key, List<T> items);
+
+        /** Called with the items that were dropped because the executor rejected them, e.g. after a shutdown. */
+        void rejected(K key, List<T> items);
+    }
+
+    private final Executor executor;
+    private final int batchSize;
+    private final Handler<K, T> handler;
+    // keys with items queued or being processed
+    private final Map<K, Lane> lanes = new HashMap<K, Lane>();
+    // items that haven't been processed yet
+    private int pending = 0;
+
+    /**
+     * @param batchSize the maximum number of items passed to the handler at once
+     */
+    public KeyedSerialExecutor(Executor executor, int batchSize, Handler<K, T> handler) {
+        this.executor = executor;
+        this.batchSize = Math.max(batchSize, 1);
+        this.handler = handler;
+    }
+
+    private final class Lane implements Runnable {
+        final K key;
+        final Deque<T> items = new ArrayDeque<T>();
+        // queued on the executor
+        boolean scheduled;
+        // a batch is being processed
+        boolean busy;
+
+        Lane(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            List<T> batch;
+            synchronized (KeyedSerialExecutor.this) {
+                scheduled = false;
+                if (busy) {
+                    return; // taken over by runNow(), which reschedules whatever is left
+                }
+                if (items.isEmpty()) {
+                    lanes.remove(key);
+                    return;
+                }
+                busy = true;
+                batch = take(this, batchSize);
+            }
+            process(this, batch);
+        }
+    }
+
+    /** Queues an item for its key. */
+    public void submit(K key, T item) {
+        Lane lane;
+        synchronized (this) {
+            lane = add(key, item);
+            if (lane.busy || lane.scheduled) {
+                return;
+            }
+            lane.scheduled = true;
+        }
+        schedule(lane);
+    }
+
+    /**
+     * Processes an item on the calling thread, together with whatever is queued for its key ahead of it, so ordering
+     * is kept.  If another thread is processing the key, waits up to {@code timeoutMillis} for it to finish.
+     *
+     * @return {@code false} if the key was still busy, in which case the item is left queued for the executor
+     */
+    public boolean runNow(K key, T item, long timeoutMillis) {
+        Lane lane;
+        List<T> batch;
+        boolean interrupted = false;
+        synchronized (this) {
+            lane = add(key, item);
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (lane.busy) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+            }
+            if (lane.busy) {
+                batch = null; // the busy thread reschedules the lane when it's done
+            } else {
+                lane.busy = true;
+                batch = take(lane, Integer.MAX_VALUE);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (batch == null) {
+            return false;
+        }
+        process(lane, batch);
+        return true;
+    }
+
+    /** Returns the number of items that haven't been processed yet. */
+    public synchronized int getPendingCount() {
+        return pending;
+    }
+
+    /** Returns the number of keys with items queued or being processed. */
+    public synchronized int getKeyCount() {
+        return lanes.size();
+    }
+
+    // must be called with the executor locked
+    private Lane add(K key, T item) {
+        Lane lane = lanes.get(key);
+        if (lane == null) {
+            lane = new Lane(key);
+            lanes.put(key, lane);
+        }
+        lane.items.add(item);
+        pending++;
+        return lane;
+    }
+
+    // must be called with the executor locked
+    private List<T> take(Lane lane, int max) {
+        List<T> batch = new ArrayList<T>(Math.min(lane.items.size(), max));
+        while (batch.size() < max && !lane.items.isEmpty()) {
+            batch.add(lane.items.poll());
+        }
+        return batch;
+    }
+
+    private void process(Lane lane, List<T> batch) {
+        try {
+            handler.handle(lane.key, batch);
+        } finally {
+            // even if the handler threw an Error, so the key isn't stuck
+            boolean again = false;
+            synchronized (this) {
+                lane.busy = false;
+                pending -= batch.size();
+                if (!lane.scheduled) {
+                    if (lane.items.isEmpty()) {
+                        lanes.remove(lane.key);
+                    } else {
+                        // go to the back of the line
+                        lane.scheduled = true;
+                        again = true;
+                    }
+                }
+                notifyAll();
+            }
+            if (again) {
+                schedule(lane);
+            }
+        }
+    }
+
+    private void schedule(Lane lane) {
+        try {
+            executor.execute(lane);
+        } catch (RejectedExecutionException e) {
+            List<T> dropped;
+            synchronized (this) {
+                lane.scheduled = false;
+                if (lane.busy) {
+                    return; // dropped when the busy thread tries to reschedule
+                }
+                dropped = take(lane, Integer.MAX_VALUE);
+                pending -= dropped.size();
+                lanes.remove(lane.key);
+                notifyAll();
+            }
+            if (!dropped.isEmpty()) {
+                handler.rejected(lane.key, dropped);
+            }
+        }
+    }
+}
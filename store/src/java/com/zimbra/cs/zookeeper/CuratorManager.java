@@ -27,6 +27,7 @@ import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreV2;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.x.discovery.ServiceCache;
 import org.apache.curator.x.discovery.ServiceCacheBuilder;
@@ -50,6 +51,8 @@ public class CuratorManager {
     private static boolean initialized = false;
 
     private static final String LOCKS = "/locks/";
+    private static final String SHARED_LOCKS = "/sharedlocks/";
+    private static final String WRITERS = "/writers/";
     private static final String DATA = "/data/";
     private static final String SERVICE = "/service";
 
@@ -113,6 +116,19 @@ public class CuratorManager {
         return new InterProcessSemaphoreMutex(client, LOCKS + id);
     }
 
+    /**
+     * Creates the semaphore used for the shared side of a distributed read/write lock.  It lives under a separate
+     * path from {@link #createLock(String)} so the two recipes don't see each other's nodes.
+     */
+    public InterProcessSemaphoreV2 createSemaphore(String id, int maxLeases) {
+        return new InterProcessSemaphoreV2(client, SHARED_LOCKS + id, maxLeases);
+    }
+
+    /** Creates the registry of writers waiting for the distributed read/write lock with the given id. */
+    public WriterIntent createWriterIntent(String id) {
+        return new WriterIntent(client, WRITERS + id);
+    }
+
     public void setData(String key, String value) throws Exception {
         byte[] data;
         try {
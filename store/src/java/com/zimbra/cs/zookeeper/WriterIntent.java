@@ -0,0 +1,107 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.zookeeper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Lets writers waiting for a distributed read/write lock make themselves known, so that nodes sharing a read lease
+ * can step aside instead of starving them.  Every waiting writer holds an ephemeral node under the lock's path.
+ * Readers watch the path rather than reading it on every check.
+ */
+public class WriterIntent {
+    private final CuratorFramework client;
+    private final String path;
+    private volatile boolean watching;
+    private volatile boolean waiting;
+
+    private final CuratorWatcher watcher = new CuratorWatcher() {
+        @Override
+        public void process(WatchedEvent event) throws Exception {
+            if (event.getType() == Watcher.Event.EventType.None) {
+                if (event.getState() == Watcher.Event.KeeperState.Expired) {
+                    // watches don't survive the session; set a new one on the next check
+                    watching = false;
+                    waiting = false;
+                }
+                return;
+            }
+            refresh();
+        }
+    };
+
+    WriterIntent(CuratorFramework client, String path) {
+        this.client = client;
+        this.path = path;
+    }
+
+    /**
+     * Registers the calling writer as waiting for the lock.
+     *
+     * @return the node to pass to {@link #withdraw(String)} once the lock is held or the writer gave up
+     */
+    public String announce() throws Exception {
+        return client.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+                .forPath(path + "/writer-");
+    }
+
+    public void withdraw(String node) throws Exception {
+        try {
+            client.delete().forPath(node);
+        } catch (KeeperException.NoNodeException e) {
+            // went away with an expired session
+        }
+    }
+
+    /** Returns true if a writer on any node is waiting for the lock, as of the last change seen. */
+    public boolean isWriterWaiting() {
+        if (!watching) {
+            synchronized (this) {
+                if (!watching) {
+                    watching = true;
+                    refresh();
+                }
+            }
+        }
+        return waiting;
+    }
+
+    private void refresh() {
+        try {
+            try {
+                waiting = !client.getChildren().usingWatcher(watcher).forPath(path).isEmpty();
+            } catch (KeeperException.NoNodeException e) {
+                try {
+                    client.create().creatingParentsIfNeeded().forPath(path);
+                } catch (KeeperException.NodeExistsException ignore) {
+                }
+                waiting = !client.getChildren().usingWatcher(watcher).forPath(path).isEmpty();
+            }
+        } catch (Exception e) {
+            ZimbraLog.mailbox.warn("unable to watch for writers waiting on %s", path, e);
+            watching = false;
+            waiting = false;
+        }
+    }
+}
@@ -333,20 +333,16 @@ public class SoapServlet extends ZimbraServlet {
         sendResponse(req, resp, envelope);
     }
 
-    private int soapResponseBufferSize() {
-        String val = LC.soap_response_buffer_size.value();
-        if (val == null || val.length() == 0)
-            return -1; // will be using jetty default
-        else
-            return LC.soap_response_buffer_size.intValue();
-    }
-
-    private void sendResponse(HttpServletRequest req, HttpServletResponse resp, Element envelope) throws IOException {
-        SoapProtocol soapProto = SoapProtocol.determineProtocol(envelope);
-        int statusCode = soapProto.hasFault(envelope) ?
-                HttpServletResponse.SC_INTERNAL_SERVER_ERROR : HttpServletResponse.SC_OK;
-
+    /**
+     * Returns whether the response may use chunked transfer encoding.  The client can override the LC setting for
+     * a single request with the {@code X-Zimbra-Response-Chunked} header; HTTP/1.0 requests are never chunked.
+     */
+    private boolean isChunkingEnabled(HttpServletRequest req) {
         boolean chunkingEnabled = LC.soap_response_chunked_transfer_encoding_enabled.booleanValue();
+        String override = req.getHeader(HeaderConstants.HTTP_HEADER_RESPONSE_CHUNKED);
+        if (override != null) {
+            chunkingEnabled = Boolean.parseBoolean(override.trim());
+        }
 
         if (chunkingEnabled) {
             // disable chunking if proto < HTTP 1.1
@@ -360,6 +356,48 @@ public class SoapServlet extends ZimbraServlet {
                 chunkingEnabled = false;
             }
         }
+        return chunkingEnabled;
+    }
+
+    /**
+     * Serializes the envelope to a buffer that spools to disk past {@code soap_response_spool_threshold} and sends
+     * it with a Content-Length header.
+     *
+     * @return false if the envelope could not be buffered and nothing was written
+     */
+    private boolean sendWithContentLength(HttpServletResponse resp, Element envelope) throws IOException {
+        BufferStream bs = new BufferStream(0, LC.soap_response_spool_threshold.intValue());
+        try {
+            ZimbraServletOutputStream out = new ZimbraServletOutputStream(bs);
+            envelope.output(out);
+            out.flush();
+            if (bs.isPartial() || bs.getSize() > Integer.MAX_VALUE) {
+                ZimbraLog.soap.warn("unable to buffer %d byte response, sending it without Content-Length", bs.getSize());
+                return false;
+            }
+            resp.setContentLength((int) bs.getSize());
+            bs.writeTo(resp.getOutputStream());
+            resp.getOutputStream().flush();
+            return true;
+        } finally {
+            bs.close();
+        }
+    }
+
+    private int soapResponseBufferSize() {
+        String val = LC.soap_response_buffer_size.value();
+        if (val == null || val.length() == 0)
+            return -1; // will be using jetty default
+        else
+            return LC.soap_response_buffer_size.intValue();
+    }
+
+    private void sendResponse(HttpServletRequest req, HttpServletResponse resp, Element envelope) throws IOException {
+        SoapProtocol soapProto = SoapProtocol.determineProtocol(envelope);
+        int statusCode = soapProto.hasFault(envelope) ?
+                HttpServletResponse.SC_INTERNAL_SERVER_ERROR : HttpServletResponse.SC_OK;
+
+        boolean chunkingEnabled = isChunkingEnabled(req);
 
         // use jetty default if the LC key is not set
         int responseBufferSize = soapResponseBufferSize();
@@ -370,17 +408,11 @@ public class SoapServlet extends ZimbraServlet {
         resp.setStatus(statusCode);
         resp.setHeader("Cache-Control", "no-store, no-cache");
 
-        if (chunkingEnabled) {
-            // Let jetty chunk the response if applicable.
+        if (chunkingEnabled || !sendWithContentLength(resp, envelope)) {
+            // Stream the envelope; let jetty chunk the response if applicable.
             ZimbraServletOutputStream out = new ZimbraServletOutputStream(resp.getOutputStream());
             envelope.output(out);
             out.flush();
-        } else {
-            // serialize the envelope to a byte array and send the response with Content-Length header.
-            byte[] soapBytes = envelope.toUTF8();
-            resp.setContentLength(soapBytes.length);
-            resp.getOutputStream().write(soapBytes);
-            resp.getOutputStream().flush();
         }
         envelope.destroy();
     }